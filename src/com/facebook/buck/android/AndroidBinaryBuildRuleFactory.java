@@ -23,7 +23,10 @@ import com.facebook.buck.parser.BuildRuleFactoryParams;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.AbstractBuildRuleBuilderParams;
 import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.step.fs.XzOptions;
+import com.facebook.buck.util.HumanReadableException;
 import com.google.common.base.Optional;
+import com.google.common.primitives.Ints;
 
 import java.util.List;
 
@@ -84,11 +87,37 @@ public class AndroidBinaryBuildRuleFactory extends AbstractBuildRuleFactory<Andr
     // use_linear_alloc_split_dex
     boolean useLinearAllocSplitDex = params.getBooleanAttribute("use_linear_alloc_split_dex");
 
+    // use_incremental_dex_layout
+    boolean useIncrementalDexLayout = params.getBooleanAttribute("use_incremental_dex_layout");
+    if (useIncrementalDexLayout && !useLinearAllocSplitDex) {
+      throw new HumanReadableException(
+          "%s: use_incremental_dex_layout requires use_linear_alloc_split_dex.",
+          params.target);
+    }
+
+    // xz_compression_level, xz_dictionary_size, xz_threads
+    XzOptions xzOptions;
+    Optional<Long> xzDictionarySize = params.getOptionalLongAttribute("xz_dictionary_size");
+    try {
+      xzOptions = new XzOptions(
+          Ints.checkedCast(params.getRequiredLongAttribute("xz_compression_level")),
+          xzDictionarySize.isPresent()
+              ? Optional.of(Ints.checkedCast(xzDictionarySize.get()))
+              : Optional.<Integer>absent(),
+          Ints.checkedCast(params.getRequiredLongAttribute("xz_threads")));
+    } catch (IllegalArgumentException e) {
+      throw new HumanReadableException("%s: invalid xz options: %s",
+          params.target,
+          e.getMessage());
+    }
+
     builder.setDexSplitMode(new DexSplitMode(
         useSplitDex,
         dexSplitStrategy,
         dexStore,
-        useLinearAllocSplitDex));
+        useLinearAllocSplitDex,
+        useIncrementalDexLayout,
+        xzOptions));
 
     // use_android_proguard_config_with_optimizations
     boolean useAndroidProguardConfigWithOptimizations =
@@ -103,6 +132,11 @@ public class AndroidBinaryBuildRuleFactory extends AbstractBuildRuleFactory<Andr
     boolean compressResources = params.getBooleanAttribute("compress_resources");
     builder.setCompressResources(compressResources);
 
+    // use_incremental_apk_packaging
+    boolean useIncrementalApkPackaging =
+        params.getBooleanAttribute("use_incremental_apk_packaging");
+    builder.setUseIncrementalApkPackaging(useIncrementalApkPackaging);
+
     // primary_dex_substrings
     List<String> primaryDexSubstrings = params.getOptionalListAttribute("primary_dex_substrings");
     builder.addPrimaryDexSubstrings(primaryDexSubstrings);
@@ -30,6 +30,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetPattern;
 import com.facebook.buck.rules.AbstractBuildRuleBuilder;
 import com.facebook.buck.rules.AbstractBuildRuleBuilderParams;
+import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.BuildContext;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleParams;
@@ -72,6 +73,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.io.File;
@@ -163,6 +165,7 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
   private final ImmutableSet<TargetCpuType> cpuFilters;
   private final ImmutableSortedSet<BuildRule> preprocessJavaClassesDeps;
   private final Optional<String> preprocessJavaClassesBash;
+  private final boolean useIncrementalApkPackaging;
   private final AndroidTransitiveDependencyGraph transitiveDependencyGraph;
 
   /** This path is guaranteed to end with a slash. */
@@ -191,7 +194,8 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
       FilterResourcesStep.ResourceFilter resourceFilter,
       Set<TargetCpuType> cpuFilters,
       Set<BuildRule> preprocessJavaClassesDeps,
-      Optional<String> preprocessJavaClassesBash) {
+      Optional<String> preprocessJavaClassesBash,
+      boolean useIncrementalApkPackaging) {
     super(buildRuleParams);
     this.manifest = Preconditions.checkNotNull(manifest);
     this.target = Preconditions.checkNotNull(target);
@@ -213,6 +217,7 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
     this.cpuFilters = ImmutableSet.copyOf(cpuFilters);
     this.preprocessJavaClassesDeps = ImmutableSortedSet.copyOf(preprocessJavaClassesDeps);
     this.preprocessJavaClassesBash = Preconditions.checkNotNull(preprocessJavaClassesBash);
+    this.useIncrementalApkPackaging = useIncrementalApkPackaging;
     this.transitiveDependencyGraph = new AndroidTransitiveDependencyGraph(this);
   }
 
@@ -249,7 +254,8 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
         .set("resourceFilter", resourceFilter.getDescription())
         .set("cpuFilters", ImmutableSortedSet.copyOf(cpuFilters).toString())
         .set("preprocessJavaClassesBash", preprocessJavaClassesBash)
-        .set("preprocessJavaClassesDeps", preprocessJavaClassesDeps);
+        .set("preprocessJavaClassesDeps", preprocessJavaClassesDeps)
+        .set("useIncrementalApkPackaging", useIncrementalApkPackaging);
     return dexSplitMode.appendToRuleKey("dexSplitMode", builder);
   }
 
@@ -273,6 +279,10 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
     return this.compressResources;
   }
 
+  public boolean isUseIncrementalApkPackaging() {
+    return useIncrementalApkPackaging;
+  }
+
   public FilterResourcesStep.ResourceFilter getResourceFilter() {
     return this.resourceFilter;
   }
@@ -389,7 +399,10 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
           resourceFilter.getDensity(),
           DefaultFilteredDirectoryCopier.getInstance(),
           FilterResourcesStep.DefaultDrawableFinder.getInstance(),
-          resourceFilter.shouldDownscale() ? FilterResourcesStep.ImageMagickScaler.getInstance() : null
+          resourceFilter.shouldDownscale()
+              ? FilterResourcesStep.ImageMagickScaler.getInstance()
+              : null,
+          Optional.of(getBinPath("__%s_scaled_drawables_cache__"))
       );
       commands.add(filterResourcesCommand);
       resDirectories = filterResourcesCommand.getFilteredResourceDirectories();
@@ -475,12 +488,23 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
     final ImmutableSet.Builder<String> secondaryDexDirectories = ImmutableSet.builder();
 
     // Create dex artifacts. This may modify assetsDirectories.
-    addDexingCommands(
-        classpathEntriesToDex,
-        secondaryDexDirectories,
-        commands,
-        dexFile,
-        context.getSourcePathResolver());
+    if (isPreDexEnabled()) {
+      addPreDexingCommands(
+          classpathEntriesToDex,
+          context.getArtifactCache(),
+          getDexer(context),
+          commands,
+          dexFile);
+    } else {
+      addDexingCommands(
+          classpathEntriesToDex,
+          secondaryDexDirectories,
+          commands,
+          dexFile,
+          context.getSourcePathResolver(),
+          getDexer(context),
+          getDexCache(context));
+    }
 
     // Copy the transitive closure of files in assets to a single directory, if any.
     final ImmutableMap<String, File> extraAssets = extraAssetsBuilder.build();
@@ -542,7 +566,6 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
 
     // Create the unsigned APK.
     String resourceApkPath = getResourceApkPath();
-    String unsignedApkPath = getUnsignedApkPath();
 
     Optional<String> assetsDirectory;
     if (transitiveDependencies.assetsDirectories.isEmpty() && extraAssets.isEmpty()
@@ -587,13 +610,54 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
           FROYO_DEFLATE_LIMIT_BYTES));
     }
 
+    String apkPath = getApkPath();
+    if (useIncrementalApkPackaging) {
+      // Package, sign and align the APK in a single pass, reusing what it can from the last one.
+      commands.add(new IncrementalApkBuilderStep(
+          resourceApkPath,
+          dexFile,
+          nativeLibraryDirectories.build(),
+          secondaryDexZips.build(),
+          keystore.getPathToStore(),
+          keystore.getPathToPropertiesFile(),
+          isCompressResources(),
+          apkPath));
+    } else {
+      addApkBuilderSteps(resourceApkPath,
+          dexFile,
+          nativeLibraryDirectories.build(),
+          secondaryDexZips.build(),
+          apkPath,
+          commands);
+    }
+
+    // Inform the user where the APK can be found.
+    EchoStep success = new EchoStep(
+        String.format("built APK for %s at %s", getFullyQualifiedName(), apkPath));
+    commands.add(success);
+
+    return commands.build();
+  }
+
+  /**
+   * Adds the steps that package, sign and align the APK one after the other, each writing a
+   * complete copy of it.
+   */
+  private void addApkBuilderSteps(
+      String resourceApkPath,
+      String dexFile,
+      ImmutableSet<String> nativeLibraryDirectories,
+      ImmutableSet<String> secondaryDexZips,
+      String apkPath,
+      ImmutableList.Builder<Step> commands) {
+    String unsignedApkPath = getUnsignedApkPath();
     ApkBuilderStep apkBuilderCommand = new ApkBuilderStep(
         resourceApkPath,
         unsignedApkPath,
         dexFile,
         ImmutableSet.<String>of(),
-        nativeLibraryDirectories.build(),
-        secondaryDexZips.build(),
+        nativeLibraryDirectories,
+        secondaryDexZips,
         false);
     commands.add(apkBuilderCommand);
 
@@ -618,16 +682,8 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
       apkToAlign = signedApkPath;
     }
 
-    String apkPath = getApkPath();
     ZipalignStep zipalign = new ZipalignStep(apkToAlign, apkPath);
     commands.add(zipalign);
-
-    // Inform the user where the APK can be found.
-    EchoStep success = new EchoStep(
-        String.format("built APK for %s at %s", getFullyQualifiedName(), apkPath));
-    commands.add(success);
-
-    return commands.build();
   }
 
   /**
@@ -877,6 +933,8 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
    *     primary dex).
    * @param commands
    * @param primaryDexPath Output path for the primary dex file.
+   * @param dexer creates the steps that run dx.
+   * @param dexCache shares the output of dx with other builds, if present.
    */
   @VisibleForTesting
   void addDexingCommands(
@@ -884,7 +942,9 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
       ImmutableSet.Builder<String> secondaryDexDirectories,
       ImmutableList.Builder<Step> commands,
       String primaryDexPath,
-      Function<SourcePath, Path> sourcePathResolver) {
+      Function<SourcePath, Path> sourcePathResolver,
+      Dexer dexer,
+      Optional<DexCache> dexCache) {
     final Set<String> primaryInputsToDex;
     final Optional<String> secondaryDexDir;
     final Optional<String> secondaryInputsDir;
@@ -928,7 +988,11 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
           dexSplitMode.getDexStore(),
           zipSplitReportDir,
           dexSplitMode.useLinearAllocSplitDex(),
-          linearAllocHardLimit);
+          linearAllocHardLimit,
+          Optional.of(getBinPath("__%s_dalvik_stats_cache__")),
+          dexSplitMode.useIncrementalDexLayout()
+              ? Optional.of(getBinPath("__%s_secondary_dex_layout__.txt"))
+              : Optional.<String>absent());
       commands.add(splitZipCommand);
 
       // Add the secondary dex directory that has yet to be created, but will be by the
@@ -973,10 +1037,93 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
         secondaryInputsDir,
         successDir,
         Optional.<Integer>absent(),
-        dexSplitMode.getDexStore());
+        dexSplitMode.getDexStore(),
+        dexSplitMode.getXzOptions(),
+        dexer,
+        dexCache);
     commands.add(smartDexingCommand);
   }
 
+  /**
+   * @return the {@link Dexer} that {@code [dx]} in .buckconfig asks for. Running dx inside buck
+   *     saves starting a JVM for every step, but dx then shares buck's heap, so it is opt-in.
+   */
+  private static Dexer getDexer(BuildContext context) {
+    return context.isInProcessDxEnabled() ? InProcessDexer.getDefault() : new ForkingDexer();
+  }
+
+  /** @return the dex cache that {@code [dex_cache]} in .buckconfig configures, if any. */
+  private static Optional<DexCache> getDexCache(BuildContext context) {
+    if (!context.getDexCacheDir().isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(new DexCache(context.getDexCacheDir().get().toFile(),
+        context.getDexCacheMaxSizeBytes()));
+  }
+
+  /**
+   * @return true if each library in the classpath of this binary is dexed on its own, so that a
+   *     build only has to dex the libraries that changed and then merge the results. This is not
+   *     possible when ProGuard or preprocess_java_classes_bash rewrite the classes of the whole
+   *     program, nor when the classes are split across several dex files at the class level.
+   */
+  boolean isPreDexEnabled() {
+    return !shouldSplitDex()
+        && !packageType.isBuildWithObfuscation()
+        && !preprocessJavaClassesBash.isPresent();
+  }
+
+  /**
+   * Create a dex artifact for each of the classpath entries to dex, unless it is already up to
+   * date, and merge them into the primary dex file.
+   *
+   * @param classpathEntriesToDex Full set of classpath entries that must make their way into the
+   *     primary dex.
+   * @param dexer creates the steps that run dx.
+   * @param primaryDexPath Output path for the primary dex file.
+   */
+  @VisibleForTesting
+  void addPreDexingCommands(
+      Set<String> classpathEntriesToDex,
+      ArtifactCache artifactCache,
+      Dexer dexer,
+      ImmutableList.Builder<Step> commands,
+      String primaryDexPath) {
+    // Find the rule that produced each classpath entry, whose rule key identifies its contents.
+    Map<String, JavaLibraryRule> rulesByClasspathEntry = Maps.newHashMap();
+    for (Map.Entry<JavaLibraryRule, String> entry : getTransitiveClasspathEntries().entries()) {
+      if (!rulesByClasspathEntry.containsKey(entry.getValue())) {
+        rulesByClasspathEntry.put(entry.getValue(), entry.getKey());
+      }
+    }
+
+    // Everything else, such as the compiled R.java files, belongs to this binary alone.
+    String preDexDir = getBinPath("__%s_pre_dex__");
+    commands.add(new MakeCleanDirectoryStep(preDexDir));
+
+    ImmutableList.Builder<PreDexStep.DexUnit> unitsBuilder = ImmutableList.builder();
+    int numUnownedEntries = 0;
+    for (String classpathEntry : classpathEntriesToDex) {
+      JavaLibraryRule rule = rulesByClasspathEntry.get(classpathEntry);
+      if (rule != null) {
+        unitsBuilder.add(PreDexStep.DexUnit.forRule(rule, classpathEntry));
+      } else {
+        unitsBuilder.add(PreDexStep.DexUnit.forClasspathEntry(classpathEntry,
+            String.format("%s/%d.dex.jar", preDexDir, numUnownedEntries++)));
+      }
+    }
+
+    ImmutableList<PreDexStep.DexUnit> units = unitsBuilder.build();
+
+    // As with SmartDexingStep, the number of threads is independent of --num-threads.
+    PreDexStep preDexStep = new PreDexStep(units,
+        artifactCache,
+        dexer,
+        Optional.<Integer>absent());
+    commands.add(preDexStep);
+    commands.add(new DexMergeStep(primaryDexPath, preDexStep.getDexFilesToMergeSupplier()));
+  }
+
   /**
    * @return the path to the AndroidManifest.xml. Note that this file is not guaranteed to be named
    *     AndroidManifest.xml.
@@ -1052,6 +1199,7 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
     private ImmutableSet.Builder<TargetCpuType> cpuFilters = ImmutableSet.builder();
     private ImmutableSet.Builder<BuildTarget> preprocessJavaClassesDeps = ImmutableSet.builder();
     private Optional<String> preprocessJavaClassesBash = Optional.absent();
+    private boolean useIncrementalApkPackaging = false;
 
     private Builder(AbstractBuildRuleBuilderParams params) {
       super(params);
@@ -1093,7 +1241,8 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
           resourceFilter,
           cpuFilters.build(),
           getBuildTargetsAsBuildRules(ruleResolver, preprocessJavaClassesDeps.build()),
-          preprocessJavaClassesBash);
+          preprocessJavaClassesBash,
+          useIncrementalApkPackaging);
     }
 
     @Override
@@ -1214,5 +1363,10 @@ public class AndroidBinaryRule extends DoNotUseAbstractBuildable implements
       this.preprocessJavaClassesBash = Preconditions.checkNotNull(preprocessJavaClassesBash);
       return this;
     }
+
+    public Builder setUseIncrementalApkPackaging(boolean useIncrementalApkPackaging) {
+      this.useIncrementalApkPackaging = useIncrementalApkPackaging;
+      return this;
+    }
   }
 }
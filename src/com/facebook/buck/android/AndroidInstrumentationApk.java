@@ -84,7 +84,8 @@ public class AndroidInstrumentationApk extends AndroidBinaryRule {
         apkUnderTest.getResourceFilter(),
         apkUnderTest.getCpuFilters(),
         apkUnderTest.getPreprocessJavaClassesDeps(),
-        apkUnderTest.getPreprocessJavaClassesBash());
+        apkUnderTest.getPreprocessJavaClassesBash(),
+        apkUnderTest.isUseIncrementalApkPackaging());
     this.apkUnderTest = apkUnderTest;
     this.classpathDepsForInstrumentationApk = Preconditions.checkNotNull(
         classpathDepsForInstrumentationApk);
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.KeystoreProperties;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Writes the files of a v1 (JAR) signature, as {@code jarsigner} would, for the entries of an APK
+ * whose SHA-1 digests are already known. This lets the APK be signed as it is written, rather than
+ * by copying it once it is complete.
+ */
+class ApkSigner {
+
+  static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  static final String DIGEST_ATTRIBUTE = "SHA1-Digest";
+
+  private static final String CREATED_BY = "1.0 (Buck)";
+  private static final int MAX_LINE_LENGTH = 72;
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+  private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+  private static final String OID_DATA = "1.2.840.113549.1.7.1";
+  private static final String OID_SHA1 = "1.3.14.3.2.26";
+  private static final String OID_RSA_ENCRYPTION = "1.2.840.113549.1.1.1";
+
+  private final PrivateKey privateKey;
+  private final ImmutableList<X509Certificate> certificates;
+  private final String signatureName;
+
+  @VisibleForTesting
+  ApkSigner(PrivateKey privateKey, Iterable<X509Certificate> certificates, String alias) {
+    this.privateKey = Preconditions.checkNotNull(privateKey);
+    this.certificates = ImmutableList.copyOf(certificates);
+    Preconditions.checkArgument(!this.certificates.isEmpty());
+    this.signatureName = getSignatureName(alias);
+  }
+
+  /**
+   * Reads the key to sign with from a keystore, as {@link SignApkStep} would.
+   */
+  public static ApkSigner fromKeystore(
+      ProjectFilesystem filesystem,
+      String pathToKeystore,
+      String pathToPropertiesFile) throws IOException, GeneralSecurityException {
+    KeystoreProperties properties = KeystoreProperties.createFromPropertiesFile(
+        pathToKeystore, pathToPropertiesFile, filesystem);
+
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    try (InputStream input =
+        new FileInputStream(filesystem.getFileForRelativePath(pathToKeystore))) {
+      keyStore.load(input, properties.getStorepass().toCharArray());
+    }
+
+    String alias = properties.getAlias();
+    Key key = keyStore.getKey(alias, properties.getKeypass().toCharArray());
+    Certificate[] chain = keyStore.getCertificateChain(alias);
+    if (!(key instanceof PrivateKey) || chain == null) {
+      throw new HumanReadableException("Keystore %s has no private key with the alias %s.",
+          pathToKeystore,
+          alias);
+    }
+    if (!"RSA".equals(key.getAlgorithm())) {
+      throw new HumanReadableException(
+          "Incremental APK packaging only supports RSA keys, but the key %s in %s is %s.",
+          alias,
+          pathToKeystore,
+          key.getAlgorithm());
+    }
+
+    ImmutableList.Builder<X509Certificate> certificates = ImmutableList.builder();
+    for (Certificate certificate : chain) {
+      certificates.add((X509Certificate) certificate);
+    }
+    return new ApkSigner((PrivateKey) key, certificates.build(), alias);
+  }
+
+  /**
+   * @return true if {@code name} is a file of a v1 signature, which must not be copied from one
+   *     signed archive to another.
+   */
+  public static boolean isSignatureFile(String name) {
+    if (!name.startsWith("META-INF/")) {
+      return false;
+    }
+    String upperCaseName = name.toUpperCase(Locale.US);
+    return upperCaseName.equals(MANIFEST_NAME) ||
+        upperCaseName.endsWith(".SF") ||
+        upperCaseName.endsWith(".RSA") ||
+        upperCaseName.endsWith(".DSA") ||
+        upperCaseName.endsWith(".EC");
+  }
+
+  /**
+   * @return the SHA-1 digests listed in the manifest of a signed archive, keyed by entry name.
+   */
+  public static ImmutableMap<String, String> readDigests(InputStream manifest) throws IOException {
+    ImmutableMap.Builder<String, String> digests = ImmutableMap.builder();
+    for (Map.Entry<String, Attributes> entry : new Manifest(manifest).getEntries().entrySet()) {
+      String digest = entry.getValue().getValue(DIGEST_ATTRIBUTE);
+      if (digest != null) {
+        digests.put(entry.getKey(), digest);
+      }
+    }
+    return digests.build();
+  }
+
+  /**
+   * Writes the manifest, the signature file and the signature block for an archive whose entries
+   * have the given digests.
+   *
+   * @param digests the base64 encoded SHA-1 digest of every entry of the archive, by name.
+   */
+  public void writeSignature(CustomZipOutputStream out, SortedMap<String, String> digests)
+      throws IOException, GeneralSecurityException {
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeAttribute(manifest, "Manifest-Version", "1.0");
+    writeAttribute(manifest, "Created-By", CREATED_BY);
+    manifest.write(CRLF);
+
+    // Each section of the signature file holds the digest of the matching section of the manifest.
+    ByteArrayOutputStream signatureFileSections = new ByteArrayOutputStream();
+    for (Map.Entry<String, String> entry : digests.entrySet()) {
+      ByteArrayOutputStream section = new ByteArrayOutputStream();
+      writeAttribute(section, "Name", entry.getKey());
+      writeAttribute(section, DIGEST_ATTRIBUTE, entry.getValue());
+      section.write(CRLF);
+      byte[] sectionBytes = section.toByteArray();
+      manifest.write(sectionBytes);
+
+      writeAttribute(signatureFileSections, "Name", entry.getKey());
+      writeAttribute(signatureFileSections, DIGEST_ATTRIBUTE, sha1(sectionBytes));
+      signatureFileSections.write(CRLF);
+    }
+    byte[] manifestBytes = manifest.toByteArray();
+
+    ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+    writeAttribute(signatureFile, "Signature-Version", "1.0");
+    writeAttribute(signatureFile, "Created-By", CREATED_BY);
+    writeAttribute(signatureFile, "SHA1-Digest-Manifest", sha1(manifestBytes));
+    signatureFile.write(CRLF);
+    signatureFileSections.writeTo(signatureFile);
+    byte[] signatureFileBytes = signatureFile.toByteArray();
+
+    writeEntry(out, MANIFEST_NAME, manifestBytes);
+    writeEntry(out, "META-INF/" + signatureName + ".SF", signatureFileBytes);
+    writeEntry(out, "META-INF/" + signatureName + ".RSA", createSignatureBlock(signatureFileBytes));
+  }
+
+  /**
+   * @return a detached PKCS #7 SignedData structure that signs {@code signatureFile}, without
+   *     authenticated attributes, which is what {@code jarsigner} writes.
+   */
+  @VisibleForTesting
+  byte[] createSignatureBlock(byte[] signatureFile) throws GeneralSecurityException {
+    Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+    signature.initSign(privateKey);
+    signature.update(signatureFile);
+    byte[] signatureBytes = signature.sign();
+
+    X509Certificate signer = certificates.get(0);
+    byte[] sha1AlgorithmIdentifier = Der.sequence(Der.oid(OID_SHA1), Der.NULL);
+    byte[] signerInfo = Der.sequence(
+        Der.integer(BigInteger.ONE),
+        Der.sequence(
+            signer.getIssuerX500Principal().getEncoded(),
+            Der.integer(signer.getSerialNumber())),
+        sha1AlgorithmIdentifier,
+        Der.sequence(Der.oid(OID_RSA_ENCRYPTION), Der.NULL),
+        Der.octetString(signatureBytes));
+
+    ByteArrayOutputStream encodedCertificates = new ByteArrayOutputStream();
+    for (X509Certificate certificate : certificates) {
+      byte[] encoded = certificate.getEncoded();
+      encodedCertificates.write(encoded, 0, encoded.length);
+    }
+
+    byte[] signedData = Der.sequence(
+        Der.integer(BigInteger.ONE),
+        Der.set(sha1AlgorithmIdentifier),
+        Der.sequence(Der.oid(OID_DATA)),
+        Der.tagged(Der.CONTEXT_SPECIFIC_CONSTRUCTED, encodedCertificates.toByteArray()),
+        Der.set(signerInfo));
+    return Der.sequence(
+        Der.oid(OID_SIGNED_DATA),
+        Der.tagged(Der.CONTEXT_SPECIFIC_CONSTRUCTED, signedData));
+  }
+
+  /**
+   * As {@code jarsigner} does, names the signature files after the upper case alias of the key,
+   * truncated to 8 characters, with any character that is not allowed replaced by an underscore.
+   */
+  @VisibleForTesting
+  static String getSignatureName(String alias) {
+    String name = alias.toUpperCase(Locale.US);
+    if (name.length() > 8) {
+      name = name.substring(0, 8);
+    }
+    return CharMatcher.inRange('A', 'Z')
+        .or(CharMatcher.inRange('0', '9'))
+        .or(CharMatcher.anyOf("-_"))
+        .negate()
+        .replaceFrom(name, '_');
+  }
+
+  private static void writeEntry(CustomZipOutputStream out, String name, byte[] data)
+      throws IOException {
+    out.putNextEntry(new CustomZipEntry(name));
+    out.write(data);
+    out.closeEntry();
+  }
+
+  /**
+   * Writes a manifest attribute, continuing it on as many lines as needed so that no line is
+   * longer than 72 bytes.
+   */
+  private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+    byte[] bytes = (name + ": " + value).getBytes(Charsets.UTF_8);
+    int lineLength = Math.min(bytes.length, MAX_LINE_LENGTH);
+    out.write(bytes, 0, lineLength);
+    for (int offset = lineLength; offset < bytes.length; offset += lineLength) {
+      out.write(CRLF, 0, CRLF.length);
+      out.write(' ');
+      lineLength = Math.min(bytes.length - offset, MAX_LINE_LENGTH - 1);
+      out.write(bytes, offset, lineLength);
+    }
+    out.write(CRLF, 0, CRLF.length);
+  }
+
+  private static String sha1(byte[] bytes) {
+    return BaseEncoding.base64().encode(Hashing.sha1().hashBytes(bytes).asBytes());
+  }
+
+  /** The few DER encodings needed to write a PKCS #7 SignedData structure. */
+  private static class Der {
+    private static final int INTEGER = 0x02;
+    private static final int OCTET_STRING = 0x04;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int SEQUENCE = 0x30;
+    private static final int SET = 0x31;
+    private static final int CONTEXT_SPECIFIC_CONSTRUCTED = 0xa0;
+    private static final byte[] NULL = {0x05, 0x00};
+
+    private Der() {}
+
+    static byte[] sequence(byte[]... contents) {
+      return tagged(SEQUENCE, contents);
+    }
+
+    static byte[] set(byte[]... contents) {
+      return tagged(SET, contents);
+    }
+
+    static byte[] integer(BigInteger value) {
+      return tagged(INTEGER, value.toByteArray());
+    }
+
+    static byte[] octetString(byte[] value) {
+      return tagged(OCTET_STRING, value);
+    }
+
+    static byte[] oid(String oid) {
+      String[] components = oid.split("\\.");
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeBase128(out, Long.parseLong(components[0]) * 40 + Long.parseLong(components[1]));
+      for (int i = 2; i < components.length; i++) {
+        writeBase128(out, Long.parseLong(components[i]));
+      }
+      return tagged(OBJECT_IDENTIFIER, out.toByteArray());
+    }
+
+    static byte[] tagged(int tag, byte[]... contents) {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      for (byte[] bytes : contents) {
+        content.write(bytes, 0, bytes.length);
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write(tag);
+      int length = content.size();
+      if (length < 0x80) {
+        out.write(length);
+      } else {
+        int numLengthBytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+        out.write(0x80 | numLengthBytes);
+        for (int i = numLengthBytes - 1; i >= 0; i--) {
+          out.write(length >>> (8 * i));
+        }
+      }
+      out.write(content.toByteArray(), 0, length);
+      return out.toByteArray();
+    }
+
+    private static void writeBase128(ByteArrayOutputStream out, long value) {
+      int numGroups = Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 6) / 7);
+      for (int i = numGroups - 1; i >= 0; i--) {
+        int group = (int) ((value >>> (7 * i)) & 0x7f);
+        out.write(i == 0 ? group : group | 0x80);
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compiles the R.java files written by a {@link MergeAndroidResourcesStep}, unless the
+ * {@code .class} files from a previous build were compiled from exactly the same R.java files.
+ * <p>
+ * The hash of the R.java files is recorded next to the output directory once {@code javac} has
+ * succeeded, so a failed or interrupted compilation is always retried.
+ */
+public class CompileRDotJavaStep implements Step {
+
+  private final Supplier<String> rDotJavaHash;
+  private final String pathToHashFile;
+  private final String rDotJavaBinFolder;
+  private final Step javac;
+
+  /**
+   * @param rDotJavaHash supplies the hash of the R.java files that {@code javac} compiles.
+   * @param pathToHashFile where the hash of the last R.java files to be compiled is recorded.
+   * @param rDotJavaBinFolder the directory that {@code javac} writes its output to.
+   * @param javac the step that compiles the R.java files into {@code rDotJavaBinFolder}.
+   */
+  public CompileRDotJavaStep(
+      Supplier<String> rDotJavaHash,
+      String pathToHashFile,
+      String rDotJavaBinFolder,
+      Step javac) {
+    this.rDotJavaHash = Preconditions.checkNotNull(rDotJavaHash);
+    this.pathToHashFile = Preconditions.checkNotNull(pathToHashFile);
+    this.rDotJavaBinFolder = Preconditions.checkNotNull(rDotJavaBinFolder);
+    this.javac = Preconditions.checkNotNull(javac);
+  }
+
+  @Override
+  public int execute(ExecutionContext context) {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    File hashFile = filesystem.getFileForRelativePath(pathToHashFile);
+    String hash = rDotJavaHash.get();
+    try {
+      if (filesystem.getFileForRelativePath(rDotJavaBinFolder).isDirectory() &&
+          hashFile.isFile() &&
+          Files.toString(hashFile, Charsets.UTF_8).equals(hash)) {
+        return 0;
+      }
+
+      if (hashFile.exists() && !hashFile.delete()) {
+        throw new IOException("Could not delete " + hashFile);
+      }
+      int exitCode = new MakeCleanDirectoryStep(rDotJavaBinFolder).execute(context);
+      if (exitCode == 0) {
+        exitCode = javac.execute(context);
+      }
+      if (exitCode == 0) {
+        Files.write(hash, hashFile, Charsets.UTF_8);
+      }
+      return exitCode;
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+  }
+
+  @Override
+  public String getShortName() {
+    return "compile_r_dot_java";
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return javac.getDescription(context);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.util.AndroidPlatformTarget;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A cache of dx outputs that is shared by every {@code android_binary()} built on this machine and
+ * survives {@code buck clean}, so identical secondary jars, such as those of two flavors of one
+ * app, are only dexed once.
+ * <p>
+ * Entries are keyed by the contents of the classes that were dexed, the dx that dexed them and the
+ * format of the output. Once the cache grows beyond its maximum size, the entries that were least
+ * recently stored or fetched are evicted.
+ */
+@ThreadSafe
+public class DexCache {
+
+  /** Change this to invalidate every entry in existing caches. */
+  private static final String CACHE_FORMAT_VERSION = "1";
+
+  private final File directory;
+  private final long maxSizeBytes;
+
+  /**
+   * @param directory where the entries are kept, which is configured by {@code [dex_cache]} in
+   *     {@code .buckconfig}.
+   * @param maxSizeBytes size beyond which the least recently used entries are evicted.
+   */
+  public DexCache(File directory, long maxSizeBytes) {
+    Preconditions.checkArgument(maxSizeBytes > 0);
+    this.directory = Preconditions.checkNotNull(directory);
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * @param inputsHash identifies the classes to dex, in order.
+   * @param outputName the name of the file that dx will write, whose extension determines its
+   *     format.
+   */
+  public static String getKey(String inputsHash, String outputName, ExecutionContext context) {
+    Hasher hasher = Hashing.sha1().newHasher()
+        .putString(CACHE_FORMAT_VERSION, Charsets.UTF_8)
+        .putString(inputsHash, Charsets.UTF_8)
+        .putString(getExtension(outputName), Charsets.UTF_8);
+
+    // There is no cheap way to ask dx for its version, so identify it by its location and by the
+    // size and timestamp of the jar that implements it, which change whenever the SDK is updated.
+    Optional<AndroidPlatformTarget> target = context.getAndroidPlatformTargetOptional();
+    if (target.isPresent()) {
+      File dxExecutable = target.get().getDxExecutable();
+      File dxJar = new File(dxExecutable.getParentFile(), "lib/dx.jar");
+      hasher.putString(dxExecutable.getAbsolutePath(), Charsets.UTF_8)
+          .putLong(dxJar.length())
+          .putLong(dxJar.lastModified());
+    }
+    return hasher.hash().toString();
+  }
+
+  private static String getExtension(String outputName) {
+    int index = outputName.indexOf('.');
+    return index < 0 ? "" : outputName.substring(index);
+  }
+
+  /**
+   * Copies the entry for {@code key}, if there is one, to {@code output}.
+   * @return true if there was an entry for {@code key}.
+   */
+  public boolean fetch(String key, File output) {
+    File entry = getEntry(key);
+    if (!entry.isFile()) {
+      return false;
+    }
+
+    try {
+      Files.createParentDirs(output);
+      Files.copy(entry, output);
+    } catch (IOException e) {
+      // The entry may have been evicted by another build while it was being copied.
+      output.delete();
+      return false;
+    }
+
+    // Mark the entry as recently used.
+    entry.setLastModified(System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * Adds {@code file} to the cache under {@code key}, evicting old entries if necessary. Errors
+   * are ignored, as the cache is only an optimization.
+   */
+  public void store(String key, File file) {
+    File entry = getEntry(key);
+    File tempFile = null;
+    try {
+      Files.createParentDirs(entry);
+
+      // Write to a temporary file first so that other builds never fetch a partial entry.
+      tempFile = File.createTempFile("dex_" + key, ".tmp", directory);
+      Files.copy(file, tempFile);
+      if (!tempFile.renameTo(entry)) {
+        return;
+      }
+      tempFile = null;
+    } catch (IOException e) {
+      return;
+    } finally {
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+
+    evictLeastRecentlyUsedEntries();
+  }
+
+  private File getEntry(String key) {
+    return new File(directory, key);
+  }
+
+  @VisibleForTesting
+  synchronized void evictLeastRecentlyUsedEntries() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    long totalSizeBytes = 0;
+    List<File> entries = Lists.newArrayList();
+    for (File file : files) {
+      if (file.isFile() && !file.getName().endsWith(".tmp")) {
+        entries.add(file);
+        totalSizeBytes += file.length();
+      }
+    }
+    if (totalSizeBytes <= maxSizeBytes) {
+      return;
+    }
+
+    Collections.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File entry : entries) {
+      if (totalSizeBytes <= maxSizeBytes) {
+        break;
+      }
+      long size = entry.length();
+      if (entry.delete()) {
+        totalSizeBytes -= size;
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.shell.ShellStep;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.Verbosity;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Merges a number of {@code .dex.jar} files, such as those written by {@link PreDexStep}, into a
+ * single {@code classes.dex} using the {@code DexMerger} that ships with dx. Every input must exist:
+ * a missing one means that a classpath entry would silently be left out of the APK.
+ */
+public class DexMergeStep extends ShellStep {
+
+  @VisibleForTesting
+  static final String DEX_MERGER_CLASS_NAME = "com.android.dx.merge.DexMerger";
+
+  private static final String CLASSES_DEX = "classes.dex";
+
+  private final String outputDexFile;
+  private final Supplier<? extends Iterable<String>> dexFilesToMerge;
+
+  /**
+   * @param outputDexFile path to the file where the merged classes.dex should go.
+   * @param dexFilesToMerge paths to {@code .dex.jar} files, in classpath order. When two inputs
+   *     define the same class, the first one wins, just as it does for dx.
+   */
+  public DexMergeStep(String outputDexFile, Iterable<String> dexFilesToMerge) {
+    this(outputDexFile, Suppliers.ofInstance(ImmutableList.copyOf(dexFilesToMerge)));
+  }
+
+  /**
+   * @param dexFilesToMerge supplies the {@code .dex.jar} files to merge once the step that writes
+   *     them, such as {@link PreDexStep}, has executed.
+   */
+  public DexMergeStep(String outputDexFile,
+      Supplier<? extends Iterable<String>> dexFilesToMerge) {
+    this.outputDexFile = Preconditions.checkNotNull(outputDexFile);
+    this.dexFilesToMerge = Preconditions.checkNotNull(dexFilesToMerge);
+  }
+
+  @Override
+  public int execute(ExecutionContext context) {
+    ImmutableList<String> inputs = getInputs();
+    if (inputs.isEmpty()) {
+      context.getStdErr().println("There are no classes to put in " + outputDexFile);
+      return 1;
+    }
+    for (String input : inputs) {
+      if (!context.getProjectFilesystem().exists(input)) {
+        context.getStdErr().println(
+            String.format("Cannot merge %s into %s: it does not exist.", input, outputDexFile));
+        return 1;
+      }
+    }
+
+    // There is nothing to merge, so do not pay for starting a JVM.
+    if (inputs.size() == 1) {
+      try {
+        extractClassesDex(context.getProjectFilesystem(), inputs.get(0));
+        return 0;
+      } catch (IOException e) {
+        e.printStackTrace(context.getStdErr());
+        return 1;
+      }
+    }
+
+    return super.execute(context);
+  }
+
+  private ImmutableList<String> getInputs() {
+    return ImmutableList.copyOf(dexFilesToMerge.get());
+  }
+
+  private void extractClassesDex(ProjectFilesystem filesystem, String dexJar) throws IOException {
+    File output = filesystem.getFileForRelativePath(outputDexFile);
+    Files.createParentDirs(output);
+    try (ZipFile zip = new ZipFile(filesystem.getFileForRelativePath(dexJar))) {
+      ZipEntry entry = zip.getEntry(CLASSES_DEX);
+      if (entry == null) {
+        throw new IOException(String.format("%s does not contain %s", dexJar, CLASSES_DEX));
+      }
+      try (InputStream in = zip.getInputStream(entry);
+           OutputStream out = new FileOutputStream(output)) {
+        ByteStreams.copy(in, out);
+      }
+    }
+  }
+
+  @Override
+  protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
+    ImmutableList.Builder<String> args = ImmutableList.builder();
+    args.add("java");
+
+    // Use the same heap as the dx script does by default.
+    args.add("-Xmx1024M");
+
+    File dxExecutable = context.getAndroidPlatformTarget().getDxExecutable();
+    args.add("-classpath", new File(dxExecutable.getParentFile(), "lib/dx.jar").getPath());
+    args.add(DEX_MERGER_CLASS_NAME);
+
+    args.add(outputDexFile);
+    args.addAll(getInputs());
+
+    return args.build();
+  }
+
+  @Override
+  protected boolean shouldPrintStderr(Verbosity verbosity) {
+    return verbosity.shouldPrintSelectCommandOutput();
+  }
+
+  @Override
+  public String getShortName() {
+    return "dex_merge";
+  }
+}
@@ -18,6 +18,7 @@ package com.facebook.buck.android;
 
 import com.facebook.buck.dalvik.ZipSplitter;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.step.fs.XzOptions;
 import com.google.common.base.Preconditions;
 
 /**
@@ -28,16 +29,57 @@ class DexSplitMode {
   private final DexStore dexStore;
   private final ZipSplitter.DexSplitStrategy dexSplitStrategy;
   private final boolean useLinearAllocSplitDex;
+  private final boolean useIncrementalDexLayout;
+  private final XzOptions xzOptions;
 
   public DexSplitMode(
       boolean shouldSplitDex,
       ZipSplitter.DexSplitStrategy dexSplitStrategy,
       DexStore dexStore,
       boolean useLinearAllocSplitDex) {
+    this(shouldSplitDex,
+        dexSplitStrategy,
+        dexStore,
+        useLinearAllocSplitDex,
+        /* useIncrementalDexLayout */ false);
+  }
+
+  public DexSplitMode(
+      boolean shouldSplitDex,
+      ZipSplitter.DexSplitStrategy dexSplitStrategy,
+      DexStore dexStore,
+      boolean useLinearAllocSplitDex,
+      boolean useIncrementalDexLayout) {
+    this(shouldSplitDex,
+        dexSplitStrategy,
+        dexStore,
+        useLinearAllocSplitDex,
+        useIncrementalDexLayout,
+        XzOptions.DEFAULT);
+  }
+
+  /**
+   * @param useIncrementalDexLayout If true, secondary dexes keep the classes they had in the
+   *     previous build, so that only the ones whose classes changed need to be dexed again. This
+   *     requires {@code useLinearAllocSplitDex}.
+   * @param xzOptions How secondary dexes are compressed when {@code dexStore} is
+   *     {@link DexStore#XZ}.
+   */
+  public DexSplitMode(
+      boolean shouldSplitDex,
+      ZipSplitter.DexSplitStrategy dexSplitStrategy,
+      DexStore dexStore,
+      boolean useLinearAllocSplitDex,
+      boolean useIncrementalDexLayout,
+      XzOptions xzOptions) {
+    Preconditions.checkArgument(!useIncrementalDexLayout || useLinearAllocSplitDex,
+        "The incremental dex layout is only supported with the linear alloc split dex.");
     this.shouldSplitDex = shouldSplitDex;
     this.dexSplitStrategy = Preconditions.checkNotNull(dexSplitStrategy);
     this.dexStore = Preconditions.checkNotNull(dexStore);
     this.useLinearAllocSplitDex = useLinearAllocSplitDex;
+    this.useIncrementalDexLayout = useIncrementalDexLayout;
+    this.xzOptions = Preconditions.checkNotNull(xzOptions);
   }
 
   public DexStore getDexStore() {
@@ -57,11 +99,21 @@ class DexSplitMode {
     return useLinearAllocSplitDex;
   }
 
+  public boolean useIncrementalDexLayout() {
+    return useIncrementalDexLayout;
+  }
+
+  public XzOptions getXzOptions() {
+    return xzOptions;
+  }
+
   public RuleKey.Builder appendToRuleKey(String prefix, RuleKey.Builder builder) {
     builder.set(prefix + ".shouldSplitDex", shouldSplitDex);
     builder.set(prefix + ".dexStore", dexStore.name());
     builder.set(prefix + ".dexSplitStrategy", dexSplitStrategy.name());
     builder.set(prefix + ".useLinearAllocSplitDex", useLinearAllocSplitDex);
+    builder.set(prefix + ".useIncrementalDexLayout", useIncrementalDexLayout);
+    builder.set(prefix + ".xzOptions", xzOptions.toString());
     return builder;
   }
 }
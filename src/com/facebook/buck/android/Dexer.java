@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.step.Step;
+
+/**
+ * Creates the steps that convert Java bytecode to Dalvik bytecode, so that the rules that dex
+ * classes do not need to know whether {@code dx} runs in its own process or inside buck.
+ */
+public interface Dexer {
+
+  /**
+   * @param outputDexFile path to the file where the generated classes.dex should go
+   * @param filesToDex each element is a path to a .class file, a zip file of .class files, or a
+   *     directory of .class files
+   */
+  public Step createDxStep(String outputDexFile, Iterable<String> filesToDex);
+}
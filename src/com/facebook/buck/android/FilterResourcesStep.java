@@ -26,21 +26,38 @@ import com.facebook.buck.util.Filters;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.Paths;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
 
 /**
  * This {@link com.facebook.buck.step.Step} copies {@code res} directories to a different location,
@@ -66,6 +83,7 @@ public class FilterResourcesStep implements Step {
   private final ImmutableBiMap<String, String> originalToFiltered;
   @Nullable
   private final ImageScaler imageScaler;
+  private final Optional<String> pathToScaledDrawableCache;
 
   /**
    * Creates a command that filters a specified set of directories.
@@ -85,6 +103,28 @@ public class FilterResourcesStep implements Step {
       FilteredDirectoryCopier filteredDirectoryCopier,
       DrawableFinder drawableFinder,
       @Nullable ImageScaler imageScaler) {
+    this(resDirectories,
+        baseDestination,
+        resourceFilter,
+        filteredDirectoryCopier,
+        drawableFinder,
+        imageScaler,
+        Optional.<String>absent());
+  }
+
+  /**
+   * @param pathToScaledDrawableCache if present, directory in which to keep the downscaled
+   *     drawables between builds, keyed by the contents of the original drawable and the scaling
+   *     applied to it, so that drawables that did not change are not scaled again
+   */
+  public FilterResourcesStep(
+      Set<String> resDirectories,
+      File baseDestination,
+      String resourceFilter,
+      FilteredDirectoryCopier filteredDirectoryCopier,
+      DrawableFinder drawableFinder,
+      @Nullable ImageScaler imageScaler,
+      Optional<String> pathToScaledDrawableCache) {
     this.baseDestination = Preconditions.checkNotNull(baseDestination);
     this.resourceFilter = Preconditions.checkNotNull(resourceFilter);
     this.filteredDirectoryCopier = Preconditions.checkNotNull(filteredDirectoryCopier);
@@ -93,6 +133,7 @@ public class FilterResourcesStep implements Step {
         Preconditions.checkNotNull(resDirectories),
         Preconditions.checkNotNull(baseDestination));
     this.imageScaler = imageScaler;
+    this.pathToScaledDrawableCache = Preconditions.checkNotNull(pathToScaledDrawableCache);
   }
 
   private static ImmutableBiMap<String, String> assignDestinations(Set<String> sources, File base) {
@@ -137,9 +178,11 @@ public class FilterResourcesStep implements Step {
     filteredDirectoryCopier.copyDirs(originalToFiltered,
         densityFilter);
 
-    // If an ImageScaler was specified, but only if it is available, try to apply it.
-    if ((imageScaler != null) && imageScaler.isAvailable(context)) {
-      scaleUnmatchedDrawables(context);
+    // If an ImageScaler was specified, try to apply it, falling back to scaling the images in
+    // this JVM if it is not available.
+    if (imageScaler != null) {
+      scaleUnmatchedDrawables(context,
+          imageScaler.isAvailable(context) ? imageScaler : JavaImageScaler.getInstance());
     }
 
     return 0;
@@ -164,11 +207,15 @@ public class FilterResourcesStep implements Step {
    * <p/>
    * Any drawables found by this step didn't have equivalents in the target density. If they are of
    * a higher density, we can replicate what Android does and downscale them at compile-time.
+   * <p/>
+   * The drawables are scaled in parallel, as there are often thousands of them.
    */
-  private void scaleUnmatchedDrawables(ExecutionContext context) throws IOException {
+  private void scaleUnmatchedDrawables(ExecutionContext context, ImageScaler scaler)
+      throws IOException {
     ProjectFilesystem filesystem = context.getProjectFilesystem();
 
     // Go over all the images that remain after filtering.
+    List<Downscale> downscales = Lists.newArrayList();
     for (String drawable : drawableFinder.findDrawables(getFilteredResourceDirectories())) {
       File drawableFile = filesystem.getFileForRelativePath(drawable);
 
@@ -194,25 +241,136 @@ public class FilterResourcesStep implements Step {
           continue;
         }
 
-        // Make sure destination folder exists and perform downscaling.
+        // Make sure destination folder exists.
         filesystem.createParentDirs(destination);
-        imageScaler.scale(factor, drawable, destination, context);
+        downscales.add(new Downscale(drawable, destination, qualifiers.density, factor));
+      }
+    }
 
-        // Delete source file.
-        if (!filesystem.deleteFileAtPath(drawable)) {
-          throw new HumanReadableException("Cannot delete file: " + drawable);
-        }
+    scaleInParallel(downscales, scaler, context);
+
+    for (Downscale downscale : downscales) {
+      // Delete source file.
+      if (!filesystem.deleteFileAtPath(downscale.source)) {
+        throw new HumanReadableException("Cannot delete file: " + downscale.source);
+      }
 
-        // Delete newly-empty directories to prevent missing resources errors in apkbuilder.
-        String parent = drawableFile.getParent();
-        if (filesystem.listFiles(parent).length == 0 && !filesystem.deleteFileAtPath(parent)) {
-          throw new HumanReadableException("Cannot delete directory: " + parent);
+      // Delete newly-empty directories to prevent missing resources errors in apkbuilder.
+      String parent = new File(downscale.source).getParent();
+      if (filesystem.listFiles(parent).length == 0 && !filesystem.deleteFileAtPath(parent)) {
+        throw new HumanReadableException("Cannot delete directory: " + parent);
+      }
+    }
+  }
+
+  private void scaleInParallel(
+      List<Downscale> downscales,
+      final ImageScaler scaler,
+      final ExecutionContext context) throws IOException {
+    final Optional<File> cacheDir;
+    if (pathToScaledDrawableCache.isPresent()) {
+      cacheDir = Optional.of(
+          context.getProjectFilesystem().getFileForRelativePath(pathToScaledDrawableCache.get()));
+      cacheDir.get().mkdirs();
+    } else {
+      cacheDir = Optional.absent();
+    }
+    final Set<String> usedCacheKeys = Sets.newConcurrentHashSet();
+
+    if (!downscales.isEmpty()) {
+      ExecutorService executor = Executors.newFixedThreadPool(
+          Math.min(Runtime.getRuntime().availableProcessors(), downscales.size()));
+      try {
+        List<Future<Void>> futures = Lists.newArrayList();
+        for (final Downscale downscale : downscales) {
+          futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              scale(downscale, scaler, cacheDir, usedCacheKeys, context);
+              return null;
+            }
+          }));
         }
+        for (Future<Void> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+        throw Throwables.propagate(e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
 
+    // Only keep the drawables that were used by this build, so that the cache does not grow
+    // forever.
+    if (cacheDir.isPresent()) {
+      File[] cachedFiles = cacheDir.get().listFiles();
+      for (File cachedFile : cachedFiles == null ? new File[0] : cachedFiles) {
+        if (!usedCacheKeys.contains(cachedFile.getName())) {
+          cachedFile.delete();
+        }
       }
     }
   }
 
+  private void scale(
+      Downscale downscale,
+      ImageScaler scaler,
+      Optional<File> cacheDir,
+      Set<String> usedCacheKeys,
+      ExecutionContext context) throws IOException {
+    if (!cacheDir.isPresent()) {
+      scaler.scale(downscale.factor, downscale.source, downscale.destination, context);
+      return;
+    }
+
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    File sourceFile = filesystem.getFileForRelativePath(downscale.source);
+    File destinationFile = filesystem.getFileForRelativePath(downscale.destination);
+    String cacheKey = Hashing.sha1().newHasher()
+        .putString(Files.hash(sourceFile, Hashing.sha1()).toString(), Charsets.UTF_8)
+        .putString(Files.getFileExtension(downscale.destination), Charsets.UTF_8)
+        .putString(downscale.density, Charsets.UTF_8)
+        .putString(resourceFilter, Charsets.UTF_8)
+        .putDouble(downscale.factor)
+        .putString(scaler.getClass().getName(), Charsets.UTF_8)
+        .hash()
+        .toString();
+    usedCacheKeys.add(cacheKey);
+
+    File cachedFile = new File(cacheDir.get(), cacheKey);
+    if (cachedFile.isFile()) {
+      Files.copy(cachedFile, destinationFile);
+      return;
+    }
+
+    scaler.scale(downscale.factor, downscale.source, downscale.destination, context);
+
+    // Identical drawables may be scaled at the same time, so write the cached copy to a file of
+    // its own before moving it into place.
+    File tempFile = File.createTempFile(cacheKey, ".tmp", cacheDir.get());
+    Files.copy(destinationFile, tempFile);
+    Files.move(tempFile, cachedFile);
+  }
+
+  private static class Downscale {
+    private final String source;
+    private final String destination;
+    private final String density;
+    private final double factor;
+
+    private Downscale(String source, String destination, String density, double factor) {
+      this.source = source;
+      this.destination = destination;
+      this.density = density;
+      this.factor = factor;
+    }
+  }
+
   public interface DrawableFinder {
     public Set<String> findDrawables(Iterable<String> dirs) throws IOException;
   }
@@ -243,6 +401,9 @@ public class FilterResourcesStep implements Step {
     }
   }
 
+  /**
+   * Downscales images. Implementations must be thread-safe, as several images are scaled at once.
+   */
   public interface ImageScaler {
     public boolean isAvailable(ExecutionContext context);
     public void scale(double factor, String source, String destination, ExecutionContext context);
@@ -257,13 +418,20 @@ public class FilterResourcesStep implements Step {
 
     private static final ImageMagickScaler instance = new ImageMagickScaler();
 
+    /** Whether {@code convert} is installed, which is only checked once per process. */
+    @Nullable
+    private volatile Boolean isAvailable;
+
     public static ImageMagickScaler getInstance() {
       return instance;
     }
 
     @Override
     public boolean isAvailable(ExecutionContext context) {
-      return 0 == new BashStep("which convert").execute(context);
+      if (isAvailable == null) {
+        isAvailable = 0 == new BashStep("which convert").execute(context);
+      }
+      return isAvailable;
     }
 
     @Override
@@ -281,6 +449,79 @@ public class FilterResourcesStep implements Step {
     }
   }
 
+  /**
+   * Implementation of {@link ImageScaler} that runs in this JVM, for when ImageMagick is not
+   * installed. An image is repeatedly halved with bilinear interpolation until it has the size
+   * that ImageMagickScaler would give it, which avoids the aliasing of scaling it in one go.
+   */
+  public static class JavaImageScaler implements ImageScaler {
+
+    private static final JavaImageScaler instance = new JavaImageScaler();
+
+    public static JavaImageScaler getInstance() {
+      return instance;
+    }
+
+    @Override
+    public boolean isAvailable(ExecutionContext context) {
+      return true;
+    }
+
+    @Override
+    public void scale(double factor, String source, String destination, ExecutionContext context) {
+      ProjectFilesystem filesystem = context.getProjectFilesystem();
+      String extension = Files.getFileExtension(destination).toLowerCase();
+      // JPEG has no alpha channel, whereas PNG and GIF images may be transparent.
+      boolean isJpeg = extension.equals("jpg") || extension.equals("jpeg");
+      try {
+        BufferedImage image = ImageIO.read(filesystem.getFileForRelativePath(source));
+        if (image == null) {
+          throw new HumanReadableException("Cannot scale %s: unsupported image format.", source);
+        }
+        BufferedImage scaled = scale(image, factor,
+            isJpeg || image.getTransparency() == Transparency.OPAQUE
+                ? BufferedImage.TYPE_INT_RGB
+                : BufferedImage.TYPE_INT_ARGB);
+        if (!ImageIO.write(scaled,
+            isJpeg ? "jpeg" : extension,
+            filesystem.getFileForRelativePath(destination))) {
+          throw new HumanReadableException("Cannot write %s: unsupported image format.",
+              destination);
+        }
+      } catch (IOException e) {
+        throw new HumanReadableException(e, "Cannot scale " + source + " to " + destination);
+      }
+    }
+
+    private static BufferedImage scale(BufferedImage image, double factor, int imageType) {
+      // Scale by the same whole percentage as ImageMagickScaler.
+      int percent = (int) (factor * 100);
+      int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * percent / 100.0));
+      int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * percent / 100.0));
+
+      BufferedImage current = image;
+      int width = image.getWidth();
+      int height = image.getHeight();
+      do {
+        width = Math.max(targetWidth, width / 2);
+        height = Math.max(targetHeight, height / 2);
+        BufferedImage next = new BufferedImage(width, height, imageType);
+        Graphics2D graphics = next.createGraphics();
+        try {
+          graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+              RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+          graphics.setRenderingHint(RenderingHints.KEY_RENDERING,
+              RenderingHints.VALUE_RENDER_QUALITY);
+          graphics.drawImage(current, 0, 0, width, height, null);
+        } finally {
+          graphics.dispose();
+        }
+        current = next;
+      } while (width != targetWidth || height != targetHeight);
+      return current;
+    }
+  }
+
   public static class ResourceFilter {
 
     public ResourceFilter(List<String> resourceFilter) {
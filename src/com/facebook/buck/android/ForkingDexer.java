@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.step.Step;
+
+/**
+ * {@link Dexer} that runs the {@code dx} script of the Android SDK, and therefore starts a new JVM,
+ * for every step.
+ */
+public class ForkingDexer implements Dexer {
+
+  @Override
+  public Step createDxStep(String outputDexFile, Iterable<String> filesToDex) {
+    return new DxStep(outputDexFile, filesToDex);
+  }
+}
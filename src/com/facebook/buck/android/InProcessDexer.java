@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link Dexer} that runs dx inside buck rather than forking the {@code dx} script, so that dexing
+ * many jars does not pay for starting a JVM, and warming up its JIT, for every one of them.
+ * <p>
+ * The classes of dx are loaded from the {@code dx.jar} of the SDK by a class loader that cannot see
+ * buck's own classes. dx keeps its state in static fields, so every thread that runs dx at the same
+ * time needs a class loader of its own. Class loaders are kept once they become idle and reused by
+ * later steps, which in buckd span many builds. dx is forked instead when its classes cannot be
+ * loaded, when its output should be shown to the user or when it throws an {@link Error}, such as
+ * an {@link OutOfMemoryError} because buck's heap is too small for it. As dx shares buck's heap,
+ * it is only run this way when {@code in_process} in the {@code [dx]} section of .buckconfig is
+ * set.
+ */
+@ThreadSafe
+public class InProcessDexer implements Dexer {
+
+  private static final String DX_MAIN_CLASS = "com.android.dx.command.dexer.Main";
+
+  /** Holds the streams that dx prints to, which are {@link System#out} and {@link System#err}. */
+  private static final String DX_CONSOLE_CLASS = "com.android.dx.command.DxConsole";
+
+  private static final InProcessDexer DEFAULT_INSTANCE = new InProcessDexer(
+      new ForkingDexer(),
+      DX_MAIN_CLASS);
+
+  private final Dexer fallback;
+  private final String mainClassName;
+  private final int maxIdleRunners;
+
+  /** Idle runners, by the classpath that they loaded dx from. */
+  private final ConcurrentMap<ImmutableList<URL>, BlockingQueue<DxRunner>> idleRunners;
+
+  /** Classpaths that dx could not be loaded from. */
+  private final Set<ImmutableList<URL>> unusableClasspaths;
+
+  /**
+   * @param fallback creates the steps that are run when dx cannot be run inside buck.
+   * @param mainClassName the class of dx whose {@code run(Arguments)} method dexes classes.
+   */
+  @VisibleForTesting
+  InProcessDexer(Dexer fallback, String mainClassName) {
+    this.fallback = Preconditions.checkNotNull(fallback);
+    this.mainClassName = Preconditions.checkNotNull(mainClassName);
+    this.maxIdleRunners = Runtime.getRuntime().availableProcessors();
+    this.idleRunners = Maps.newConcurrentMap();
+    this.unusableClasspaths = Sets.newSetFromMap(
+        Maps.<ImmutableList<URL>, Boolean>newConcurrentMap());
+  }
+
+  public static InProcessDexer getDefault() {
+    return DEFAULT_INSTANCE;
+  }
+
+  @Override
+  public Step createDxStep(String outputDexFile, Iterable<String> filesToDex) {
+    Step forkingStep = fallback.createDxStep(outputDexFile, filesToDex);
+    return new InProcessDxStep(outputDexFile, ImmutableList.copyOf(filesToDex), forkingStep);
+  }
+
+  /** @return the jars that dx is loaded from. */
+  @VisibleForTesting
+  ImmutableList<URL> getDxClasspath(ExecutionContext context) throws MalformedURLException {
+    File dxExecutable = context.getAndroidPlatformTarget().getDxExecutable();
+    File dxJar = new File(dxExecutable.getParentFile(), "lib/dx.jar");
+    return ImmutableList.of(dxJar.toURI().toURL());
+  }
+
+  /** @return a runner that is not used by any other thread, or absent if dx cannot be loaded. */
+  private Optional<DxRunner> acquireRunner(ExecutionContext context) {
+    ImmutableList<URL> classpath;
+    try {
+      classpath = getDxClasspath(context);
+    } catch (MalformedURLException e) {
+      return Optional.absent();
+    }
+    if (unusableClasspaths.contains(classpath)) {
+      return Optional.absent();
+    }
+
+    DxRunner runner = getIdleRunners(classpath).poll();
+    if (runner != null) {
+      return Optional.of(runner);
+    }
+    try {
+      return Optional.of(new DxRunner(classpath, mainClassName));
+    } catch (ReflectiveOperationException e) {
+      unusableClasspaths.add(classpath);
+      return Optional.absent();
+    }
+  }
+
+  private void releaseRunner(DxRunner runner) {
+    // The runner is dropped if enough runners are idle already.
+    getIdleRunners(runner.classpath).offer(runner);
+  }
+
+  private BlockingQueue<DxRunner> getIdleRunners(ImmutableList<URL> classpath) {
+    BlockingQueue<DxRunner> runners = idleRunners.get(classpath);
+    if (runners == null) {
+      BlockingQueue<DxRunner> newRunners = new LinkedBlockingQueue<>(maxIdleRunners);
+      runners = idleRunners.putIfAbsent(classpath, newRunners);
+      if (runners == null) {
+        runners = newRunners;
+      }
+    }
+    return runners;
+  }
+
+  private class InProcessDxStep implements Step {
+
+    private final String outputDexFile;
+    private final ImmutableList<String> filesToDex;
+    private final Step forkingStep;
+
+    private InProcessDxStep(String outputDexFile,
+        ImmutableList<String> filesToDex,
+        Step forkingStep) {
+      this.outputDexFile = Preconditions.checkNotNull(outputDexFile);
+      this.filesToDex = Preconditions.checkNotNull(filesToDex);
+      this.forkingStep = Preconditions.checkNotNull(forkingStep);
+    }
+
+    @Override
+    public int execute(ExecutionContext context) {
+      // Only the dx script prints the statistics that are shown at this verbosity.
+      if (context.getVerbosity().shouldPrintSelectCommandOutput()) {
+        return forkingStep.execute(context);
+      }
+
+      Optional<DxRunner> runner = acquireRunner(context);
+      if (!runner.isPresent()) {
+        return forkingStep.execute(context);
+      }
+      int exitCode;
+      try {
+        exitCode = runner.get().run(getArguments(context.getProjectFilesystem()),
+            context.getStdErr());
+      } catch (Error e) {
+        // The static state of dx may be left inconsistent, so drop the runner rather than reuse it,
+        // which also lets its memory be reclaimed before dx is run in a JVM of its own.
+        return forkingStep.execute(context);
+      }
+      releaseRunner(runner.get());
+      return exitCode;
+    }
+
+    /**
+     * @return the arguments that the dx script would pass to dx, with every path made absolute as
+     *     buck does not necessarily run in the project root.
+     */
+    private List<String> getArguments(ProjectFilesystem filesystem) {
+      List<String> arguments = Lists.newArrayList();
+      arguments.add("--output=" + filesystem.resolve(Paths.get(outputDexFile)));
+      for (String fileToDex : filesToDex) {
+        arguments.add(filesystem.resolve(Paths.get(fileToDex)).toString());
+      }
+      return arguments;
+    }
+
+    @Override
+    public String getShortName() {
+      return "dx";
+    }
+
+    @Override
+    public String getDescription(ExecutionContext context) {
+      return forkingStep.getDescription(context);
+    }
+  }
+
+  /** An instance of dx, loaded by its own class loader, that may only be used by one thread. */
+  private static class DxRunner {
+
+    private final ImmutableList<URL> classpath;
+    private final Constructor<?> argumentsConstructor;
+    private final Method parseMethod;
+    private final Method runMethod;
+    private final Optional<Field> consoleOutField;
+    private final Optional<Field> consoleErrField;
+
+    private DxRunner(ImmutableList<URL> classpath, String mainClassName)
+        throws ReflectiveOperationException {
+      this.classpath = classpath;
+      ClassLoader classLoader = new URLClassLoader(
+          classpath.toArray(new URL[classpath.size()]),
+          /* parent */ null);
+      Class<?> mainClass = classLoader.loadClass(mainClassName);
+      Class<?> argumentsClass = classLoader.loadClass(mainClassName + "$Arguments");
+      this.argumentsConstructor = argumentsClass.getConstructor();
+      this.parseMethod = argumentsClass.getMethod("parse", String[].class);
+      this.runMethod = mainClass.getMethod("run", argumentsClass);
+
+      Optional<Field> consoleOutField = Optional.absent();
+      Optional<Field> consoleErrField = Optional.absent();
+      try {
+        Class<?> consoleClass = classLoader.loadClass(DX_CONSOLE_CLASS);
+        consoleOutField = Optional.of(consoleClass.getField("out"));
+        consoleErrField = Optional.of(consoleClass.getField("err"));
+      } catch (ClassNotFoundException | NoSuchFieldException e) {
+        // Versions of dx without a DxConsole print to System.out and System.err directly.
+      }
+      this.consoleOutField = consoleOutField;
+      this.consoleErrField = consoleErrField;
+    }
+
+    /**
+     * Runs dx with {@code arguments}, which must not include {@code --dex}.
+     * @return the exit code of dx. Its output is written to {@code stdErr} if it fails.
+     * @throws Error if dx throws one, such as an {@link OutOfMemoryError}.
+     */
+    private int run(List<String> arguments, PrintStream stdErr) {
+      ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
+      PrintStream output = new PrintStream(outputBytes);
+      int exitCode;
+      try {
+        setConsole(output);
+        Object parsedArguments = argumentsConstructor.newInstance();
+        parseMethod.invoke(parsedArguments, (Object) arguments.toArray(new String[0]));
+        exitCode = (Integer) runMethod.invoke(/* static */ null, parsedArguments);
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof Error) {
+          throw (Error) e.getCause();
+        }
+        e.getCause().printStackTrace(output);
+        exitCode = 1;
+      } catch (ReflectiveOperationException e) {
+        e.printStackTrace(output);
+        exitCode = 1;
+      }
+
+      if (exitCode != 0) {
+        output.flush();
+        stdErr.print(outputBytes.toString());
+      }
+      return exitCode;
+    }
+
+    private void setConsole(PrintStream output) throws IllegalAccessException {
+      if (consoleOutField.isPresent()) {
+        consoleOutField.get().set(/* static */ null, output);
+        consoleErrField.get().set(/* static */ null, output);
+      }
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipArchive;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.facebook.buck.zip.ZipStep;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Packages, signs and aligns an APK in a single pass, doing the work of {@link ApkBuilderStep},
+ * {@link SignApkStep}, {@link com.facebook.buck.zip.RepackZipEntriesStep} and
+ * {@link ZipalignStep} without writing a complete copy of the APK for each of them.
+ * <p>
+ * Entries of the resource APK and of the secondary dex zips are copied without being decompressed
+ * and compressed again. The files that have to be compressed, such as {@code classes.dex} and the
+ * native libraries, are instead copied as they are from the APK written by the previous build when
+ * their content has not changed, as told by the digests in its signed manifest.
+ */
+public class IncrementalApkBuilderStep implements Step {
+
+  /** Uncompressed entries are aligned on 4 bytes, as {@code zipalign 4} does. */
+  private static final int ALIGNMENT = 4;
+
+  private static final String DEX_ENTRY_NAME = "classes.dex";
+  private static final String RESOURCES_ENTRY_NAME = "resources.arsc";
+
+  private final String resourceApk;
+  private final String dexFile;
+  private final ImmutableSet<String> nativeLibraryDirectories;
+  private final ImmutableSet<String> zipFiles;
+  private final String pathToKeystore;
+  private final String pathToKeystorePropertiesFile;
+  private final boolean compressResources;
+  private final String pathToOutputApkFile;
+
+  /**
+   * @param resourceApk Path to the APK written by {@code aapt}, which only contains resources.
+   * @param dexFile Path to the classes.dex file.
+   * @param nativeLibraryDirectories Paths to directories with a subdirectory of native libraries
+   *     for each ABI.
+   * @param zipFiles Paths to zip files whose entries are all included in the APK, if they exist.
+   * @param pathToKeystore Path to the keystore to sign the APK with.
+   * @param pathToKeystorePropertiesFile Path to the properties file of the keystore.
+   * @param compressResources Whether to compress {@code resources.arsc}, which {@code aapt} stores
+   *     uncompressed.
+   * @param pathToOutputApkFile Path to write the APK to. If an APK written by a previous build is
+   *     there, its entries may be reused.
+   */
+  public IncrementalApkBuilderStep(
+      String resourceApk,
+      String dexFile,
+      ImmutableSet<String> nativeLibraryDirectories,
+      ImmutableSet<String> zipFiles,
+      String pathToKeystore,
+      String pathToKeystorePropertiesFile,
+      boolean compressResources,
+      String pathToOutputApkFile) {
+    this.resourceApk = Preconditions.checkNotNull(resourceApk);
+    this.dexFile = Preconditions.checkNotNull(dexFile);
+    this.nativeLibraryDirectories = Preconditions.checkNotNull(nativeLibraryDirectories);
+    this.zipFiles = Preconditions.checkNotNull(zipFiles);
+    this.pathToKeystore = Preconditions.checkNotNull(pathToKeystore);
+    this.pathToKeystorePropertiesFile = Preconditions.checkNotNull(pathToKeystorePropertiesFile);
+    this.compressResources = compressResources;
+    this.pathToOutputApkFile = Preconditions.checkNotNull(pathToOutputApkFile);
+  }
+
+  @Override
+  public int execute(ExecutionContext context) {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    File outputApk = filesystem.getFileForRelativePath(pathToOutputApkFile);
+    File tmpApk = new File(outputApk.getPath() + ".tmp");
+    try {
+      ApkSigner signer = ApkSigner.fromKeystore(
+          filesystem,
+          pathToKeystore,
+          pathToKeystorePropertiesFile);
+
+      // The previous APK is only read from, and is not replaced until the new one is complete.
+      Optional<ZipArchive> previousApk = openPreviousApk(outputApk);
+      try (CustomZipOutputStream out = ZipOutputStreams.newOutputStream(tmpApk)) {
+        ApkWriter writer = new ApkWriter(out, previousApk);
+        writer.addZip(filesystem.getFileForRelativePath(resourceApk));
+        writer.addFile(filesystem.getFileForRelativePath(dexFile), DEX_ENTRY_NAME);
+        for (String nativeLibraryDirectory : nativeLibraryDirectories) {
+          writer.addNativeLibraries(filesystem.getFileForRelativePath(nativeLibraryDirectory));
+        }
+        for (String zipFile : zipFiles) {
+          File zipFileOnDisk = filesystem.getFileForRelativePath(zipFile);
+          if (zipFileOnDisk.isFile()) {
+            writer.addZip(zipFileOnDisk);
+          }
+        }
+        signer.writeSignature(out, writer.getDigests());
+      } finally {
+        if (previousApk.isPresent()) {
+          previousApk.get().close();
+        }
+      }
+
+      Files.move(tmpApk, outputApk);
+      return 0;
+    } catch (IOException | GeneralSecurityException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+  }
+
+  /**
+   * @return the APK written by the previous build, or {@link Optional#absent()} if there is none
+   *     that can be read.
+   */
+  private static Optional<ZipArchive> openPreviousApk(File apk) throws IOException {
+    if (!apk.isFile()) {
+      return Optional.absent();
+    }
+    try {
+      return ZipArchive.open(apk);
+    } catch (ZipException e) {
+      return Optional.absent();
+    }
+  }
+
+  @Override
+  public String getShortName() {
+    return "apk_builder";
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return String.format("incremental_apk_builder %s -u %s -f %s -nf %s -z %s -ks %s",
+        pathToOutputApkFile,
+        resourceApk,
+        dexFile,
+        Joiner.on(' ').join(nativeLibraryDirectories),
+        Joiner.on(' ').join(zipFiles),
+        pathToKeystore);
+  }
+
+  /**
+   * Writes the entries of the APK, and keeps track of their digests so that the APK can be signed
+   * once they have all been written.
+   */
+  private class ApkWriter {
+
+    private final CustomZipOutputStream out;
+    @Nullable private final ZipArchive previousApk;
+    private final ImmutableMap<String, ZipArchive.Entry> previousEntries;
+    private final ImmutableMap<String, String> previousDigests;
+    private final SortedMap<String, String> digests = Maps.newTreeMap();
+    private final Set<String> names = Sets.newHashSet();
+
+    ApkWriter(CustomZipOutputStream out, Optional<ZipArchive> previousApk) throws IOException {
+      this.out = Preconditions.checkNotNull(out);
+      this.previousApk = previousApk.orNull();
+
+      ImmutableMap.Builder<String, ZipArchive.Entry> previousEntries = ImmutableMap.builder();
+      ImmutableMap<String, String> previousDigests = ImmutableMap.of();
+      if (this.previousApk != null) {
+        for (ZipArchive.Entry entry : this.previousApk.getEntries()) {
+          if (ApkSigner.MANIFEST_NAME.equals(entry.getName())) {
+            try (InputStream manifest = this.previousApk.getInputStream(entry)) {
+              previousDigests = ApkSigner.readDigests(manifest);
+            }
+          } else {
+            previousEntries.put(entry.getName(), entry);
+          }
+        }
+      }
+      this.previousEntries = previousEntries.build();
+      this.previousDigests = previousDigests;
+    }
+
+    public SortedMap<String, String> getDigests() {
+      return digests;
+    }
+
+    /**
+     * Copies every entry of {@code zip}, except for directories and signature files, as
+     * {@link ApkBuilderStep} does.
+     */
+    public void addZip(File zip) throws IOException {
+      Optional<ZipArchive> archive = ZipArchive.open(zip);
+      if (!archive.isPresent()) {
+        throw new HumanReadableException(
+            "%s uses zip features that incremental APK packaging does not support.", zip);
+      }
+
+      try (ZipArchive input = archive.get()) {
+        for (ZipArchive.Entry entry : input.getEntries()) {
+          String name = entry.getName();
+          if (entry.isDirectory() || ApkSigner.isSignatureFile(name)) {
+            continue;
+          }
+
+          ByteSource content = asByteSource(input, entry);
+          String digest = addDigest(name, content);
+          if (compressResources && RESOURCES_ENTRY_NAME.equals(name) &&
+              entry.getMethod() == ZipEntry.STORED) {
+            addDeflatedEntry(name, content, digest, entry.getTime(), ZipStep.MAX_COMPRESSION_LEVEL);
+          } else {
+            putRawEntry(entry, input.getRawInputStream(entry));
+          }
+        }
+      }
+    }
+
+    /**
+     * Adds the {@code .so} files in each ABI subdirectory of {@code directory} under {@code lib/}.
+     */
+    public void addNativeLibraries(File directory) throws IOException {
+      File[] abiDirectories = directory.listFiles();
+      if (abiDirectories == null) {
+        return;
+      }
+      Arrays.sort(abiDirectories);
+      for (File abiDirectory : abiDirectories) {
+        File[] libraries = abiDirectory.listFiles();
+        if (libraries == null) {
+          continue;
+        }
+        Arrays.sort(libraries);
+        for (File library : libraries) {
+          if (library.isFile() && library.getName().endsWith(".so")) {
+            addFile(library, String.format("lib/%s/%s", abiDirectory.getName(), library.getName()));
+          }
+        }
+      }
+    }
+
+    public void addFile(File file, String name) throws IOException {
+      ByteSource content = Files.asByteSource(file);
+      String digest = addDigest(name, content);
+      addDeflatedEntry(
+          name, content, digest, file.lastModified(), ZipStep.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    private String addDigest(String name, ByteSource content) throws IOException {
+      if (!names.add(name)) {
+        throw new HumanReadableException("Found duplicate file for APK: %s", name);
+      }
+      String digest = BaseEncoding.base64().encode(content.hash(Hashing.sha1()).asBytes());
+      digests.put(name, digest);
+      return digest;
+    }
+
+    /**
+     * Adds an entry that must be compressed, by copying it from the previous APK if it is
+     * unchanged there, and by compressing {@code content} otherwise.
+     */
+    private void addDeflatedEntry(
+        String name,
+        ByteSource content,
+        String digest,
+        long time,
+        int compressionLevel) throws IOException {
+      ZipArchive.Entry previousEntry = previousEntries.get(name);
+      if (previousEntry != null &&
+          previousEntry.getMethod() == ZipEntry.DEFLATED &&
+          digest.equals(previousDigests.get(name))) {
+        putRawEntry(previousEntry, previousApk.getRawInputStream(previousEntry));
+        return;
+      }
+
+      CustomZipEntry entry = new CustomZipEntry(name);
+      entry.setTime(time);
+      entry.setCompressionLevel(compressionLevel);
+      out.putNextEntry(entry);
+      content.copyTo(out);
+      out.closeEntry();
+    }
+
+    private void putRawEntry(ZipEntry entry, InputStream data) throws IOException {
+      CustomZipEntry alignedEntry = new CustomZipEntry(entry);
+      alignedEntry.setAlignment(ALIGNMENT);
+      out.putRawEntry(alignedEntry, data);
+    }
+  }
+
+  private static ByteSource asByteSource(final ZipArchive archive, final ZipArchive.Entry entry) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return archive.getInputStream(entry);
+      }
+    };
+  }
+}
@@ -18,38 +18,58 @@ package com.facebook.buck.android;
 
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
+import com.facebook.buck.util.MoreFiles;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.SortedSetMultimap;
 import com.google.common.collect.TreeMultimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.SortedSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 public class MergeAndroidResourcesStep implements Step {
 
   private static final Pattern TEXT_SYMBOLS_LINE = Pattern.compile("(\\S+) (\\S+) (\\S+) (.+)");
 
+  private static final Splitter LINE_SPLITTER = Splitter.onPattern("\\r?\\n").omitEmptyStrings();
+
+  /**
+   * Symbols files that have already been parsed, keyed by the hash of their content. Values are
+   * softly referenced so that a long-lived buckd does not hold on to every R.txt it has seen.
+   */
+  private static final Cache<HashCode, ImmutableList<Resource>> PARSED_SYMBOLS =
+      CacheBuilder.newBuilder().softValues().build();
+
   private final ImmutableMap<String, String> symbolsFileToRDotJavaPackage;
   private final String pathToGeneratedJavaFiles;
+  @Nullable private String rDotJavaHash;
 
   /**
    * Merges text symbols files from {@code aapt} into R.java files that can be compiled.
@@ -59,7 +79,8 @@ public class MergeAndroidResourcesStep implements Step {
    * @param pathToGeneratedJavaFiles the directory where the generated R.java files should be
    *     written. Admittedly, this command could write such files to a {@code /tmp} directory, but
    *     it is convenient to have the R.java files written to a known location for debugging. This
-   *     directory should exist and be empty before this command is run.
+   *     directory should exist before this command is run. R.java files whose content is unchanged
+   *     are not rewritten, and those of packages that are no longer merged are deleted.
    */
   public MergeAndroidResourcesStep(
       Map<String, String> symbolsFileToRDotJavaPackage,
@@ -123,10 +144,15 @@ public class MergeAndroidResourcesStep implements Step {
         symbolsFileToRDotJavaPackage,
         true /* reenumerate */);
 
-    // Create an R.java file for each package.
+    // Create an R.java file for each package. A file whose content has not changed is left alone,
+    // so that it keeps its mtime and anything that compiles it can tell that it is up to date.
+    Hasher hasher = Hashing.sha1().newHasher();
     for (String rDotJavaPackage : rDotJavaPackageToResources.keySet()) {
       // Create the content of R.java.
       SortedSet<Resource> resources = rDotJavaPackageToResources.get(rDotJavaPackage);
+      String javaCode = generateJavaCodeForPackageAndResources(rDotJavaPackage, resources);
+      hasher.putString(rDotJavaPackage, Charsets.UTF_8);
+      hasher.putString(javaCode, Charsets.UTF_8);
 
       // Write R.java in the pathToGeneratedJavaFiles directory. Admittedly, this will be written
       // to /tmp/com.example.stuff/R.java rather than /tmp/com/example/stuff/R.java. It turns out
@@ -136,15 +162,39 @@ public class MergeAndroidResourcesStep implements Step {
       File rDotJava = getOutputFile(pathToGeneratedJavaFiles, rDotJavaPackage);
 
       // Then write R.java to the output directory.
-      Files.createParentDirs(rDotJava);
-      BufferedWriter writer = Files.newWriter(rDotJava, Charsets.UTF_8);
-      try {
-        writeJavaCodeForPackageAndResources(new PrintWriter(writer),
-            rDotJavaPackage, resources);
-      } finally {
-        writer.close();
+      if (!rDotJava.isFile() || !Files.toString(rDotJava, Charsets.UTF_8).equals(javaCode)) {
+        Files.createParentDirs(rDotJava);
+        Files.write(javaCode, rDotJava, Charsets.UTF_8);
+      }
+    }
+
+    // Remove the R.java files of packages that are no longer merged by this step.
+    File[] packageDirs = new File(pathToGeneratedJavaFiles).listFiles();
+    if (packageDirs != null) {
+      for (File packageDir : packageDirs) {
+        if (packageDir.isDirectory() &&
+            !rDotJavaPackageToResources.containsKey(packageDir.getName())) {
+          MoreFiles.rmdir(packageDir.getPath());
+        }
       }
     }
+
+    rDotJavaHash = hasher.hash().toString();
+  }
+
+  /**
+   * @return a {@link Supplier} of a hash of the packages and contents of every R.java file written
+   *     by this step. It may only be called once this step has executed successfully.
+   */
+  public Supplier<String> getRDotJavaHashSupplier() {
+    return new Supplier<String>() {
+      @Override
+      public String get() {
+        Preconditions.checkState(rDotJavaHash != null,
+            "The R.java files have not been merged yet.");
+        return rDotJavaHash;
+      }
+    };
   }
 
   @VisibleForTesting
@@ -161,36 +211,68 @@ public class MergeAndroidResourcesStep implements Step {
       String symbolsFile = entry.getKey();
       String packageName = entry.getValue();
 
-      // Read the symbols file and parse each line as a Resource.
-      Readable readable = filePathToReadable.apply(symbolsFile);
-      try (Scanner scanner = new Scanner(readable)) {
-        while (scanner.hasNext()) {
-          String line = scanner.nextLine();
-          Matcher matcher = TEXT_SYMBOLS_LINE.matcher(line);
-          boolean isMatch = matcher.matches();
-          Preconditions.checkState(isMatch, "Should be able to match '%s'.", line);
-          String idType = matcher.group(1);
-          String type = matcher.group(2);
-          String name = matcher.group(3);
-          String idValue = matcher.group(4);
-
-          // We're only doing the remapping so Roboelectric is happy and it is already ignoring the
-          // id references found in the styleable section.  So let's do that as well so we don't have
-          // to get fancier than is needed.  That is, just re-enumerate all app-level resource ids
-          // and ignore everything else, allowing the styleable references to be messed up.
-          String idValueToUse = idValue;
-          if (reenumerate && idValue.startsWith("0x7f")) {
-            idValueToUse = String.format("0x%08x", enumerator.next());
-          }
-
-          Resource resource = new Resource(idType, type, name, idValue, idValueToUse);
-          rDotJavaPackageToSymbolsFiles.put(packageName, resource);
+      for (Resource symbol : readSymbols(filePathToReadable.apply(symbolsFile))) {
+        // We're only doing the remapping so Roboelectric is happy and it is already ignoring the
+        // id references found in the styleable section.  So let's do that as well so we don't have
+        // to get fancier than is needed.  That is, just re-enumerate all app-level resource ids
+        // and ignore everything else, allowing the styleable references to be messed up.
+        Resource resource = symbol;
+        if (reenumerate && symbol.originalIdValue.startsWith("0x7f")) {
+          resource = new Resource(symbol.idType,
+              symbol.type,
+              symbol.name,
+              symbol.originalIdValue,
+              String.format("0x%08x", enumerator.next()));
         }
+        rDotJavaPackageToSymbolsFiles.put(packageName, resource);
       }
     }
     return rDotJavaPackageToSymbolsFiles;
   }
 
+  /**
+   * Parses each line of a symbols file as a {@link Resource} whose id is written as is. The same
+   * R.txt is typically read by every library that depends on its {@code android_resource()}, so
+   * the parsed symbols are shared across steps, keyed by the hash of the file's content.
+   */
+  private static ImmutableList<Resource> readSymbols(Readable readable) {
+    String contents;
+    try {
+      try {
+        contents = CharStreams.toString(readable);
+      } finally {
+        if (readable instanceof Closeable) {
+          ((Closeable) readable).close();
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    HashCode hashCode = Hashing.sha1().hashString(contents, Charsets.UTF_8);
+    ImmutableList<Resource> symbols = PARSED_SYMBOLS.getIfPresent(hashCode);
+    if (symbols == null) {
+      symbols = parseSymbols(contents);
+      PARSED_SYMBOLS.put(hashCode, symbols);
+    }
+    return symbols;
+  }
+
+  private static ImmutableList<Resource> parseSymbols(String contents) {
+    ImmutableList.Builder<Resource> symbols = ImmutableList.builder();
+    for (String line : LINE_SPLITTER.split(contents)) {
+      Matcher matcher = TEXT_SYMBOLS_LINE.matcher(line);
+      boolean isMatch = matcher.matches();
+      Preconditions.checkState(isMatch, "Should be able to match '%s'.", line);
+      String idType = matcher.group(1);
+      String type = matcher.group(2);
+      String name = matcher.group(3);
+      String idValue = matcher.group(4);
+      symbols.add(new Resource(idType, type, name, idValue, idValue));
+    }
+    return symbols.build();
+  }
+
   public static String generateJavaCodeForPackageWithoutResources(String packageName) {
     return generateJavaCodeForPackageAndResources(packageName, ImmutableSortedSet.<Resource>of());
   }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.dalvik.ClasspathTraversal;
+import com.facebook.buck.dalvik.DefaultClasspathTraverser;
+import com.facebook.buck.dalvik.FileLike;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.BuckConstant;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.concurrent.MoreFutures;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.Nullable;
+
+/**
+ * Converts each classpath entry of an {@code android_binary()} to its own {@code .dex.jar}, so that
+ * {@link DexMergeStep} only has to merge them into {@code classes.dex}.
+ * <p>
+ * The {@code .dex.jar} of a {@code java_library()} or {@code prebuilt_jar()} lives next to the
+ * output of that rule, where every binary that depends on it can share it, and is only dexed again
+ * when the {@link RuleKey} of the rule changes. It is also stored in the {@link ArtifactCache}, so
+ * most libraries are never dexed on more than one machine. Classpath entries that do not belong to
+ * such a rule, such as the compiled R.java files of the binary, are dexed on every build.
+ * <p>
+ * dx refuses to run on a classpath entry without classes, so no {@code .dex.jar} is written for
+ * one. Instead, a {@link #NO_CLASSES_FILE} is written next to where it would have gone, and only
+ * the {@code .dex.jar} files that were written are returned by {@link #getDexFilesToMergeSupplier}.
+ */
+public class PreDexStep implements Step {
+
+  /** Change this to invalidate all of the pre-dexed libraries in existing caches. */
+  private static final String CACHE_FORMAT_VERSION = "1";
+
+  @VisibleForTesting
+  static final String RULE_KEY_FILE = "rule_key";
+
+  @VisibleForTesting
+  static final String NO_CLASSES_FILE = "no_classes";
+
+  /** Binaries that are built in parallel may depend on the same library. */
+  private static final Striped<Lock> OUTPUT_LOCKS = Striped.lock(64);
+
+  private final ImmutableList<DexUnit> units;
+  private final ArtifactCache artifactCache;
+  private final Dexer dexer;
+  private final Optional<Integer> numThreads;
+
+  @Nullable
+  private ImmutableList<String> dexFilesToMerge;
+
+  /**
+   * @param dexer Creates the steps that run dx.
+   * @param numThreads Number of threads to use when invoking dx commands. If absent, a
+   *     reasonable default will be selected based on the number of available processors.
+   */
+  public PreDexStep(Iterable<DexUnit> units,
+      ArtifactCache artifactCache,
+      Dexer dexer,
+      Optional<Integer> numThreads) {
+    this.units = ImmutableList.copyOf(units);
+    this.artifactCache = Preconditions.checkNotNull(artifactCache);
+    this.dexer = Preconditions.checkNotNull(dexer);
+    this.numThreads = Preconditions.checkNotNull(numThreads);
+  }
+
+  /**
+   * A classpath entry and the {@code .dex.jar} that it is converted to.
+   */
+  public static class DexUnit {
+    private final String pathToClasses;
+    private final String pathToDex;
+    private final Optional<BuildRule> rule;
+
+    private DexUnit(String pathToClasses, String pathToDex, Optional<BuildRule> rule) {
+      this.pathToClasses = Preconditions.checkNotNull(pathToClasses);
+      this.pathToDex = Preconditions.checkNotNull(pathToDex);
+      this.rule = Preconditions.checkNotNull(rule);
+    }
+
+    /** @param pathToClasses the output of {@code rule}, which must only depend on its rule key. */
+    public static DexUnit forRule(BuildRule rule, String pathToClasses) {
+      return new DexUnit(pathToClasses,
+          getPathToPreDexedOutput(rule.getBuildTarget()),
+          Optional.of(rule));
+    }
+
+    public static DexUnit forClasspathEntry(String pathToClasses, String pathToDex) {
+      return new DexUnit(pathToClasses, pathToDex, Optional.<BuildRule>absent());
+    }
+
+    public String getPathToDex() {
+      return pathToDex;
+    }
+  }
+
+  /** @return where the pre-dexed output of the rule {@code target} is kept between builds. */
+  @VisibleForTesting
+  static String getPathToPreDexedOutput(BuildTarget target) {
+    return String.format("%s/%s__%s_dex__/%s.dex.jar",
+        BuckConstant.GEN_DIR,
+        target.getBasePathWithSlash(),
+        target.getShortName(),
+        target.getShortName());
+  }
+
+  /**
+   * @return a {@link Supplier} of the {@code .dex.jar} files written by this step, in the order of
+   *     its units. It may only be called once this step has executed successfully.
+   */
+  public Supplier<ImmutableList<String>> getDexFilesToMergeSupplier() {
+    return new Supplier<ImmutableList<String>>() {
+      @Override
+      public ImmutableList<String> get() {
+        Preconditions.checkState(dexFilesToMerge != null,
+            "The classpath entries have not been pre-dexed yet.");
+        return dexFilesToMerge;
+      }
+    };
+  }
+
+  @Override
+  public int execute(final ExecutionContext context) {
+    List<Callable<Result>> callables = Lists.newArrayList();
+    for (final DexUnit unit : units) {
+      callables.add(new Callable<Result>() {
+        @Override
+        public Result call() throws IOException {
+          return preDex(unit, context);
+        }
+      });
+    }
+
+    ListeningExecutorService executor = createDxExecutor();
+    try {
+      List<Result> results = MoreFutures.getAllUninterruptibly(executor, callables);
+      if (results.contains(Result.FAILED)) {
+        return 1;
+      }
+
+      ImmutableList.Builder<String> dexFiles = ImmutableList.builder();
+      for (int i = 0; i < units.size(); i++) {
+        if (results.get(i) == Result.DEXED) {
+          dexFiles.add(units.get(i).pathToDex);
+        }
+      }
+      dexFilesToMerge = dexFiles.build();
+      return 0;
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace(context.getStdErr());
+      return 1;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private ListeningExecutorService createDxExecutor() {
+    int numThreadsValue;
+    if (numThreads.isPresent()) {
+      Preconditions.checkArgument(numThreads.get() >= 1,
+          "Must specify at least 1 thread on which to run dx");
+      numThreadsValue = numThreads.get();
+    } else {
+      numThreadsValue = (int) (1.25 * Runtime.getRuntime().availableProcessors());
+    }
+    return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(numThreadsValue));
+  }
+
+  private enum Result {
+    DEXED,
+    NO_CLASSES,
+    FAILED,
+  }
+
+  private Result preDex(DexUnit unit, ExecutionContext context) throws IOException {
+    if (!unit.rule.isPresent()) {
+      return dex(unit, context);
+    }
+
+    Lock lock = OUTPUT_LOCKS.get(unit.pathToDex);
+    lock.lock();
+    try {
+      ProjectFilesystem filesystem = context.getProjectFilesystem();
+      // The cache key also covers the format of the output and the SDK that provides dx, so a
+      // .dex.jar that was written by another version of either is not reused.
+      RuleKey cacheKey = getCacheKey(unit.rule.get().getRuleKey().toString(), context);
+      File outputDir = new File(unit.pathToDex).getParentFile();
+      String ruleKeyFile = new File(outputDir, RULE_KEY_FILE).getPath();
+      String noClassesFile = new File(outputDir, NO_CLASSES_FILE).getPath();
+      Optional<String> dexedRuleKey = filesystem.readFirstLine(ruleKeyFile);
+      if (dexedRuleKey.isPresent() && dexedRuleKey.get().equals(cacheKey.toString())) {
+        // The rule key alone does not prove that the .dex.jar is still there.
+        if (filesystem.exists(unit.pathToDex)) {
+          return Result.DEXED;
+        } else if (filesystem.exists(noClassesFile)) {
+          return Result.NO_CLASSES;
+        }
+      }
+
+      // The rule key file is written last, so that a .dex.jar that was not completely written is
+      // never mistaken for an up to date one.
+      filesystem.deleteFileAtPath(ruleKeyFile);
+      filesystem.deleteFileAtPath(noClassesFile);
+      filesystem.createParentDirs(unit.pathToDex);
+      File dexFile = filesystem.getFileForRelativePath(unit.pathToDex);
+      Result result = Result.DEXED;
+      if (!artifactCache.fetch(cacheKey, dexFile).isSuccess()) {
+        result = dex(unit, context);
+        if (result == Result.FAILED) {
+          return result;
+        } else if (result == Result.NO_CLASSES) {
+          filesystem.writeContentsToPath("", Paths.get(noClassesFile));
+        } else if (artifactCache.isStoreSupported()) {
+          artifactCache.store(cacheKey, dexFile);
+        }
+      }
+      filesystem.writeContentsToPath(cacheKey.toString(), Paths.get(ruleKeyFile));
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Result dex(DexUnit unit, ExecutionContext context) throws IOException {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    filesystem.deleteFileAtPath(unit.pathToDex);
+
+    // dx refuses to run without any classes, e.g. for a prebuilt_jar of resources.
+    if (!containsClasses(filesystem.getFileForRelativePath(unit.pathToClasses))) {
+      return Result.NO_CLASSES;
+    }
+    Step dxStep = dexer.createDxStep(unit.pathToDex, ImmutableSet.of(unit.pathToClasses));
+    return dxStep.execute(context) == 0 ? Result.DEXED : Result.FAILED;
+  }
+
+  private static boolean containsClasses(File classpathEntry) throws IOException {
+    final boolean[] containsClasses = new boolean[1];
+    new DefaultClasspathTraverser().traverse(
+        new ClasspathTraversal(ImmutableSet.of(classpathEntry)) {
+          @Override
+          public void visit(FileLike fileLike) {
+            if (fileLike.getRelativePath().endsWith(".class")) {
+              containsClasses[0] = true;
+            }
+          }
+        });
+    return containsClasses[0];
+  }
+
+  @VisibleForTesting
+  static RuleKey getCacheKey(String ruleKey, ExecutionContext context) {
+    Hasher hasher = Hashing.sha1().newHasher()
+        .putString("pre_dex", Charsets.UTF_8)
+        .putString(CACHE_FORMAT_VERSION, Charsets.UTF_8)
+        .putString(ruleKey, Charsets.UTF_8);
+
+    // The output of dx depends on the version of the SDK that provides it.
+    if (context.getAndroidPlatformTargetOptional().isPresent()) {
+      hasher.putString(context.getAndroidPlatformTargetOptional().get().getName(), Charsets.UTF_8);
+    }
+    return new RuleKey(hasher.hash().toString());
+  }
+
+  @Override
+  public String getShortName() {
+    return "pre_dex";
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    StringBuilder b = new StringBuilder();
+    b.append(getShortName());
+    for (DexUnit unit : units) {
+      b.append(" -out ");
+      b.append(unit.pathToDex);
+      b.append(" -in ");
+      b.append(unit.pathToClasses);
+    }
+    return b.toString();
+  }
+}
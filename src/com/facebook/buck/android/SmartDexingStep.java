@@ -19,6 +19,7 @@ import com.facebook.buck.dalvik.ClasspathTraversal;
 import com.facebook.buck.dalvik.ClasspathTraverser;
 import com.facebook.buck.dalvik.DefaultClasspathTraverser;
 import com.facebook.buck.dalvik.FileLike;
+import com.facebook.buck.step.AbstractExecutionStep;
 import com.facebook.buck.step.CompositeStep;
 import com.facebook.buck.step.DefaultStepRunner;
 import com.facebook.buck.step.ExecutionContext;
@@ -27,6 +28,7 @@ import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.zip.RepackZipEntriesStep;
 import com.facebook.buck.step.fs.RmStep;
 import com.facebook.buck.step.fs.WriteFileStep;
+import com.facebook.buck.step.fs.XzOptions;
 import com.facebook.buck.step.fs.XzStep;
 import com.facebook.buck.zip.ZipStep;
 import com.facebook.buck.util.Paths;
@@ -71,6 +73,9 @@ public class SmartDexingStep implements Step {
   private final String successDir;
   private final Optional<Integer> numThreads;
   private final DexStore dexStore;
+  private final XzOptions xzOptions;
+  private final Dexer dexer;
+  private final Optional<DexCache> dexCache;
   private ListeningExecutorService dxExecutor;
 
   /** Lazily initialized.  See {@link InputResolver#createOutputToInputs(DexStore)}. */
@@ -90,6 +95,11 @@ public class SmartDexingStep implements Step {
    *     reasonable default will be selected based on the number of available processors.
    * @param dexStore Specify the way secondary dexes are to be stored in the APK (e.g.
    *     within jar files, or as xz-compressed files).
+   * @param xzOptions How secondary dexes are compressed when {@code dexStore} is
+   *     {@link DexStore#XZ}. Its threads are in addition to the ones used to run dx.
+   * @param dexer Creates the steps that run dx.
+   * @param dexCache If present, outputs whose inputs have been dexed before, by any build on this
+   *     machine, are copied from this cache instead of being dexed again.
    */
   public SmartDexingStep(
       String primaryOutputPath,
@@ -98,7 +108,10 @@ public class SmartDexingStep implements Step {
       Optional<String> secondaryInputsDir,
       String successDir,
       Optional<Integer> numThreads,
-      DexStore dexStore) {
+      DexStore dexStore,
+      XzOptions xzOptions,
+      Dexer dexer,
+      Optional<DexCache> dexCache) {
     this.inputResolver = new InputResolver(primaryOutputPath,
         primaryInputsToDex,
         secondaryOutputDir,
@@ -106,6 +119,9 @@ public class SmartDexingStep implements Step {
     this.successDir = Preconditions.checkNotNull(successDir);
     this.numThreads = Preconditions.checkNotNull(numThreads);
     this.dexStore = Preconditions.checkNotNull(dexStore);
+    this.xzOptions = Preconditions.checkNotNull(xzOptions);
+    this.dexer = Preconditions.checkNotNull(dexer);
+    this.dexCache = Preconditions.checkNotNull(dexCache);
   }
 
   @VisibleForTesting
@@ -232,7 +248,10 @@ public class SmartDexingStep implements Step {
       pseudoRules.add(new DxPseudoRule(context,
           ImmutableSet.copyOf(Paths.transformFileToAbsolutePath(outputToInputs.get(outputFile))),
           outputFile.getPath(),
-          new File(successDir, outputFile.getName()).getPath()));
+          new File(successDir, outputFile.getName()).getPath(),
+          xzOptions,
+          dexer,
+          dexCache));
     }
 
     ImmutableList.Builder<Step> commands = ImmutableList.builder();
@@ -330,16 +349,25 @@ public class SmartDexingStep implements Step {
     private final Set<String> srcs;
     private final String outputPath;
     private final String outputHashPath;
+    private final XzOptions xzOptions;
+    private final Dexer dexer;
+    private final Optional<DexCache> dexCache;
     private String newInputsHash;
 
     public DxPseudoRule(ExecutionContext context,
         Set<String> srcs,
         String outputPath,
-        String outputHashPath) {
+        String outputHashPath,
+        XzOptions xzOptions,
+        Dexer dexer,
+        Optional<DexCache> dexCache) {
       this.context = Preconditions.checkNotNull(context);
       this.srcs = ImmutableSet.copyOf(srcs);
       this.outputPath = Preconditions.checkNotNull(outputPath);
       this.outputHashPath = Preconditions.checkNotNull(outputHashPath);
+      this.xzOptions = Preconditions.checkNotNull(xzOptions);
+      this.dexer = Preconditions.checkNotNull(dexer);
+      this.dexCache = Preconditions.checkNotNull(dexCache);
     }
 
     /**
@@ -392,6 +420,12 @@ public class SmartDexingStep implements Step {
         throw Throwables.propagate(e);
       }
 
+      // A previous output that was compressed differently is out of date, even though its inputs
+      // are the same.
+      if (useXzCompression()) {
+        hasher.putString(xzOptions.toString(), Charsets.UTF_8);
+      }
+
       return hasher.hash().toString();
     }
 
@@ -423,9 +457,18 @@ public class SmartDexingStep implements Step {
       Preconditions.checkState(newInputsHash != null, "Must call checkIsCached first!");
 
       List<Step> steps = Lists.newArrayList();
+      final String dexCacheKey = DexCache.getKey(newInputsHash,
+          new File(outputPath).getName(),
+          context);
+      if (dexCache.isPresent() && dexCache.get().fetch(dexCacheKey, new File(outputPath))) {
+        // Another build on this machine already dexed the same classes.
+        steps.add(new WriteFileStep(newInputsHash, outputHashPath));
+        return ImmutableList.<Step>of(new CompositeStep(steps));
+      }
+
       if (useXzCompression()) {
         String tempDexJarOutput = outputPath.replaceAll("\\.jar\\.xz$", ".tmp.jar");
-        steps.add(new DxStep(tempDexJarOutput, srcs));
+        steps.add(dexer.createDxStep(tempDexJarOutput, srcs));
         // We need to make sure classes.dex is STOREd in the .dex.jar file, otherwise .XZ
         // compression won't be effective.
         String repackedJar = outputPath.replaceAll("\\.xz$", "");
@@ -436,9 +479,18 @@ public class SmartDexingStep implements Step {
             ZipStep.MIN_COMPRESSION_LEVEL
         ));
         steps.add(new RmStep(tempDexJarOutput, true));
-        steps.add(new XzStep(repackedJar));
+        steps.add(new XzStep(repackedJar, xzOptions));
       } else {
-        steps.add(new DxStep(outputPath, srcs));
+        steps.add(dexer.createDxStep(outputPath, srcs));
+      }
+      if (dexCache.isPresent()) {
+        steps.add(new AbstractExecutionStep("store_in_dex_cache") {
+          @Override
+          public int execute(ExecutionContext context) {
+            dexCache.get().store(dexCacheKey, new File(outputPath));
+            return 0;
+          }
+        });
       }
       steps.add(new WriteFileStep(newInputsHash, outputHashPath));
 
@@ -79,6 +79,8 @@ public class SplitZipStep implements Step {
   private final String pathToReportDir;
   private final boolean useLinearAllocSplitDex;
   private final long linearAllocHardLimit;
+  private final Optional<String> pathToStatsCacheDir;
+  private final Optional<String> pathToSecondaryDexLayout;
 
   /**
    * @param inputPathsToSplit Input paths that would otherwise have been passed to a single dx --dex
@@ -95,6 +97,11 @@ public class SplitZipStep implements Step {
    *     output).
    * @param useLinearAllocSplitDex If true, {@link com.facebook.buck.dalvik.DalvikAwareZipSplitter} will be used. Also,
    *     {@code linearAllocHardLimit} must have a positive value in this case.
+   * @param pathToStatsCacheDir Directory in which the DalvikAwareZipSplitter keeps the linear
+   *     alloc estimates of the inputs between builds.
+   * @param pathToSecondaryDexLayout File in which the DalvikAwareZipSplitter keeps which zip each
+   *     class was put in between builds, so that the secondary zips whose classes did not change
+   *     are written the same way. If absent, the classes are laid out from scratch.
    */
   public SplitZipStep(
       Set<String> inputPathsToSplit,
@@ -108,7 +115,9 @@ public class SplitZipStep implements Step {
       DexStore dexStore,
       String pathToReportDir,
       boolean useLinearAllocSplitDex,
-      long linearAllocHardLimit) {
+      long linearAllocHardLimit,
+      Optional<String> pathToStatsCacheDir,
+      Optional<String> pathToSecondaryDexLayout) {
     this.inputPathsToSplit = ImmutableSet.copyOf(inputPathsToSplit);
     this.secondaryJarMetaPath = Preconditions.checkNotNull(secondaryJarMetaPath);
     this.primaryJarPath = Preconditions.checkNotNull(primaryJarPath);
@@ -121,6 +130,8 @@ public class SplitZipStep implements Step {
     this.pathToReportDir = Preconditions.checkNotNull(pathToReportDir);
     this.useLinearAllocSplitDex = useLinearAllocSplitDex;
     this.linearAllocHardLimit = linearAllocHardLimit;
+    this.pathToStatsCacheDir = Preconditions.checkNotNull(pathToStatsCacheDir);
+    this.pathToSecondaryDexLayout = Preconditions.checkNotNull(pathToSecondaryDexLayout);
   }
 
   @Override
@@ -128,15 +139,23 @@ public class SplitZipStep implements Step {
     try {
       Predicate<String> requiredInPrimaryZip = createRequiredInPrimaryZipPredicate(context);
 
+      final ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
       ZipSplitterFactory zipSplitterFactory;
       if (useLinearAllocSplitDex) {
-        zipSplitterFactory = new DalvikAwareZipSplitterFactory(linearAllocHardLimit);
+        Function<String, File> toFile = new Function<String, File>() {
+          @Override
+          public File apply(String path) {
+            return projectFilesystem.getFileForRelativePath(path);
+          }
+        };
+        zipSplitterFactory = new DalvikAwareZipSplitterFactory(linearAllocHardLimit,
+            pathToStatsCacheDir.transform(toFile),
+            pathToSecondaryDexLayout.transform(toFile));
       } else {
         zipSplitterFactory = new DefaultZipSplitterFactory(ZIP_SIZE_SOFT_LIMIT,
             ZIP_SIZE_HARD_LIMIT);
       }
 
-      ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
       File primaryJarFile = new File(primaryJarPath);
       Collection<File> secondaryZips = zipSplitterFactory.newInstance(
           ImmutableSet.copyOf(Paths.transformPathToFile(inputPathsToSplit)),
@@ -26,9 +26,12 @@ import com.facebook.buck.rules.BuildRuleType;
 import com.facebook.buck.rules.DependencyGraph;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
+import com.facebook.buck.step.fs.MkdirStep;
+import com.facebook.buck.step.fs.RmStep;
 import com.facebook.buck.step.fs.WriteFileStep;
 import com.facebook.buck.util.BuckConstant;
 import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
@@ -213,13 +216,15 @@ public class UberRDotJavaUtil {
       ImmutableList<HasAndroidResourceDeps> androidResourceDeps,
       BuildTarget buildTarget,
       ImmutableList.Builder<Step> commands) {
-    // Clear out the folder for the .java files.
     String rDotJavaSrcFolder = getRDotJavaSrcFolder(buildTarget);
-    commands.add(new MakeCleanDirectoryStep(rDotJavaSrcFolder));
+    String rDotJavaClassesDirectory = getRDotJavaBinFolder(buildTarget);
 
     // Generate the .java files and record where they will be written in javaSourceFilePaths.
     Set<String> javaSourceFilePaths = Sets.newHashSet();
     if (androidResourceDeps.isEmpty()) {
+      // Clear out the folder for the .java files.
+      commands.add(new MakeCleanDirectoryStep(rDotJavaSrcFolder));
+
       // In this case, the user is likely running a Robolectric test that does not happen to
       // depend on any resources. However, if Robolectric doesn't find an R.java file, it flips
       // out, so we have to create one, anyway.
@@ -233,7 +238,23 @@ public class UberRDotJavaUtil {
       String rDotJavaFile = rDotJavaSrcFolder + "/com/facebook/R.java";
       commands.add(new WriteFileStep(javaCode, rDotJavaFile));
       javaSourceFilePaths.add(rDotJavaFile);
+
+      // Clear out the directory where the .class files will be generated. The hash of the R.java
+      // files that it was last compiled from no longer describes it, so that must go too:
+      // otherwise, adding the resources back would skip javac and leave the dummy R.class behind.
+      commands.add(new MakeCleanDirectoryStep(rDotJavaClassesDirectory));
+      commands.add(new RmStep(getPathToRDotJavaHashFile(buildTarget),
+          /* shouldForceDeletion */ true));
+
+      // Compile the .java files.
+      JavacInMemoryStep javac = createJavacInMemoryCommandForRDotJavaFiles(
+          javaSourceFilePaths, rDotJavaClassesDirectory);
+      commands.add(javac);
     } else {
+      // The folder for the .java files is not cleared out: MergeAndroidResourcesStep only rewrites
+      // the R.java files that changed, and deletes those that are no longer needed.
+      commands.add(new MkdirStep(rDotJavaSrcFolder));
+
       Map<String, String> symbolsFileToRDotJavaPackage = Maps.newHashMap();
       for (HasAndroidResourceDeps res : androidResourceDeps) {
         String rDotJavaPackage = res.getRDotJavaPackage();
@@ -242,18 +263,20 @@ public class UberRDotJavaUtil {
             rDotJavaSrcFolder, rDotJavaPackage);
         javaSourceFilePaths.add(rDotJavaFilePath);
       }
-      commands.add(new MergeAndroidResourcesStep(symbolsFileToRDotJavaPackage,
-          rDotJavaSrcFolder));
+      MergeAndroidResourcesStep mergeStep = new MergeAndroidResourcesStep(
+          symbolsFileToRDotJavaPackage,
+          rDotJavaSrcFolder);
+      commands.add(mergeStep);
+
+      // Compile the .java files, unless they are the ones that the .class files were compiled from.
+      JavacInMemoryStep javac = createJavacInMemoryCommandForRDotJavaFiles(
+          javaSourceFilePaths, rDotJavaClassesDirectory);
+      commands.add(new CompileRDotJavaStep(
+          mergeStep.getRDotJavaHashSupplier(),
+          getPathToRDotJavaHashFile(buildTarget),
+          rDotJavaClassesDirectory,
+          javac));
     }
-
-    // Clear out the directory where the .class files will be generated.
-    String rDotJavaClassesDirectory = getRDotJavaBinFolder(buildTarget);
-    commands.add(new MakeCleanDirectoryStep(rDotJavaClassesDirectory));
-
-    // Compile the .java files.
-    JavacInMemoryStep javac = createJavacInMemoryCommandForRDotJavaFiles(
-        javaSourceFilePaths, rDotJavaClassesDirectory);
-    commands.add(javac);
   }
 
   static String getRDotJavaSrcFolder(BuildTarget buildTarget) {
@@ -270,6 +293,14 @@ public class UberRDotJavaUtil {
         buildTarget.getShortName());
   }
 
+  @VisibleForTesting
+  static String getPathToRDotJavaHashFile(BuildTarget buildTarget) {
+    return String.format("%s/%s__%s_rdotjava_hash__.txt",
+        BuckConstant.BIN_DIR,
+        buildTarget.getBasePathWithSlash(),
+        buildTarget.getShortName());
+  }
+
   static JavacInMemoryStep createJavacInMemoryCommandForRDotJavaFiles(
     Set<String> javaSourceFilePaths, String outputDirectory) {
 
@@ -28,7 +28,6 @@ import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
@@ -38,6 +37,7 @@ import com.google.common.collect.TreeMultimap;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.Set;
 
@@ -118,14 +118,15 @@ public class AuditOwnerCommand extends AbstractCommandRunner<AuditOwnerOptions>
     }
 
     // Try to find owners for each valid and existing file.
-    Set<InputRule> inputsWithNoOwners = Sets.newHashSet(inputs);
+    Set<InputRule> inputsWithNoOwners = Sets.newHashSet();
     SetMultimap<BuildRule, InputRule> owners = createOwnersMap();
-    for (BuildRule rule : graph.getNodes()) {
-      for (InputRule ruleInput : rule.getInputs()) {
-        if (inputs.contains(ruleInput)) {
-          inputsWithNoOwners.remove(ruleInput);
-          owners.put(rule, ruleInput);
-        }
+    for (InputRule input : inputs) {
+      Set<BuildRule> rules = graph.getOwnersOfInput(input);
+      if (rules.isEmpty()) {
+        inputsWithNoOwners.add(input);
+      }
+      for (BuildRule rule : rules) {
+        owners.put(rule, input);
       }
     }
 
@@ -147,21 +148,17 @@ public class AuditOwnerCommand extends AbstractCommandRunner<AuditOwnerOptions>
 
     ProjectFilesystem projectFilesystem = getProjectFilesystem();
     Function<String, String> pathRelativizer = projectFilesystem.getPathRelativizer();
+    Path projectRoot = projectFilesystem.getProjectRoot().toPath().toAbsolutePath();
     for (String nonExistentFile : nonExistentFiles) {
       File file = projectFilesystem.getFileForRelativePath(nonExistentFile);
       File buck = findBuckFileFor(file);
-      for (BuildRule rule : graph.getNodes()) {
+      String basePath = projectRoot.relativize(buck.getParentFile().toPath().toAbsolutePath())
+          .toString();
+      for (BuildRule rule : graph.getRulesWithBasePath(basePath)) {
         if (rule.getType() == BuildRuleType.PROJECT_CONFIG) {
           continue;
         }
-        try {
-          File ruleBuck = rule.getBuildTarget().getBuildFile(projectFilesystem);
-          if (buck.getCanonicalFile().equals(ruleBuck.getCanonicalFile())) {
-            owners.put(rule, InputRule.inputPathAsInputRule(nonExistentFile, pathRelativizer));
-          }
-        } catch (IOException | BuildTargetException e) {
-          throw Throwables.propagate(e);
-        }
+        owners.put(rule, InputRule.inputPathAsInputRule(nonExistentFile, pathRelativizer));
       }
     }
   }
@@ -61,6 +61,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.file.Path;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -87,6 +88,8 @@ class BuckConfig {
   private static final String DEFAULT_CACHE_DIR = "buck-cache";
   private static final String DEFAULT_CASSANDRA_PORT = "9160";
   private static final String DEFAULT_CASSANDRA_MODE = CassandraMode.readwrite.name();
+  private static final String DEFAULT_DEX_CACHE_MAX_SIZE_BYTES =
+      String.valueOf(1024L * 1024 * 1024);
 
   private final ImmutableMap<String, ImmutableMap<String, String>> sectionsToEntries;
 
@@ -431,6 +434,91 @@ class BuckConfig {
     return Long.parseLong(getValue("test", "timeout").or("0"));
   }
 
+  /**
+   * @return how many test rules may be run by the same long-lived test JVM before it is replaced.
+   *     Set by {@code jobs_per_jvm} in the {@code [test]} section. The default of 1 starts a new
+   *     JVM for every test rule.
+   */
+  public int getMaxTestJobsPerJvm() {
+    int maxTestJobsPerJvm = Integer.parseInt(getValue("test", "jobs_per_jvm").or("1"));
+    if (maxTestJobsPerJvm < 1) {
+      throw new HumanReadableException(
+          "jobs_per_jvm in the [test] section of .buckconfig must be at least 1.");
+    }
+    return maxTestJobsPerJvm;
+  }
+
+  /**
+   * @return true if build files should be evaluated by a python interpreter embedded in buck rather
+   *     than by a separate python process. Set by {@code in_process} in the {@code [parser]}
+   *     section. This is optional: it requires {@code lib/jython-standalone-2.5.4-rc1.jar}, without
+   *     which buck falls back to a python process.
+   */
+  public boolean isInProcessBuildFileParsingEnabled() {
+    return Boolean.parseBoolean(getValue("parser", "in_process").or("false"));
+  }
+
+  /**
+   * @return the maximum number of embedded interpreters used to evaluate build files in parallel
+   *     when {@link #isInProcessBuildFileParsingEnabled()}.
+   */
+  public int getNumBuildFileEvaluators() {
+    return Integer.parseInt(getValue("parser", "evaluator_threads")
+        .or(String.valueOf(Runtime.getRuntime().availableProcessors())));
+  }
+
+  /**
+   * @return true if java libraries should be compiled incrementally, recompiling only the sources
+   *     affected by a change. Set by {@code incremental_compilation} in the {@code [java]} section.
+   */
+  public boolean isJavaIncrementalCompilationEnabled() {
+    return Boolean.parseBoolean(getValue("java", "incremental_compilation").or("false"));
+  }
+
+  /**
+   * @return true if {@code android_binary()} rules should run dx inside buck rather than fork it.
+   *     Set by {@code in_process} in the {@code [dx]} section, and off by default, as dx then
+   *     shares buck's heap.
+   */
+  public boolean isInProcessDxEnabled() {
+    return Boolean.parseBoolean(getValue("dx", "in_process").or("false"));
+  }
+
+  /**
+   * @return the directory in which {@code android_binary()} rules share the output of dx between
+   *     builds, or absent if {@code enabled} in the {@code [dex_cache]} section is not true. Set by
+   *     {@code dir}, which defaults to {@code ~/.buck/dex_cache} so that it survives
+   *     {@code buck clean}.
+   */
+  public Optional<Path> getDexCacheDir() {
+    if (!Boolean.parseBoolean(getValue("dex_cache", "enabled").or("false"))) {
+      return Optional.absent();
+    }
+    Optional<String> dexCacheDir = getValue("dex_cache", "dir");
+    if (!dexCacheDir.isPresent()) {
+      return Optional.of(new File(System.getProperty("user.home"), ".buck/dex_cache").toPath());
+    }
+    if (dexCacheDir.get().startsWith("/")) {
+      return Optional.of(new File(dexCacheDir.get()).toPath());
+    }
+    return Optional.of(
+        new File(projectFilesystem.getPathRelativizer().apply(dexCacheDir.get())).toPath());
+  }
+
+  /**
+   * @return how large the dex cache may grow before its least recently used entries are evicted.
+   *     Set by {@code max_size_bytes} in the {@code [dex_cache]} section, and 1GB by default.
+   */
+  public long getDexCacheMaxSizeBytes() {
+    long maxSizeBytes = Long.parseLong(
+        getValue("dex_cache", "max_size_bytes").or(DEFAULT_DEX_CACHE_MAX_SIZE_BYTES));
+    if (maxSizeBytes <= 0) {
+      throw new HumanReadableException(
+          "dex_cache.max_size_bytes must be positive: %d", maxSizeBytes);
+    }
+    return maxSizeBytes;
+  }
+
   public ImmutableSet<String> getListenerJars() {
     String jarPathsString = getValue("extensions", "listeners").or("");
     Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
@@ -155,9 +155,14 @@ public class BuildCommandOptions extends AbstractCommandOptions {
         getBuckConfig().createDefaultJavaPackageFinder(),
         console,
         buckConfig.getDefaultTestTimeoutMillis(),
+        buckConfig.getMaxTestJobsPerJvm(),
         isCodeCoverageEnabled(),
         isDebugEnabled(),
         getBuildDependencies(),
+        buckConfig.isJavaIncrementalCompilationEnabled(),
+        buckConfig.isInProcessDxEnabled(),
+        buckConfig.getDexCacheDir(),
+        buckConfig.getDexCacheMaxSizeBytes(),
         eventBus,
         platform);
   }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.LogEvent;
+import com.facebook.buck.java.InstrumentStep;
+import com.facebook.buck.java.JavaLibraryRule;
+import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Instruments the classes of a single {@code java_library()} for code coverage, unless they were
+ * already instrumented for the same {@link RuleKey}.
+ * <p>
+ * The instrumented classes and their EMMA metadata are kept in
+ * {@link InstrumentStep#getPathToInstrumentedOutput}, next to a file that records the rule key
+ * they were instrumented for, and are shared through the {@link ArtifactCache}. The original
+ * output of the rule is never modified, so it can still be used by builds without coverage.
+ */
+class CachingInstrumentStep implements Step {
+
+  /** Change this to invalidate all of the instrumented classes in existing caches. */
+  private static final String CACHE_FORMAT_VERSION = "1";
+
+  @VisibleForTesting
+  static final String RULE_KEY_FILE = "rule_key";
+
+  private final JavaLibraryRule rule;
+  private final ArtifactCache artifactCache;
+  private final BuckEventBus eventBus;
+  private final String outputDirectory;
+
+  CachingInstrumentStep(JavaLibraryRule rule, ArtifactCache artifactCache, BuckEventBus eventBus) {
+    this.rule = Preconditions.checkNotNull(rule);
+    this.artifactCache = Preconditions.checkNotNull(artifactCache);
+    this.eventBus = Preconditions.checkNotNull(eventBus);
+    this.outputDirectory = InstrumentStep.getPathToInstrumentedOutput(rule.getBuildTarget());
+  }
+
+  @Override
+  public int execute(ExecutionContext context) {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    String ruleKeyFile = String.format("%s/%s", outputDirectory, RULE_KEY_FILE);
+    try {
+      String ruleKey = rule.getRuleKey().toString();
+      Optional<String> instrumentedRuleKey = filesystem.readFirstLine(ruleKeyFile);
+      if (instrumentedRuleKey.isPresent() && instrumentedRuleKey.get().equals(ruleKey)) {
+        return 0;
+      }
+
+      // The rule key file is written last, so that a directory whose instrumentation was
+      // interrupted is never mistaken for an up to date one.
+      filesystem.rmdir(outputDirectory);
+      filesystem.mkdirs(Paths.get(outputDirectory));
+      if (!fetch(filesystem)) {
+        int exitCode = newInstrumentStep().execute(context);
+        if (exitCode != 0) {
+          return exitCode;
+        }
+        store(filesystem);
+      }
+      filesystem.writeContentsToPath(ruleKey, Paths.get(ruleKeyFile));
+      return 0;
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+  }
+
+  @VisibleForTesting
+  InstrumentStep newInstrumentStep() {
+    return new InstrumentStep(
+        "copy",
+        ImmutableSet.of(rule.getPathToOutputFile()),
+        outputDirectory);
+  }
+
+  private boolean fetch(ProjectFilesystem filesystem) throws IOException {
+    File zip = File.createTempFile(getTempFilePrefix(), ".zip");
+    try {
+      if (!artifactCache.fetch(getKey(), zip).isSuccess()) {
+        return false;
+      }
+      TestResultsCache.unzipInto(zip, filesystem, outputDirectory);
+      return true;
+    } catch (IOException e) {
+      eventBus.post(LogEvent.warning(
+          "Failed to fetch the instrumented classes of %s, so they will be instrumented: %s",
+          rule,
+          e.getMessage()));
+      filesystem.rmdir(outputDirectory);
+      filesystem.mkdirs(Paths.get(outputDirectory));
+      return false;
+    } finally {
+      zip.delete();
+    }
+  }
+
+  private void store(ProjectFilesystem filesystem) throws IOException {
+    if (!artifactCache.isStoreSupported()) {
+      return;
+    }
+
+    ImmutableList<Path> files = TestResultsCache.getFilesInDirectory(filesystem, outputDirectory);
+    if (files.isEmpty()) {
+      return;
+    }
+
+    File zip = File.createTempFile(getTempFilePrefix(), ".zip");
+    try {
+      filesystem.createZip(files, zip);
+      artifactCache.store(getKey(), zip);
+    } finally {
+      zip.delete();
+    }
+  }
+
+  private RuleKey getKey() throws IOException {
+    return getKey(rule.getRuleKey());
+  }
+
+  @VisibleForTesting
+  static RuleKey getKey(RuleKey ruleKey) {
+    return new RuleKey(Hashing.sha1().newHasher()
+        .putString("emma_instr", Charsets.UTF_8)
+        .putString(CACHE_FORMAT_VERSION, Charsets.UTF_8)
+        .putString(ruleKey.toString(), Charsets.UTF_8)
+        .hash()
+        .toString());
+  }
+
+  private String getTempFilePrefix() {
+    return rule.getFullyQualifiedName().replace('/', '_') + "_instr";
+  }
+
+  @Override
+  public String getShortName() {
+    return "emma_instr";
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return newInstrumentStep().getDescription(context);
+  }
+}
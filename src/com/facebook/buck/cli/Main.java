@@ -23,6 +23,10 @@ import com.facebook.buck.event.listener.JavaUtilsLoggingBuildListener;
 import com.facebook.buck.event.listener.SimpleConsoleEventBusListener;
 import com.facebook.buck.event.listener.SuperConsoleEventBusListener;
 import com.facebook.buck.httpserver.WebServer;
+import com.facebook.buck.json.DefaultProjectBuildFileParserFactory;
+import com.facebook.buck.json.EmbeddedBuildFileProcessor;
+import com.facebook.buck.json.InProcessProjectBuildFileParserFactory;
+import com.facebook.buck.json.ProjectBuildFileParserFactory;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.ArtifactCacheEvent;
@@ -115,7 +119,7 @@ public final class Main {
       this.parser = new Parser(projectFilesystem,
           new KnownBuildRuleTypes(),
           console,
-          config.getPythonInterpreter(),
+          createBuildFileParserFactory(projectFilesystem, config, console),
           config.getTempFilePatterns(),
           createRuleKeyBuilderFactory(config));
       this.fileEventBus = new EventBus("file-change-events");
@@ -303,7 +307,7 @@ public final class Main {
       parser = new Parser(projectFilesystem,
           knownBuildRuleTypes,
           console,
-          config.getPythonInterpreter(),
+          createBuildFileParserFactory(projectFilesystem, config, console),
           config.getTempFilePatterns(),
           createRuleKeyBuilderFactory(config));
     }
@@ -496,6 +500,23 @@ public final class Main {
     return BuckConfig.createFromFiles(projectFilesystem, configFiles, platform);
   }
 
+  private static ProjectBuildFileParserFactory createBuildFileParserFactory(
+      ProjectFilesystem projectFilesystem,
+      BuckConfig config,
+      Console console) {
+    if (config.isInProcessBuildFileParsingEnabled()) {
+      if (EmbeddedBuildFileProcessor.isSupported()) {
+        return new InProcessProjectBuildFileParserFactory(projectFilesystem,
+            config.getNumBuildFileEvaluators());
+      }
+      console.getStdErr().println(
+          "in_process in [parser] requires lib/jython-standalone-2.5.4-rc1.jar: " +
+          "parsing build files with a python process instead.");
+    }
+    return new DefaultProjectBuildFileParserFactory(projectFilesystem,
+        config.getPythonInterpreter());
+  }
+
   /**
    * @param buckConfig This is currently unused, but we plan to use this in the near future so that
    *     global user configurations can be included when computing keys.
@@ -29,24 +29,28 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.parser.PartialGraph;
 import com.facebook.buck.parser.RawRulePredicate;
+import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.BuildContext;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleSuccess;
 import com.facebook.buck.rules.BuildRuleType;
 import com.facebook.buck.rules.DependencyGraph;
 import com.facebook.buck.rules.IndividualTestEvent;
+import com.facebook.buck.rules.InputRule;
 import com.facebook.buck.rules.TestRule;
 import com.facebook.buck.rules.TestRunEvent;
 import com.facebook.buck.step.DefaultStepRunner;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.ParallelStep;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.step.StepRunner;
-import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
+import com.facebook.buck.step.fs.RmStep;
 import com.facebook.buck.test.TestCaseSummary;
 import com.facebook.buck.test.TestResultSummary;
 import com.facebook.buck.test.TestResults;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.util.Verbosity;
 import com.google.common.annotations.VisibleForTesting;
@@ -54,6 +58,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -65,6 +70,7 @@ import com.google.common.io.Files;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -76,6 +82,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -102,7 +109,7 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
     // If the user asked to run all of the tests, use a special method for that that is optimized to
     // parse all of the build files and traverse the dependency graph to find all of the tests to
     // run.
-    if (options.isRunAllTests()) {
+    if (options.isRunAllTests() || options.getChangedSince().isPresent()) {
       try {
         return runAllTests(options);
       } catch (BuildTargetException | BuildFileParseException e) {
@@ -139,26 +146,20 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
   }
 
   /**
-   * Returns the ShellCommand object that is supposed to instrument the class files that the list
-   * of tests is supposed to be testing. From TestRule objects, we derive the class file folders
-   * and generate a EMMA instr shell command object, which can run in a CommandRunner.
+   * Returns the steps that instrument the class files of the libraries under test with EMMA, one
+   * step per library so that they can run in parallel. Libraries whose classes were already
+   * instrumented for their current rule key, locally or in the {@link ArtifactCache}, are not
+   * instrumented again.
    */
-  private Step getInstrumentCommand(
-      ImmutableSet<JavaLibraryRule> rulesUnderTest, ProjectFilesystem projectFilesystem) {
-    ImmutableSet.Builder<String> pathsToInstrumentedClasses = ImmutableSet.builder();
-
-    // Add all JAR files produced by java libraries that we are testing to -instrpath.
-    for (JavaLibraryRule path : rulesUnderTest) {
-      String pathToOutput = path.getPathToOutputFile();
-      if (pathToOutput == null) {
-        continue;
+  private ImmutableList<Step> getInstrumentSteps(
+      ImmutableSet<JavaLibraryRule> rulesUnderTest, ArtifactCache artifactCache) {
+    ImmutableList.Builder<Step> steps = ImmutableList.builder();
+    for (JavaLibraryRule rule : rulesUnderTest) {
+      if (rule.getPathToOutputFile() != null) {
+        steps.add(new CachingInstrumentStep(rule, artifactCache, getBuckEventBus()));
       }
-      pathsToInstrumentedClasses.add(projectFilesystem.getPathRelativizer().apply(pathToOutput));
     }
-
-    // Run EMMA instrumentation. This will instrument the classes we generated in the build command.
-    // TODO(user): Output instrumented class files in different folder and change junit classdir.
-    return new InstrumentStep("overwrite", pathsToInstrumentedClasses.build());
+    return steps.build();
   }
 
   /**
@@ -171,6 +172,17 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
       Optional<DefaultJavaPackageFinder> defaultJavaPackageFinderOptional,
       ProjectFilesystem projectFilesystem) {
     ImmutableSet.Builder<String> srcDirectories = ImmutableSet.builder();
+    ImmutableSet.Builder<String> metadataFiles = ImmutableSet.builder();
+
+    // Only the metadata of the libraries under test is reported on. EMMA writes no metadata for a
+    // library that has no classes.
+    for (JavaLibraryRule rule : rulesUnderTest) {
+      String metadataFile = InstrumentStep.getPathToMetadataFile(
+          InstrumentStep.getPathToInstrumentedOutput(rule.getBuildTarget()));
+      if (projectFilesystem.exists(metadataFile)) {
+        metadataFiles.add(metadataFile);
+      }
+    }
 
     // Add all source directories of java libraries that we are testing to -sourcepath.
     for (JavaLibraryRule rule : rulesUnderTest) {
@@ -182,6 +194,7 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
     }
 
     return new GenerateCodeCoverageReportStep(srcDirectories.build(),
+        metadataFiles.build(),
         JUnitStep.EMMA_OUTPUT_DIR);
   }
 
@@ -276,18 +289,32 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
         getParser(),
         getBuckEventBus());
 
-    final DependencyGraph graph = partialGraph.getDependencyGraph();
+    DependencyGraph graph = partialGraph.getDependencyGraph();
 
     // Look up all of the test rules in the dependency graph.
-    Iterable<TestRule> testRules = Iterables.transform(partialGraph.getTargets(),
-        new Function<BuildTarget, TestRule>() {
-      @Override public TestRule apply(BuildTarget buildTarget) {
-        return (TestRule)graph.findBuildRuleByTarget(buildTarget);
-      }
-    });
+    Iterable<TestRule> testRules = getTestRules(graph, partialGraph.getTargets());
 
     testRules = filterTestRules(options, testRules);
 
+    // If only the tests affected by a change were requested, narrow down the tests and build only
+    // the rules that they depend on.
+    if (options.getChangedSince().isPresent()) {
+      ImmutableSet<InputRule> changedInputs =
+          getInputsChangedSince(options.getChangedSince().get());
+      ImmutableList<BuildTarget> affectedTests = ImmutableList.copyOf(
+          Iterables.transform(getTestRulesAffectedByChanges(graph, testRules, changedInputs),
+              new Function<TestRule, BuildTarget>() {
+                @Override
+                public BuildTarget apply(TestRule testRule) {
+                  return testRule.getBuildTarget();
+                }
+              }));
+      graph = getParser().parseBuildFilesForTargets(affectedTests,
+          options.getDefaultIncludes(),
+          getBuckEventBus());
+      testRules = getTestRules(graph, affectedTests);
+    }
+
     // Build all of the test rules.
     Build build = options.createBuild(options.getBuckConfig(),
         graph,
@@ -309,6 +336,56 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
         options);
   }
 
+  private static Iterable<TestRule> getTestRules(final DependencyGraph graph,
+      Iterable<BuildTarget> targets) {
+    return ImmutableList.copyOf(Iterables.transform(targets,
+        new Function<BuildTarget, TestRule>() {
+      @Override public TestRule apply(BuildTarget buildTarget) {
+        return (TestRule)graph.findBuildRuleByTarget(buildTarget);
+      }
+    }));
+  }
+
+  /**
+   * @return the files in the project that differ from {@code revision} in git, as inputs.
+   */
+  private ImmutableSet<InputRule> getInputsChangedSince(String revision) throws IOException {
+    ProjectFilesystem projectFilesystem = getProjectFilesystem();
+    Process process = new ProcessBuilder("git", "diff", "--name-only", "--relative", revision)
+        .directory(projectFilesystem.getProjectRoot())
+        .start();
+    ProcessExecutor.Result result = new ProcessExecutor(console).execute(process);
+    if (result.getExitCode() != 0) {
+      throw new HumanReadableException("Could not list the files changed since %s.", revision);
+    }
+
+    return InputRule.inputPathsAsInputRules(
+        Splitter.on('\n').omitEmptyStrings().trimResults().split(result.getStdout()),
+        projectFilesystem.getPathRelativizer());
+  }
+
+  /**
+   * @return the rules in {@code testRules} that own, or transitively depend on a rule that owns,
+   *     one of {@code changedInputs}.
+   */
+  @VisibleForTesting
+  static Iterable<TestRule> getTestRulesAffectedByChanges(DependencyGraph graph,
+      Iterable<TestRule> testRules,
+      Iterable<InputRule> changedInputs) {
+    Set<BuildRule> owners = Sets.newHashSet();
+    for (InputRule input : changedInputs) {
+      owners.addAll(graph.getOwnersOfInput(input));
+    }
+
+    final Set<BuildRule> affectedRules = graph.getTransitiveDependents(owners);
+    return ImmutableList.copyOf(Iterables.filter(testRules, new Predicate<TestRule>() {
+      @Override
+      public boolean apply(TestRule testRule) {
+        return affectedRules.contains(testRule);
+      }
+    }));
+  }
+
   @VisibleForTesting
   static Iterable<TestRule> getCandidateRulesByIncludedLabels(
       DependencyGraph graph, final ImmutableSet<String> includedLabels) {
@@ -367,12 +444,19 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
       BuildContext buildContext,
       ExecutionContext executionContext,
       TestCommandOptions options) throws IOException {
-    StepRunner stepRunner = new DefaultStepRunner(executionContext,
-        options.createListeningExecutorService());
+    ListeningExecutorService executor = options.createListeningExecutorService();
+
+    // Test rules that run their tests in several JVMs at once borrow the threads of the executor
+    // that runs the rules, so that at most --num-threads JVMs run at any time.
+    ExecutionContext testExecutionContext = ExecutionContext.builder()
+        .setExecutionContext(executionContext)
+        .setParallelStepExecutor(Optional.<ExecutorService>of(executor))
+        .build();
+    StepRunner stepRunner = new DefaultStepRunner(testExecutionContext, executor);
     try {
-      return runTests(tests, buildContext, executionContext, stepRunner, options);
+      return runTests(tests, buildContext, testExecutionContext, stepRunner, options);
     } finally {
-      stepRunner.getListeningExecutorService().shutdownNow();
+      executor.shutdownNow();
     }
   }
 
@@ -388,12 +472,14 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
       rulesUnderTest = getRulesUnderTest(tests);
       if (!rulesUnderTest.isEmpty()) {
         try {
+          // Coverage data is merged into the same file by every test, so start from scratch.
           stepRunner.runStep(
-              new MakeCleanDirectoryStep(JUnitStep.EMMA_OUTPUT_DIR));
-          stepRunner.runStep(
-              getInstrumentCommand(
-                  rulesUnderTest,
-                  executionContext.getProjectFilesystem()));
+              new RmStep(JUnitStep.PATH_TO_EMMA_COVERAGE_DATA, /* shouldForceDeletion */ true));
+          List<Step> instrumentSteps =
+              getInstrumentSteps(rulesUnderTest, buildContext.getArtifactCache());
+          if (!instrumentSteps.isEmpty()) {
+            stepRunner.runStep(new ParallelStep(instrumentSteps));
+          }
         } catch (StepFailedException e) {
           console.printBuildFailureWithoutStacktrace(e);
           return 1;
@@ -433,11 +519,28 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
       }
     };
 
-    for (TestRule test : tests) {
+    // Results are not cached when a debugger may be attached to the tests, or when code coverage
+    // has to be collected from them.
+    final Optional<TestResultsCache> resultsCache =
+        options.isResultsCacheEnabled()
+            && !options.isCodeCoverageEnabled()
+            && !options.isDebugEnabled()
+        ? Optional.of(new TestResultsCache(
+            buildContext.getArtifactCache(),
+            executionContext,
+            getBuckEventBus()))
+        : Optional.<TestResultsCache>absent();
+
+    for (final TestRule test : tests) {
       List<Step> steps;
 
       // Determine whether the test needs to be executed.
       boolean isTestRunRequired = isTestRunRequiredForTest(test, executionContext);
+      if (isTestRunRequired && resultsCache.isPresent() && resultsCache.get().fetch(test)) {
+        // The tests passed with the same rule key on this machine or another one.
+        isTestRunRequired = false;
+      }
+
       if (isTestRunRequired) {
         getBuckEventBus().post(IndividualTestEvent.started(
             options.getArgumentsFormattedAsBuildTargets()));
@@ -453,6 +556,21 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
               test.interpretTestResults(executionContext),
               test.getBuildTarget());
       Futures.addCallback(testResults, onTestFinishedCallback);
+      if (isTestRunRequired && resultsCache.isPresent()) {
+        Futures.addCallback(testResults, new FutureCallback<TestResults>() {
+          @Override
+          public void onSuccess(TestResults testResults) {
+            if (testResults.isSuccess()) {
+              resultsCache.get().store(test);
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            // Reported by onTestFinishedCallback.
+          }
+        });
+      }
       results.add(testResults);
     }
 
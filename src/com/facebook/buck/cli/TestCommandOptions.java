@@ -35,12 +35,23 @@ public class TestCommandOptions extends BuildCommandOptions {
   @Option(name = "--all", usage = "Whether all of the tests should be run.")
   private boolean all = false;
 
+  @Option(
+      name = "--changed-since",
+      usage = "Only run the tests affected by files changed since this git revision.")
+  @Nullable
+  private String changedSince = null;
+
   @Option(name = "--code-coverage", usage = "Whether code coverage information will be generated.")
   private boolean isCodeCoverageEnabled = false;
 
   @Option(name = "--debug", usage = "Whether the test will start suspended with a JDWP debug port of 5005")
   private boolean isDebugEnabled = false;
 
+  @Option(
+      name = "--no-results-cache",
+      usage = "Whether to run tests whose passing results are already in the artifact cache.")
+  private boolean isResultsCacheDisabled = false;
+
   @Option(name = "--xml", usage = "Where to write test output as XML.")
   @Nullable
   private String pathToXmlTestOutput = null;
@@ -99,6 +110,14 @@ public class TestCommandOptions extends BuildCommandOptions {
     return all;
   }
 
+  /**
+   * @return the git revision given by {@code --changed-since}, if any. When present, the tests to
+   *     run are those that transitively depend on a file that has changed since that revision.
+   */
+  public Optional<String> getChangedSince() {
+    return Optional.fromNullable(changedSince);
+  }
+
   @Nullable
   public String getPathToXmlTestOutput() {
     return pathToXmlTestOutput;
@@ -113,6 +132,14 @@ public class TestCommandOptions extends BuildCommandOptions {
     return isCodeCoverageEnabled;
   }
 
+  /**
+   * @return true if tests that have passed with the same rule key and environment, on any machine
+   *     that shares the artifact cache, should not be run again.
+   */
+  public boolean isResultsCacheEnabled() {
+    return !isResultsCacheDisabled;
+  }
+
   @Override
   public boolean isDebugEnabled() {
     return isDebugEnabled;
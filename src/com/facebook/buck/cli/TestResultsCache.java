@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.LogEvent;
+import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.TestRule;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TargetDevice;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Stores the result files of tests that passed in the {@link ArtifactCache}, so that tests whose
+ * results have already been verified, on this machine or on any other that shares the cache, are
+ * not run again.
+ * <p>
+ * Results are keyed by the {@link RuleKey} of the test rule, which covers its sources, its deps and
+ * its vm_args, combined with the parts of the environment that can change the outcome of a test
+ * without changing that rule key.
+ */
+class TestResultsCache {
+
+  /** Change this to invalidate all of the test results in existing caches. */
+  private static final String CACHE_FORMAT_VERSION = "1";
+
+  private final ArtifactCache artifactCache;
+  private final ExecutionContext executionContext;
+  private final BuckEventBus eventBus;
+
+  TestResultsCache(ArtifactCache artifactCache,
+      ExecutionContext executionContext,
+      BuckEventBus eventBus) {
+    this.artifactCache = Preconditions.checkNotNull(artifactCache);
+    this.executionContext = Preconditions.checkNotNull(executionContext);
+    this.eventBus = Preconditions.checkNotNull(eventBus);
+  }
+
+  /**
+   * Replaces the contents of the output directory of {@code test} with the results of a previous
+   * run that passed, if there are any in the cache.
+   * @return true if the results were restored, in which case the tests need not be run.
+   */
+  boolean fetch(TestRule test) {
+    File zip = null;
+    try {
+      zip = File.createTempFile(getTempFilePrefix(test), ".zip");
+      if (!artifactCache.fetch(getKey(test), zip).isSuccess()) {
+        return false;
+      }
+
+      ProjectFilesystem filesystem = executionContext.getProjectFilesystem();
+      String outputDirectory = test.getPathToTestOutputDirectory();
+      filesystem.rmdir(outputDirectory);
+      filesystem.mkdirs(Paths.get(outputDirectory));
+      unzipInto(zip, filesystem, outputDirectory);
+
+      // The results may be incomplete if the zip was truncated, so make sure that they can be read.
+      return test.hasTestResultFiles(executionContext);
+    } catch (IOException e) {
+      eventBus.post(LogEvent.warning(
+          "Failed to fetch cached test results for %s, so its tests will be run: %s",
+          test,
+          e.getMessage()));
+      return false;
+    } finally {
+      if (zip != null) {
+        zip.delete();
+      }
+    }
+  }
+
+  /**
+   * Stores the contents of the output directory of {@code test}, which must have just been run and
+   * passed. This is a noop if the cache does not support storing artifacts.
+   */
+  void store(TestRule test) {
+    if (!artifactCache.isStoreSupported()) {
+      return;
+    }
+
+    File zip = null;
+    try {
+      ProjectFilesystem filesystem = executionContext.getProjectFilesystem();
+      ImmutableList<Path> resultFiles =
+          getFilesInDirectory(filesystem, test.getPathToTestOutputDirectory());
+      if (resultFiles.isEmpty()) {
+        return;
+      }
+
+      zip = File.createTempFile(getTempFilePrefix(test), ".zip");
+      filesystem.createZip(resultFiles, zip);
+      artifactCache.store(getKey(test), zip);
+    } catch (IOException e) {
+      eventBus.post(LogEvent.info("Failed to cache the test results for %s: %s",
+          test,
+          e.getMessage()));
+    } finally {
+      if (zip != null) {
+        zip.delete();
+      }
+    }
+  }
+
+  private RuleKey getKey(TestRule test) throws IOException {
+    return getKey(test.getRuleKey(), executionContext);
+  }
+
+  @VisibleForTesting
+  static RuleKey getKey(RuleKey testRuleKey, ExecutionContext executionContext) {
+    Hasher hasher = Hashing.sha1().newHasher()
+        .putString("test_results", Charsets.UTF_8)
+        .putString(CACHE_FORMAT_VERSION, Charsets.UTF_8)
+        .putString(testRuleKey.toString(), Charsets.UTF_8)
+        .putLong(executionContext.getDefaultTestTimeoutMillis())
+        .putString(executionContext.getPlatform().name(), Charsets.UTF_8)
+        // The JVM that runs the tests is the first java on the PATH, which is normally the one
+        // that runs buck.
+        .putString(System.getProperty("java.version"), Charsets.UTF_8);
+
+    if (executionContext.getAndroidPlatformTargetOptional().isPresent()) {
+      hasher.putString(executionContext.getAndroidPlatformTargetOptional().get().getName(),
+          Charsets.UTF_8);
+    }
+    hasher.putByte((byte) 0);
+
+    if (executionContext.getTargetDeviceOptional().isPresent()) {
+      TargetDevice targetDevice = executionContext.getTargetDeviceOptional().get();
+      hasher.putBoolean(targetDevice.isEmulator());
+      if (targetDevice.hasIdentifier()) {
+        hasher.putString(targetDevice.getIdentifier(), Charsets.UTF_8);
+      }
+    }
+
+    return new RuleKey(hasher.hash().toString());
+  }
+
+  private static String getTempFilePrefix(TestRule test) {
+    return test.getFullyQualifiedName().replace('/', '_') + "_test_results";
+  }
+
+  static ImmutableList<Path> getFilesInDirectory(
+      final ProjectFilesystem filesystem,
+      String directory) throws IOException {
+    final ImmutableList.Builder<Path> files = ImmutableList.builder();
+    Path absoluteDirectory = filesystem.getFileForRelativePath(directory).toPath();
+    if (!filesystem.isDirectory(absoluteDirectory)) {
+      return ImmutableList.of();
+    }
+    filesystem.walkFileTree(absoluteDirectory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        files.add(filesystem.getRootPath().relativize(file));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files.build();
+  }
+
+  /**
+   * Extracts a zip created by {@link ProjectFilesystem#createZip(Iterable, File)}, whose entries
+   * are all files named by their paths relative to the project root.
+   * <p>
+   * The zip comes from a cache that may be shared with other machines, so every entry must be a
+   * file in {@code outputDirectory}, the only directory that the zip was created from. Anything
+   * else is rejected before it can overwrite a file elsewhere in the project.
+   */
+  static void unzipInto(File zip, ProjectFilesystem filesystem, String outputDirectory)
+      throws IOException {
+    Path root = filesystem.getRootPath().toAbsolutePath().normalize();
+    Path outputPath = root.resolve(outputDirectory).normalize();
+    Preconditions.checkArgument(outputPath.startsWith(root) && !outputPath.equals(root),
+        "%s is not a directory in the project.", outputDirectory);
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+           entries.hasMoreElements(); ) {
+        ZipEntry entry = entries.nextElement();
+        Path target = root.resolve(entry.getName()).normalize();
+        if (!target.startsWith(outputPath) || target.equals(outputPath) || entry.isDirectory()) {
+          throw new IOException("Unexpected entry in cached artifact: " + entry.getName());
+        }
+
+        File file = target.toFile();
+        Files.createParentDirs(file);
+        try (InputStream in = zipFile.getInputStream(entry);
+             OutputStream out = new FileOutputStream(file)) {
+          ByteStreams.copy(in, out);
+        }
+      }
+    }
+  }
+}
@@ -46,6 +46,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Set;
 
@@ -65,6 +66,14 @@ public class Build {
 
   private final BuildDependencies buildDependencies;
 
+  private final boolean isJavaIncrementalCompilationEnabled;
+
+  private final boolean isInProcessDxEnabled;
+
+  private final Optional<Path> dexCacheDir;
+
+  private final long dexCacheMaxSizeBytes;
+
   /** Not set until {@link #executeBuild(Set)} is invoked. */
   @Nullable
   private BuildContext buildContext;
@@ -72,6 +81,11 @@ public class Build {
   /**
    * @param androidSdkDir where the user's Android SDK is installed.
    * @param buildDependencies How to include dependencies when building rules.
+   * @param isJavaIncrementalCompilationEnabled whether java libraries may be compiled
+   *     incrementally.
+   * @param isInProcessDxEnabled whether dx may be run inside buck rather than forked.
+   * @param dexCacheDir where android_binary() rules share the output of dx, if anywhere.
+   * @param dexCacheMaxSizeBytes how large the dex cache may grow.
    */
   public Build(
       DependencyGraph dependencyGraph,
@@ -84,9 +98,14 @@ public class Build {
       JavaPackageFinder javaPackageFinder,
       Console console,
       long defaultTestTimeoutMillis,
+      int maxTestJobsPerJvm,
       boolean isCodeCoverageEnabled,
       boolean isDebugEnabled,
       BuildDependencies buildDependencies,
+      boolean isJavaIncrementalCompilationEnabled,
+      boolean isInProcessDxEnabled,
+      Optional<Path> dexCacheDir,
+      long dexCacheMaxSizeBytes,
       BuckEventBus eventBus,
       Platform platform) {
     this.dependencyGraph = Preconditions.checkNotNull(dependencyGraph);
@@ -100,6 +119,7 @@ public class Build {
         .setNdkRoot(ndkRoot)
         .setTargetDevice(targetDevice)
         .setDefaultTestTimeoutMillis(defaultTestTimeoutMillis)
+        .setMaxTestJobsPerJvm(maxTestJobsPerJvm)
         .setCodeCoverageEnabled(isCodeCoverageEnabled)
         .setDebugEnabled(isDebugEnabled)
         .setEventBus(eventBus)
@@ -109,6 +129,10 @@ public class Build {
     this.stepRunner = new DefaultStepRunner(executionContext, listeningExecutorService);
     this.javaPackageFinder = Preconditions.checkNotNull(javaPackageFinder);
     this.buildDependencies = Preconditions.checkNotNull(buildDependencies);
+    this.isJavaIncrementalCompilationEnabled = isJavaIncrementalCompilationEnabled;
+    this.isInProcessDxEnabled = isInProcessDxEnabled;
+    this.dexCacheDir = Preconditions.checkNotNull(dexCacheDir);
+    this.dexCacheMaxSizeBytes = dexCacheMaxSizeBytes;
   }
 
   public DependencyGraph getDependencyGraph() {
@@ -212,6 +236,9 @@ public class Build {
         .setAndroidBootclasspathForAndroidPlatformTarget(
             executionContext.getAndroidPlatformTargetOptional())
         .setBuildDependencies(buildDependencies)
+        .setJavaIncrementalCompilationEnabled(isJavaIncrementalCompilationEnabled)
+        .setInProcessDxEnabled(isInProcessDxEnabled)
+        .setDexCache(dexCacheDir, dexCacheMaxSizeBytes)
         .setConsole(executionContext.getConsole())
         .build();
 
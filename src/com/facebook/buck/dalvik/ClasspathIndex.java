@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipArchive;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * The entries of a set of classpath entries, each of which is read once, so that a
+ * {@link ZipSplitter} can decide where every entry goes without traversing its inputs again.
+ * <p>
+ * The inputs are indexed in parallel, and the entries of each input are listed in the order in
+ * which {@link ClasspathTraversal} visits them. Jars and zips stay open until the index is closed
+ * so that their entries can be copied into another zip by {@link #putEntry} as they are stored,
+ * rather than being decompressed and compressed again.
+ */
+@NotThreadSafe
+class ClasspathIndex implements Closeable {
+
+  private final ImmutableSet<File> inputs;
+  private final ImmutableListMultimap<File, FileLike> entries;
+  private final ImmutableList<Closeable> openArchives;
+
+  private ClasspathIndex(
+      ImmutableSet<File> inputs,
+      ImmutableListMultimap<File, FileLike> entries,
+      ImmutableList<Closeable> openArchives) {
+    this.inputs = inputs;
+    this.entries = entries;
+    this.openArchives = openArchives;
+  }
+
+  static ClasspathIndex create(Iterable<File> inputs) throws IOException {
+    ImmutableSet<File> paths = ImmutableSet.copyOf(inputs);
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), paths.size())));
+    List<Future<IndexedInput>> futures = Lists.newArrayList();
+    try {
+      for (final File path : paths) {
+        futures.add(executor.submit(new Callable<IndexedInput>() {
+          @Override
+          public IndexedInput call() throws IOException {
+            return indexInput(path);
+          }
+        }));
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    ImmutableListMultimap.Builder<File, FileLike> entries = ImmutableListMultimap.builder();
+    ImmutableList.Builder<Closeable> openArchives = ImmutableList.builder();
+    Throwable failure = null;
+    int index = 0;
+    for (File path : paths) {
+      try {
+        IndexedInput input = futures.get(index++).get();
+        entries.putAll(path, input.entries);
+        if (input.archive.isPresent()) {
+          openArchives.add(input.archive.get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = failure == null ? e : failure;
+      } catch (ExecutionException e) {
+        failure = failure == null ? e.getCause() : failure;
+      }
+    }
+
+    // Keep going through the futures above when one of them fails so that every archive that was
+    // opened is closed.
+    if (failure != null) {
+      closeAll(openArchives.build());
+      Throwables.propagateIfInstanceOf(failure, IOException.class);
+      if (failure instanceof InterruptedException) {
+        throw new IOException(failure);
+      }
+      throw Throwables.propagate(failure);
+    }
+    return new ClasspathIndex(paths, entries.build(), openArchives.build());
+  }
+
+  /**
+   * @return the inputs of this index, in the order in which they were passed to {@link #create}.
+   */
+  ImmutableSet<File> getInputs() {
+    return inputs;
+  }
+
+  /**
+   * @return the entries of every input, in the order of the inputs.
+   */
+  ImmutableCollection<FileLike> getEntries() {
+    return entries.values();
+  }
+
+  /**
+   * @return the entries of {@code input}, which must be one of the inputs of this index.
+   */
+  ImmutableList<FileLike> getEntries(File input) {
+    return entries.get(input);
+  }
+
+  /**
+   * Writes {@code fileLike} as the next entry of {@code out}. Entries of a jar or zip that were
+   * listed by an index are copied with their data as it is stored in their archive.
+   */
+  static void putEntry(CustomZipOutputStream out, FileLike fileLike) throws IOException {
+    if (fileLike instanceof ArchiveEntry) {
+      ((ArchiveEntry) fileLike).copyTo(out);
+      return;
+    }
+
+    out.putNextEntry(new CustomZipEntry(fileLike.getRelativePath()));
+    try (InputStream in = fileLike.getInput()) {
+      ByteStreams.copy(in, out);
+    }
+    out.closeEntry();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeAll(openArchives);
+  }
+
+  private static void closeAll(Iterable<Closeable> closeables) throws IOException {
+    IOException failure = null;
+    for (Closeable closeable : closeables) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        failure = failure == null ? e : failure;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static IndexedInput indexInput(File path) throws IOException {
+    // Decide what an input is just as ClasspathTraversal does.
+    String extension = Files.getFileExtension(path.getName());
+    if (!extension.equalsIgnoreCase("jar") && !extension.equalsIgnoreCase("zip")) {
+      final ImmutableList.Builder<FileLike> entries = ImmutableList.builder();
+      new ClasspathTraversal(ImmutableSet.of(path)) {
+        @Override
+        public void visit(FileLike fileLike) {
+          entries.add(fileLike);
+        }
+      }.traverse();
+      return new IndexedInput(entries.build(), Optional.<Closeable>absent());
+    }
+
+    Optional<ZipArchive> archive = ZipArchive.open(path);
+    if (archive.isPresent()) {
+      ImmutableList.Builder<FileLike> entries = ImmutableList.builder();
+      for (ZipArchive.Entry entry : archive.get().getEntries()) {
+        entries.add(new ArchiveEntry(path, archive.get(), entry));
+      }
+      return new IndexedInput(entries.build(), Optional.<Closeable>of(archive.get()));
+    }
+
+    // The archive uses a feature that ZipArchive does not support, so read it as usual.
+    ZipFile zipFile = new ZipFile(path);
+    ImmutableList.Builder<FileLike> entries = ImmutableList.builder();
+    Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+    while (zipEntries.hasMoreElements()) {
+      entries.add(new ZipFileEntry(path, zipFile, zipEntries.nextElement()));
+    }
+    return new IndexedInput(entries.build(), Optional.<Closeable>of(zipFile));
+  }
+
+  private static class IndexedInput {
+    private final ImmutableList<FileLike> entries;
+    private final Optional<Closeable> archive;
+
+    private IndexedInput(ImmutableList<FileLike> entries, Optional<Closeable> archive) {
+      this.entries = entries;
+      this.archive = archive;
+    }
+  }
+
+  private static class ArchiveEntry extends AbstractFileLike {
+    private final File container;
+    private final ZipArchive archive;
+    private final ZipArchive.Entry entry;
+
+    private ArchiveEntry(File container, ZipArchive archive, ZipArchive.Entry entry) {
+      this.container = Preconditions.checkNotNull(container);
+      this.archive = Preconditions.checkNotNull(archive);
+      this.entry = Preconditions.checkNotNull(entry);
+    }
+
+    @Override
+    public File getContainer() {
+      return container;
+    }
+
+    @Override
+    public String getRelativePath() {
+      return entry.getName();
+    }
+
+    @Override
+    public long getSize() {
+      return entry.getSize();
+    }
+
+    @Override
+    public InputStream getInput() throws IOException {
+      return archive.getInputStream(entry);
+    }
+
+    @Override
+    public HashCode fastHash() {
+      return HashCode.fromLong(entry.getCrc());
+    }
+
+    private void copyTo(CustomZipOutputStream out) throws IOException {
+      try (InputStream raw = archive.getRawInputStream(entry)) {
+        out.putRawEntry(entry, raw);
+      }
+    }
+  }
+
+  private static class ZipFileEntry extends AbstractFileLike {
+    private final File container;
+    private final ZipFile zipFile;
+    private final ZipEntry entry;
+
+    private ZipFileEntry(File container, ZipFile zipFile, ZipEntry entry) {
+      this.container = Preconditions.checkNotNull(container);
+      this.zipFile = Preconditions.checkNotNull(zipFile);
+      this.entry = Preconditions.checkNotNull(entry);
+    }
+
+    @Override
+    public File getContainer() {
+      return container;
+    }
+
+    @Override
+    public String getRelativePath() {
+      return entry.getName();
+    }
+
+    @Override
+    public long getSize() {
+      return entry.getSize();
+    }
+
+    @Override
+    public InputStream getInput() throws IOException {
+      return zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public HashCode fastHash() {
+      return HashCode.fromLong(entry.getCrc());
+    }
+  }
+}
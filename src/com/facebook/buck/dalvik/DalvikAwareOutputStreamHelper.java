@@ -16,21 +16,17 @@
 
 package com.facebook.buck.dalvik;
 
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Helper to write a Zip file used by {@link DalvikAwareZipSplitter}.
@@ -39,7 +35,7 @@ public class DalvikAwareOutputStreamHelper implements ZipOutputStreamHelper {
 
   private static final int MAX_METHOD_REFERENCES = 64 * 1024;
 
-  private final ZipOutputStream outStream;
+  private final CustomZipOutputStream outStream;
   private final Set<String> entryNames = Sets.newHashSet();
   private final long linearAllocLimit;
   private final File reportFile;
@@ -54,9 +50,8 @@ public class DalvikAwareOutputStreamHelper implements ZipOutputStreamHelper {
       File reportDir,
       DalvikStatsCache dalvikStatsCache)
       throws FileNotFoundException {
-    this.outStream = new ZipOutputStream(
-      new BufferedOutputStream(
-          new FileOutputStream(outputFile)));
+    this.outStream = ZipOutputStreams.newOutputStream(
+        outputFile, ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION);
     this.linearAllocLimit = linearAllocLimit;
     this.reportFile = new File(reportDir, outputFile.getName() + ".txt");
     this.dalvikStatsCache = dalvikStatsCache;
@@ -91,10 +86,7 @@ public class DalvikAwareOutputStreamHelper implements ZipOutputStreamHelper {
     // proguard seems to handle merging multiple -injars into a single -outjar.
     if (!containsEntry(fileLike)) {
       entryNames.add(name);
-      outStream.putNextEntry(new ZipEntry(name));
-      try (InputStream in = fileLike.getInput()) {
-        ByteStreams.copy(in, outStream);
-      }
+      ClasspathIndex.putEntry(outStream, fileLike);
 
       // Make sure FileLike#getSize didn't lie (or we forgot to call canPutEntry).
       DalvikStatsTool.Stats stats = dalvikStatsCache.getStats(fileLike);
@@ -17,21 +17,32 @@
 package com.facebook.buck.dalvik;
 
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
 
 /**
  * Alternative to {@link DefaultZipSplitter} that uses estimates from {@link DalvikStatsTool}
  * to determine how many classes to pack into a dex.
  * <p>
- * It does two passes through the .class files:
+ * Every input is read once, into a {@link ClasspathIndex}, and the entries of that index are then
+ * placed in two passes:
  * <ul>
  *   <li>During the first pass, it uses the {@code requiredInPrimaryZip} predicate to filter the set
  *       of classes that <em>must</em> be included in the primary dex. These classes are added to
@@ -39,15 +50,22 @@ import java.util.Set;
  *   </li>During the second pass, classes that were not matched during the initial pass are added to
  *        zips as space allows. This is a simple, greedy algorithm.
  * </ul>
+ * <p>
+ * When given a layout file, the second pass is replaced by an incremental one: see
+ * {@link #placeIncrementally}.
  */
 public class DalvikAwareZipSplitter implements ZipSplitter {
 
   private final Set<File> inFiles;
   private final File outPrimary;
+  private final File outSecondaryDir;
+  private final String secondaryPattern;
   private final Predicate<String> requiredInPrimaryZip;
+  private final ZipSplitter.CanaryStrategy canaryStrategy;
   private final File reportDir;
   private final long linearAllocLimit;
   private final DalvikStatsCache dalvikStatsCache;
+  private final Optional<File> layoutFile;
 
   private final MySecondaryDexHelper secondaryDexWriter;
   private DalvikAwareOutputStreamHelper primaryOut;
@@ -63,19 +81,29 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
       long linearAllocLimit,
       Predicate<String> requiredInPrimaryZip,
       ZipSplitter.CanaryStrategy canaryStrategy,
-      File reportDir) {
+      File reportDir,
+      Optional<File> statsCacheDir,
+      Optional<File> layoutFile) {
     if (linearAllocLimit <= 0) {
       throw new HumanReadableException("linear_alloc_hard_limit must be greater than zero.");
     }
     this.inFiles = ImmutableSet.copyOf(inFiles);
     this.outPrimary = Preconditions.checkNotNull(outPrimary);
+    this.outSecondaryDir = Preconditions.checkNotNull(outSecondaryDir);
+    this.secondaryPattern = Preconditions.checkNotNull(secondaryPattern);
     this.secondaryDexWriter = new MySecondaryDexHelper(outSecondaryDir, secondaryPattern, canaryStrategy);
     this.requiredInPrimaryZip = Preconditions.checkNotNull(requiredInPrimaryZip);
+    this.canaryStrategy = Preconditions.checkNotNull(canaryStrategy);
     this.reportDir = reportDir;
     this.linearAllocLimit = linearAllocLimit;
-    this.dalvikStatsCache = new DalvikStatsCache();
+    this.dalvikStatsCache = new DalvikStatsCache(statsCacheDir);
+    this.layoutFile = Preconditions.checkNotNull(layoutFile);
   }
 
+  /**
+   * @param layoutFile if present, the file in which the assignment of entries to zips is kept
+   *     between builds, so that the zips whose entries did not change are written the same way.
+   */
   public static DalvikAwareZipSplitter splitZip(
       Set<File> inFiles,
       File outPrimary,
@@ -84,7 +112,9 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
       long linearAllocLimit,
       Predicate<String> requiredInPrimaryZip,
       ZipSplitter.CanaryStrategy canaryStrategy,
-      File reportDir) {
+      File reportDir,
+      Optional<File> statsCacheDir,
+      Optional<File> layoutFile) {
     return new DalvikAwareZipSplitter(
         inFiles,
         outPrimary,
@@ -93,52 +123,219 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
         linearAllocLimit,
         requiredInPrimaryZip,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        statsCacheDir,
+        layoutFile);
   }
 
   @Override
   public Collection<File> execute() throws IOException {
-    ClasspathTraverser classpathTraverser = new DefaultClasspathTraverser();
+    try (ClasspathIndex classpathIndex = ClasspathIndex.create(inFiles)) {
+      // Analyze all of the classes before the passes below ask for the stats of each of them.
+      dalvikStatsCache.load(classpathIndex);
 
-    // Start out by writing the primary zip and recording which entries were added to it.
-    primaryOut = newZipOutput(outPrimary);
-    secondaryDexWriter.reset();
+      if (layoutFile.isPresent()) {
+        return placeIncrementally(classpathIndex, layoutFile.get());
+      }
+
+      // Start out by writing the primary zip and recording which entries were added to it.
+      primaryOut = newZipOutput(outPrimary);
+      secondaryDexWriter.reset();
 
-    // Iterate over all of the inFiles and add all entries that match the requiredInPrimaryZip
-    // predicate.
-    classpathTraverser.traverse(new ClasspathTraversal(inFiles) {
-      @Override
-      public void visit(FileLike entry) throws IOException {
+      // Go over all of the entries of the inFiles and add all entries that match the
+      // requiredInPrimaryZip predicate.
+      for (FileLike entry : classpathIndex.getEntries()) {
         if (requiredInPrimaryZip.apply(entry.getRelativePath())) {
           primaryOut.putEntry(entry);
         }
       }
-    });
 
-    // Now that all of the required entries have been added to the primary zip, fill the rest of
-    // the zip up with the remaining entries.
-    classpathTraverser.traverse(new ClasspathTraversal(inFiles) {
-      @Override
-      public void visit(FileLike entry) throws IOException {
+      // Now that all of the required entries have been added to the primary zip, fill the rest of
+      // the zip up with the remaining entries.
+      for (FileLike entry : classpathIndex.getEntries()) {
         if (primaryOut.containsEntry(entry)) {
-          return;
+          continue;
         }
 
         // Even if we have started writing a secondary dex, we still check if there is any leftover
-        // room in the primary dex for the current entry in the traversal.
+        // room in the primary dex for the current entry.
         if (primaryOut.canPutEntry(entry)) {
           primaryOut.putEntry(entry);
         } else {
           secondaryDexWriter.getOutputToWriteTo(entry).putEntry(entry);
         }
       }
-    });
 
-    primaryOut.close();
-    secondaryDexWriter.close();
+      primaryOut.close();
+      secondaryDexWriter.close();
+    }
     return secondaryDexWriter.getFiles();
   }
 
+  /**
+   * Places the entries so that a zip whose entries did not change since the layout in
+   * {@code layoutFile} was written ends up with the same contents, which spares the dexing of
+   * its secondary dex. This takes three passes:
+   * <ul>
+   *   <li>As usual, the entries that match {@code requiredInPrimaryZip} are added to the primary
+   *       zip.</li>
+   *   <li>Every other entry that was placed before goes back into the same zip, if it still fits.
+   *       These entries are taken in the order of the layout, which is the order in which they
+   *       were written, rather than in classpath order. Otherwise an entry that was appended to a
+   *       zip would move ahead of the older ones in the next build, which would change the zip
+   *       even though none of its entries did.</li>
+   *   <li>The new entries, and the ones that no longer fit where they were, are then added to the
+   *       first zip that fits them, trying the zips that changed anyway before the last secondary
+   *       zip, and that one before a new secondary zip.</li>
+   * </ul>
+   * Secondary zips that end up empty are still written, with their canary if any, so that the
+   * secondary zips stay numbered consecutively.
+   */
+  private Collection<File> placeIncrementally(ClasspathIndex classpathIndex, File layoutFile)
+      throws IOException {
+    SecondaryDexLayout previousLayout = SecondaryDexLayout.read(layoutFile);
+    SecondaryDexLayout.Builder layout = SecondaryDexLayout.builder();
+    SortedMap<Integer, DalvikAwareOutputStreamHelper> outputs = Maps.newTreeMap();
+    SortedSet<Integer> changedZips = Sets.newTreeSet();
+    Map<String, FileLike> currentEntries = Maps.newHashMap();
+    Set<String> placedEntries = Sets.newHashSet();
+    List<FileLike> entriesToPlace = Lists.newArrayList();
+
+    primaryOut = newZipOutput(outPrimary);
+    outputs.put(SecondaryDexLayout.PRIMARY_ZIP, primaryOut);
+    try {
+      for (FileLike entry : classpathIndex.getEntries()) {
+        if (!currentEntries.containsKey(entry.getRelativePath())) {
+          currentEntries.put(entry.getRelativePath(), entry);
+        }
+        if (requiredInPrimaryZip.apply(entry.getRelativePath()) &&
+            placedEntries.add(entry.getRelativePath())) {
+          primaryOut.putEntry(entry);
+          recordPlacement(entry, SecondaryDexLayout.PRIMARY_ZIP, previousLayout, layout,
+              changedZips);
+        }
+      }
+
+      // Removing an entry from a zip changes that zip just as adding one does.
+      for (String relativePath : previousLayout.getRelativePaths()) {
+        if (!currentEntries.containsKey(relativePath)) {
+          changedZips.add(previousLayout.getPlacement(relativePath).get().zipIndex);
+        }
+      }
+
+      for (String relativePath : previousLayout.getRelativePaths()) {
+        FileLike entry = currentEntries.get(relativePath);
+        if (entry == null || !placedEntries.add(relativePath)) {
+          continue;
+        }
+
+        int zipIndex = previousLayout.getPlacement(relativePath).get().zipIndex;
+        DalvikAwareOutputStreamHelper out = getOrCreateOutput(zipIndex, outputs);
+        if (out.canPutEntry(entry)) {
+          out.putEntry(entry);
+          recordPlacement(entry, zipIndex, previousLayout, layout, changedZips);
+        } else {
+          changedZips.add(zipIndex);
+          entriesToPlace.add(entry);
+        }
+      }
+
+      // The new entries are appended in classpath order.
+      for (FileLike entry : classpathIndex.getEntries()) {
+        if (placedEntries.add(entry.getRelativePath())) {
+          entriesToPlace.add(entry);
+        }
+      }
+
+      for (FileLike entry : entriesToPlace) {
+        int zipIndex = findZipToPutEntry(entry, changedZips, outputs);
+        getOrCreateOutput(zipIndex, outputs).putEntry(entry);
+        recordPlacement(entry, zipIndex, previousLayout, layout, changedZips);
+      }
+
+      // Fill any gap left by secondary zips that no longer have any entries.
+      for (int zipIndex = 1; zipIndex < outputs.lastKey(); zipIndex++) {
+        getOrCreateOutput(zipIndex, outputs);
+      }
+    } finally {
+      for (DalvikAwareOutputStreamHelper out : outputs.values()) {
+        out.close();
+      }
+    }
+
+    layout.build().write(layoutFile);
+
+    ImmutableList.Builder<File> secondaryFiles = ImmutableList.builder();
+    for (int zipIndex : outputs.tailMap(1).keySet()) {
+      secondaryFiles.add(getSecondaryFile(zipIndex));
+    }
+    return secondaryFiles.build();
+  }
+
+  private int findZipToPutEntry(
+      FileLike entry,
+      Set<Integer> changedZips,
+      SortedMap<Integer, DalvikAwareOutputStreamHelper> outputs) throws IOException {
+    for (int zipIndex : changedZips) {
+      if (getOrCreateOutput(zipIndex, outputs).canPutEntry(entry)) {
+        return zipIndex;
+      }
+    }
+
+    int lastZipIndex = outputs.lastKey();
+    if (lastZipIndex != SecondaryDexLayout.PRIMARY_ZIP &&
+        outputs.get(lastZipIndex).canPutEntry(entry)) {
+      return lastZipIndex;
+    }
+
+    int newZipIndex = lastZipIndex + 1;
+    // It really shouldn't happen that an entry does not fit into an empty zip.
+    Preconditions.checkState(getOrCreateOutput(newZipIndex, outputs).canPutEntry(entry),
+        "%s does not fit into an empty zip.", entry);
+    return newZipIndex;
+  }
+
+  private void recordPlacement(
+      FileLike entry,
+      int zipIndex,
+      SecondaryDexLayout previousLayout,
+      SecondaryDexLayout.Builder layout,
+      Set<Integer> changedZips) throws IOException {
+    String relativePath = entry.getRelativePath();
+    Optional<SecondaryDexLayout.Placement> previousPlacement =
+        previousLayout.getPlacement(relativePath);
+    HashCode hash = entry.fastHash();
+    if (!previousPlacement.isPresent() ||
+        previousPlacement.get().zipIndex != zipIndex ||
+        !previousPlacement.get().hash.equals(hash)) {
+      changedZips.add(zipIndex);
+      if (previousPlacement.isPresent()) {
+        changedZips.add(previousPlacement.get().zipIndex);
+      }
+    }
+    layout.put(relativePath, zipIndex, hash);
+  }
+
+  private DalvikAwareOutputStreamHelper getOrCreateOutput(
+      int zipIndex,
+      Map<Integer, DalvikAwareOutputStreamHelper> outputs) throws IOException {
+    DalvikAwareOutputStreamHelper out = outputs.get(zipIndex);
+    if (out == null) {
+      out = newZipOutput(getSecondaryFile(zipIndex));
+      outputs.put(zipIndex, out);
+      if (canaryStrategy == ZipSplitter.CanaryStrategy.INCLUDE_CANARIES) {
+        // Make sure the first class in the secondary dex can be safely loaded.
+        out.putEntry(CanaryFactory.create(zipIndex));
+      }
+    }
+    return out;
+  }
+
+  private File getSecondaryFile(int zipIndex) {
+    Preconditions.checkArgument(zipIndex > SecondaryDexLayout.PRIMARY_ZIP);
+    return new File(outSecondaryDir, String.format(secondaryPattern, zipIndex));
+  }
+
   private DalvikAwareOutputStreamHelper newZipOutput(File file) throws FileNotFoundException {
     return new DalvikAwareOutputStreamHelper(file, linearAllocLimit, reportDir, dalvikStatsCache);
   }
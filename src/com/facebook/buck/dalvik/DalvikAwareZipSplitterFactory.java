@@ -16,6 +16,8 @@
 
 package com.facebook.buck.dalvik;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 
 import java.io.File;
@@ -24,9 +26,32 @@ import java.util.Set;
 public class DalvikAwareZipSplitterFactory implements ZipSplitterFactory {
 
   private final long linearAllocLimit;
+  private final Optional<File> statsCacheDir;
+  private final Optional<File> layoutFile;
 
   public DalvikAwareZipSplitterFactory(long linearAllocLimit) {
+    this(linearAllocLimit, Optional.<File>absent());
+  }
+
+  /**
+   * @param statsCacheDir directory in which to keep the {@link DalvikStatsTool} results of the
+   *     inputs between builds, so that only the inputs that changed have to be analyzed again.
+   */
+  public DalvikAwareZipSplitterFactory(long linearAllocLimit, Optional<File> statsCacheDir) {
+    this(linearAllocLimit, statsCacheDir, Optional.<File>absent());
+  }
+
+  /**
+   * @param layoutFile file in which to keep which zip each class was put in between builds, so
+   *     that the secondary zips whose classes did not change stay the same.
+   */
+  public DalvikAwareZipSplitterFactory(
+      long linearAllocLimit,
+      Optional<File> statsCacheDir,
+      Optional<File> layoutFile) {
     this.linearAllocLimit = linearAllocLimit;
+    this.statsCacheDir = Preconditions.checkNotNull(statsCacheDir);
+    this.layoutFile = Preconditions.checkNotNull(layoutFile);
   }
 
   @Override
@@ -45,6 +70,8 @@ public class DalvikAwareZipSplitterFactory implements ZipSplitterFactory {
         linearAllocLimit,
         requiredInPrimaryZip,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        statsCacheDir,
+        layoutFile);
   }
 }
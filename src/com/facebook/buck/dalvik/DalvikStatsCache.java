@@ -16,20 +16,84 @@
 
 package com.facebook.buck.dalvik;
 
-import com.google.common.collect.MapMaker;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentMap;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 
 /**
  * Cache to memoize results from DalvikStatsTool.
+ * <p>
+ * {@link #load(ClasspathIndex)} analyzes all of the classes of a set of classpath entries up front,
+ * in parallel, reading them from the same index that the splitter places them from. If there is a
+ * cache directory, the stats of each classpath entry are also written to a file in it named after
+ * a hash of the contents of the entry, so that the next build only has to read that file back in,
+ * rather than analyze the classes again, unless the entry has changed.
+ * <p>
+ * This class is not thread safe.
  */
 class DalvikStatsCache {
 
-  private final ConcurrentMap<FileLike, DalvikStatsTool.Stats> cache;
+  /** Change this whenever the estimates of {@link DalvikStatsTool} change. */
+  private static final int CACHE_FORMAT_VERSION = 1;
+
+  private final Optional<File> cacheDir;
+
+  /** Stats by {@link FileLike#getContainer()} and {@link FileLike#getRelativePath()}. */
+  private final Table<File, String, DalvikStatsTool.Stats> cache;
+
+  /** Classes refer to the same few classes and methods over and over again. */
+  private final Interner<String> interner;
 
   DalvikStatsCache() {
-    cache = new MapMaker().weakKeys().makeMap();
+    this(Optional.<File>absent());
+  }
+
+  /**
+   * @param cacheDir directory in which to keep the stats of classpath entries between builds.
+   *     Files in this directory that do not hold the stats of the classpath entries passed to the
+   *     last call to {@link #load(ClasspathIndex)} are deleted.
+   */
+  DalvikStatsCache(Optional<File> cacheDir) {
+    this.cacheDir = Preconditions.checkNotNull(cacheDir);
+    this.cache = HashBasedTable.create();
+    this.interner = Interners.newStrongInterner();
   }
 
   DalvikStatsTool.Stats getStats(FileLike entry) {
@@ -40,19 +104,257 @@ class DalvikStatsCache {
       return DalvikStatsTool.Stats.ZERO;
     }
 
-    DalvikStatsTool.Stats stats = cache.get(entry);
+    DalvikStatsTool.Stats stats = cache.get(entry.getContainer(), name);
     if (stats != null) {
       return stats;
     }
 
-    try {
-      stats = DalvikStatsTool.getEstimate(entry.getInput());
-      cache.put(entry, stats);
-      return stats;
+    try (InputStream input = entry.getInput()) {
+      stats = analyze(name, ByteStreams.toByteArray(input));
     } catch (IOException e) {
       throw new RuntimeException(String.format("Error calculating size for %s.", name), e);
-    } catch (RuntimeException e) {
-      throw new RuntimeException(String.format("Error calculating size for %s.", name), e);
+    }
+    cache.put(entry.getContainer(), name, stats);
+    return stats;
+  }
+
+  /**
+   * Computes the stats of every class in the inputs of {@code classpathIndex}, so that
+   * {@link #getStats} does not have to analyze them one at a time.
+   */
+  void load(ClasspathIndex classpathIndex) throws IOException {
+    ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    try {
+      Set<String> keys = Sets.newHashSet();
+      Map<File, String> uncachedKeys = Maps.newLinkedHashMap();
+      Map<File, List<ClassFile>> uncachedClassFiles = Maps.newLinkedHashMap();
+      for (File classpathEntry : classpathIndex.getInputs()) {
+        List<FileLike> entries = classpathIndex.getEntries(classpathEntry);
+
+        // Directories, unlike jars, have to be read in full to find out whether they changed.
+        Optional<List<ClassFile>> classFiles = Optional.absent();
+        String key;
+        if (classpathEntry.isDirectory()) {
+          classFiles = Optional.of(readClassFiles(entries));
+          key = hashClassFiles(classFiles.get());
+        } else {
+          key = hashFile(classpathEntry);
+        }
+        keys.add(key);
+
+        Optional<Map<String, DalvikStatsTool.Stats>> cachedStats = readCacheFile(key);
+        if (cachedStats.isPresent()) {
+          putCachedStats(classpathEntry, classFiles, cachedStats.get());
+          continue;
+        }
+
+        if (!classFiles.isPresent()) {
+          classFiles = Optional.of(readClassFiles(entries));
+        }
+        for (ClassFile classFile : classFiles.get()) {
+          classFile.analyze(executor);
+        }
+        uncachedKeys.put(classpathEntry, key);
+        uncachedClassFiles.put(classpathEntry, classFiles.get());
+      }
+
+      for (Map.Entry<File, List<ClassFile>> entry : uncachedClassFiles.entrySet()) {
+        Map<String, DalvikStatsTool.Stats> stats = Maps.newLinkedHashMap();
+        for (ClassFile classFile : entry.getValue()) {
+          DalvikStatsTool.Stats classStats = classFile.getStats();
+          cache.put(classFile.container, classFile.relativePath, classStats);
+          stats.put(classFile.relativePath, classStats);
+        }
+        writeCacheFile(uncachedKeys.get(entry.getKey()), stats);
+      }
+
+      deleteUnusedCacheFiles(keys);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @VisibleForTesting
+  DalvikStatsTool.Stats analyze(String relativePath, byte[] classBytes) {
+    try {
+      return DalvikStatsTool.getEstimate(new ByteArrayInputStream(classBytes));
+    } catch (IOException | RuntimeException e) {
+      throw new RuntimeException(
+          String.format("Error calculating size for %s.", relativePath), e);
+    }
+  }
+
+  private void putCachedStats(
+      File classpathEntry,
+      Optional<List<ClassFile>> classFiles,
+      Map<String, DalvikStatsTool.Stats> stats) {
+    if (classFiles.isPresent()) {
+      // Each file in a directory is the container of its own entry.
+      for (ClassFile classFile : classFiles.get()) {
+        DalvikStatsTool.Stats classStats = stats.get(classFile.relativePath);
+        if (classStats != null) {
+          cache.put(classFile.container, classFile.relativePath, classStats);
+        }
+      }
+    } else {
+      for (Map.Entry<String, DalvikStatsTool.Stats> entry : stats.entrySet()) {
+        cache.put(classpathEntry, entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /** @return the classes in {@code entries}, in order of their relative paths. */
+  private List<ClassFile> readClassFiles(List<FileLike> entries) throws IOException {
+    List<ClassFile> classFiles = Lists.newArrayList();
+    for (FileLike fileLike : entries) {
+      if (!fileLike.getRelativePath().endsWith(".class")) {
+        continue;
+      }
+      try (InputStream input = fileLike.getInput()) {
+        classFiles.add(new ClassFile(fileLike.getContainer(),
+            fileLike.getRelativePath(),
+            ByteStreams.toByteArray(input)));
+      }
+    }
+    Collections.sort(classFiles, new Comparator<ClassFile>() {
+      @Override
+      public int compare(ClassFile a, ClassFile b) {
+        return a.relativePath.compareTo(b.relativePath);
+      }
+    });
+    return classFiles;
+  }
+
+  private static String hashClassFiles(List<ClassFile> classFiles) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (ClassFile classFile : classFiles) {
+      hasher.putString(classFile.relativePath, Charsets.UTF_8)
+          .putInt(classFile.bytes.length)
+          .putBytes(classFile.bytes);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static String hashFile(File file) throws IOException {
+    // The name of a single class file is its relative path.
+    return Hashing.sha1().newHasher()
+        .putString(file.getName(), Charsets.UTF_8)
+        .putBytes(Files.hash(file, Hashing.sha1()).asBytes())
+        .hash()
+        .toString();
+  }
+
+  private Optional<Map<String, DalvikStatsTool.Stats>> readCacheFile(String key) {
+    if (!cacheDir.isPresent()) {
+      return Optional.absent();
+    }
+    File cacheFile = new File(cacheDir.get(), key);
+    if (!cacheFile.isFile()) {
+      return Optional.absent();
+    }
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      if (in.readInt() != CACHE_FORMAT_VERSION) {
+        return Optional.absent();
+      }
+      int numClasses = in.readInt();
+      Map<String, DalvikStatsTool.Stats> stats = Maps.newLinkedHashMap();
+      for (int i = 0; i < numClasses; i++) {
+        String relativePath = in.readUTF();
+        int estimatedLinearAllocSize = in.readInt();
+        int numMethodReferences = in.readInt();
+        ImmutableSet.Builder<DalvikStatsTool.MethodReference> methodReferences =
+            ImmutableSet.builder();
+        for (int j = 0; j < numMethodReferences; j++) {
+          methodReferences.add(new DalvikStatsTool.MethodReference(
+              interner.intern(in.readUTF()),
+              interner.intern(in.readUTF()),
+              interner.intern(in.readUTF())));
+        }
+        stats.put(relativePath,
+            new DalvikStatsTool.Stats(estimatedLinearAllocSize, methodReferences.build()));
+      }
+      return Optional.of(stats);
+    } catch (IOException e) {
+      // The file was not written completely, so analyze the classes again.
+      return Optional.absent();
+    }
+  }
+
+  private void writeCacheFile(String key, Map<String, DalvikStatsTool.Stats> stats)
+      throws IOException {
+    if (!cacheDir.isPresent()) {
+      return;
+    }
+
+    // Write to a temporary file first, so that an interrupted build never leaves a partial file.
+    File cacheFile = new File(cacheDir.get(), key);
+    File tempFile = new File(cacheDir.get(), key + ".tmp");
+    Files.createParentDirs(tempFile);
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeInt(CACHE_FORMAT_VERSION);
+      out.writeInt(stats.size());
+      for (Map.Entry<String, DalvikStatsTool.Stats> entry : stats.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().estimatedLinearAllocSize);
+        out.writeInt(entry.getValue().methodReferences.size());
+        for (DalvikStatsTool.MethodReference methodReference :
+            entry.getValue().methodReferences) {
+          out.writeUTF(methodReference.className);
+          out.writeUTF(methodReference.methodName);
+          out.writeUTF(methodReference.methodDesc);
+        }
+      }
+    }
+    Files.move(tempFile, cacheFile);
+  }
+
+  private void deleteUnusedCacheFiles(Set<String> keys) {
+    if (!cacheDir.isPresent()) {
+      return;
+    }
+    File[] files = cacheDir.get().listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (!keys.contains(file.getName())) {
+        file.delete();
+      }
+    }
+  }
+
+  /** A class that has been read into memory, so that it can be analyzed on another thread. */
+  private class ClassFile {
+    private final File container;
+    private final String relativePath;
+    private final byte[] bytes;
+    private ListenableFuture<DalvikStatsTool.Stats> stats;
+
+    private ClassFile(File container, String relativePath, byte[] bytes) {
+      this.container = container;
+      this.relativePath = relativePath;
+      this.bytes = bytes;
+    }
+
+    private void analyze(ListeningExecutorService executor) {
+      stats = executor.submit(new Callable<DalvikStatsTool.Stats>() {
+        @Override
+        public DalvikStatsTool.Stats call() {
+          return DalvikStatsCache.this.analyze(relativePath, bytes);
+        }
+      });
+    }
+
+    private DalvikStatsTool.Stats getStats() {
+      try {
+        return Uninterruptibles.getUninterruptibly(stats);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
     }
   }
 }
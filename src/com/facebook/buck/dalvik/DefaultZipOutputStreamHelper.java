@@ -16,28 +16,24 @@
 
 package com.facebook.buck.dalvik;
 
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Helper to write a Zip file used by {@link DefaultZipSplitter}.
  */
 class DefaultZipOutputStreamHelper implements ZipOutputStreamHelper {
 
-  private final ZipOutputStream outStream;
+  private final CustomZipOutputStream outStream;
   private final Set<String> entryNames = Sets.newHashSet();
   private final long zipSizeHardLimit;
   private final File reportFile;
@@ -46,9 +42,8 @@ class DefaultZipOutputStreamHelper implements ZipOutputStreamHelper {
 
   DefaultZipOutputStreamHelper(File outputFile, long zipSizeHardLimit, File reportDir)
       throws FileNotFoundException {
-    this.outStream = new ZipOutputStream(
-        new BufferedOutputStream(
-            new FileOutputStream(outputFile)));
+    this.outStream = ZipOutputStreams.newOutputStream(
+        outputFile, ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION);
     this.zipSizeHardLimit = zipSizeHardLimit;
     this.reportFile = new File(reportDir, outputFile.getName() + ".txt");
   }
@@ -82,10 +77,7 @@ class DefaultZipOutputStreamHelper implements ZipOutputStreamHelper {
     // proguard seems to handle merging multiple -injars into a single -outjar.
     if (!containsEntry(fileLike)) {
       entryNames.add(name);
-      outStream.putNextEntry(new ZipEntry(name));
-      try (InputStream in = fileLike.getInput()) {
-        ByteStreams.copy(in, outStream);
-      }
+      ClasspathIndex.putEntry(outStream, fileLike);
 
       // Make sure FileLike#getSize didn't lie (or we forgot to call canPutEntry).
       long entrySize = getSize(fileLike);
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which zip each entry was put in by a {@link ZipSplitter}, along with a hash of the entry,
+ * so that the next split of the same inputs can leave the entries that did not change where they
+ * were. Zip {@code 0} is the primary zip, and secondary zips are numbered from {@code 1}, as their
+ * files are.
+ * <p>
+ * A layout is stored as a text file with one line per entry, so that it is easy to inspect.
+ */
+class SecondaryDexLayout {
+
+  private static final String FORMAT_HEADER = "secondary_dex_layout 1";
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ').limit(3);
+
+  static final int PRIMARY_ZIP = 0;
+
+  private final ImmutableMap<String, Placement> placements;
+
+  private SecondaryDexLayout(ImmutableMap<String, Placement> placements) {
+    this.placements = Preconditions.checkNotNull(placements);
+  }
+
+  static SecondaryDexLayout empty() {
+    return new SecondaryDexLayout(ImmutableMap.<String, Placement>of());
+  }
+
+  /**
+   * @return the layout stored in {@code file}, or an empty layout if there is no such file or if
+   *     it was written by a different version of buck.
+   */
+  static SecondaryDexLayout read(File file) throws IOException {
+    if (!file.isFile()) {
+      return empty();
+    }
+
+    List<String> lines = Files.readLines(file, Charsets.UTF_8);
+    if (lines.isEmpty() || !FORMAT_HEADER.equals(lines.get(0))) {
+      return empty();
+    }
+
+    Map<String, Placement> placements = Maps.newLinkedHashMap();
+    for (String line : Iterables.skip(lines, 1)) {
+      List<String> fields = FIELD_SPLITTER.splitToList(line);
+      if (fields.size() != 3) {
+        // The file was not written by this class, so start from scratch.
+        return empty();
+      }
+      try {
+        placements.put(fields.get(2), new Placement(
+            Integer.parseInt(fields.get(0)),
+            HashCode.fromString(fields.get(1))));
+      } catch (IllegalArgumentException e) {
+        return empty();
+      }
+    }
+    return new SecondaryDexLayout(ImmutableMap.copyOf(placements));
+  }
+
+  /**
+   * Writes this layout to {@code file}, replacing its previous contents only once all of it has
+   * been written.
+   */
+  void write(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    Files.createParentDirs(tempFile);
+    try (BufferedWriter writer = Files.newWriter(tempFile, Charsets.UTF_8)) {
+      writer.write(FORMAT_HEADER);
+      writer.newLine();
+      for (Map.Entry<String, Placement> entry : placements.entrySet()) {
+        writer.write(String.format("%d %s %s",
+            entry.getValue().zipIndex,
+            entry.getValue().hash,
+            entry.getKey()));
+        writer.newLine();
+      }
+    }
+    Files.move(tempFile, file);
+  }
+
+  Optional<Placement> getPlacement(String relativePath) {
+    return Optional.fromNullable(placements.get(relativePath));
+  }
+
+  ImmutableSet<String> getRelativePaths() {
+    return placements.keySet();
+  }
+
+  static Builder builder() {
+    return new Builder();
+  }
+
+  static class Placement {
+    final int zipIndex;
+    final HashCode hash;
+
+    Placement(int zipIndex, HashCode hash) {
+      Preconditions.checkArgument(zipIndex >= PRIMARY_ZIP);
+      this.zipIndex = zipIndex;
+      this.hash = Preconditions.checkNotNull(hash);
+    }
+  }
+
+  static class Builder {
+    private final Map<String, Placement> placements = Maps.newLinkedHashMap();
+
+    private Builder() {}
+
+    Builder put(String relativePath, int zipIndex, HashCode hash) {
+      Preconditions.checkState(!placements.containsKey(relativePath),
+          "%s was already placed.", relativePath);
+      placements.put(relativePath, new Placement(zipIndex, hash));
+      return this;
+    }
+
+    SecondaryDexLayout build() {
+      return new SecondaryDexLayout(ImmutableMap.copyOf(placements));
+    }
+  }
+}
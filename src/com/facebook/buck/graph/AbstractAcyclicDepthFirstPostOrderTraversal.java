@@ -24,6 +24,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -47,7 +48,7 @@ public abstract class AbstractAcyclicDepthFirstPostOrderTraversal<T> {
   public void traverse(Iterable<T> initialNodes) throws CycleException, IOException {
     // This corresponds to the current chain of nodes being explored. Enforcing this invariant makes
     // this data structure useful for debugging.
-    Deque<Explorable> toExplore = Lists.newLinkedList();
+    Deque<Explorable> toExplore = new ArrayDeque<>();
     for (T node : initialNodes) {
       toExplore.add(new Explorable(node));
     }
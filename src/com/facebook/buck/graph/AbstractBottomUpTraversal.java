@@ -42,6 +42,16 @@ public abstract class AbstractBottomUpTraversal<T, V> {
   }
 
   public final void traverse() {
+    // A frozen graph already knows its topological order, so there is no need to recompute it.
+    if (graph instanceof DefaultImmutableDirectedAcyclicGraph) {
+      DefaultImmutableDirectedAcyclicGraph<T> frozenGraph =
+          (DefaultImmutableDirectedAcyclicGraph<T>) graph;
+      for (T node : frozenGraph.getNodesInTopologicalOrder()) {
+        visit(node);
+      }
+      return;
+    }
+
     nodesToExplore.addAll(graph.getNodesWithNoOutgoingEdges());
     while (!nodesToExplore.isEmpty()) {
       T node = nodesToExplore.remove();
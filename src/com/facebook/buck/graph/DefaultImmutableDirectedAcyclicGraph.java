@@ -17,44 +17,210 @@
 package com.facebook.buck.graph;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A frozen copy of an acyclic {@link MutableDirectedGraph}.
+ * <p>
+ * Each node is assigned an int id when the graph is created, and the edges are stored in
+ * compressed sparse row form: the ids of the sinks of node {@code i} are stored in
+ * {@code outgoingEdges} from index {@code outgoingOffsets[i]} up to, but not including,
+ * {@code outgoingOffsets[i + 1]}, and likewise for the sources of its incoming edges.
+ * <p>
+ * Ids are assigned in bottom-up topological order, so a node's id is always greater than the ids
+ * of the nodes it depends on. This means that {@link AbstractBottomUpTraversal} and
+ * {@link TopologicalSort} do not need to touch the edges at all.
+ */
 public class DefaultImmutableDirectedAcyclicGraph<T> implements ImmutableDirectedAcyclicGraph<T> {
 
-  private final MutableDirectedGraph<T> graph;
+  /** The nodes of the graph, indexed by id. */
+  private final ImmutableList<T> nodes;
+
+  private final ImmutableMap<T, Integer> nodeIds;
 
+  private final int[] outgoingOffsets;
+  private final int[] outgoingEdges;
+  private final int[] incomingOffsets;
+  private final int[] incomingEdges;
+
+  /**
+   * @throws IllegalArgumentException if {@code graph} contains a cycle.
+   */
   public DefaultImmutableDirectedAcyclicGraph(MutableDirectedGraph<T> graph) {
     Preconditions.checkNotNull(graph);
-    Preconditions.checkArgument(graph.isAcyclic());
-    this.graph = new MutableDirectedGraph<T>(graph);
+    Set<T> graphNodes = graph.getNodes();
+    int numNodes = graphNodes.size();
+
+    // Kahn's algorithm, starting from the nodes with no dependencies. A node is queued once all of
+    // the nodes it depends on have been assigned an id; any node that is never queued is part of,
+    // or depends on, a cycle.
+    Map<T, Integer> unnumberedDeps = Maps.newHashMapWithExpectedSize(numNodes);
+    Deque<T> toNumber = new ArrayDeque<>();
+    for (T node : graphNodes) {
+      int numDeps = graph.getOutgoingNodesView(node).size();
+      unnumberedDeps.put(node, numDeps);
+      if (numDeps == 0) {
+        toNumber.add(node);
+      }
+    }
+
+    ImmutableList.Builder<T> nodesBuilder = ImmutableList.builder();
+    ImmutableMap.Builder<T, Integer> nodeIdsBuilder = ImmutableMap.builder();
+    int nextId = 0;
+    while (!toNumber.isEmpty()) {
+      T node = toNumber.remove();
+      nodesBuilder.add(node);
+      nodeIdsBuilder.put(node, nextId++);
+      for (T dependent : graph.getIncomingNodesView(node)) {
+        int remaining = unnumberedDeps.get(dependent) - 1;
+        unnumberedDeps.put(dependent, remaining);
+        if (remaining == 0) {
+          toNumber.add(dependent);
+        }
+      }
+    }
+    Preconditions.checkArgument(nextId == numNodes, "Graph must be acyclic.");
+
+    this.nodes = nodesBuilder.build();
+    this.nodeIds = nodeIdsBuilder.build();
+
+    int numEdges = graph.getEdgeCount();
+    this.outgoingOffsets = new int[numNodes + 1];
+    this.outgoingEdges = new int[numEdges];
+    this.incomingOffsets = new int[numNodes + 1];
+    this.incomingEdges = new int[numEdges];
+    int outgoingIndex = 0;
+    int incomingIndex = 0;
+    for (int id = 0; id < numNodes; id++) {
+      T node = nodes.get(id);
+      outgoingOffsets[id] = outgoingIndex;
+      for (T sink : graph.getOutgoingNodesView(node)) {
+        outgoingEdges[outgoingIndex++] = nodeIds.get(sink);
+      }
+      incomingOffsets[id] = incomingIndex;
+      for (T source : graph.getIncomingNodesView(node)) {
+        incomingEdges[incomingIndex++] = nodeIds.get(source);
+      }
+    }
+    outgoingOffsets[numNodes] = outgoingIndex;
+    incomingOffsets[numNodes] = incomingIndex;
   }
 
   @Override
   public ImmutableSet<T> getOutgoingNodesFor(T source) {
-    return graph.getOutgoingNodesFor(source);
+    return getNodesForEdges(source, outgoingOffsets, outgoingEdges);
   }
 
   @Override
   public ImmutableSet<T> getIncomingNodesFor(T sink) {
-    return graph.getIncomingNodesFor(sink);
+    return getNodesForEdges(sink, incomingOffsets, incomingEdges);
+  }
+
+  private ImmutableSet<T> getNodesForEdges(T node, int[] offsets, int[] edges) {
+    Integer id = nodeIds.get(node);
+    if (id == null) {
+      return ImmutableSet.of();
+    }
+
+    ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+    for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+      builder.add(nodes.get(edges[i]));
+    }
+    return builder.build();
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
-    return graph.getNodesWithNoOutgoingEdges();
+    return getNodesWithNoEdges(outgoingOffsets);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoIncomingEdges() {
-    return graph.getNodesWithNoIncomingEdges();
+    return getNodesWithNoEdges(incomingOffsets);
+  }
+
+  private ImmutableSet<T> getNodesWithNoEdges(int[] offsets) {
+    ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+    for (int id = 0; id < nodes.size(); id++) {
+      if (offsets[id] == offsets[id + 1]) {
+        builder.add(nodes.get(id));
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return every node in the graph, where each node appears after all of the nodes it depends
+   *     on. This is the order in which an {@link AbstractBottomUpTraversal} visits the graph.
+   */
+  public ImmutableList<T> getNodesInTopologicalOrder() {
+    return nodes;
+  }
+
+  /**
+   * @return {@code roots} and every node that they transitively depend on, in topological order.
+   */
+  public ImmutableList<T> findTransitiveOutgoingNodes(Iterable<? extends T> roots) {
+    return findReachableNodes(roots, outgoingOffsets, outgoingEdges);
+  }
+
+  /**
+   * @return {@code roots} and every node that transitively depends on any of them, in topological
+   *     order.
+   */
+  public ImmutableList<T> findTransitiveIncomingNodes(Iterable<? extends T> roots) {
+    return findReachableNodes(roots, incomingOffsets, incomingEdges);
+  }
+
+  private ImmutableList<T> findReachableNodes(Iterable<? extends T> roots,
+      int[] offsets,
+      int[] edges) {
+    BitSet reached = new BitSet(nodes.size());
+    int[] stack = new int[nodes.size()];
+    int stackSize = 0;
+    for (T root : roots) {
+      Integer id = nodeIds.get(root);
+      Preconditions.checkArgument(id != null, "%s is not in the graph.", root);
+      if (!reached.get(id)) {
+        reached.set(id);
+        stack[stackSize++] = id;
+      }
+    }
+
+    // Each node is pushed at most once, so the stack can never hold more than every node.
+    while (stackSize > 0) {
+      int id = stack[--stackSize];
+      for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+        int next = edges[i];
+        if (!reached.get(next)) {
+          reached.set(next);
+          stack[stackSize++] = next;
+        }
+      }
+    }
+
+    ImmutableList.Builder<T> builder = ImmutableList.builder();
+    for (int id = reached.nextSetBit(0); id >= 0; id = reached.nextSetBit(id + 1)) {
+      builder.add(nodes.get(id));
+    }
+    return builder.build();
   }
 
   public String toDebugString() {
     StringBuilder builder = new StringBuilder();
-    builder.append("Number of nodes: " + graph.getNodes().size() + "\n");
-    for (T node : graph.getNodes()) {
-      for (T sink : graph.getOutgoingNodesFor(node)) {
-        builder.append(String.format("%s => %s\n", node, sink));
+    builder.append("Number of nodes: " + nodes.size() + "\n");
+    for (int id = 0; id < nodes.size(); id++) {
+      for (int i = outgoingOffsets[id]; i < outgoingOffsets[id + 1]; i++) {
+        builder.append(String.format("%s => %s\n", nodes.get(id), nodes.get(outgoingEdges[i])));
       }
     }
     return builder.toString();
@@ -62,11 +228,11 @@ public class DefaultImmutableDirectedAcyclicGraph<T> implements ImmutableDirecte
 
   /** @return the number of nodes in the graph */
   public int getNodeCount() {
-    return graph.getNodeCount();
+    return nodes.size();
   }
 
   /** @return an unmodifiable view of the nodes in this graph */
   public Iterable<T> getNodes() {
-    return graph.getNodes();
+    return nodes;
   }
 }
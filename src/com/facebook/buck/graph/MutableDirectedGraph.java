@@ -156,6 +156,16 @@ public final class MutableDirectedGraph<T> {
     return ImmutableSet.copyOf(incomingEdges.get(sink));
   }
 
+  /** @return an unmodifiable view of the sinks of the edges out of {@code source} */
+  Set<T> getOutgoingNodesView(T source) {
+    return Collections.unmodifiableSet(outgoingEdges.get(source));
+  }
+
+  /** @return an unmodifiable view of the sources of the edges into {@code sink} */
+  Set<T> getIncomingNodesView(T sink) {
+    return Collections.unmodifiableSet(incomingEdges.get(sink));
+  }
+
   public boolean hasIncomingEdges(T node) {
     Preconditions.checkNotNull(node);
     return this.incomingEdges.containsKey(node);
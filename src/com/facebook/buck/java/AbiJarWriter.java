@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.rules.Sha1HashCode;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+
+/**
+ * Strips the classes in a jar down to what javac needs in order to compile against them: the
+ * non-private members, with their signatures, annotations and constant values, but without method
+ * bodies, debug information or source file names. Local and anonymous classes are dropped, as
+ * nothing outside the jar can refer to them. Resources are copied as they are, as annotation
+ * processors may read them from the classpath.
+ * <p>
+ * A jar that registers services in {@code META-INF/services} may contain annotation processors,
+ * which javac discovers on the classpath and runs, so its classes are copied as they are too.
+ * <p>
+ * The stripped classes are written to an "ABI jar", and hashed into an ABI key that only changes
+ * when the ABI of the jar does. The ABI jar is much smaller than the original, so it is also
+ * cheaper for javac to read.
+ */
+class AbiJarWriter {
+
+  /** Entries are given a fixed time so that the ABI jar only depends on the ABI. */
+  private static final long ENTRY_TIME = 0;
+
+  private static final String SERVICES_DIRECTORY = "META-INF/services/";
+
+  private AbiJarWriter() {}
+
+  /**
+   * Writes the ABI of the classes in {@code jar}, along with its resources, to {@code abiJar}.
+   * @return the ABI key of {@code jar}.
+   */
+  static Sha1HashCode write(File jar, File abiJar) throws IOException {
+    // Entries are sorted so that the output does not depend on the order of the input jar.
+    SortedMap<String, byte[]> abiEntries = Maps.newTreeMap();
+    try (ZipFile zipFile = new ZipFile(jar)) {
+      boolean shouldStripClasses = !registersServices(zipFile);
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+           entries.hasMoreElements(); ) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.isDirectory()) {
+          continue;
+        }
+        try (InputStream input = zipFile.getInputStream(entry)) {
+          if (!shouldStripClasses || !entry.getName().endsWith(".class")) {
+            abiEntries.put(entry.getName(), ByteStreams.toByteArray(input));
+            continue;
+          }
+          Optional<byte[]> abiClass = stripClass(input);
+          if (abiClass.isPresent()) {
+            abiEntries.put(entry.getName(), abiClass.get());
+          }
+        }
+      }
+    }
+
+    Hasher hasher = Hashing.sha1().newHasher();
+    try (CustomZipOutputStream output = ZipOutputStreams.newOutputStream(abiJar)) {
+      for (Map.Entry<String, byte[]> abiEntry : abiEntries.entrySet()) {
+        hasher.putString(abiEntry.getKey(), Charsets.UTF_8);
+        hasher.putInt(abiEntry.getValue().length);
+        hasher.putBytes(abiEntry.getValue());
+
+        ZipEntry entry = new ZipEntry(abiEntry.getKey());
+        entry.setTime(ENTRY_TIME);
+        output.putNextEntry(entry);
+        output.write(abiEntry.getValue());
+        output.closeEntry();
+      }
+    }
+    return new Sha1HashCode(hasher.hash().toString());
+  }
+
+  /**
+   * @return true if {@code zipFile} registers any services, such as annotation processors, whose
+   *     classes javac may load and run.
+   */
+  private static boolean registersServices(ZipFile zipFile) {
+    for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+         entries.hasMoreElements(); ) {
+      ZipEntry entry = entries.nextElement();
+      if (!entry.isDirectory() && entry.getName().startsWith(SERVICES_DIRECTORY)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param classFile the contents of a class file. The caller is responsible for closing it.
+   * @return the class file stripped down to its ABI, or {@link Optional#absent()} if it is a local
+   *     or anonymous class.
+   */
+  static Optional<byte[]> stripClass(InputStream classFile) throws IOException {
+    ClassReader reader = new ClassReader(ByteStreams.toByteArray(classFile));
+    ClassWriter writer = new ClassWriter(0);
+    AbiClassVisitor visitor = new AbiClassVisitor(writer);
+    reader.accept(visitor,
+        ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    if (visitor.isLocalOrAnonymous) {
+      return Optional.absent();
+    }
+    return Optional.of(writer.toByteArray());
+  }
+
+  private static class AbiClassVisitor extends ClassVisitor {
+
+    @Nullable
+    private String className;
+    private boolean isLocalOrAnonymous;
+
+    private AbiClassVisitor(ClassVisitor delegate) {
+      super(Opcodes.ASM4, delegate);
+    }
+
+    @Override
+    public void visit(int version,
+        int access,
+        String name,
+        String signature,
+        String superName,
+        String[] interfaces) {
+      this.className = name;
+      super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public void visitSource(String source, String debug) {
+      // The name of the source file is not part of the ABI.
+    }
+
+    @Override
+    public void visitOuterClass(String owner, String name, String desc) {
+      // Only local and anonymous classes have an enclosing method, and those are dropped.
+    }
+
+    @Override
+    public void visitInnerClass(String name, String outerName, String innerName, int access) {
+      // Local and anonymous classes have no outer class.
+      if (outerName == null) {
+        if (name.equals(className)) {
+          isLocalOrAnonymous = true;
+        }
+        return;
+      }
+      super.visitInnerClass(name, outerName, innerName, access);
+    }
+
+    @Override
+    @Nullable
+    public FieldVisitor visitField(int access,
+        String name,
+        String desc,
+        String signature,
+        Object value) {
+      if ((access & Opcodes.ACC_PRIVATE) != 0) {
+        return null;
+      }
+      return super.visitField(access, name, desc, signature, value);
+    }
+
+    @Override
+    @Nullable
+    public MethodVisitor visitMethod(int access,
+        String name,
+        String desc,
+        String signature,
+        String[] exceptions) {
+      if ((access & Opcodes.ACC_PRIVATE) != 0) {
+        return null;
+      }
+      return super.visitMethod(access, name, desc, signature, exceptions);
+    }
+  }
+}
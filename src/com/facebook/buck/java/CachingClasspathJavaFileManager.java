@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.List;
+import java.util.Set;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * A {@link javax.tools.JavaFileManager} that lists the contents of the jars on the classpath using
+ * the shared {@link ClasspathArchiveCache}, rather than having javac open and index each one.
+ * <p>
+ * The classpath must still be passed to javac with {@code -classpath}: directories on the
+ * classpath, and everything other than listing packages, such as loading annotation processors
+ * from the classpath, are handled by the {@link StandardJavaFileManager} that this wraps.
+ * <p>
+ * As every class that javac loads from the classpath is listed through this manager, it also
+ * records which classes were read from which classpath entry. See {@link #getClassesRead()}.
+ * Similarly, it records the classes that javac writes. See {@link #getClassesWritten()}.
+ */
+class CachingClasspathJavaFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+  /** The classpath entries as they were passed to javac, used to report what was read. */
+  private final ImmutableList<String> classpathEntryNames;
+  private final ImmutableList<File> classpathEntries;
+  private final ClasspathArchiveCache cache;
+
+  /** Binary names of the classes that javac has read, keyed by classpath entry name. */
+  private final SetMultimap<String, String> classesRead = LinkedHashMultimap.create();
+
+  /** Binary names of the classes that javac has written, keyed by the source of each. */
+  private final SetMultimap<FileObject, String> classesWritten = LinkedHashMultimap.create();
+
+  /**
+   * The archive for each classpath entry that is a jar, or {@code null} for directories and
+   * entries that do not exist. Populated when the classpath is first listed.
+   */
+  private List<ClasspathArchive> archives;
+
+  /** Set if a jar could not be read, in which case listing is left to javac. */
+  private boolean useStandardListing;
+
+  /**
+   * @param classpathEntries the classpath entries, in the form that they were passed to javac.
+   * @param toFile resolves a classpath entry to the file or directory that it refers to.
+   */
+  CachingClasspathJavaFileManager(StandardJavaFileManager fileManager,
+      Iterable<String> classpathEntries,
+      Function<String, File> toFile,
+      ClasspathArchiveCache cache) {
+    super(fileManager);
+    this.classpathEntryNames = ImmutableList.copyOf(classpathEntries);
+    this.classpathEntries = ImmutableList.copyOf(
+        Iterables.transform(classpathEntryNames, toFile));
+    this.cache = Preconditions.checkNotNull(cache);
+  }
+
+  /**
+   * @return the binary names of the classes that javac read from the classpath, keyed by the
+   *     classpath entry that each was read from, or {@link Optional#absent()} if this could not be
+   *     tracked because listing the classpath was left to javac.
+   */
+  Optional<ImmutableSetMultimap<String, String>> getClassesRead() {
+    if (useStandardListing) {
+      return Optional.absent();
+    }
+    return Optional.of(ImmutableSetMultimap.copyOf(classesRead));
+  }
+
+  /**
+   * @return the binary names of the classes that javac wrote, keyed by the compilation unit that
+   *     each was generated from.
+   */
+  ImmutableSetMultimap<FileObject, String> getClassesWritten() {
+    return ImmutableSetMultimap.copyOf(classesWritten);
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForOutput(Location location,
+      String className,
+      JavaFileObject.Kind kind,
+      FileObject sibling) throws IOException {
+    if (location == StandardLocation.CLASS_OUTPUT
+        && kind == JavaFileObject.Kind.CLASS
+        && sibling != null) {
+      classesWritten.put(sibling, className);
+    }
+    return super.getJavaFileForOutput(location, className, kind, sibling);
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(Location location,
+      String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse) throws IOException {
+    if (location != StandardLocation.CLASS_PATH || !acquireArchives()) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+
+    // Entries are listed in classpath order, as javac uses the first class that it finds.
+    List<JavaFileObject> files = Lists.newArrayList();
+    List<JavaFileObject> entryFiles = Lists.newArrayList();
+    for (int i = 0; i < classpathEntries.size(); i++) {
+      ClasspathArchive archive = archives.get(i);
+      if (archive != null) {
+        archive.list(packageName, kinds, recurse, entryFiles);
+      } else {
+        listDirectory(classpathEntries.get(i), packageName, kinds, recurse, entryFiles);
+      }
+
+      for (JavaFileObject file : entryFiles) {
+        files.add(new TrackedJavaFileObject(file, classpathEntryNames.get(i)));
+      }
+      entryFiles.clear();
+    }
+    return files;
+  }
+
+  private void listDirectory(File classpathEntry,
+      String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse,
+      List<JavaFileObject> files) {
+    File packageDir = new File(classpathEntry, packageName.replace('.', File.separatorChar));
+    File[] children = packageDir.listFiles();
+    if (children == null) {
+      return;
+    }
+
+    for (File child : children) {
+      if (child.isDirectory()) {
+        if (recurse) {
+          String childPackage = packageName.isEmpty()
+              ? child.getName()
+              : packageName + "." + child.getName();
+          listDirectory(classpathEntry, childPackage, kinds, recurse, files);
+        }
+      } else {
+        for (JavaFileObject file : fileManager.getJavaFileObjects(child)) {
+          if (kinds.contains(file.getKind())) {
+            files.add(file);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return {@code false} if one of the jars on the classpath could not be read, in which case
+   *     javac is left to report the problem.
+   */
+  private boolean acquireArchives() throws IOException {
+    if (archives != null || useStandardListing) {
+      return !useStandardListing;
+    }
+
+    List<ClasspathArchive> acquired = Lists.newArrayListWithCapacity(classpathEntries.size());
+    try {
+      for (File entry : classpathEntries) {
+        acquired.add(entry.isFile() ? cache.acquire(entry.toPath()) : null);
+      }
+    } catch (IOException e) {
+      useStandardListing = true;
+      releaseAll(acquired);
+      return false;
+    }
+    archives = acquired;
+    return true;
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    file = unwrap(file);
+    if (file instanceof ClasspathArchive.ArchiveEntryJavaFileObject) {
+      return ((ClasspathArchive.ArchiveEntryJavaFileObject) file).getBinaryName();
+    }
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    a = unwrap(a);
+    b = unwrap(b);
+    if (a instanceof ClasspathArchive.ArchiveEntryJavaFileObject
+        || b instanceof ClasspathArchive.ArchiveEntryJavaFileObject) {
+      return a.equals(b);
+    }
+    return super.isSameFile(a, b);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (archives != null) {
+        releaseAll(archives);
+        archives = null;
+      }
+    }
+  }
+
+  private static <T extends FileObject> T unwrap(T file) {
+    if (file instanceof TrackedJavaFileObject) {
+      @SuppressWarnings("unchecked")
+      T delegate = (T) ((TrackedJavaFileObject) file).getDelegate();
+      return delegate;
+    }
+    return file;
+  }
+
+  private static void releaseAll(List<ClasspathArchive> archives) throws IOException {
+    for (ClasspathArchive archive : archives) {
+      if (archive != null) {
+        archive.release();
+      }
+    }
+  }
+
+  /**
+   * A file on the classpath that records that it was read when javac opens it. javac lists far
+   * more classes than it reads, so merely being listed does not count as being used.
+   */
+  private class TrackedJavaFileObject extends ForwardingJavaFileObject<JavaFileObject> {
+
+    private final String classpathEntry;
+
+    TrackedJavaFileObject(JavaFileObject fileObject, String classpathEntry) {
+      super(fileObject);
+      this.classpathEntry = classpathEntry;
+    }
+
+    JavaFileObject getDelegate() {
+      return fileObject;
+    }
+
+    private void recordRead() {
+      classesRead.put(classpathEntry, inferBinaryName(StandardLocation.CLASS_PATH, fileObject));
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      recordRead();
+      return super.openInputStream();
+    }
+
+    @Override
+    public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+      recordRead();
+      return super.openReader(ignoreEncodingErrors);
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+      recordRead();
+      return super.getCharContent(ignoreEncodingErrors);
+    }
+
+    @Override
+    public String toString() {
+      return fileObject.toString();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.RemappingClassAdapter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * The classes that a class file refers to, as read from its bytecode.
+ * <p>
+ * This covers every class named in the class file: supertypes, member signatures, annotations and
+ * the instructions of method bodies. It cannot cover compile-time constants, which javac inlines
+ * into the classes that use them, so {@link #declaresConstants()} reports whether the class
+ * defines any.
+ */
+class ClassFileDependencies {
+
+  private final ImmutableSortedSet<String> referencedClasses;
+  private final boolean declaresConstants;
+
+  private ClassFileDependencies(ImmutableSortedSet<String> referencedClasses,
+      boolean declaresConstants) {
+    this.referencedClasses = Preconditions.checkNotNull(referencedClasses);
+    this.declaresConstants = declaresConstants;
+  }
+
+  /**
+   * @param classFile the contents of a class file. The caller is responsible for closing it.
+   */
+  static ClassFileDependencies read(InputStream classFile) throws IOException {
+    final Set<String> referencedClasses = Sets.newHashSet();
+    Remapper recordingRemapper = new Remapper() {
+      @Override
+      public String map(String internalName) {
+        referencedClasses.add(internalName.replace('/', '.'));
+        return internalName;
+      }
+    };
+
+    ConstantDetectingClassVisitor visitor = new ConstantDetectingClassVisitor();
+    new ClassReader(classFile).accept(
+        new RemappingClassAdapter(visitor, recordingRemapper),
+        ClassReader.SKIP_FRAMES);
+    return new ClassFileDependencies(
+        ImmutableSortedSet.copyOf(referencedClasses),
+        visitor.declaresConstants);
+  }
+
+  /**
+   * @return the binary names of the classes that this class refers to, including itself.
+   */
+  ImmutableSortedSet<String> getReferencedClasses() {
+    return referencedClasses;
+  }
+
+  /**
+   * @return whether this class declares a field with a compile-time constant value.
+   */
+  boolean declaresConstants() {
+    return declaresConstants;
+  }
+
+  /**
+   * {@link RemappingClassAdapter} only visits the parts of a class for which the visitor that it
+   * delegates to returns a visitor, so this returns a visitor for every part.
+   */
+  private static class ConstantDetectingClassVisitor extends ClassVisitor {
+
+    private static final AnnotationVisitor ANNOTATION_VISITOR =
+        new AnnotationVisitor(Opcodes.ASM4) {
+          @Override
+          public AnnotationVisitor visitAnnotation(String name, String desc) {
+            return this;
+          }
+
+          @Override
+          public AnnotationVisitor visitArray(String name) {
+            return this;
+          }
+        };
+
+    private static final FieldVisitor FIELD_VISITOR = new FieldVisitor(Opcodes.ASM4) {
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        return ANNOTATION_VISITOR;
+      }
+    };
+
+    private static final MethodVisitor METHOD_VISITOR = new MethodVisitor(Opcodes.ASM4) {
+      @Override
+      public AnnotationVisitor visitAnnotationDefault() {
+        return ANNOTATION_VISITOR;
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        return ANNOTATION_VISITOR;
+      }
+
+      @Override
+      public AnnotationVisitor visitParameterAnnotation(int parameter,
+          String desc,
+          boolean visible) {
+        return ANNOTATION_VISITOR;
+      }
+    };
+
+    private boolean declaresConstants;
+
+    ConstantDetectingClassVisitor() {
+      super(Opcodes.ASM4);
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      return ANNOTATION_VISITOR;
+    }
+
+    @Override
+    public FieldVisitor visitField(int access,
+        String name,
+        String desc,
+        String signature,
+        Object value) {
+      // Only static final fields initialized with a constant expression have a ConstantValue.
+      if (value != null) {
+        declaresConstants = true;
+      }
+      return FIELD_VISITOR;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access,
+        String name,
+        String desc,
+        String signature,
+        String[] exceptions) {
+      return METHOD_VISITOR;
+    }
+  }
+}
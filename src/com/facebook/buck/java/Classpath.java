@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Sets;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A persistent set of classpath entries, keyed by the {@link JavaLibraryRule} that contributes
+ * them.
+ * <p>
+ * A rule's transitive classpath is its own entries plus the transitive classpaths of its deps.
+ * Rather than copying all of those entries into a new multimap for every rule in the graph, a
+ * {@link Classpath} refers to the classpaths that it includes, so the classpath of each library is
+ * stored once and shared by everything that depends on it. The flattened multimap is only built
+ * when {@link #getEntries()} is first called, which for rules whose outputs are fetched from the
+ * cache is never.
+ * <p>
+ * Instances are hash-consed, so two rules with the same deps and entries share a single instance,
+ * and with it the flattened multimap. Rules are compared by identity rather than by
+ * {@link Object#equals(Object)}, which only compares build targets: the interner outlives a single
+ * action graph, and a classpath from an earlier graph must never be handed out with that graph's
+ * rules in it. Callers that only need to walk the entries once, such as
+ * javac's classpath, should use {@link #visitEntries(Visitor)}, which builds no multimap at all.
+ */
+@Immutable
+public final class Classpath {
+
+  /**
+   * Receives the entries of a {@link Classpath}, one at a time.
+   */
+  public interface Visitor {
+    public void visit(JavaLibraryRule rule, String entry);
+  }
+
+  private static final Interner<Classpath> INTERNER = Interners.newWeakInterner();
+
+  public static final Classpath EMPTY = new Classpath(
+      ImmutableList.<Classpath>of(),
+      ImmutableSetMultimap.<JavaLibraryRule, String>of()).intern();
+
+  private final ImmutableList<Classpath> includes;
+  private final ImmutableSetMultimap<JavaLibraryRule, String> ownEntries;
+  private final int hashCode;
+
+  @Nullable
+  private volatile ImmutableSetMultimap<JavaLibraryRule, String> entries;
+
+  private Classpath(ImmutableList<Classpath> includes,
+      ImmutableSetMultimap<JavaLibraryRule, String> ownEntries) {
+    this.includes = includes;
+    this.ownEntries = ownEntries;
+    // Includes are always interned, so their identity hash codes are consistent with equals().
+    int includesHashCode = 1;
+    for (Classpath include : includes) {
+      includesHashCode = 31 * includesHashCode + System.identityHashCode(include);
+    }
+    int ownEntriesHashCode = 1;
+    for (Map.Entry<JavaLibraryRule, String> entry : ownEntries.entries()) {
+      ownEntriesHashCode = 31 * ownEntriesHashCode
+          + Objects.hashCode(System.identityHashCode(entry.getKey()), entry.getValue());
+    }
+    this.hashCode = Objects.hashCode(includesHashCode, ownEntriesHashCode);
+  }
+
+  /**
+   * @return a classpath with the entries of each of {@code includes}, in order, followed by
+   *     {@code ownEntries}.
+   */
+  public static Classpath of(Iterable<Classpath> includes,
+      ImmutableSetMultimap<JavaLibraryRule, String> ownEntries) {
+    Preconditions.checkNotNull(ownEntries);
+    ImmutableList.Builder<Classpath> nonEmptyIncludes = ImmutableList.builder();
+    for (Classpath include : includes) {
+      if (include != EMPTY) {
+        nonEmptyIncludes.add(include);
+      }
+    }
+    ImmutableList<Classpath> filteredIncludes = nonEmptyIncludes.build();
+
+    // Avoid creating a new level in the DAG that would just forward to an existing one.
+    if (ownEntries.isEmpty()) {
+      if (filteredIncludes.isEmpty()) {
+        return EMPTY;
+      } else if (filteredIncludes.size() == 1) {
+        return filteredIncludes.get(0);
+      }
+    }
+
+    return new Classpath(filteredIncludes, ownEntries).intern();
+  }
+
+  public static Classpath of(ImmutableSetMultimap<JavaLibraryRule, String> ownEntries) {
+    return of(ImmutableList.<Classpath>of(), ownEntries);
+  }
+
+  private Classpath intern() {
+    return INTERNER.intern(this);
+  }
+
+  /**
+   * @return every entry in this classpath. The multimap is built on the first call and then
+   *     reused, both by this classpath and by any that include it.
+   */
+  public ImmutableSetMultimap<JavaLibraryRule, String> getEntries() {
+    ImmutableSetMultimap<JavaLibraryRule, String> result = entries;
+    if (result == null) {
+      ImmutableSetMultimap.Builder<JavaLibraryRule, String> builder =
+          ImmutableSetMultimap.builder();
+      addEntriesTo(builder, Sets.<Classpath>newIdentityHashSet());
+      result = builder.build();
+      entries = result;
+    }
+    return result;
+  }
+
+  /**
+   * Passes every entry in this classpath to {@code visitor}, in the same order as
+   * {@link #getEntries()}. Unlike {@link #getEntries()}, this neither builds nor memoizes a
+   * flattened multimap, so the only memory that it retains is that of the shared DAG.
+   */
+  public void visitEntries(Visitor visitor) {
+    visitEntries(visitor, Sets.<Classpath>newIdentityHashSet());
+  }
+
+  private void visitEntries(Visitor visitor, Set<Classpath> visited) {
+    if (!visited.add(this)) {
+      return;
+    }
+
+    for (Classpath include : includes) {
+      include.visitEntries(visitor, visited);
+    }
+    for (Map.Entry<JavaLibraryRule, String> entry : ownEntries.entries()) {
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Adds the entries of this classpath to {@code builder} in the same order as if every include
+   * had been flattened into a multimap of its own. Skipping an include that has already been
+   * visited only drops entries that are already in {@code builder}.
+   */
+  private void addEntriesTo(ImmutableSetMultimap.Builder<JavaLibraryRule, String> builder,
+      Set<Classpath> visited) {
+    if (!visited.add(this)) {
+      return;
+    }
+
+    ImmutableSetMultimap<JavaLibraryRule, String> flattened = entries;
+    if (flattened != null) {
+      builder.putAll(flattened);
+      return;
+    }
+
+    for (Classpath include : includes) {
+      include.addEntriesTo(builder, visited);
+    }
+    builder.putAll(ownEntries);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Classpath)) {
+      return false;
+    }
+
+    Classpath that = (Classpath) obj;
+    if (this.hashCode != that.hashCode
+        || this.includes.size() != that.includes.size()
+        || this.ownEntries.size() != that.ownEntries.size()) {
+      return false;
+    }
+    for (int i = 0; i < includes.size(); i++) {
+      if (this.includes.get(i) != that.includes.get(i)) {
+        return false;
+      }
+    }
+
+    // Rules with the same build target from different action graphs must not be confused.
+    Iterator<Map.Entry<JavaLibraryRule, String>> thoseEntries =
+        that.ownEntries.entries().iterator();
+    for (Map.Entry<JavaLibraryRule, String> entry : this.ownEntries.entries()) {
+      Map.Entry<JavaLibraryRule, String> thatEntry = thoseEntries.next();
+      if (entry.getKey() != thatEntry.getKey() || !entry.getValue().equals(thatEntry.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * An open jar on the classpath, along with an index of its entries by package, which can be
+ * shared by any number of concurrent compilations.
+ * <p>
+ * The archive is reference counted: {@link ClasspathArchiveCache} holds one reference for as long
+ * as the archive is up to date, and each compilation holds one while it runs. The underlying
+ * {@link ZipFile} is closed once the last reference is released.
+ */
+@ThreadSafe
+class ClasspathArchive {
+
+  private final File file;
+  private final Object fileKey;
+  private final long lastModifiedMillis;
+  private final long size;
+  private final ZipFile zipFile;
+
+  /** Maps a package directory, such as {@code com/example}, to the entries directly inside it. */
+  private final ImmutableListMultimap<String, ZipEntry> entriesByPackage;
+
+  @GuardedBy("this")
+  private int referenceCount;
+
+  private ClasspathArchive(Path path, BasicFileAttributes attributes, ZipFile zipFile) {
+    this.file = path.toFile();
+    this.fileKey = attributes.fileKey();
+    this.lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+    this.size = attributes.size();
+    this.zipFile = zipFile;
+    this.referenceCount = 1;
+
+    ImmutableListMultimap.Builder<String, ZipEntry> builder = ImmutableListMultimap.builder();
+    for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+      ZipEntry entry = entries.nextElement();
+      if (entry.isDirectory()) {
+        continue;
+      }
+      String name = entry.getName();
+      int lastSlash = name.lastIndexOf('/');
+      builder.put(lastSlash < 0 ? "" : name.substring(0, lastSlash), entry);
+    }
+    this.entriesByPackage = builder.build();
+  }
+
+  /**
+   * Opens and indexes the archive at {@code path}. The caller owns the only reference to the
+   * returned archive.
+   */
+  static ClasspathArchive open(Path path, BasicFileAttributes attributes) throws IOException {
+    return new ClasspathArchive(path, attributes, new ZipFile(path.toFile()));
+  }
+
+  /**
+   * @return whether this archive was opened from a file with the specified attributes. Buck
+   *     rewrites a library's jar whenever the library is rebuilt, which changes at least one of
+   *     them.
+   */
+  boolean isUpToDate(BasicFileAttributes attributes) {
+    return Objects.equal(fileKey, attributes.fileKey())
+        && lastModifiedMillis == attributes.lastModifiedTime().toMillis()
+        && size == attributes.size();
+  }
+
+  synchronized void retain() {
+    Preconditions.checkState(referenceCount > 0, "%s has already been closed.", file);
+    referenceCount++;
+  }
+
+  synchronized void release() throws IOException {
+    Preconditions.checkState(referenceCount > 0, "%s has already been closed.", file);
+    referenceCount--;
+    if (referenceCount == 0) {
+      zipFile.close();
+    }
+  }
+
+  /**
+   * Adds the entries of this archive that are in {@code packageName} and have one of the specified
+   * {@code kinds} to {@code files}, as {@link javax.tools.JavaFileManager#list} would.
+   */
+  void list(String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse,
+      List<JavaFileObject> files) {
+    String packageDir = packageName.replace('.', '/');
+    if (recurse) {
+      String packageDirPrefix = packageDir.isEmpty() ? "" : packageDir + "/";
+      for (Map.Entry<String, ZipEntry> entry : entriesByPackage.entries()) {
+        String dir = entry.getKey();
+        if (dir.equals(packageDir) || dir.startsWith(packageDirPrefix)) {
+          addIfKindMatches(entry.getValue(), kinds, files);
+        }
+      }
+    } else {
+      for (ZipEntry entry : entriesByPackage.get(packageDir)) {
+        addIfKindMatches(entry, kinds, files);
+      }
+    }
+  }
+
+  private void addIfKindMatches(ZipEntry entry,
+      Set<JavaFileObject.Kind> kinds,
+      List<JavaFileObject> files) {
+    JavaFileObject.Kind kind = getKind(entry.getName());
+    if (kinds.contains(kind)) {
+      files.add(new ArchiveEntryJavaFileObject(this, entry, kind));
+    }
+  }
+
+  private static final ImmutableSet<JavaFileObject.Kind> KINDS_WITH_EXTENSIONS = ImmutableSet.of(
+      JavaFileObject.Kind.CLASS,
+      JavaFileObject.Kind.SOURCE,
+      JavaFileObject.Kind.HTML);
+
+  private static JavaFileObject.Kind getKind(String name) {
+    for (JavaFileObject.Kind kind : KINDS_WITH_EXTENSIONS) {
+      if (name.endsWith(kind.extension)) {
+        return kind;
+      }
+    }
+    return JavaFileObject.Kind.OTHER;
+  }
+
+  /**
+   * A class or source file in a {@link ClasspathArchive}.
+   */
+  static class ArchiveEntryJavaFileObject extends SimpleJavaFileObject {
+
+    private final ClasspathArchive archive;
+    private final ZipEntry entry;
+
+    private ArchiveEntryJavaFileObject(ClasspathArchive archive,
+        ZipEntry entry,
+        JavaFileObject.Kind kind) {
+      // SimpleJavaFileObject rejects opaque URIs such as jar:file:/foo.jar!/Foo.class, so it is
+      // given the same kind of URI that ZipEntryJavaFileObject uses, and toUri() is overridden.
+      super(createUri("string", "///" + entry.getName()), kind);
+      this.archive = archive;
+      this.entry = entry;
+    }
+
+    @Override
+    public URI toUri() {
+      return createUri("jar", "file:" + archive.file.getAbsolutePath() + "!/" + entry.getName());
+    }
+
+    private static URI createUri(String scheme, String schemeSpecificPart) {
+      try {
+        // This constructor quotes any characters in the entry name that are not legal in a URI.
+        return new URI(scheme, schemeSpecificPart, /* fragment */ null);
+      } catch (URISyntaxException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /** @return the binary name of the class in this entry, such as {@code com.example.Foo$Bar}. */
+    String getBinaryName() {
+      String name = entry.getName();
+      return name.substring(0, name.length() - getKind().extension.length()).replace('/', '.');
+    }
+
+    @Override
+    public String getName() {
+      // This matches the format that javac uses in its own diagnostics.
+      return archive.file.getPath() + "(" + entry.getName() + ")";
+    }
+
+    @Override
+    public boolean isNameCompatible(String simpleName, JavaFileObject.Kind kind) {
+      String name = entry.getName();
+      int lastSlash = name.lastIndexOf('/');
+      return getKind() == kind && name.substring(lastSlash + 1).equals(simpleName + kind.extension);
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      return archive.zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+      try (InputStream inputStream = openInputStream()) {
+        return new String(ByteStreams.toByteArray(inputStream), Charsets.UTF_8);
+      }
+    }
+
+    @Override
+    public long getLastModified() {
+      return entry.getTime();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ArchiveEntryJavaFileObject)) {
+        return false;
+      }
+      ArchiveEntryJavaFileObject that = (ArchiveEntryJavaFileObject) obj;
+      return this.archive == that.archive && this.entry.getName().equals(that.entry.getName());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(archive.file, entry.getName());
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Keeps the jars on javac's classpath open and indexed across compilations.
+ * <p>
+ * Without this, every {@link JavacInMemoryStep} has javac open and index each jar on its classpath
+ * from scratch, and the classpath of a library deep in an Android app can have hundreds of jars.
+ * There is one cache per JVM, so when running as a daemon the indexes also survive from one build
+ * to the next.
+ * <p>
+ * Jars are checked against the file system each time they are acquired, rather than being
+ * invalidated by the file watcher, as the watcher ignores {@code buck-out}, which is where most of
+ * the jars on a classpath are written.
+ */
+@ThreadSafe
+class ClasspathArchiveCache {
+
+  private static final ClasspathArchiveCache INSTANCE = new ClasspathArchiveCache();
+
+  @GuardedBy("this")
+  private final Map<Path, ClasspathArchive> archives = Maps.newHashMap();
+
+  static ClasspathArchiveCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the up-to-date archive for {@code path}, which the caller must
+   *     {@link ClasspathArchive#release() release} once it is no longer needed.
+   */
+  ClasspathArchive acquire(Path path) throws IOException {
+    path = path.toAbsolutePath().normalize();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    synchronized (this) {
+      ClasspathArchive archive = archives.get(path);
+      if (archive != null && archive.isUpToDate(attributes)) {
+        archive.retain();
+        return archive;
+      }
+    }
+
+    // Open the archive without holding the lock, as indexing a large jar takes a while.
+    ClasspathArchive opened = ClasspathArchive.open(path, attributes);
+    ClasspathArchive evicted;
+    synchronized (this) {
+      ClasspathArchive current = archives.get(path);
+      if (current != null && current.isUpToDate(attributes)) {
+        // Another compilation opened the same jar in the meantime.
+        current.retain();
+        evicted = opened;
+        opened = current;
+      } else {
+        opened.retain();
+        archives.put(path, opened);
+        evicted = current;
+      }
+    }
+
+    // Compilations that are still using an evicted archive keep it open until they finish.
+    if (evicted != null) {
+      evicted.release();
+    }
+    return opened;
+  }
+}
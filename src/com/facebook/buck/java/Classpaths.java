@@ -17,9 +17,15 @@
 package com.facebook.buck.java;
 
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.Sha1HashCode;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import java.util.Set;
+import java.util.SortedSet;
 
 public class Classpaths {
   private Classpaths() {
@@ -43,14 +49,48 @@ public class Classpaths {
    * A's classpath.
    */
   public static ImmutableSetMultimap<JavaLibraryRule, String> getClasspathEntries(Set<BuildRule> deps) {
-    final ImmutableSetMultimap.Builder<JavaLibraryRule, String> classpathEntries =
-        ImmutableSetMultimap.builder();
+    return getClasspath(deps).getEntries();
+  }
+
+  /**
+   * @return the same entries as {@link #getClasspathEntries(Set)}, as a {@link Classpath} that
+   *     shares structure with the transitive classpaths of {@code deps}.
+   */
+  public static Classpath getClasspath(Set<BuildRule> deps) {
+    ImmutableList.Builder<Classpath> classpaths = ImmutableList.builder();
     for (BuildRule dep : deps) {
       if (dep instanceof JavaLibraryRule) {
         JavaLibraryRule libraryRule = (JavaLibraryRule)dep;
-        classpathEntries.putAll(libraryRule.getTransitiveClasspathEntries());
+        classpaths.add(libraryRule.getTransitiveClasspath());
       }
     }
-    return classpathEntries.build();
+    return Classpath.of(classpaths.build(), ImmutableSetMultimap.<JavaLibraryRule, String>of());
+  }
+
+  /**
+   * Finds all of the JavaLibraryRules whose output is on the classpath of {@code rule} through
+   * {@code deps} and hashes their ABI keys together. As the ABI keys are computed when the rules
+   * are built, this must not be invoked until {@code deps} have been built.
+   */
+  public static Sha1HashCode getAbiKeyForDeps(BuildRule rule, Set<BuildRule> deps) {
+    SortedSet<JavaLibraryRule> rulesWithAbiToConsider = Sets.newTreeSet();
+    for (BuildRule dep : deps) {
+      if (dep instanceof JavaLibraryRule) {
+        JavaLibraryRule javaRule = (JavaLibraryRule)dep;
+        rulesWithAbiToConsider.addAll(javaRule.getOutputClasspathEntries().keySet());
+      }
+    }
+
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (JavaLibraryRule ruleWithAbiToConsider : rulesWithAbiToConsider) {
+      if (ruleWithAbiToConsider == rule) {
+        continue;
+      }
+
+      Sha1HashCode abiKey = ruleWithAbiToConsider.getAbiKey();
+      hasher.putUnencodedChars(abiKey.getHash());
+    }
+
+    return new Sha1HashCode(hasher.hash().toString());
   }
 }
@@ -55,19 +55,20 @@ import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.Paths;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 import com.google.common.reflect.ClassPath;
 
 import java.io.File;
@@ -76,8 +77,8 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 
 import javax.annotation.Nullable;
 
@@ -118,8 +119,7 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
 
   private final Supplier<ImmutableSetMultimap<JavaLibraryRule, String>> outputClasspathEntriesSupplier;
 
-  private final Supplier<ImmutableSetMultimap<JavaLibraryRule, String>>
-      transitiveClasspathEntriesSupplier;
+  private final Supplier<Classpath> transitiveClasspathSupplier;
 
   private final Supplier<ImmutableSetMultimap<JavaLibraryRule, String>>
       declaredClasspathEntriesSupplier;
@@ -138,6 +138,13 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
   @Nullable
   private Supplier<Sha1HashCode> abiKeySupplier;
 
+  /**
+   * Set once javac has compiled this rule during the current build. From then on, its classes
+   * directory contains the classes that go into its output jar, even if the jar has not been
+   * written yet.
+   */
+  private volatile boolean hasCompiledClassesDir;
+
   /**
    * Function for opening a JAR and returning all symbols that can be referenced from inside of that
    * jar.
@@ -226,28 +233,25 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
           }
         });
 
-    transitiveClasspathEntriesSupplier =
-        Suppliers.memoize(new Supplier<ImmutableSetMultimap<JavaLibraryRule, String>>() {
+    transitiveClasspathSupplier =
+        Suppliers.memoize(new Supplier<Classpath>() {
           @Override
-          public ImmutableSetMultimap<JavaLibraryRule, String> get() {
-            final ImmutableSetMultimap.Builder<JavaLibraryRule, String> classpathEntries =
+          public Classpath get() {
+            Classpath classpathForDeps = Classpaths.getClasspath(getDeps());
+            ImmutableSetMultimap.Builder<JavaLibraryRule, String> ownEntries =
                 ImmutableSetMultimap.builder();
-            ImmutableSetMultimap<JavaLibraryRule, String> classpathEntriesForDeps =
-                Classpaths.getClasspathEntries(getDeps());
-
-            classpathEntries.putAll(classpathEntriesForDeps);
 
             if (DefaultJavaLibraryRule.this.exportDeps) {
-              classpathEntries.putAll(DefaultJavaLibraryRule.this,
-                  classpathEntriesForDeps.values());
+              ownEntries.putAll(DefaultJavaLibraryRule.this,
+                  classpathForDeps.getEntries().values());
             }
 
             // Only add ourselves to the classpath if there's a jar to be built.
             if (outputJar.isPresent()) {
-              classpathEntries.putAll(DefaultJavaLibraryRule.this, getPathToOutputFile());
+              ownEntries.putAll(DefaultJavaLibraryRule.this, getPathToOutputFile());
             }
 
-            return classpathEntries.build();
+            return Classpath.of(ImmutableList.of(classpathForDeps), ownEntries.build());
           }
         });
 
@@ -274,36 +278,84 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
    * @param outputDirectory Directory to write class files to
    * @param transitiveClasspathEntries Classpaths of all transitive dependencies.
    * @param declaredClasspathEntries Classpaths of all declared dependencies.
+   * @param transitiveClasspathEntriesToFingerprint {@code transitiveClasspathEntries}, but with the
+   *     output jars of deps rather than their classes directories.
    * @param javacOptions options to use when compiling code.
    * @param suggestBuildRules Function to convert from missing symbols to the suggested rules.
+   * @param isIncremental whether to recompile only what changed since the previous build.
    * @param commands List of steps to add to.
+   * @param buildableContext records the classpath entries that javac read.
    */
   private void createCommandsForJavac(
       String outputDirectory,
       ImmutableSet<String> transitiveClasspathEntries,
       ImmutableSet<String> declaredClasspathEntries,
+      ImmutableSet<String> transitiveClasspathEntriesToFingerprint,
       JavacOptions javacOptions,
       BuildDependencies buildDependencies,
       Optional<DependencyCheckingJavacStep.SuggestBuildRules> suggestBuildRules,
-      ImmutableList.Builder<Step> commands) {
+      boolean isIncremental,
+      ImmutableList.Builder<Step> commands,
+      final BuildableContext buildableContext) {
     // Make sure that this directory exists because ABI information will be written here.
     Step mkdir = new MakeCleanDirectoryStep(getPathToAbiOutputDir());
     commands.add(mkdir);
 
     // Only run javac if there are .java files to compile.
     if (!getJavaSrcs().isEmpty()) {
-      final JavacInMemoryStep javac = new DependencyCheckingJavacStep(
-          outputDirectory,
-          getJavaSrcs(),
-          transitiveClasspathEntries,
-          declaredClasspathEntries,
-          javacOptions,
-          Optional.of(getPathToAbiOutputFile()),
-          Optional.of(getFullyQualifiedName()),
-          buildDependencies,
-          suggestBuildRules);
+      final JavacInMemoryStep javac;
+      if (isIncremental) {
+        javac = new IncrementalJavacStep(
+            outputDirectory,
+            getJavaSrcs(),
+            transitiveClasspathEntries,
+            declaredClasspathEntries,
+            javacOptions,
+            getPathToAbiOutputFile(),
+            Optional.of(getFullyQualifiedName()),
+            buildDependencies,
+            suggestBuildRules,
+            getPathToIncrementalStateDir(),
+            getAbiKeyForDeps(),
+            transitiveClasspathEntriesToFingerprint);
+      } else {
+        javac = new DependencyCheckingJavacStep(
+            outputDirectory,
+            getJavaSrcs(),
+            transitiveClasspathEntries,
+            declaredClasspathEntries,
+            javacOptions,
+            Optional.of(getPathToAbiOutputFile()),
+            Optional.of(getFullyQualifiedName()),
+            buildDependencies,
+            suggestBuildRules);
+      }
       commands.add(javac);
 
+      commands.add(new AbstractExecutionStep("recording used classpath entries") {
+        @Override
+        public int execute(ExecutionContext context) {
+          Optional<ImmutableSetMultimap<String, String>> classesRead =
+              javac.getClassesReadFromClasspath();
+          if (classesRead.isPresent()) {
+            buildableContext.addMetadata(USED_CLASSPATH_ENTRIES_ON_DISK_METADATA,
+                Joiner.on('\n').join(classesRead.get().keySet()));
+          }
+          return 0;
+        }
+      });
+
+      // The classes directory is complete, so the rules that depend on this one need not wait for
+      // the resources to be copied and the jar to be written before they compile.
+      commands.add(new AbstractExecutionStep("publishing ABI") {
+        @Override
+        public int execute(ExecutionContext context) {
+          hasCompiledClassesDir = true;
+          recordAbiAvailable();
+          return 0;
+        }
+      });
+
       // Create a supplier that extracts the ABI key from javac after it executes.
       setAbiKey(Suppliers.memoize(new Supplier<Sha1HashCode>() {
         @Override
@@ -330,6 +382,18 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
     return String.format("%s/abi", getPathToAbiOutputDir());
   }
 
+  /**
+   * @return the directory in which {@link IncrementalJavacStep} keeps its state between builds.
+   */
+  private String getPathToIncrementalStateDir() {
+    BuildTarget target = getBuildTarget();
+    return String.format(
+        "%s/%slib__%s__incremental",
+        BuckConstant.GEN_DIR,
+        target.getBasePathWithSlash(),
+        target.getShortName());
+  }
+
   private static String getOutputJarDirPath(BuildTarget target) {
     return String.format(
         "%s/%slib__%s__output",
@@ -363,25 +427,7 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
    */
   @Override
   public Sha1HashCode getAbiKeyForDeps() {
-    SortedSet<JavaLibraryRule> rulesWithAbiToConsider = Sets.newTreeSet();
-    for (BuildRule dep : getDeps()) {
-      if (dep instanceof JavaLibraryRule) {
-        JavaLibraryRule javaRule = (JavaLibraryRule)dep;
-        rulesWithAbiToConsider.addAll(javaRule.getOutputClasspathEntries().keys());
-      }
-    }
-
-    Hasher hasher = Hashing.sha1().newHasher();
-    for (JavaLibraryRule ruleWithAbiToConsider : rulesWithAbiToConsider) {
-      if (ruleWithAbiToConsider == this) {
-        continue;
-      }
-
-      Sha1HashCode abiKey = ruleWithAbiToConsider.getAbiKey();
-      hasher.putUnencodedChars(abiKey.getHash());
-    }
-
-    return new Sha1HashCode(hasher.hash().toString());
+    return Classpaths.getAbiKeyForDeps(this, getDeps());
   }
 
   @Override
@@ -412,7 +458,12 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
 
   @Override
   public ImmutableSetMultimap<JavaLibraryRule, String> getTransitiveClasspathEntries() {
-    return transitiveClasspathEntriesSupplier.get();
+    return getTransitiveClasspath().getEntries();
+  }
+
+  @Override
+  public Classpath getTransitiveClasspath() {
+    return transitiveClasspathSupplier.get();
   }
 
   @Override
@@ -472,30 +523,25 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
       UberRDotJavaUtil.createDummyRDotJavaFiles(androidResourceDeps, buildTarget, commands);
     }
 
-    ImmutableSetMultimap<JavaLibraryRule, String> transitiveClasspathEntries =
-        getTransitiveClasspathEntries();
-    ImmutableSetMultimap<JavaLibraryRule, String> declaredClasspathEntries =
-        getDeclaredClasspathEntries();
+    // The transitive classpath is read straight from the Classpath DAG that is shared with the
+    // rest of the graph, so that compiling this rule does not flatten a multimap of its own.
+    Classpath transitiveClasspath = getTransitiveClasspath();
+    ImmutableSet.Builder<String> transitiveClasspathEntries = ImmutableSet.builder();
+    transitiveClasspathEntries.addAll(
+        getCompileTimeClasspath(transitiveClasspath, /* useClassesDirs */ true));
+    ImmutableSet.Builder<String> declaredClasspathEntries = ImmutableSet.builder();
+    declaredClasspathEntries.addAll(
+        getCompileTimeClasspathEntries(getDeclaredClasspathEntries(), /* useClassesDirs */ true)
+            .values());
+    ImmutableSet<String> transitiveClasspathEntriesToFingerprint =
+        getCompileTimeClasspath(transitiveClasspath, /* useClassesDirs */ false);
 
     // If this rule depends on AndroidResourceRules, then we need to include the compiled R.java
     // files on the classpath when compiling this rule.
     if (dependsOnAndroidResourceRules) {
-      ImmutableSetMultimap.Builder<JavaLibraryRule, String> transitiveClasspathEntriesWithRDotJava =
-          ImmutableSetMultimap.builder();
-      transitiveClasspathEntriesWithRDotJava.putAll(transitiveClasspathEntries);
-
-      ImmutableSetMultimap.Builder<JavaLibraryRule, String> declaredClasspathEntriesWithRDotJava =
-          ImmutableSetMultimap.builder();
-      declaredClasspathEntriesWithRDotJava.putAll(declaredClasspathEntries);
-
-      ImmutableSet<String> rDotJavaClasspath =
-          ImmutableSet.of(UberRDotJavaUtil.getRDotJavaBinFolder(buildTarget));
-
-      transitiveClasspathEntriesWithRDotJava.putAll(this, rDotJavaClasspath);
-      declaredClasspathEntriesWithRDotJava.putAll(this, rDotJavaClasspath);
-
-      declaredClasspathEntries = declaredClasspathEntriesWithRDotJava.build();
-      transitiveClasspathEntries = transitiveClasspathEntriesWithRDotJava.build();
+      String rDotJavaClasspath = UberRDotJavaUtil.getRDotJavaBinFolder(buildTarget);
+      transitiveClasspathEntries.add(rDotJavaClasspath);
+      declaredClasspathEntries.add(rDotJavaClasspath);
     }
 
     // Javac requires that the root directory for generated sources already exist.
@@ -510,23 +556,40 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
     // Always create the output directory, even if there are no .java files to compile because there
     // might be resources that need to be copied there.
     String outputDirectory = getClassesDir(getBuildTarget());
-    commands.add(new MakeCleanDirectoryStep(outputDirectory));
 
+    // An incremental build reuses the classes from the previous build, so the javac step manages
+    // the output directory itself. The output of annotation processors and the R.java files cannot
+    // be tracked between builds, so rules that use them are always compiled from scratch.
+    boolean isIncremental = context.isJavaIncrementalCompilationEnabled()
+        && !getJavaSrcs().isEmpty()
+        && !dependsOnAndroidResourceRules
+        && javacOptions.getAnnotationProcessingData().isEmpty();
+    if (!isIncremental) {
+      commands.add(new MakeCleanDirectoryStep(outputDirectory));
+    }
+
+    // Suggesting missing deps needs to know which rule contributes each entry, so only then is the
+    // transitive classpath flattened into a multimap.
     Optional<DependencyCheckingJavacStep.SuggestBuildRules> suggestBuildRule =
         createSuggestBuildFunction(context,
-            transitiveClasspathEntries,
-            declaredClasspathEntries,
+            context.getBuildDependencies() == BuildDependencies.WARN_ON_TRANSITIVE
+                ? getTransitiveClasspathEntries()
+                : ImmutableSetMultimap.<JavaLibraryRule, String>of(),
+            getDeclaredClasspathEntries(),
             JAR_RESOLVER);
 
     // This adds the javac command, along with any supporting commands.
     createCommandsForJavac(
         outputDirectory,
-        ImmutableSet.copyOf(transitiveClasspathEntries.values()),
-        ImmutableSet.copyOf(declaredClasspathEntries.values()),
+        transitiveClasspathEntries.build(),
+        declaredClasspathEntries.build(),
+        transitiveClasspathEntriesToFingerprint,
         javacOptions,
         context.getBuildDependencies(),
         suggestBuildRule,
-        commands);
+        isIncremental,
+        commands,
+        buildableContext);
 
 
     // If there are resources, then link them to the appropriate place in the classes directory.
@@ -550,6 +613,92 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
     return commands.build();
   }
 
+  /**
+   * javac only needs the ABI of the classes that it compiles against, so prebuilt jars are replaced
+   * by their ABI jars, which are much smaller to read.
+   * <p>
+   * If {@code useClassesDirs} is set, the output jars of the rules that were compiled during this
+   * build are also replaced by their classes directories. This is what lets this rule compile as
+   * soon as their ABI is available, rather than once their jars have been written.
+   */
+  @VisibleForTesting
+  static ImmutableSetMultimap<JavaLibraryRule, String> getCompileTimeClasspathEntries(
+      ImmutableSetMultimap<JavaLibraryRule, String> classpathEntries,
+      boolean useClassesDirs) {
+    Map<String, DefaultJavaLibraryRule> compiledRulesByOutputJar = useClassesDirs
+        ? getCompiledRulesByOutputJar(classpathEntries.keySet())
+        : ImmutableMap.<String, DefaultJavaLibraryRule>of();
+
+    ImmutableSetMultimap.Builder<JavaLibraryRule, String> compileTimeClasspathEntries =
+        ImmutableSetMultimap.builder();
+    for (Map.Entry<JavaLibraryRule, String> entry : classpathEntries.entries()) {
+      compileTimeClasspathEntries.put(entry.getKey(),
+          getCompileTimeClasspathEntry(entry.getKey(), entry.getValue(), compiledRulesByOutputJar));
+    }
+    return compileTimeClasspathEntries.build();
+  }
+
+  /**
+   * Same as {@link #getCompileTimeClasspathEntries(ImmutableSetMultimap, boolean)}, but walks
+   * {@code classpath} rather than a flattened multimap of it, and returns only the paths.
+   */
+  @VisibleForTesting
+  static ImmutableSet<String> getCompileTimeClasspath(Classpath classpath,
+      boolean useClassesDirs) {
+    Map<String, DefaultJavaLibraryRule> compiledRulesByOutputJar =
+        ImmutableMap.<String, DefaultJavaLibraryRule>of();
+    if (useClassesDirs) {
+      final Set<JavaLibraryRule> rules = Sets.newIdentityHashSet();
+      classpath.visitEntries(new Classpath.Visitor() {
+        @Override
+        public void visit(JavaLibraryRule rule, String entry) {
+          rules.add(rule);
+        }
+      });
+      compiledRulesByOutputJar = getCompiledRulesByOutputJar(rules);
+    }
+
+    final Map<String, DefaultJavaLibraryRule> compiledRules = compiledRulesByOutputJar;
+    final ImmutableSet.Builder<String> compileTimeClasspath = ImmutableSet.builder();
+    classpath.visitEntries(new Classpath.Visitor() {
+      @Override
+      public void visit(JavaLibraryRule rule, String entry) {
+        compileTimeClasspath.add(getCompileTimeClasspathEntry(rule, entry, compiledRules));
+      }
+    });
+    return compileTimeClasspath.build();
+  }
+
+  private static Map<String, DefaultJavaLibraryRule> getCompiledRulesByOutputJar(
+      Iterable<JavaLibraryRule> rules) {
+    // A rule that exports its deps lists their jars as its own, so find the rule that owns each.
+    Map<String, DefaultJavaLibraryRule> compiledRulesByOutputJar = Maps.newHashMap();
+    for (JavaLibraryRule rule : rules) {
+      for (JavaLibraryRule owner : rule.getOutputClasspathEntries().keySet()) {
+        if (owner instanceof DefaultJavaLibraryRule
+            && ((DefaultJavaLibraryRule) owner).hasCompiledClassesDir) {
+          compiledRulesByOutputJar.put(owner.getPathToOutputFile(),
+              (DefaultJavaLibraryRule) owner);
+        }
+      }
+    }
+    return compiledRulesByOutputJar;
+  }
+
+  private static String getCompileTimeClasspathEntry(JavaLibraryRule rule,
+      String classpathEntry,
+      Map<String, DefaultJavaLibraryRule> compiledRulesByOutputJar) {
+    if (rule instanceof PrebuiltJarRule) {
+      PrebuiltJarRule prebuiltJarRule = (PrebuiltJarRule) rule;
+      if (classpathEntry.equals(prebuiltJarRule.getBinaryJar())) {
+        return prebuiltJarRule.getPathToAbiJar();
+      }
+    } else if (compiledRulesByOutputJar.containsKey(classpathEntry)) {
+      return getClassesDir(compiledRulesByOutputJar.get(classpathEntry).getBuildTarget());
+    }
+    return classpathEntry;
+  }
+
   /**
    * Assuming the build has completed successfully, the ABI should have been computed, and it should
    * be stored for subsequent builds.
@@ -679,11 +828,20 @@ public class DefaultJavaLibraryRule extends DoNotUseAbstractBuildable
 
   @Override
   public Sha1HashCode getAbiKey() {
-    Preconditions.checkState(isRuleBuilt(),
+    Preconditions.checkState(isRuleBuilt() || isAbiAvailable(),
         "%s must be built before its ABI key can be returned.", this);
     return abiKeySupplier.get();
   }
 
+  /**
+   * Rules that use annotation processors are compiled once their deps are built, as the processors
+   * may be loaded from, or read resources from, the jars of their deps.
+   */
+  @Override
+  protected boolean canBuildAgainstAbiOfDeps() {
+    return javacOptions.getAnnotationProcessingData().isEmpty();
+  }
+
   private void setAbiKey(Supplier<Sha1HashCode> abiKeySupplier) {
     Preconditions.checkState(this.abiKeySupplier == null, "abiKeySupplier should be set only once");
     this.abiKeySupplier = abiKeySupplier;
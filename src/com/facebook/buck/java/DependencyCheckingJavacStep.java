@@ -18,21 +18,16 @@ package com.facebook.buck.java;
 
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.util.CapturingPrintStream;
-import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
 
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Command used to compile java libraries with a variety of ways to handle dependencies.
@@ -42,9 +37,9 @@ import java.util.regex.Pattern;
  * If {@code buildDependencies} is set to {@link BuildDependencies#TRANSITIVE}, this class will
  * invoke javac using {@code transitiveClasspathEntries} for the classpath.
  * If {@code buildDependencies} is set to {@link BuildDependencies#WARN_ON_TRANSITIVE}, this class
- * will first compile using {@code declaredClasspathEntries}, and should that fail fall back to
- * {@code transitiveClasspathEntries} but warn the developer about which dependencies were in
- * the transitive classpath but not in the declared classpath.
+ * will compile once using {@code transitiveClasspathEntries}, and then warn the developer about
+ * the classes that javac read from entries that were in the transitive classpath but not in the
+ * declared classpath.
  */
 public class DependencyCheckingJavacStep extends JavacInMemoryStep {
 
@@ -56,28 +51,6 @@ public class DependencyCheckingJavacStep extends JavacInMemoryStep {
 
   private final Optional<SuggestBuildRules> suggestBuildRules;
 
-  private static final Pattern IMPORT_FAILURE =
-      Pattern.compile("import ([\\w\\.\\*]*);");
-
-  private static final Pattern PACKAGE_FAILURE =
-      Pattern.compile(".*?package ([\\w\\.\\*]*) does not exist");
-
-  private static final Pattern ACCESS_FAILURE =
-      Pattern.compile(".*?error: cannot access ([\\w\\.\\*]*)");
-
-  private static final Pattern CLASS_NOT_FOUND =
-      Pattern.compile(".*?class file for ([\\w\\.\\*]*) not found");
-
-  private static final Pattern CLASS_SYMBOL_NOT_FOUND =
-      Pattern.compile(".*?symbol:\\s*class\\s*([\\w\\.\\*]*)");
-
-  private static final ImmutableList<Pattern> MISSING_IMPORT_PATTERNS =
-      ImmutableList.of(IMPORT_FAILURE,
-          PACKAGE_FAILURE,
-          ACCESS_FAILURE,
-          CLASS_NOT_FOUND,
-          CLASS_SYMBOL_NOT_FOUND);
-
   private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
   public static interface SuggestBuildRules extends
@@ -107,73 +80,82 @@ public class DependencyCheckingJavacStep extends JavacInMemoryStep {
 
   @Override
   public int executeBuild(ExecutionContext context) {
-    // Build up the compilation task.
-    if (buildDependencies == BuildDependencies.FIRST_ORDER_ONLY) {
-      return buildWithClasspath(context,
-          ImmutableSet.copyOf(declaredClasspathEntries));
-    } else if (buildDependencies == BuildDependencies.WARN_ON_TRANSITIVE) {
-      return tryBuildWithFirstOrderDeps(context);
-    } else {
-      return buildWithClasspath(context, getClasspathEntries());
-    }
+    return buildAndCheckDependencies(context, getClasspathEntries(), getSrcs());
   }
 
-  private int tryBuildWithFirstOrderDeps(ExecutionContext context) {
-    CapturingPrintStream stdout = new CapturingPrintStream();
-    CapturingPrintStream stderr = new CapturingPrintStream();
-    ExecutionContext firstOrderContext = context.createSubContext(stdout, stderr);
-
-    int declaredDepsResult = buildWithClasspath(firstOrderContext,
-        ImmutableSet.copyOf(declaredClasspathEntries));
-
-    String firstOrderStdout = stdout.getContentsAsString(Charsets.UTF_8);
-    String firstOrderStderr = stderr.getContentsAsString(Charsets.UTF_8);
-
-    if (declaredDepsResult != 0) {
-      int transitiveResult = buildWithClasspath(context, getClasspathEntries());
-      if (transitiveResult == 0) {
-        ImmutableSet<String> failedImports = findFailedImports(firstOrderStderr);
-
-        context.getStdErr().println(String.format("Rule %s builds with its transitive " +
-            "dependencies but not with its first order dependencies.", invokingRule.or("")));
-        context.getStdErr().println("The following packages were missing:");
-        context.getStdErr().println(Joiner.on(LINE_SEPARATOR).join(failedImports));
-        if (suggestBuildRules.isPresent()) {
-          context.getStdErr().println("Try adding the following deps:");
-          context.getStdErr().println(Joiner.on(LINE_SEPARATOR)
-              .join(suggestBuildRules.get().apply(failedImports)));
-        }
-        context.getStdErr().println();
-        context.getStdErr().println();
+  /**
+   * Compiles {@code sourceFilePaths} against {@code buildClasspathEntries} and, if
+   * {@code buildDependencies} is {@link BuildDependencies#WARN_ON_TRANSITIVE}, warns about the
+   * classes that they read from the transitive classpath but not the declared classpath.
+   */
+  protected int buildAndCheckDependencies(ExecutionContext context,
+      Set<String> buildClasspathEntries,
+      Set<String> sourceFilePaths) {
+    int result = buildWithClasspath(context, buildClasspathEntries, sourceFilePaths);
+    if (result == 0 && buildDependencies == BuildDependencies.WARN_ON_TRANSITIVE) {
+      Optional<ImmutableSetMultimap<String, String>> classesRead = getClassesReadFromLastBuild();
+      if (classesRead.isPresent()) {
+        warnAboutUndeclaredDeps(context,
+            classesRead.get(),
+            /* reportUnusedEntries */ sourceFilePaths.equals(getSrcs()));
       }
-      return transitiveResult;
-    } else {
-      context.getStdOut().print(firstOrderStdout);
-      context.getStdErr().print(firstOrderStderr);
     }
-
-    return declaredDepsResult;
+    return result;
   }
 
-  @VisibleForTesting
-  static ImmutableSet<String> findFailedImports(String output) {
-    Iterable<String> lines = Splitter.on(LINE_SEPARATOR).split(output);
-    ImmutableSortedSet.Builder<String> failedImports = ImmutableSortedSet.naturalOrder();
-    for (String line : lines) {
-      for (Pattern missingImportPattern : MISSING_IMPORT_PATTERNS) {
-        Matcher lineMatch = missingImportPattern.matcher(line);
-        if (lineMatch.matches()) {
-          failedImports.add(lineMatch.group(1));
-          break;
+  /**
+   * javac only reads the classes that it needs, so any class that was read from an entry that is
+   * not on the declared classpath is one that the rule would not have compiled without.
+   */
+  private void warnAboutUndeclaredDeps(ExecutionContext context,
+      ImmutableSetMultimap<String, String> classesRead,
+      boolean reportUnusedEntries) {
+    Set<String> transitiveClasspathEntries = super.getClasspathEntries();
+    ImmutableSortedSet.Builder<String> missingClassesBuilder = ImmutableSortedSet.naturalOrder();
+    for (String classpathEntry : classesRead.keySet()) {
+      if (!declaredClasspathEntries.contains(classpathEntry)
+          && transitiveClasspathEntries.contains(classpathEntry)) {
+        for (String binaryName : classesRead.get(classpathEntry)) {
+          missingClassesBuilder.add(getTopLevelClassName(binaryName));
         }
       }
     }
-    return failedImports.build();
+    ImmutableSet<String> missingClasses = missingClassesBuilder.build();
+
+    if (!missingClasses.isEmpty()) {
+      context.getStdErr().println(String.format("Rule %s builds with its transitive " +
+          "dependencies but not with its first order dependencies.", invokingRule.or("")));
+      context.getStdErr().println("The following classes were missing:");
+      context.getStdErr().println(Joiner.on(LINE_SEPARATOR).join(missingClasses));
+      if (suggestBuildRules.isPresent()) {
+        context.getStdErr().println("Try adding the following deps:");
+        context.getStdErr().println(Joiner.on(LINE_SEPARATOR)
+            .join(suggestBuildRules.get().apply(missingClasses)));
+      }
+      context.getStdErr().println();
+      context.getStdErr().println();
+    }
+
+    if (reportUnusedEntries && context.getVerbosity().shouldPrintCommand()) {
+      Set<String> unusedEntries = Sets.difference(declaredClasspathEntries, classesRead.keySet());
+      if (!unusedEntries.isEmpty()) {
+        context.getStdErr().println(String.format(
+            "Rule %s does not use the following classpath entries from its first order " +
+            "dependencies:", invokingRule.or("")));
+        context.getStdErr().println(Joiner.on(LINE_SEPARATOR).join(unusedEntries));
+      }
+    }
+  }
+
+  private static String getTopLevelClassName(String binaryName) {
+    int lastDot = binaryName.lastIndexOf('.');
+    int firstDollar = binaryName.indexOf('$', lastDot + 1);
+    return firstDollar > 0 ? binaryName.substring(0, firstDollar) : binaryName;
   }
 
   @Override
   protected ImmutableSet<String> getClasspathEntries() {
-    if (buildDependencies == BuildDependencies.TRANSITIVE) {
+    if (buildDependencies != BuildDependencies.FIRST_ORDER_ONLY) {
       return super.getClasspathEntries();
     } else {
       return declaredClasspathEntries;
@@ -35,10 +35,18 @@ public class GenerateCodeCoverageReportStep extends ShellStep {
       ImmutableSet.of("html", "xml", "txt");
 
   private final Set<String> srcDirectories;
+  private final Set<String> metadataFiles;
   private final String outputDirectory;
 
-  public GenerateCodeCoverageReportStep(Set<String> srcDirectories, String outputDirectory) {
+  /**
+   * @param metadataFiles the EMMA metadata files of the classes that were instrumented, which are
+   *     merged with the coverage data of the tests that were just run.
+   */
+  public GenerateCodeCoverageReportStep(Set<String> srcDirectories,
+      Set<String> metadataFiles,
+      String outputDirectory) {
     this.srcDirectories = ImmutableSet.copyOf(srcDirectories);
+    this.metadataFiles = ImmutableSet.copyOf(metadataFiles);
     this.outputDirectory = outputDirectory;
   }
 
@@ -85,10 +93,13 @@ public class GenerateCodeCoverageReportStep extends ShellStep {
 
     // Specify the paths to the runtime code coverage data and the metadata files.
     // coverage.ec: EMMA runtime code coverage data.
-    // coverage.em: EMMA metadata.
+    // coverage.em: EMMA metadata, one file for each rule under test.
     args.add("-input",
-        String.format("%s/coverage.ec,%s/coverage.em",
-            JUnitStep.EMMA_OUTPUT_DIR, JUnitStep.EMMA_OUTPUT_DIR));
+        Joiner.on(",").join(
+            ImmutableList.<String>builder()
+                .add(JUnitStep.PATH_TO_EMMA_COVERAGE_DATA)
+                .addAll(metadataFiles)
+                .build()));
 
     // Specify the source path so we can see from source file which lines of code are tested.
     String sourcepathArg = Joiner.on(",").join(srcDirectories);
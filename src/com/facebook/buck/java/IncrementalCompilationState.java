@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What {@link IncrementalJavacStep} needs to know about the previous compilation of a library in
+ * order to compile it again incrementally. This is serialized to JSON between builds.
+ */
+class IncrementalCompilationState {
+
+  /**
+   * Identifies everything other than the sources that affects the output of javac: the options,
+   * the classpath and the ABI of the deps. If this changes, everything must be recompiled.
+   */
+  private final String fingerprint;
+
+  /** The ABI key of the library, as {@link com.facebook.buck.java.abi.AbiWriter} computes it. */
+  private final String abiKey;
+
+  private final ImmutableSortedMap<String, SourceFile> sources;
+
+  /**
+   * The size and last modified time of each class file in the output directory, keyed by binary
+   * name. This is used to detect changes to the output directory made by anything else, such as
+   * an artifact fetched from the cache.
+   */
+  private final ImmutableSortedMap<String, ClassFileStamp> classFiles;
+
+  @JsonCreator
+  IncrementalCompilationState(@JsonProperty("fingerprint") String fingerprint,
+      @JsonProperty("abiKey") String abiKey,
+      @JsonProperty("sources") Map<String, SourceFile> sources,
+      @JsonProperty("classFiles") Map<String, ClassFileStamp> classFiles) {
+    this.fingerprint = Preconditions.checkNotNull(fingerprint);
+    this.abiKey = Preconditions.checkNotNull(abiKey);
+    this.sources = ImmutableSortedMap.copyOf(sources);
+    this.classFiles = ImmutableSortedMap.copyOf(classFiles);
+  }
+
+  @JsonProperty("fingerprint")
+  String getFingerprint() {
+    return fingerprint;
+  }
+
+  @JsonProperty("abiKey")
+  String getAbiKey() {
+    return abiKey;
+  }
+
+  /** @return information about each source in the library, keyed by path. */
+  @JsonProperty("sources")
+  ImmutableSortedMap<String, SourceFile> getSources() {
+    return sources;
+  }
+
+  @JsonProperty("classFiles")
+  ImmutableSortedMap<String, ClassFileStamp> getClassFiles() {
+    return classFiles;
+  }
+
+  /**
+   * @return the state in {@code file}, or {@link Optional#absent()} if it does not exist or cannot
+   *     be read, in which case the library must be compiled from scratch.
+   */
+  static Optional<IncrementalCompilationState> readFrom(File file) {
+    if (!file.isFile()) {
+      return Optional.absent();
+    }
+    try {
+      return Optional.of(new ObjectMapper().readValue(file, IncrementalCompilationState.class));
+    } catch (IOException e) {
+      return Optional.absent();
+    }
+  }
+
+  void writeTo(File file) throws IOException {
+    try {
+      new ObjectMapper().writeValue(file, this);
+    } catch (JsonProcessingException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * What was produced by compiling a single source file.
+   */
+  static class SourceFile {
+
+    private final String hash;
+    private final ImmutableSortedSet<String> classes;
+    private final ImmutableSortedSet<String> referencedClasses;
+    private final ImmutableSortedMap<String, String> abiSummaries;
+    private final boolean declaresConstants;
+
+    /**
+     * @param hash the SHA-1 of the contents of the source.
+     * @param classes the binary names of the classes compiled from the source.
+     * @param referencedClasses the binary names of the classes in the library that the classes
+     *     compiled from the source refer to.
+     * @param abiSummaries the ABI summary of each top-level type declared in the source.
+     * @param declaresConstants whether any of the classes declare compile-time constants.
+     */
+    @JsonCreator
+    SourceFile(@JsonProperty("hash") String hash,
+        @JsonProperty("classes") Set<String> classes,
+        @JsonProperty("referencedClasses") Set<String> referencedClasses,
+        @JsonProperty("abiSummaries") Map<String, String> abiSummaries,
+        @JsonProperty("declaresConstants") boolean declaresConstants) {
+      this.hash = Preconditions.checkNotNull(hash);
+      this.classes = ImmutableSortedSet.copyOf(classes);
+      this.referencedClasses = ImmutableSortedSet.copyOf(referencedClasses);
+      this.abiSummaries = ImmutableSortedMap.copyOf(abiSummaries);
+      this.declaresConstants = declaresConstants;
+    }
+
+    @JsonProperty("hash")
+    String getHash() {
+      return hash;
+    }
+
+    @JsonProperty("classes")
+    ImmutableSortedSet<String> getClasses() {
+      return classes;
+    }
+
+    @JsonProperty("referencedClasses")
+    ImmutableSortedSet<String> getReferencedClasses() {
+      return referencedClasses;
+    }
+
+    @JsonProperty("abiSummaries")
+    ImmutableSortedMap<String, String> getAbiSummaries() {
+      return abiSummaries;
+    }
+
+    @JsonProperty("declaresConstants")
+    boolean declaresConstants() {
+      return declaresConstants;
+    }
+  }
+
+  /**
+   * Enough information about a class file to tell whether it has been modified.
+   */
+  static class ClassFileStamp {
+
+    private final long size;
+    private final long lastModified;
+
+    @JsonCreator
+    ClassFileStamp(@JsonProperty("size") long size,
+        @JsonProperty("lastModified") long lastModified) {
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    static ClassFileStamp of(File classFile) {
+      return new ClassFileStamp(classFile.length(), classFile.lastModified());
+    }
+
+    @JsonProperty("size")
+    long getSize() {
+      return size;
+    }
+
+    @JsonProperty("lastModified")
+    long getLastModified() {
+      return lastModified;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ClassFileStamp)) {
+        return false;
+      }
+      ClassFileStamp that = (ClassFileStamp) obj;
+      return this.size == that.size && this.lastModified == that.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (size * 31 + lastModified);
+    }
+  }
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.java.IncrementalCompilationState.ClassFileStamp;
+import com.facebook.buck.java.IncrementalCompilationState.SourceFile;
+import com.facebook.buck.java.abi.AbiWriterProtocol;
+import com.facebook.buck.rules.BuildDependencies;
+import com.facebook.buck.rules.Sha1HashCode;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link DependencyCheckingJavacStep} that recompiles only what is needed into the output
+ * directory left behind by the previous build, rather than compiling every source from scratch.
+ * <p>
+ * After each build, the state of the compilation is recorded: a hash of each source, the classes
+ * compiled from it, the classes of the library that those refer to (read from their bytecode)
+ * and the ABI summary of each type that it declares (written by
+ * {@link com.facebook.buck.java.abi.AbiWriter}). On the next build, the changed sources are
+ * recompiled against the classes of the others. If that changes the ABI of a source, every source
+ * that transitively refers to its classes is then recompiled as well.
+ * <p>
+ * Everything is recompiled whenever it is unclear that an incremental build would produce the same
+ * output as a clean one: if the options, classpath or ABI of the deps changed, if the output
+ * directory was modified by anything else, if a type was added to the library (it might shadow an
+ * imported type), or if a source whose ABI changed declares compile-time constants (javac inlines
+ * them, so the classes that use them cannot be found from bytecode). The ABI key of the library is
+ * computed from the summaries of all of its types, so it is the same as for a clean build.
+ */
+public class IncrementalJavacStep extends DependencyCheckingJavacStep {
+
+  private final String pathToOutputAbiFile;
+
+  private final String pathToStateFile;
+
+  private final String pathToAbiSummariesFile;
+
+  private final Sha1HashCode abiKeyForDeps;
+
+  private final ImmutableSet<String> classpathEntriesToFingerprint;
+
+  /** Set if the sources were compiled incrementally. */
+  @Nullable
+  private Sha1HashCode abiKey;
+
+  private boolean isFullBuild;
+
+  private final Set<String> compiledSources = Sets.newHashSet();
+
+  /**
+   * @param pathToStateDirectory a directory in which to keep the state of the compilation between
+   *     builds. This must not be cleaned between builds.
+   * @param abiKeyForDeps the ABI key of the deps that provide {@code transitiveClasspathEntries}.
+   * @param classpathEntriesToFingerprint {@code transitiveClasspathEntries} as they would be if
+   *     every dep had been built into its jar. A dep that is still being built may be compiled
+   *     against from its classes directory instead, which produces the same output, so that must
+   *     not force a full build the next time.
+   */
+  public IncrementalJavacStep(
+      String outputDirectory,
+      Set<String> javaSourceFilePaths,
+      Set<String> transitiveClasspathEntries,
+      Set<String> declaredClasspathEntries,
+      JavacOptions javacOptions,
+      String pathToOutputAbiFile,
+      Optional<String> invokingRule,
+      BuildDependencies buildDependencies,
+      Optional<SuggestBuildRules> suggestBuildRules,
+      String pathToStateDirectory,
+      Sha1HashCode abiKeyForDeps,
+      Set<String> classpathEntriesToFingerprint) {
+    super(outputDirectory,
+        javaSourceFilePaths,
+        transitiveClasspathEntries,
+        declaredClasspathEntries,
+        javacOptions,
+        Optional.of(pathToOutputAbiFile),
+        invokingRule,
+        buildDependencies,
+        suggestBuildRules);
+    Preconditions.checkArgument(
+        javacOptions.getAnnotationProcessingData().isEmpty(),
+        "The output of annotation processors cannot be tracked between builds.");
+    this.pathToOutputAbiFile = pathToOutputAbiFile;
+    this.pathToStateFile = pathToStateDirectory + "/state.json";
+    this.pathToAbiSummariesFile = pathToStateDirectory + "/abi_summaries";
+    this.abiKeyForDeps = Preconditions.checkNotNull(abiKeyForDeps);
+    this.classpathEntriesToFingerprint = ImmutableSet.copyOf(classpathEntriesToFingerprint);
+  }
+
+  @Override
+  protected Optional<String> getPathToOutputAbiSummariesFile() {
+    return Optional.of(pathToAbiSummariesFile);
+  }
+
+  @Override
+  public int executeBuild(ExecutionContext context) {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    File stateFile = filesystem.getFileForRelativePath(pathToStateFile);
+    Optional<IncrementalCompilationState> previousState =
+        IncrementalCompilationState.readFrom(stateFile);
+
+    try {
+      // If this build fails, the next one must start from scratch.
+      filesystem.createParentDirs(pathToStateFile);
+      java.nio.file.Files.deleteIfExists(stateFile.toPath());
+
+      String fingerprint = computeFingerprint(context);
+      ImmutableSortedMap<String, String> sourceHashes = hashSources(filesystem);
+
+      Optional<Integer> exitCode = Optional.absent();
+      if (previousState.isPresent() && previousState.get().getFingerprint().equals(fingerprint)) {
+        exitCode = buildIncrementally(context, previousState.get(), sourceHashes);
+      }
+      if (!exitCode.isPresent()) {
+        exitCode = Optional.of(buildFully(context, fingerprint, sourceHashes));
+      }
+      return exitCode.get();
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+  }
+
+  private String computeFingerprint(ExecutionContext context) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    // The output of javac may differ between versions of the JDK.
+    hasher.putUnencodedChars(System.getProperty("java.version"));
+    hasher.putUnencodedChars(abiKeyForDeps.getHash());
+    for (String option : getOptions(context, classpathEntriesToFingerprint)) {
+      // Verbosity does not affect the output, so it should not force a full build.
+      if (!"-verbose".equals(option)) {
+        hasher.putUnencodedChars(option).putByte((byte) 0);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  private ImmutableSortedMap<String, String> hashSources(ProjectFilesystem filesystem)
+      throws IOException {
+    ImmutableSortedMap.Builder<String, String> sourceHashes = ImmutableSortedMap.naturalOrder();
+    for (String source : getSrcs()) {
+      sourceHashes.put(source,
+          Files.hash(filesystem.getFileForRelativePath(source), Hashing.sha1()).toString());
+    }
+    return sourceHashes.build();
+  }
+
+  private int buildFully(ExecutionContext context,
+      String fingerprint,
+      ImmutableSortedMap<String, String> sourceHashes) throws IOException {
+    isFullBuild = true;
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    filesystem.rmdir(getPathToOutputDirectory());
+    filesystem.mkdirs(Paths.get(getPathToOutputDirectory()));
+
+    compiledSources.addAll(getSrcs());
+    int exitCode = buildAndCheckDependencies(context, getClasspathEntries(), getSrcs());
+    if (exitCode != 0) {
+      return exitCode;
+    }
+
+    Map<String, SourceFile> sources = Maps.newHashMap();
+    recordCompiledSources(context, getSrcs(), sourceHashes, sources);
+    writeState(context, fingerprint, computeAbiKey(sources.values()), sources);
+    return 0;
+  }
+
+  /**
+   * @return the exit code of javac, or {@link Optional#absent()} if the sources must be compiled
+   *     from scratch instead.
+   */
+  private Optional<Integer> buildIncrementally(ExecutionContext context,
+      IncrementalCompilationState previousState,
+      ImmutableSortedMap<String, String> sourceHashes) throws IOException {
+    File outputDirectory =
+        context.getProjectFilesystem().getFileForRelativePath(getPathToOutputDirectory());
+    Map<String, File> classFiles = Maps.newHashMap();
+    collectClassFiles(outputDirectory, "", classFiles);
+    if (!classFiles.keySet().equals(previousState.getClassFiles().keySet())) {
+      return Optional.absent();
+    }
+    for (Map.Entry<String, File> classFile : classFiles.entrySet()) {
+      if (!ClassFileStamp.of(classFile.getValue())
+          .equals(previousState.getClassFiles().get(classFile.getKey()))) {
+        return Optional.absent();
+      }
+    }
+
+    // Resources are copied into the output directory after javac runs, so they are removed here in
+    // case any of them have been deleted since the last build.
+    deleteAllButClassFiles(outputDirectory);
+
+    Map<String, SourceFile> sources = Maps.newHashMap(previousState.getSources());
+    Set<String> deletedSources = Sets.newHashSet(
+        Sets.difference(sources.keySet(), sourceHashes.keySet()));
+    Set<String> changedSources = Sets.newHashSet();
+    for (Map.Entry<String, String> sourceHash : sourceHashes.entrySet()) {
+      SourceFile previous = sources.get(sourceHash.getKey());
+      if (previous == null || !previous.getHash().equals(sourceHash.getValue())) {
+        changedSources.add(sourceHash.getKey());
+      }
+    }
+
+    if (!deletedSources.isEmpty() || !changedSources.isEmpty()) {
+      ImmutableSet<String> previousTypes = getTypes(sources.values());
+
+      // The classes of deleted sources no longer exist, so their dependents must be recompiled.
+      Set<String> classesWithChangedAbi = Sets.newHashSet();
+      for (String deletedSource : deletedSources) {
+        SourceFile deleted = sources.remove(deletedSource);
+        if (deleted.declaresConstants()) {
+          return Optional.absent();
+        }
+        deleteClassFiles(outputDirectory, deleted);
+        classesWithChangedAbi.addAll(deleted.getClasses());
+      }
+
+      Set<String> sourcesToCompile = Sets.union(
+          changedSources,
+          findDependents(classesWithChangedAbi, sources)).immutableCopy();
+      Optional<Integer> exitCode = compile(context,
+          sourcesToCompile,
+          sourceHashes,
+          sources,
+          previousTypes,
+          classesWithChangedAbi);
+      if (!exitCode.isPresent() || exitCode.get() != 0) {
+        return exitCode;
+      }
+
+      // Recompile everything that transitively refers to a class whose ABI changed. These are all
+      // compiled together, so there is no need to look for further changes to their ABI.
+      if (!classesWithChangedAbi.isEmpty()) {
+        sourcesToCompile = findTransitiveDependents(classesWithChangedAbi, sources);
+        exitCode = compile(context,
+            sourcesToCompile,
+            sourceHashes,
+            sources,
+            previousTypes,
+            Sets.<String>newHashSet());
+        if (!exitCode.isPresent() || exitCode.get() != 0) {
+          return exitCode;
+        }
+      }
+      deleteAllButClassFiles(outputDirectory);
+    }
+
+    abiKey = new Sha1HashCode(computeAbiKey(sources.values()));
+    context.getProjectFilesystem().writeContentsToPath(abiKey.getHash(),
+        Paths.get(pathToOutputAbiFile));
+    writeState(context, previousState.getFingerprint(), abiKey.getHash(), sources);
+    return Optional.of(0);
+  }
+
+  /**
+   * Compiles {@code sourcesToCompile} against the classes of the rest of the library and updates
+   * {@code sources} with the result.
+   *
+   * @param previousTypes the top-level types in the library before this build.
+   * @param classesWithChangedAbi to which the classes of any source whose ABI changed are added.
+   * @return the exit code of javac, or {@link Optional#absent()} if the sources must be compiled
+   *     from scratch instead.
+   */
+  private Optional<Integer> compile(ExecutionContext context,
+      Set<String> sourcesToCompile,
+      Map<String, String> sourceHashes,
+      Map<String, SourceFile> sources,
+      Set<String> previousTypes,
+      Set<String> classesWithChangedAbi) throws IOException {
+    if (sourcesToCompile.isEmpty()) {
+      return Optional.of(0);
+    }
+
+    File outputDirectory =
+        context.getProjectFilesystem().getFileForRelativePath(getPathToOutputDirectory());
+    Map<String, SourceFile> previousSources = Maps.newHashMap();
+    for (String source : sourcesToCompile) {
+      SourceFile previous = sources.remove(source);
+      if (previous != null) {
+        previousSources.put(source, previous);
+        deleteClassFiles(outputDirectory, previous);
+      }
+    }
+
+    // The classes of this library shadow those of its deps, so they are first on the classpath.
+    ImmutableSet<String> classpathEntries = ImmutableSet.<String>builder()
+        .add(getPathToOutputDirectory())
+        .addAll(getClasspathEntries())
+        .build();
+    compiledSources.addAll(sourcesToCompile);
+    int exitCode = buildAndCheckDependencies(context, classpathEntries, sourcesToCompile);
+    if (exitCode != 0) {
+      return Optional.of(exitCode);
+    }
+
+    Set<String> otherClasses = Sets.newHashSet();
+    for (SourceFile source : sources.values()) {
+      otherClasses.addAll(source.getClasses());
+    }
+
+    Map<String, SourceFile> compiledSources = Maps.newHashMap();
+    recordCompiledSources(context, sourcesToCompile, sourceHashes, compiledSources);
+    for (Map.Entry<String, SourceFile> entry : compiledSources.entrySet()) {
+      SourceFile compiled = entry.getValue();
+      SourceFile previous = previousSources.get(entry.getKey());
+
+      // A class that moved from a source that was not recompiled would now be defined twice.
+      if (!Sets.intersection(compiled.getClasses(), otherClasses).isEmpty()) {
+        return Optional.absent();
+      }
+      if (!previousTypes.containsAll(compiled.getAbiSummaries().keySet())) {
+        return Optional.absent();
+      }
+
+      if (previous == null || !previous.getAbiSummaries().equals(compiled.getAbiSummaries())) {
+        if (compiled.declaresConstants() || (previous != null && previous.declaresConstants())) {
+          return Optional.absent();
+        }
+        classesWithChangedAbi.addAll(compiled.getClasses());
+        if (previous != null) {
+          classesWithChangedAbi.addAll(previous.getClasses());
+        }
+      }
+    }
+    sources.putAll(compiledSources);
+    return Optional.of(0);
+  }
+
+  /**
+   * Reads what javac produced for each of {@code compiledSources} into {@code sources}.
+   */
+  private void recordCompiledSources(ExecutionContext context,
+      Set<String> compiledSources,
+      Map<String, String> sourceHashes,
+      Map<String, SourceFile> sources) throws IOException {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    File outputDirectory = filesystem.getFileForRelativePath(getPathToOutputDirectory());
+    SortedMap<String, String> abiSummaries = AbiWriterProtocol.readSummaries(
+        filesystem.getFileForRelativePath(pathToAbiSummariesFile));
+    ImmutableSetMultimap<String, String> classesWritten = getClassesWrittenByLastBuild();
+
+    for (String source : compiledSources) {
+      Set<String> classes = classesWritten.get(source);
+      Set<String> referencedClasses = Sets.newHashSet();
+      boolean declaresConstants = false;
+      for (String className : classes) {
+        try (InputStream classFile = new FileInputStream(getClassFile(outputDirectory, className))) {
+          ClassFileDependencies dependencies = ClassFileDependencies.read(classFile);
+          referencedClasses.addAll(dependencies.getReferencedClasses());
+          declaresConstants |= dependencies.declaresConstants();
+        }
+      }
+
+      sources.put(source, new SourceFile(
+          sourceHashes.get(source),
+          classes,
+          referencedClasses,
+          Maps.filterKeys(abiSummaries, Predicates.in(classes)),
+          declaresConstants));
+    }
+  }
+
+  private void writeState(ExecutionContext context,
+      String fingerprint,
+      String abiKey,
+      Map<String, SourceFile> sources) throws IOException {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    File outputDirectory = filesystem.getFileForRelativePath(getPathToOutputDirectory());
+    Map<String, File> classFiles = Maps.newHashMap();
+    collectClassFiles(outputDirectory, "", classFiles);
+
+    // Only classes in this library can change between incremental builds, so only references to
+    // them are worth keeping.
+    Map<String, SourceFile> sourcesToRecord = Maps.newHashMap();
+    for (Map.Entry<String, SourceFile> entry : sources.entrySet()) {
+      SourceFile source = entry.getValue();
+      sourcesToRecord.put(entry.getKey(), new SourceFile(
+          source.getHash(),
+          source.getClasses(),
+          Sets.intersection(source.getReferencedClasses(), classFiles.keySet()),
+          source.getAbiSummaries(),
+          source.declaresConstants()));
+    }
+
+    Map<String, ClassFileStamp> classFileStamps = Maps.newHashMap();
+    for (Map.Entry<String, File> classFile : classFiles.entrySet()) {
+      classFileStamps.put(classFile.getKey(), ClassFileStamp.of(classFile.getValue()));
+    }
+
+    new IncrementalCompilationState(fingerprint, abiKey, sourcesToRecord, classFileStamps)
+        .writeTo(filesystem.getFileForRelativePath(pathToStateFile));
+  }
+
+  @Override
+  @Nullable
+  public Sha1HashCode getAbiKey() {
+    if (abiKey != null) {
+      return abiKey;
+    }
+    return super.getAbiKey();
+  }
+
+  /**
+   * The classes read from the classpath are only known when every source was compiled.
+   */
+  @Override
+  public Optional<ImmutableSetMultimap<String, String>> getClassesReadFromClasspath() {
+    Optional<ImmutableSetMultimap<String, String>> classesRead =
+        super.getClassesReadFromClasspath();
+    return isFullBuild ? classesRead : Optional.<ImmutableSetMultimap<String, String>>absent();
+  }
+
+  @VisibleForTesting
+  boolean wasFullBuild() {
+    return isFullBuild;
+  }
+
+  /** @return every source that javac was asked to compile by this step. */
+  @VisibleForTesting
+  ImmutableSet<String> getCompiledSources() {
+    return ImmutableSet.copyOf(compiledSources);
+  }
+
+  private static String computeAbiKey(Iterable<SourceFile> sources) {
+    SortedMap<String, String> abiSummaries = Maps.newTreeMap();
+    for (SourceFile source : sources) {
+      abiSummaries.putAll(source.getAbiSummaries());
+    }
+    return AbiWriterProtocol.computeAbiKey(Sets.newTreeSet(abiSummaries.values()));
+  }
+
+  private static ImmutableSet<String> getTypes(Iterable<SourceFile> sources) {
+    ImmutableSet.Builder<String> types = ImmutableSet.builder();
+    for (SourceFile source : sources) {
+      types.addAll(source.getAbiSummaries().keySet());
+    }
+    return types.build();
+  }
+
+  /**
+   * @return the sources whose classes refer to any of {@code classNames}.
+   */
+  private static Set<String> findDependents(Set<String> classNames,
+      Map<String, SourceFile> sources) {
+    Set<String> dependents = Sets.newHashSet();
+    for (Map.Entry<String, SourceFile> entry : sources.entrySet()) {
+      if (!Sets.intersection(entry.getValue().getReferencedClasses(), classNames).isEmpty()) {
+        dependents.add(entry.getKey());
+      }
+    }
+    return dependents;
+  }
+
+  private static Set<String> findTransitiveDependents(Set<String> classNames,
+      Map<String, SourceFile> sources) {
+    Set<String> dependents = Sets.newHashSet();
+    Deque<String> toVisit = new ArrayDeque<>(findDependents(classNames, sources));
+    while (!toVisit.isEmpty()) {
+      String source = toVisit.pop();
+      if (dependents.add(source)) {
+        toVisit.addAll(findDependents(sources.get(source).getClasses(), sources));
+      }
+    }
+    return dependents;
+  }
+
+  private static File getClassFile(File outputDirectory, String className) {
+    return new File(outputDirectory, className.replace('.', File.separatorChar) + ".class");
+  }
+
+  private static void deleteClassFiles(File outputDirectory, SourceFile source)
+      throws IOException {
+    for (String className : source.getClasses()) {
+      java.nio.file.Files.deleteIfExists(getClassFile(outputDirectory, className).toPath());
+    }
+  }
+
+  private static void collectClassFiles(File directory,
+      String packagePrefix,
+      Map<String, File> classFiles) {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      String name = child.getName();
+      if (child.isDirectory()) {
+        collectClassFiles(child, packagePrefix + name + ".", classFiles);
+      } else if (name.endsWith(".class")) {
+        classFiles.put(packagePrefix + name.substring(0, name.length() - ".class".length()), child);
+      }
+    }
+  }
+
+  /**
+   * Deletes everything other than class files under {@code directory}, including directories that
+   * would be empty, so that it matches what javac alone would produce in a clean directory.
+   * @return whether {@code directory} is now empty.
+   */
+  private static boolean deleteAllButClassFiles(File directory) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return true;
+    }
+    boolean isEmpty = true;
+    for (File child : children) {
+      if (child.isDirectory() && deleteAllButClassFiles(child)) {
+        java.nio.file.Files.delete(child.toPath());
+      } else if (!child.isDirectory() && !child.getName().endsWith(".class")) {
+        java.nio.file.Files.delete(child.toPath());
+      } else {
+        isEmpty = false;
+      }
+    }
+    return isEmpty;
+  }
+}
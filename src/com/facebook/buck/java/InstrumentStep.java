@@ -16,22 +16,62 @@
 
 package com.facebook.buck.java;
 
+import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.shell.ShellStep;
 import com.facebook.buck.step.ExecutionContext;
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
 import java.util.Set;
 
+/**
+ * Instruments class files with EMMA, writing the instrumented classes and the metadata that
+ * describes them to {@code outputDirectory}. See {@link #getPathToInstrumentedOutput(BuildTarget)}
+ * for where the output of each {@code java_library()} under test lives.
+ */
 public class InstrumentStep extends ShellStep {
 
+  private static final String INSTRUMENTED_OUTPUT_DIR =
+      String.format("%s/instr", JUnitStep.EMMA_OUTPUT_DIR);
+
   private final String mode;
   private final Set<String> instrumentDirectories;
+  private final String outputDirectory;
 
-  public InstrumentStep(String mode, Set<String> instrumentDirectories) {
-    this.mode = mode;
+  /**
+   * @param mode the EMMA {@code -outmode}. Use {@code copy} to leave the original classes as they
+   *     are and write only the instrumented classes to {@code outputDirectory/classes}.
+   */
+  public InstrumentStep(String mode, Set<String> instrumentDirectories, String outputDirectory) {
+    this.mode = Preconditions.checkNotNull(mode);
     this.instrumentDirectories = ImmutableSet.copyOf(instrumentDirectories);
+    this.outputDirectory = Preconditions.checkNotNull(outputDirectory);
+  }
+
+  /**
+   * @return the directory in which the instrumented classes of the rule {@code target} and their
+   *     metadata are kept between runs of {@code buck test --code-coverage}.
+   */
+  public static String getPathToInstrumentedOutput(BuildTarget target) {
+    return String.format("%s/%s%s",
+        INSTRUMENTED_OUTPUT_DIR,
+        target.getBasePathWithSlash(),
+        target.getShortName());
+  }
+
+  /**
+   * @return the directory of instrumented classes in {@code outputDirectory}, which must precede
+   *     the original classes on the classpath of the tests.
+   */
+  public static String getPathToInstrumentedClasses(String outputDirectory) {
+    return String.format("%s/classes", outputDirectory);
+  }
+
+  /** @return the EMMA metadata file in {@code outputDirectory}. */
+  public static String getPathToMetadataFile(String outputDirectory) {
+    return String.format("%s/coverage.em", outputDirectory);
   }
 
   @Override
@@ -51,8 +91,11 @@ public class InstrumentStep extends ShellStep {
 
     args.add("-outmode", mode);
 
+    // Specify where the instrumented classes are written. EMMA ignores this in overwrite mode.
+    args.add("-outdir", getPathToInstrumentedClasses(outputDirectory));
+
     // Specify the output path to the EMMA metadata file.
-    args.add("-outfile", String.format("%s/coverage.em", JUnitStep.EMMA_OUTPUT_DIR));
+    args.add("-outfile", getPathToMetadataFile(outputDirectory));
 
     // Create a comma-delimited string of instrumentation directories.
     String pathsToInstrument = Joiner.on(",").join(instrumentDirectories);
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Long-lived JVMs running {@code com.facebook.buck.junit.JUnitRunnerServer}, each of which runs the
+ * tests of one {@code java_test()} after another. Servers live for as long as buck does, which in
+ * buckd spans many commands. A server is only ever reused with the exact command that started it,
+ * so tests with different vm_args never share a JVM.
+ */
+@ThreadSafe
+class JUnitRunnerServerPool {
+
+  static final JUnitRunnerServerPool INSTANCE = new JUnitRunnerServerPool();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        INSTANCE.close();
+      }
+    });
+  }
+
+  /** How long to wait for a newly started server to connect back. */
+  private static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+
+  /** Idle servers, keyed by the working directory and command with which they were started. */
+  private final ListMultimap<List<String>, Server> idleServers = LinkedListMultimap.create();
+
+  private final Set<Server> allServers = Sets.newHashSet();
+
+  @VisibleForTesting
+  JUnitRunnerServerPool() {
+  }
+
+  /**
+   * Runs {@code job} on an idle server that was started by running {@code serverCommand}, followed
+   * by a port number, in {@code workingDirectory}. If there is no such server, a new one is
+   * started. A server is replaced once it has run {@code maxJobsPerServer} jobs, or earlier if it
+   * reports that the tests it ran leaked threads or memory.
+   *
+   * @throws IOException if a server could not be started, died while running the tests, or could
+   *     not load or run them. The results of the tests in {@code job} are then incomplete.
+   */
+  void runJob(List<String> serverCommand,
+      File workingDirectory,
+      Job job,
+      int maxJobsPerServer) throws IOException {
+    List<String> key = ImmutableList.<String>builder()
+        .add(workingDirectory.getAbsolutePath())
+        .addAll(serverCommand)
+        .build();
+
+    Server server = acquire(key, serverCommand, workingDirectory);
+    boolean shouldReuseServer = false;
+    try {
+      shouldReuseServer = server.run(job) && server.getNumJobs() < maxJobsPerServer;
+    } finally {
+      if (shouldReuseServer) {
+        synchronized (this) {
+          idleServers.put(key, server);
+        }
+      } else {
+        close(server);
+      }
+    }
+  }
+
+  private Server acquire(List<String> key, List<String> serverCommand, File workingDirectory)
+      throws IOException {
+    synchronized (this) {
+      List<Server> servers = idleServers.get(key);
+      if (!servers.isEmpty()) {
+        return servers.remove(servers.size() - 1);
+      }
+    }
+
+    // Start the server outside of the lock, as this takes a while.
+    Server server = Server.start(serverCommand, workingDirectory);
+    synchronized (this) {
+      allServers.add(server);
+    }
+    return server;
+  }
+
+  private void close(Server server) {
+    synchronized (this) {
+      allServers.remove(server);
+    }
+    server.close();
+  }
+
+  @VisibleForTesting
+  synchronized int getNumServers() {
+    return allServers.size();
+  }
+
+  /** Stops every server, including those that are running tests. */
+  void close() {
+    ImmutableList<Server> servers;
+    synchronized (this) {
+      servers = ImmutableList.copyOf(allServers);
+      allServers.clear();
+      idleServers.clear();
+    }
+    for (Server server : servers) {
+      server.close();
+    }
+  }
+
+  /**
+   * The tests to run in one server. All paths must be absolute, as servers are shared by all the
+   * test rules in the project.
+   */
+  static class Job {
+    private final ImmutableList<String> sharedClasspath;
+    private final ImmutableList<String> classpath;
+    private final String outputDirectory;
+    private final long defaultTestTimeoutMillis;
+    private final ImmutableList<String> testClassNames;
+
+    /**
+     * @param sharedClasspath classpath entries whose classes may be reused by later jobs that have
+     *     the same shared classpath. This must include JUnit.
+     * @param classpath classpath entries whose classes are loaded afresh for this job.
+     */
+    Job(List<String> sharedClasspath,
+        List<String> classpath,
+        String outputDirectory,
+        long defaultTestTimeoutMillis,
+        List<String> testClassNames) {
+      this.sharedClasspath = ImmutableList.copyOf(sharedClasspath);
+      this.classpath = ImmutableList.copyOf(classpath);
+      this.outputDirectory = Preconditions.checkNotNull(outputDirectory);
+      this.defaultTestTimeoutMillis = defaultTestTimeoutMillis;
+      this.testClassNames = ImmutableList.copyOf(testClassNames);
+    }
+
+    @VisibleForTesting
+    ImmutableList<String> getSharedClasspath() {
+      return sharedClasspath;
+    }
+
+    @VisibleForTesting
+    ImmutableList<String> getClasspath() {
+      return classpath;
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+      writeStrings(sharedClasspath, out);
+      writeStrings(classpath, out);
+      out.writeUTF(outputDirectory);
+      out.writeLong(defaultTestTimeoutMillis);
+      writeStrings(testClassNames, out);
+      out.flush();
+    }
+
+    private static void writeStrings(List<String> strings, DataOutputStream out)
+        throws IOException {
+      out.writeInt(strings.size());
+      for (String string : strings) {
+        out.writeUTF(string);
+      }
+    }
+  }
+
+  private static class Server {
+    private final Process process;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private int numJobs;
+
+    private Server(Process process, Socket socket) throws IOException {
+      this.process = process;
+      this.socket = socket;
+      this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    static Server start(List<String> serverCommand, File workingDirectory) throws IOException {
+      try (ServerSocket serverSocket = new ServerSocket(
+          /* port */ 0,
+          /* backlog */ 1,
+          InetAddress.getLoopbackAddress())) {
+        serverSocket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(ImmutableList.<String>builder()
+            .addAll(serverCommand)
+            .add(String.valueOf(serverSocket.getLocalPort()))
+            .build());
+        processBuilder.directory(workingDirectory);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        discardOutput(process);
+
+        try {
+          return new Server(process, serverSocket.accept());
+        } catch (IOException e) {
+          process.destroy();
+          throw e;
+        }
+      }
+    }
+
+    /**
+     * Output written by tests while they run is recorded in their results. Anything else that the
+     * server writes is dropped, as there is no test to attribute it to, but it must still be read
+     * so that the server does not block on a full pipe.
+     */
+    private static void discardOutput(Process process) {
+      final InputStream output = process.getInputStream();
+      Thread thread = new Thread("JUnitRunnerServer output") {
+        @Override
+        public void run() {
+          try {
+            ByteStreams.copy(output, ByteStreams.nullOutputStream());
+          } catch (IOException e) {
+            // The server has exited.
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getNumJobs() {
+      return numJobs;
+    }
+
+    /** @return true if the server may be used to run more jobs. */
+    boolean run(Job job) throws IOException {
+      numJobs++;
+      job.writeTo(out);
+      boolean isSuccess = in.readBoolean();
+      String error = isSuccess ? null : in.readUTF();
+      boolean shouldBeReplaced = in.readBoolean();
+      if (!isSuccess) {
+        throw new IOException("Failed to run tests in a reused JVM:\n" + error);
+      }
+      return !shouldBeReplaced;
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // The server will notice that the connection was closed, or be destroyed below.
+      }
+      process.destroy();
+    }
+  }
+}
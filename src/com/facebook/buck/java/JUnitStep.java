@@ -20,6 +20,7 @@ import com.facebook.buck.shell.ShellStep;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.AndroidPlatformTarget;
 import com.facebook.buck.util.BuckConstant;
+import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -28,6 +29,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
@@ -36,6 +38,10 @@ public class JUnitStep extends ShellStep {
   public static final String EMMA_OUTPUT_DIR =
       String.format("%s/emma", BuckConstant.GEN_DIR);
 
+  /** Runtime coverage data, which each test JVM merges into this file as it exits. */
+  public static final String PATH_TO_EMMA_COVERAGE_DATA =
+      String.format("%s/coverage.ec", EMMA_OUTPUT_DIR);
+
   // Note that the default value is used when `buck test --all` is run on Buck itself.
   // TODO(mbolin): Change this so that pathToEmmaJar is injected. This is a non-trivial refactor
   // because a number of other classes currently reference this constant.
@@ -46,6 +52,10 @@ public class JUnitStep extends ShellStep {
   static final String JUNIT_TEST_RUNNER_CLASS_NAME =
       "com.facebook.buck.junit.JUnitRunner";
 
+  @VisibleForTesting
+  static final String JUNIT_RUNNER_SERVER_CLASS_NAME =
+      "com.facebook.buck.junit.JUnitRunnerServer";
+
   private static final String EMMA_COVERAGE_OUT_FILE = "emma.coverage.out.file";
 
   private final Set<String> classpathEntries;
@@ -110,15 +120,78 @@ public class JUnitStep extends ShellStep {
     return "junit";
   }
 
+  /**
+   * If the {@link ExecutionContext} allows test JVMs to run more than one test rule, the tests are
+   * run in a long-lived JVM from {@link JUnitRunnerServerPool}. If that fails for any reason, they
+   * are run in a new JVM, as they would be otherwise, so that any problem with the tests themselves
+   * is reported in the usual way.
+   */
+  @Override
+  public int execute(ExecutionContext context) {
+    int maxTestJobsPerJvm = context.getMaxTestJobsPerJvm();
+    if (maxTestJobsPerJvm > 1 && !isCodeCoverageEnabled && !isDebugEnabled) {
+      try {
+        JUnitRunnerServerPool.INSTANCE.runJob(
+            getServerCommand(context),
+            context.getProjectDirectoryRoot(),
+            createServerJob(context),
+            maxTestJobsPerJvm);
+        return 0;
+      } catch (IOException e) {
+        if (context.getVerbosity().shouldPrintCommand()) {
+          warnUser(context, String.format(
+              "Running %s in a new JVM: %s", testClassNames, e.getMessage()));
+        }
+      }
+    }
+    return super.execute(context);
+  }
+
   @Override
   protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
+    ImmutableList.Builder<String> args = ImmutableList.builder();
+    args.addAll(getJavaCommand(context));
+
+    // Build up the -classpath argument, starting with the classpath entries the client specified.
+    List<String> classpath = getClasspath(context);
+
+    // Finally, include an entry for the test runner.
+    classpath.add(testRunnerClassesDirectory);
+
+    // Add the -classpath argument.
+    args.add("-classpath").add(Joiner.on(File.pathSeparator).join(classpath));
+
+    // Specify the Java class whose main() method should be run. This is the class that is
+    // responsible for running the tests.
+    args.add(JUNIT_TEST_RUNNER_CLASS_NAME);
+
+    // The first argument to the test runner is where the test results should be written. It is not
+    // reliable to write test results to stdout or stderr because there may be output from the unit
+    // tests written to those file descriptors, as well.
+    args.add(directoryForTestResults);
+
+    // Add the default test timeout.
+    args.add(String.valueOf(context.getDefaultTestTimeoutMillis()));
+
+    // List all of the tests to be run.
+    for (String testClassName : testClassNames) {
+      args.add(testClassName);
+    }
+
+    return args.build();
+  }
+
+  /**
+   * @return the command that starts a JVM, up to but excluding its classpath.
+   */
+  private ImmutableList<String> getJavaCommand(ExecutionContext context) {
     ImmutableList.Builder<String> args = ImmutableList.builder();
     args.add("java");
 
     // Add the output property for EMMA so if the classes are instrumented, coverage.ec will be
     // placed in the EMMA output folder.
     if (isCodeCoverageEnabled) {
-      args.add(String.format("-D%s=%s/coverage.ec", EMMA_COVERAGE_OUT_FILE, EMMA_OUTPUT_DIR));
+      args.add(String.format("-D%s=%s", EMMA_COVERAGE_OUT_FILE, PATH_TO_EMMA_COVERAGE_DATA));
     }
 
     if (isDebugEnabled) {
@@ -138,7 +211,13 @@ public class JUnitStep extends ShellStep {
       args.add("-verbose");
     }
 
-    // Build up the -classpath argument, starting with the classpath entries the client specified.
+    return args.build();
+  }
+
+  /**
+   * @return the classpath needed by the tests, excluding the test runner.
+   */
+  private List<String> getClasspath(ExecutionContext context) {
     List<String> classpath = Lists.newArrayList(classpathEntries);
 
     // Add EMMA to the classpath.
@@ -154,30 +233,46 @@ public class JUnitStep extends ShellStep {
       }
     }
 
-    // Finally, include an entry for the test runner.
-    classpath.add(testRunnerClassesDirectory);
-
-    // Add the -classpath argument.
-    args.add("-classpath").add(Joiner.on(File.pathSeparator).join(classpath));
-
-    // Specify the Java class whose main() method should be run. This is the class that is
-    // responsible for running the tests.
-    args.add(JUNIT_TEST_RUNNER_CLASS_NAME);
-
-    // The first argument to the test runner is where the test results should be written. It is not
-    // reliable to write test results to stdout or stderr because there may be output from the unit
-    // tests written to those file descriptors, as well.
-    args.add(directoryForTestResults);
+    return classpath;
+  }
 
-    // Add the default test timeout.
-    args.add(String.valueOf(context.getDefaultTestTimeoutMillis()));
+  @VisibleForTesting
+  ImmutableList<String> getServerCommand(ExecutionContext context) {
+    return ImmutableList.<String>builder()
+        .addAll(getJavaCommand(context))
+        .add("-classpath")
+        .add(testRunnerClassesDirectory)
+        .add(JUNIT_RUNNER_SERVER_CLASS_NAME)
+        .build();
+  }
 
-    // List all of the tests to be run.
-    for (String testClassName : testClassNames) {
-      args.add(testClassName);
+  /**
+   * Classes that buck builds are loaded afresh for every job, as they are what changes between
+   * runs. Those of third-party jars and of the Android platform are shared by consecutive jobs run
+   * by the same server, as loading them again is most of the cost that the server saves.
+   */
+  @VisibleForTesting
+  JUnitRunnerServerPool.Job createServerJob(ExecutionContext context) {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    ImmutableList.Builder<String> sharedClasspath = ImmutableList.builder();
+    ImmutableList.Builder<String> classpath = ImmutableList.builder();
+    for (String entry : getClasspath(context)) {
+      String absoluteEntry = new File(entry).isAbsolute()
+          ? entry
+          : filesystem.getFileForRelativePath(entry).getAbsolutePath();
+      if (entry.startsWith(BuckConstant.BUCK_OUTPUT_DIRECTORY + "/")) {
+        classpath.add(absoluteEntry);
+      } else {
+        sharedClasspath.add(absoluteEntry);
+      }
     }
 
-    return args.build();
+    return new JUnitRunnerServerPool.Job(
+        sharedClasspath.build(),
+        classpath.build(),
+        filesystem.getFileForRelativePath(directoryForTestResults).getAbsolutePath(),
+        context.getDefaultTestTimeoutMillis(),
+        ImmutableList.copyOf(testClassNames));
   }
 
   private void warnUser(ExecutionContext context, String message) {
@@ -25,14 +25,19 @@ import com.facebook.buck.step.Step;
 import com.facebook.buck.util.DirectoryTraversal;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipArchive;
 import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -40,14 +45,22 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -55,9 +68,22 @@ import javax.annotation.Nullable;
 
 /**
  * Creates a JAR file from a collection of directories/ZIP/JAR files.
+ * <p>
+ * The entries of ZIP/JAR files are copied without being decompressed and compressed again, and the
+ * files in directories are compressed in parallel, so that merging many jars, as a
+ * {@link JavaBinaryRule} does, is not limited by the speed of a single thread.
  */
 public class JarDirectoryStep implements Step {
 
+  /**
+   * Directories with fewer files than this are compressed on the calling thread, as handing so
+   * little work to other threads is not worth it.
+   */
+  private static final int MIN_FILES_TO_DEFLATE_IN_PARALLEL = 16;
+
+  /** How many files each thread may compress ahead of the file being written to the JAR. */
+  private static final int FILES_TO_DEFLATE_AHEAD_PER_THREAD = 4;
+
   /** Where to write the new JAR file. */
   private final String pathToOutputFile;
 
@@ -191,39 +217,81 @@ public class JarDirectoryStep implements Step {
       Manifest manifest,
       Set<String> alreadyAddedEntries,
       BuckEventBus eventBus) throws IOException {
-    ZipFile zip = new ZipFile(file);
-    for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
-      ZipEntry entry = entries.nextElement();
-      String entryName = entry.getName();
-
-      if (entryName.equals(JarFile.MANIFEST_NAME)) {
-        Manifest readManifest = readManifest(zip, entry);
-        merge(manifest, readManifest);
-        continue;
-      }
+    Optional<ZipArchive> archive = ZipArchive.open(file);
+    if (!archive.isPresent()) {
+      recompressZipEntriesToJar(file, jar, manifest, alreadyAddedEntries, eventBus);
+      return;
+    }
+
+    try (ZipArchive zip = archive.get()) {
+      for (ZipArchive.Entry entry : zip.getEntries()) {
+        String entryName = entry.getName();
+
+        if (entryName.equals(JarFile.MANIFEST_NAME)) {
+          try (InputStream manifestStream = zip.getInputStream(entry)) {
+            merge(manifest, new Manifest(manifestStream));
+          }
+          continue;
+        }
+
+        // See recompressZipEntriesToJar() for why only duplicate class files are skipped.
+        if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
+          eventBus.post(LogEvent.create(
+              determineSeverity(entry), "Duplicate found when adding file to jar: %s", entryName));
+          continue;
+        }
 
-      // We're in the process of merging a bunch of different jar files. These typically contain
-      // just ".class" files and the manifest, but they can also include things like license files
-      // from third party libraries and config files. We should include those license files within
-      // the jar we're creating. Extracting them is left as an exercise for the consumer of the jar.
-      // Because we don't know which files are important, the only ones we skip are duplicate class
-      // files.
-      if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
-        // Duplicate entries. Skip.
-        eventBus.post(LogEvent.create(
-            determineSeverity(entry), "Duplicate found when adding file to jar: %s", entryName));
-        continue;
+        // The entry is already compressed, so copy it as it is.
+        try (InputStream rawData = zip.getRawInputStream(entry)) {
+          jar.putRawEntry(entry, rawData);
+        }
       }
+    }
+  }
+
+  /**
+   * Same as {@link #copyZipEntriesToJar}, but for the zip files that {@link ZipArchive} does not
+   * support, whose entries are decompressed and compressed again.
+   */
+  private void recompressZipEntriesToJar(File file,
+      final CustomZipOutputStream jar,
+      Manifest manifest,
+      Set<String> alreadyAddedEntries,
+      BuckEventBus eventBus) throws IOException {
+    try (ZipFile zip = new ZipFile(file)) {
+      for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
+        ZipEntry entry = entries.nextElement();
+        String entryName = entry.getName();
 
-      // Reinitialize the compressed field to -1 as the ZipEntry(String) constructor would.
-      // See https://github.com/spearce/buck/commit/8338c1c3d4a546f577eed0c9941d9f1c2ba0a1b7.
-      ZipEntry newEntry = new ZipEntry(entry);
-      newEntry.setCompressedSize(-1);
+        if (entryName.equals(JarFile.MANIFEST_NAME)) {
+          Manifest readManifest = readManifest(zip, entry);
+          merge(manifest, readManifest);
+          continue;
+        }
 
-      jar.putNextEntry(newEntry);
-      InputStream inputStream = zip.getInputStream(entry);
-      ByteStreams.copy(inputStream, jar);
-      jar.closeEntry();
+        // We're in the process of merging a bunch of different jar files. These typically
+        // contain just ".class" files and the manifest, but they can also include things like
+        // license files from third party libraries and config files. We should include those
+        // license files within the jar we're creating. Extracting them is left as an exercise for
+        // the consumer of the jar. Because we don't know which files are important, the only ones
+        // we skip are duplicate class files.
+        if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
+          // Duplicate entries. Skip.
+          eventBus.post(LogEvent.create(
+              determineSeverity(entry), "Duplicate found when adding file to jar: %s", entryName));
+          continue;
+        }
+
+        // Reinitialize the compressed field to -1 as the ZipEntry(String) constructor would.
+        // See https://github.com/spearce/buck/commit/8338c1c3d4a546f577eed0c9941d9f1c2ba0a1b7.
+        ZipEntry newEntry = new ZipEntry(entry);
+        newEntry.setCompressedSize(-1);
+
+        jar.putNextEntry(newEntry);
+        InputStream inputStream = zip.getInputStream(entry);
+        ByteStreams.copy(inputStream, jar);
+        jar.closeEntry();
+      }
     }
   }
 
@@ -250,33 +318,96 @@ public class JarDirectoryStep implements Step {
       final CustomZipOutputStream jar,
       final Set<String> alreadyAddedEntries,
       final BuckEventBus eventBus) throws IOException {
+    // Decide which files to add in the order in which they are traversed, so that the JAR does not
+    // depend on the order in which they are compressed.
+    final Map<String, File> filesToAdd = Maps.newLinkedHashMap();
     new DirectoryTraversal(directory) {
 
       @Override
       public void visit(File file, String relativePath) {
         JarEntry entry = new JarEntry(relativePath);
         String entryName = entry.getName();
-        entry.setTime(file.lastModified());
-        try {
-          // We expect there to be many duplicate entries for things like directories. Creating
-          // those repeatedly would be lame, so don't do that.
-          if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
-            if (!entryName.endsWith("/")) {
-              eventBus.post(LogEvent.create(
-                  determineSeverity(entry),
-                  "Duplicate found when adding directory to jar: %s", relativePath));
-            }
-              return;
+        // We expect there to be many duplicate entries for things like directories. Creating
+        // those repeatedly would be lame, so don't do that.
+        if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
+          if (!entryName.endsWith("/")) {
+            eventBus.post(LogEvent.create(
+                determineSeverity(entry),
+                "Duplicate found when adding directory to jar: %s", relativePath));
           }
-          jar.putNextEntry(entry);
-          Files.copy(file, jar);
-          jar.closeEntry();
-        } catch (IOException e) {
-          Throwables.propagate(e);
+          return;
         }
+        filesToAdd.put(entryName, file);
       }
 
     }.traverse();
+
+    int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), filesToAdd.size());
+    ExecutorService executor = filesToAdd.size() < MIN_FILES_TO_DEFLATE_IN_PARALLEL
+        ? MoreExecutors.sameThreadExecutor()
+        : Executors.newFixedThreadPool(numThreads);
+    try {
+      // Write the files in order as they are compressed, with a bounded number compressed ahead
+      // so that the compressed data of a large directory is not all held in memory.
+      Deque<Future<DeflatedFile>> deflatedFiles = new ArrayDeque<>();
+      Iterator<Map.Entry<String, File>> iterator = filesToAdd.entrySet().iterator();
+      while (iterator.hasNext() || !deflatedFiles.isEmpty()) {
+        while (iterator.hasNext()
+            && deflatedFiles.size() < numThreads * FILES_TO_DEFLATE_AHEAD_PER_THREAD) {
+          final Map.Entry<String, File> fileToAdd = iterator.next();
+          deflatedFiles.add(executor.submit(new Callable<DeflatedFile>() {
+            @Override
+            public DeflatedFile call() throws IOException {
+              return deflate(fileToAdd.getKey(), fileToAdd.getValue());
+            }
+          }));
+        }
+
+        DeflatedFile deflatedFile = Futures.get(deflatedFiles.remove(), IOException.class);
+        jar.putRawEntry(deflatedFile.entry, new ByteArrayInputStream(deflatedFile.data));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Compresses {@code file} as the JAR entry {@code entryName}, with the same time and compression
+   * level as if it were written through {@link CustomZipOutputStream#putNextEntry(ZipEntry)}.
+   */
+  private static DeflatedFile deflate(String entryName, File file) throws IOException {
+    byte[] data = Files.toByteArray(file);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 16);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap */ true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        int written = deflater.deflate(buffer);
+        compressed.write(buffer, 0, written);
+      }
+    } finally {
+      deflater.end();
+    }
+
+    JarEntry entry = new JarEntry(entryName);
+    entry.setMethod(ZipEntry.DEFLATED);
+    entry.setTime(file.lastModified());
+    entry.setCrc(Hashing.crc32().hashBytes(data).padToLong());
+    entry.setSize(data.length);
+    entry.setCompressedSize(compressed.size());
+    return new DeflatedFile(entry, compressed.toByteArray());
+  }
+
+  private static class DeflatedFile {
+    private final ZipEntry entry;
+    private final byte[] data;
+
+    private DeflatedFile(ZipEntry entry, byte[] data) {
+      this.entry = entry;
+      this.data = data;
+    }
   }
 
   /**
@@ -31,6 +31,7 @@ import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.TestRule;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.ParallelStep;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.TargetDevice;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
@@ -46,14 +47,19 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
@@ -63,6 +69,16 @@ import javax.annotation.Nullable;
 
 public class JavaTestRule extends DefaultJavaLibraryRule implements TestRule {
 
+  /**
+   * The test classes of a single rule are split into at most this many shards. How many of them
+   * actually run at once is limited by the threads that {@code buck test} has to spare, which are
+   * shared by all of the rules that it runs.
+   */
+  private static final int MAX_TEST_SHARDS = Runtime.getRuntime().availableProcessors();
+
+  @VisibleForTesting
+  static final int MIN_TEST_CLASSES_PER_SHARD = 4;
+
   private final ImmutableList<String> vmArgs;
 
   /**
@@ -155,40 +171,166 @@ public class JavaTestRule extends DefaultJavaLibraryRule implements TestRule {
           buildContext.getDependencyGraph());
     }
 
+    // The results of the previous run are about to be cleaned out, so read how long each test
+    // class took now in order to balance the shards.
+    int numShards = getNumShards(testClassNames.size(), executionContext);
+    Map<String, Long> testClassDurations = numShards > 1
+        ? readTestClassDurations(testClassNames, executionContext)
+        : ImmutableMap.<String, Long>of();
+
     ImmutableList.Builder<Step> steps = ImmutableList.builder();
 
-    String pathToTestOutput = getPathToTestOutput();
+    String pathToTestOutput = getPathToTestOutputDirectory();
     MakeCleanDirectoryStep mkdirClean = new MakeCleanDirectoryStep(pathToTestOutput);
     steps.add(mkdirClean);
 
+    ImmutableSet.Builder<String> classpathEntriesBuilder = ImmutableSet.builder();
+
+    // When collecting code coverage, the instrumented classes of the source under test are put
+    // ahead of the original classes, which still provide the resources and any classes that EMMA
+    // did not instrument.
+    if (executionContext.isCodeCoverageEnabled()) {
+      for (JavaLibraryRule rule : sourceUnderTest) {
+        classpathEntriesBuilder.add(InstrumentStep.getPathToInstrumentedClasses(
+            InstrumentStep.getPathToInstrumentedOutput(rule.getBuildTarget())));
+      }
+    }
+
     // If there are android resources, then compile the uber R.java files and add them to the
     // classpath used to run the test runner.
-    ImmutableSet<String> classpathEntries;
     if (getProperties().is(ANDROID)) {
       BuildTarget buildTarget = getBuildTarget();
       String rDotJavaClasspathEntry;
       UberRDotJavaUtil.createDummyRDotJavaFiles(androidResourceDeps, buildTarget, steps);
       rDotJavaClasspathEntry = UberRDotJavaUtil.getRDotJavaBinFolder(buildTarget);
-      ImmutableSet.Builder<String> classpathEntriesBuilder = ImmutableSet.builder();
       classpathEntriesBuilder.add(rDotJavaClasspathEntry);
-      classpathEntriesBuilder.addAll(getTransitiveClasspathEntries().values());
-      classpathEntries = classpathEntriesBuilder.build();
-    } else {
-      classpathEntries = ImmutableSet.copyOf(getTransitiveClasspathEntries().values());
     }
-
-    Step junit = new JUnitStep(
-        classpathEntries,
-        testClassNames,
-        amendVmArgs(vmArgs, executionContext.getTargetDeviceOptional()),
-        pathToTestOutput,
-        executionContext.isCodeCoverageEnabled(),
-        executionContext.isDebugEnabled());
-    steps.add(junit);
+    classpathEntriesBuilder.addAll(getTransitiveClasspathEntries().values());
+    ImmutableSet<String> classpathEntries = classpathEntriesBuilder.build();
+
+    // Each test class writes its results to its own file in pathToTestOutput, so the shards can
+    // share that directory and interpretTestResults() does not need to know how they were split.
+    List<Step> junitSteps = Lists.newArrayList();
+    for (Set<String> shard : shardTestClasses(testClassNames, testClassDurations, numShards)) {
+      junitSteps.add(new JUnitStep(
+          classpathEntries,
+          shard,
+          amendVmArgs(vmArgs, executionContext.getTargetDeviceOptional()),
+          pathToTestOutput,
+          executionContext.isCodeCoverageEnabled(),
+          executionContext.isDebugEnabled()));
+    }
+    steps.add(junitSteps.size() == 1 ? junitSteps.get(0) : new ParallelStep(junitSteps));
 
     return steps.build();
   }
 
+  /**
+   * @return the number of JVMs across which the test classes of this rule should be run. Each
+   *     shard gets at least {@link #MIN_TEST_CLASSES_PER_SHARD} classes, as starting a JVM is not
+   *     free. Tests are not sharded when attaching a debugger, which listens on a single port, or
+   *     when collecting code coverage, which every JVM would write to the same file.
+   */
+  private static int getNumShards(int numTestClasses, ExecutionContext context) {
+    if (context.isDebugEnabled() || context.isCodeCoverageEnabled()) {
+      return 1;
+    }
+    return Math.max(1, Math.min(MAX_TEST_SHARDS, numTestClasses / MIN_TEST_CLASSES_PER_SHARD));
+  }
+
+  /**
+   * @return how long each of {@code testClassNames} took, in milliseconds, the last time that this
+   *     rule's tests were run. Classes that have no results are omitted.
+   */
+  @SuppressWarnings("PMD.EmptyCatchBlock")
+  private Map<String, Long> readTestClassDurations(Set<String> testClassNames,
+      ExecutionContext context) {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    ImmutableMap.Builder<String, Long> durations = ImmutableMap.builder();
+    for (String testClass : testClassNames) {
+      File testResultFile = filesystem.getFileForRelativePath(
+          String.format("%s/%s.xml", getPathToTestOutputDirectory(), testClass));
+      if (!testResultFile.isFile()) {
+        continue;
+      }
+      try {
+        durations.put(testClass, XmlTestResultParser.parse(testResultFile).getTotalTime());
+      } catch (IOException | RuntimeException e) {
+        // The results may be from a run that was interrupted. They are only used for balancing
+        // the shards, so the class is treated as if it had never been run.
+      }
+    }
+    return durations.build();
+  }
+
+  /**
+   * Splits {@code testClassNames} into {@code numShards} sets whose total durations are as even as
+   * possible, by assigning the longest classes first, each to the shard with the least work so far.
+   * Classes with no known duration are assumed to take the average time of those with one.
+   */
+  @VisibleForTesting
+  static ImmutableList<ImmutableSortedSet<String>> shardTestClasses(
+      Set<String> testClassNames,
+      final Map<String, Long> testClassDurations,
+      int numShards) {
+    Preconditions.checkArgument(numShards > 0);
+    if (numShards == 1) {
+      return ImmutableList.of(ImmutableSortedSet.copyOf(testClassNames));
+    }
+
+    long totalKnownDuration = 0;
+    int numKnownDurations = 0;
+    for (String testClass : testClassNames) {
+      Long duration = testClassDurations.get(testClass);
+      if (duration != null) {
+        totalKnownDuration += duration;
+        numKnownDurations++;
+      }
+    }
+    final long defaultDuration =
+        numKnownDurations == 0 ? 1 : Math.max(1, totalKnownDuration / numKnownDurations);
+
+    final Map<String, Long> durations = Maps.newHashMap();
+    for (String testClass : testClassNames) {
+      Long duration = testClassDurations.get(testClass);
+      durations.put(testClass, duration == null ? defaultDuration : duration);
+    }
+
+    List<String> longestFirst = Lists.newArrayList(testClassNames);
+    Collections.sort(longestFirst, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int byDuration = Long.compare(durations.get(b), durations.get(a));
+        return byDuration != 0 ? byDuration : a.compareTo(b);
+      }
+    });
+
+    List<ImmutableSortedSet.Builder<String>> shards = Lists.newArrayList();
+    long[] shardDurations = new long[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards.add(ImmutableSortedSet.<String>naturalOrder());
+    }
+    for (String testClass : longestFirst) {
+      int shortestShard = 0;
+      for (int i = 1; i < numShards; i++) {
+        if (shardDurations[i] < shardDurations[shortestShard]) {
+          shortestShard = i;
+        }
+      }
+      shards.get(shortestShard).add(testClass);
+      shardDurations[shortestShard] += durations.get(testClass);
+    }
+
+    ImmutableList.Builder<ImmutableSortedSet<String>> result = ImmutableList.builder();
+    for (ImmutableSortedSet.Builder<String> shard : shards) {
+      ImmutableSortedSet<String> testClasses = shard.build();
+      if (!testClasses.isEmpty()) {
+        result.add(testClasses);
+      }
+    }
+    return result.build();
+  }
+
   @VisibleForTesting
   List<String> amendVmArgs(List<String> existingVmArgs, Optional<TargetDevice> targetDevice) {
     ImmutableList.Builder<String> vmArgs = ImmutableList.builder();
@@ -229,7 +371,7 @@ public class JavaTestRule extends DefaultJavaLibraryRule implements TestRule {
       return true;
     }
 
-    File outputDirectory = new File(getPathToTestOutput());
+    File outputDirectory = new File(getPathToTestOutputDirectory());
     for (String testClass : testClassNames) {
       File testResultFile = new File(outputDirectory, testClass + ".xml");
       if (!testResultFile.isFile()) {
@@ -240,7 +382,8 @@ public class JavaTestRule extends DefaultJavaLibraryRule implements TestRule {
     return true;
   }
 
-  private String getPathToTestOutput() {
+  @Override
+  public String getPathToTestOutputDirectory() {
     return String.format("%s/%s__java_test_%s_output__",
         BuckConstant.GEN_DIR,
         getBuildTarget().getBasePathWithSlash(),
@@ -265,7 +408,7 @@ public class JavaTestRule extends DefaultJavaLibraryRule implements TestRule {
         ProjectFilesystem filesystem = context.getProjectFilesystem();
         for (String testClass : testClassNames) {
           File testResultFile = filesystem.getFileForRelativePath(
-              String.format("%s/%s.xml", getPathToTestOutput(), testClass));
+              String.format("%s/%s.xml", getPathToTestOutputDirectory(), testClass));
           TestCaseSummary summary = XmlTestResultParser.parse(testResultFile);
           summaries.add(summary);
         }
@@ -23,13 +23,15 @@ import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 
 import java.io.File;
@@ -38,6 +40,7 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
@@ -46,13 +49,22 @@ import java.util.zip.ZipFile;
 import javax.annotation.Nullable;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 
 public class JavacInMemoryStep implements Step {
 
+  private static final Function<String, File> TO_FILE = new Function<String, File>() {
+    @Override
+    public File apply(String path) {
+      return new File(path);
+    }
+  };
+
   private final String pathToOutputDirectory;
 
   private final Set<String> javaSourceFilePaths;
@@ -74,6 +86,12 @@ public class JavacInMemoryStep implements Step {
    */
   private AtomicBoolean isExecuted = new AtomicBoolean(false);
 
+  private Optional<ImmutableSetMultimap<String, String>> classesReadFromClasspath =
+      Optional.absent();
+
+  private ImmutableSetMultimap<String, String> classesWrittenByLastBuild =
+      ImmutableSetMultimap.of();
+
   public JavacInMemoryStep(
         String pathToOutputDirectory,
         Set<String> javaSourceFilePaths,
@@ -104,7 +122,12 @@ public class JavacInMemoryStep implements Step {
     AnnotationProcessingDataDecorator decorator;
     if (pathToOutputAbiFile.isPresent()) {
       abiKeyFile = filesystem.getFileForRelativePath(pathToOutputAbiFile.get());
-      decorator = new AbiWritingAnnotationProcessingDataDecorator(abiKeyFile);
+      Optional<File> abiSummariesFile = Optional.absent();
+      if (getPathToOutputAbiSummariesFile().isPresent()) {
+        abiSummariesFile = Optional.of(
+            filesystem.getFileForRelativePath(getPathToOutputAbiSummariesFile().get()));
+      }
+      decorator = new AbiWritingAnnotationProcessingDataDecorator(abiKeyFile, abiSummariesFile);
     } else {
       decorator = AnnotationProcessingDataDecorators.identity();
     }
@@ -145,14 +168,66 @@ public class JavacInMemoryStep implements Step {
   }
 
   protected int buildWithClasspath(ExecutionContext context, Set<String> buildClasspathEntries) {
+    return buildWithClasspath(context, buildClasspathEntries, javaSourceFilePaths);
+  }
+
+  /**
+   * Compiles {@code sourceFilePaths}, which may be a subset of the sources of this step, into the
+   * output directory of this step.
+   */
+  protected int buildWithClasspath(ExecutionContext context,
+      Set<String> buildClasspathEntries,
+      Set<String> sourceFilePaths) {
     JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
     Preconditions.checkNotNull(compiler,
         "If using JRE instead of JDK, ToolProvider.getSystemJavaCompiler() may be null.");
-    StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
-    Iterable<? extends JavaFileObject> compilationUnits;
+    StandardJavaFileManager standardFileManager =
+        compiler.getStandardFileManager(null, null, null);
+    Function<String, String> pathRelativizer = context.getProjectFilesystem().getPathRelativizer();
+    CachingClasspathJavaFileManager fileManager = new CachingClasspathJavaFileManager(
+        standardFileManager,
+        buildClasspathEntries,
+        Functions.compose(TO_FILE, pathRelativizer),
+        ClasspathArchiveCache.getInstance());
+    Map<JavaFileObject, String> compilationUnits = Maps.newLinkedHashMap();
     try {
-      compilationUnits = createCompilationUnits(
-          fileManager, context.getProjectFilesystem().getPathRelativizer());
+      return buildWithFileManager(context,
+          compiler,
+          buildClasspathEntries,
+          sourceFilePaths,
+          standardFileManager,
+          fileManager,
+          compilationUnits);
+    } finally {
+      classesReadFromClasspath = fileManager.getClassesRead();
+      ImmutableSetMultimap.Builder<String, String> classesWritten = ImmutableSetMultimap.builder();
+      for (Map.Entry<FileObject, String> entry : fileManager.getClassesWritten().entries()) {
+        String sourceFilePath = compilationUnits.get(entry.getKey());
+        if (sourceFilePath != null) {
+          classesWritten.put(sourceFilePath, entry.getValue());
+        }
+      }
+      classesWrittenByLastBuild = classesWritten.build();
+      try {
+        fileManager.close();
+      } catch (IOException e) {
+        e.printStackTrace(context.getStdErr());
+      }
+    }
+  }
+
+  private int buildWithFileManager(ExecutionContext context,
+      JavaCompiler compiler,
+      Set<String> buildClasspathEntries,
+      Set<String> sourceFilePaths,
+      StandardJavaFileManager standardFileManager,
+      JavaFileManager fileManager,
+      Map<JavaFileObject, String> compilationUnits) {
+    try {
+      createCompilationUnits(standardFileManager,
+          context.getProjectFilesystem().getPathRelativizer(),
+          sourceFilePaths,
+          compilationUnits);
     } catch (IOException e) {
       e.printStackTrace(context.getStdErr());
       return 1;
@@ -168,7 +243,7 @@ public class JavacInMemoryStep implements Step {
         diagnostics,
         options,
         classNamesForAnnotationProcessing,
-        compilationUnits);
+        compilationUnits.keySet());
 
     // Invoke the compilation and inspect the result.
     boolean isSuccess = compilationTask.call();
@@ -195,16 +270,21 @@ public class JavacInMemoryStep implements Step {
     }
   }
 
-  private Iterable<? extends JavaFileObject> createCompilationUnits(
+  /**
+   * Creates a {@link JavaFileObject} for each source in {@code sourceFilePaths}, and records the
+   * path of the source that each came from in {@code compilationUnits}.
+   */
+  private void createCompilationUnits(
       StandardJavaFileManager fileManager,
-      Function<String, String> pathRelativizer) throws IOException {
-    List<JavaFileObject> compilationUnits = Lists.newArrayList();
-    for (String path : javaSourceFilePaths) {
+      Function<String, String> pathRelativizer,
+      Set<String> sourceFilePaths,
+      Map<JavaFileObject, String> compilationUnits) throws IOException {
+    for (String path : sourceFilePaths) {
       if (path.endsWith(".java")) {
         // For an ordinary .java file, create a corresponding JavaFileObject.
         Iterable<? extends JavaFileObject> javaFileObjects = fileManager.getJavaFileObjects(
             pathRelativizer.apply(path));
-        compilationUnits.add(Iterables.getOnlyElement(javaFileObjects));
+        compilationUnits.put(Iterables.getOnlyElement(javaFileObjects), path);
       } else if (path.endsWith(".src.zip")) {
         // For a Zip of .java files, create a JavaFileObject for each .java entry.
         ZipFile zipFile = new ZipFile(pathRelativizer.apply(path));
@@ -216,11 +296,10 @@ public class JavacInMemoryStep implements Step {
             continue;
           }
 
-          compilationUnits.add(new ZipEntryJavaFileObject(zipFile, entry));
+          compilationUnits.put(new ZipEntryJavaFileObject(zipFile, entry), path);
         }
       }
     }
-    return compilationUnits;
   }
 
   @Override
@@ -262,4 +341,46 @@ public class JavacInMemoryStep implements Step {
     // Note that if the rule fails, isExecuted should still be set, but abiKey will be null.
     return abiKey;
   }
+
+  /**
+   * Returns the binary names of the classes that javac read from the classpath, keyed by the
+   * classpath entry that each was read from. Entries that javac did not read from are absent.
+   * <p>
+   * This must be invoked after the step has executed. The result is {@link Optional#absent()} if
+   * the classpath could not be tracked, in which case nothing can be inferred about which entries
+   * were used.
+   */
+  public Optional<ImmutableSetMultimap<String, String>> getClassesReadFromClasspath() {
+    Preconditions.checkState(isExecuted.get(),
+        "Must execute step before requesting the classes read from the classpath.");
+    return classesReadFromClasspath;
+  }
+
+  /**
+   * Same as {@link #getClassesReadFromClasspath()}, but for use by subclasses once
+   * {@link #buildWithClasspath(ExecutionContext, Set)} has returned.
+   */
+  protected Optional<ImmutableSetMultimap<String, String>> getClassesReadFromLastBuild() {
+    return classesReadFromClasspath;
+  }
+
+  /**
+   * @return the binary names of the classes that the last invocation of javac wrote, keyed by the
+   *     path of the source file that each was compiled from.
+   */
+  protected ImmutableSetMultimap<String, String> getClassesWrittenByLastBuild() {
+    return classesWrittenByLastBuild;
+  }
+
+  /**
+   * @return where javac should write the summary of each top-level type that it compiles, if
+   *     anywhere. This is only consulted if this step writes an ABI key.
+   */
+  protected Optional<String> getPathToOutputAbiSummariesFile() {
+    return Optional.absent();
+  }
+
+  protected String getPathToOutputDirectory() {
+    return pathToOutputDirectory;
+  }
 }
@@ -18,6 +18,7 @@ package com.facebook.buck.java;
 
 import static com.facebook.buck.rules.BuildableProperties.Kind.LIBRARY;
 
+import com.facebook.buck.event.LogEvent;
 import com.facebook.buck.event.ThrowableLogEvent;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetPattern;
@@ -38,6 +39,9 @@ import com.facebook.buck.rules.Sha1HashCode;
 import com.facebook.buck.step.AbstractExecutionStep;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
+import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
+import com.facebook.buck.util.BuckConstant;
+import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
@@ -45,15 +49,12 @@ import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
-import com.google.common.io.InputSupplier;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -62,15 +63,14 @@ import javax.annotation.Nullable;
  * A rule that establishes a pre-compiled JAR file as a dependency.
  */
 public class PrebuiltJarRule extends DoNotUseAbstractBuildable
-    implements JavaLibraryRule, HasClasspathEntries {
+    implements JavaLibraryRule, AbiRule, HasClasspathEntries {
 
   private final static BuildableProperties OUTPUT_TYPE = new BuildableProperties(LIBRARY);
 
   private final String binaryJar;
   private final Optional<String> sourceJar;
   private final Optional<String> javadocUrl;
-  private final Supplier<ImmutableSetMultimap<JavaLibraryRule, String>>
-      transitiveClasspathEntriesSupplier;
+  private final Supplier<Classpath> transitiveClasspathSupplier;
 
   private final Supplier<ImmutableSetMultimap<JavaLibraryRule, String>>
       declaredClasspathEntriesSupplier;
@@ -91,15 +91,16 @@ public class PrebuiltJarRule extends DoNotUseAbstractBuildable
     this.sourceJar = Preconditions.checkNotNull(sourceJar);
     this.javadocUrl = Preconditions.checkNotNull(javadocUrl);
 
-    transitiveClasspathEntriesSupplier =
-        Suppliers.memoize(new Supplier<ImmutableSetMultimap<JavaLibraryRule, String>>() {
+    transitiveClasspathSupplier =
+        Suppliers.memoize(new Supplier<Classpath>() {
           @Override
-          public ImmutableSetMultimap<JavaLibraryRule, String> get() {
-            ImmutableSetMultimap.Builder<JavaLibraryRule, String> classpathEntries =
-                ImmutableSetMultimap.builder();
-            classpathEntries.put(PrebuiltJarRule.this, getBinaryJar());
-            classpathEntries.putAll(Classpaths.getClasspathEntries(getDeps()));
-            return classpathEntries.build();
+          public Classpath get() {
+            Classpath binaryJarClasspath = Classpath.of(
+                ImmutableSetMultimap.<JavaLibraryRule, String>of(PrebuiltJarRule.this,
+                    getBinaryJar()));
+            return Classpath.of(
+                ImmutableList.of(binaryJarClasspath, Classpaths.getClasspath(getDeps())),
+                ImmutableSetMultimap.<JavaLibraryRule, String>of());
           }
         });
 
@@ -142,6 +143,35 @@ public class PrebuiltJarRule extends DoNotUseAbstractBuildable
     return ImmutableList.of(getBinaryJar());
   }
 
+  /**
+   * @return the path to a copy of {@link #getBinaryJar()} that has been stripped down to its ABI.
+   *     Rules that depend on this one compile against it instead of the binary jar.
+   */
+  public String getPathToAbiJar() {
+    return String.format("%s/%s", getPathToAbiJarDir(), getRelativePathToAbiJar());
+  }
+
+  private String getPathToAbiJarDir() {
+    return String.format("%s/%s%s",
+        BuckConstant.GEN_DIR,
+        getBuildTarget().getBasePathWithSlash(),
+        getRelativePathToAbiJarDir());
+  }
+
+  /** @return the directory containing the ABI jar, relative to the gen dir for this target. */
+  private String getRelativePathToAbiJarDir() {
+    return String.format("lib__%s__abi", getBuildTarget().getShortName());
+  }
+
+  private String getRelativePathToAbiJar() {
+    return String.format("%s-abi.jar", getBuildTarget().getShortName());
+  }
+
+  /**
+   * The ABI key is derived from the classes in the jar rather than from its bytes, so a new version
+   * of a jar whose only changes are internal does not cause the rules that depend on it to be
+   * rebuilt.
+   */
   @Override
   public Sha1HashCode getAbiKey() {
     Preconditions.checkNotNull(abiKey,
@@ -150,6 +180,11 @@ public class PrebuiltJarRule extends DoNotUseAbstractBuildable
     return abiKey;
   }
 
+  @Override
+  public Sha1HashCode getAbiKeyForDeps() {
+    return Classpaths.getAbiKeyForDeps(this, getDeps());
+  }
+
   @Override
   public void initializeFromDisk(OnDiskBuildInfo onDiskBuildInfo) {
     Optional<Sha1HashCode> abiKeyHash = onDiskBuildInfo.getHash(AbiRule.ABI_KEY_ON_DISK_METADATA);
@@ -163,7 +198,12 @@ public class PrebuiltJarRule extends DoNotUseAbstractBuildable
 
   @Override
   public ImmutableSetMultimap<JavaLibraryRule, String> getTransitiveClasspathEntries() {
-    return transitiveClasspathEntriesSupplier.get();
+    return getTransitiveClasspath().getEntries();
+  }
+
+  @Override
+  public Classpath getTransitiveClasspath() {
+    return transitiveClasspathSupplier.get();
   }
 
   @Override
@@ -189,9 +229,15 @@ public class PrebuiltJarRule extends DoNotUseAbstractBuildable
   @Override
   public List<Step> getBuildSteps(BuildContext context, BuildableContext buildableContext)
       throws IOException {
-    // Create a step to compute the ABI key.
-    Step calculateAbiStep = new CalculateAbiStep(buildableContext);
-    return ImmutableList.of(calculateAbiStep);
+    buildableContext.recordArtifact(
+        Paths.get(getRelativePathToAbiJarDir(), getRelativePathToAbiJar()));
+    buildableContext.addMetadata(AbiRule.ABI_KEY_FOR_DEPS_ON_DISK_METADATA,
+        getAbiKeyForDeps().getHash());
+
+    // Create a step to compute the ABI key and write the ABI jar.
+    return ImmutableList.of(
+        new MakeCleanDirectoryStep(getPathToAbiJarDir()),
+        new CalculateAbiStep(buildableContext));
   }
 
   private class CalculateAbiStep extends AbstractExecutionStep {
@@ -205,11 +251,23 @@ public class PrebuiltJarRule extends DoNotUseAbstractBuildable
 
     @Override
     public int execute(ExecutionContext context) {
-      File jarFile = context.getProjectFilesystem().getFileForRelativePath(binaryJar);
-      InputSupplier<? extends InputStream> inputSupplier = Files.newInputStreamSupplier(jarFile);
-      HashCode fileSha1;
+      ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+      File binaryJarFile = projectFilesystem.getFileForRelativePath(binaryJar);
+      File abiJarFile = projectFilesystem.getFileForRelativePath(getPathToAbiJar());
       try {
-        fileSha1 = ByteStreams.hash(inputSupplier, Hashing.sha1());
+        try {
+          abiKey = AbiJarWriter.write(binaryJarFile, abiJarFile);
+        } catch (RuntimeException e) {
+          // ASM rejects class files that are newer than the versions it knows about, which javac
+          // may still be able to read. Compile against the binary jar itself, and treat any
+          // change to it as a change to its ABI, as if it had no ABI jar at all.
+          context.getBuckEventBus().post(LogEvent.fine(
+              "Using all of %s as its ABI, as its classes could not be stripped: %s",
+              binaryJar,
+              e));
+          Files.copy(binaryJarFile, abiJarFile);
+          abiKey = new Sha1HashCode(Files.hash(binaryJarFile, Hashing.sha1()).toString());
+        }
       } catch (IOException e) {
         context.getBuckEventBus().post(ThrowableLogEvent.create(e,
             "Failed to calculate ABI for %s.",
@@ -217,7 +275,6 @@ public class PrebuiltJarRule extends DoNotUseAbstractBuildable
         return 1;
       }
 
-      abiKey = new Sha1HashCode(fileSha1.toString());
       buildableContext.addMetadata(AbiRule.ABI_KEY_ON_DISK_METADATA, abiKey.getHash());
 
       return 0;
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.util.HumanReadableException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * Evaluates build files with buck.py running inside an embedded python interpreter (Jython) in
+ * this JVM, rather than in a separate python process.
+ * <p>
+ * The rules defined by a build file are read straight out of the interpreter's objects, so there
+ * is no process to start, no pipe to write to and no JSON to encode or decode. Each instance owns
+ * its own interpreter and must only be used by one thread at a time; see
+ * {@link EmbeddedBuildFileProcessorPool}.
+ */
+public class EmbeddedBuildFileProcessor {
+
+  /** Name under which Jython registers itself with {@link ScriptEngineManager}. */
+  private static final String ENGINE_NAME = "python";
+
+  private final ScriptEngine engine;
+  private final Object buildFileProcessor;
+
+  /**
+   * @param projectRoot the root of the project whose build files will be evaluated.
+   * @param commonIncludes the files to include before executing each build file.
+   */
+  public EmbeddedBuildFileProcessor(File projectRoot, Iterable<String> commonIncludes)
+      throws IOException {
+    ScriptEngine engine = new ScriptEngineManager().getEngineByName(ENGINE_NAME);
+    if (engine == null) {
+      throw new HumanReadableException(
+          "In-process build file parsing requires Jython to be on buck's classpath.");
+    }
+    this.engine = engine;
+
+    File buckPy = new File(ProjectBuildFileParser.PATH_TO_BUCK_PY).getAbsoluteFile();
+    engine.put("buck_py_dir", buckPy.getParent());
+    engine.put("project_root", projectRoot.getAbsolutePath());
+    engine.put("includes", ImmutableList.copyOf(commonIncludes));
+    try {
+      // Import buck.py as a module, rather than evaluating it as a script, so that main() does not
+      // run. The processor is created in server mode as it is handed one build file at a time.
+      engine.eval(
+          "import sys\n" +
+          "if buck_py_dir not in sys.path:\n" +
+          "  sys.path.insert(0, buck_py_dir)\n" +
+          "import buck\n" +
+          "processor = buck.BuildFileProcessor(project_root, list(includes), True)\n");
+    } catch (ScriptException e) {
+      throw new IOException("Failed to load " + buckPy, e);
+    }
+    this.buildFileProcessor = Preconditions.checkNotNull(engine.get("processor"));
+  }
+
+  /**
+   * @return true if an embedded python interpreter is available to this JVM.
+   */
+  public static boolean isSupported() {
+    return new ScriptEngineManager().getEngineByName(ENGINE_NAME) != null;
+  }
+
+  /**
+   * @param buildFile an absolute path to a build file under the project root.
+   * @return the rules defined by {@code buildFile}, followed by its {@code __includes} meta rule.
+   */
+  public List<Map<String, Object>> process(String buildFile) throws IOException {
+    Object rules;
+    try {
+      rules = ((Invocable) engine).invokeMethod(buildFileProcessor, "process_rules", buildFile);
+    } catch (ScriptException | NoSuchMethodException e) {
+      throw new IOException(e);
+    }
+    return toRawRules(rules);
+  }
+
+  /**
+   * Converts the value returned by {@code BuildFileProcessor.process_rules} into the same shape
+   * that {@link BuildFileToJsonParser} produces: maps whose values are {@code null}, strings,
+   * booleans, longs or lists of strings.
+   */
+  @VisibleForTesting
+  static List<Map<String, Object>> toRawRules(Object rules) throws IOException {
+    if (!(rules instanceof List)) {
+      throw new IOException("Expected a list of rules but was " + rules);
+    }
+
+    List<Map<String, Object>> rawRules = Lists.newArrayList();
+    for (Object rule : (List<?>) rules) {
+      if (!(rule instanceof Map)) {
+        throw new IOException("Expected a rule to be a dict but was " + rule);
+      }
+
+      Map<String, Object> rawRule = Maps.newHashMap();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) rule).entrySet()) {
+        rawRule.put(entry.getKey().toString(), toRawValue(entry.getValue()));
+      }
+      rawRules.add(rawRule);
+    }
+    return rawRules;
+  }
+
+  @Nullable
+  private static Object toRawValue(@Nullable Object value) throws IOException {
+    if (value == null || value instanceof Boolean || value instanceof Long) {
+      return value;
+    } else if (value instanceof CharSequence) {
+      return value.toString();
+    } else if (value instanceof Number) {
+      // The interpreter may hand back python ints as Integers, whereas the JSON parser always
+      // produces Longs.
+      return ((Number) value).longValue();
+    } else if (value instanceof List) {
+      List<String> list = Lists.newArrayList();
+      for (Object element : (List<?>) value) {
+        list.add(element == null ? null : element.toString());
+      }
+      return list;
+    } else {
+      throw new IOException("Unexpected value in build rule: " + value);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded pool of {@link EmbeddedBuildFileProcessor}s sharing the same project root and
+ * includes. Creating an interpreter and loading buck.py is expensive, so processors are created
+ * lazily and reused for as long as the pool is alive, which in buckd spans many commands.
+ */
+@ThreadSafe
+public class EmbeddedBuildFileProcessorPool {
+
+  private final File projectRoot;
+  private final ImmutableList<String> commonIncludes;
+  private final int maxProcessors;
+  private final BlockingQueue<EmbeddedBuildFileProcessor> idleProcessors;
+  private int numProcessors;
+
+  public EmbeddedBuildFileProcessorPool(File projectRoot,
+      Iterable<String> commonIncludes,
+      int maxProcessors) {
+    Preconditions.checkArgument(maxProcessors > 0);
+    this.projectRoot = Preconditions.checkNotNull(projectRoot);
+    this.commonIncludes = ImmutableList.copyOf(commonIncludes);
+    this.maxProcessors = maxProcessors;
+    this.idleProcessors = new LinkedBlockingQueue<>();
+  }
+
+  public ImmutableList<String> getCommonIncludes() {
+    return commonIncludes;
+  }
+
+  /**
+   * Evaluates a single build file using an idle processor, creating one if the pool is not full
+   * and waiting for one to become idle otherwise.
+   */
+  public List<Map<String, Object>> process(String buildFile) throws IOException {
+    EmbeddedBuildFileProcessor processor = acquire();
+    try {
+      return processor.process(buildFile);
+    } finally {
+      idleProcessors.add(processor);
+    }
+  }
+
+  /**
+   * Evaluates {@code buildFiles} using up to {@code maxProcessors} threads.
+   * @return the rules and meta rules of every build file, in the order of {@code buildFiles}.
+   */
+  public List<Map<String, Object>> processAll(List<String> buildFiles) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(maxProcessors, buildFiles.size())));
+    try {
+      List<Future<List<Map<String, Object>>>> futures = Lists.newArrayList();
+      for (final String buildFile : buildFiles) {
+        futures.add(executor.submit(new Callable<List<Map<String, Object>>>() {
+          @Override
+          public List<Map<String, Object>> call() throws IOException {
+            return process(buildFile);
+          }
+        }));
+      }
+
+      List<Map<String, Object>> rules = Lists.newArrayList();
+      for (Future<List<Map<String, Object>>> future : futures) {
+        rules.addAll(future.get());
+      }
+      return rules;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private EmbeddedBuildFileProcessor acquire() throws IOException {
+    EmbeddedBuildFileProcessor processor = idleProcessors.poll();
+    if (processor != null) {
+      return processor;
+    }
+
+    boolean shouldCreate = false;
+    synchronized (this) {
+      if (numProcessors < maxProcessors) {
+        numProcessors++;
+        shouldCreate = true;
+      }
+    }
+
+    // Create the interpreter outside of the lock, as this takes a while.
+    if (shouldCreate) {
+      try {
+        return new EmbeddedBuildFileProcessor(projectRoot, commonIncludes);
+      } catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          numProcessors--;
+        }
+        throw e;
+      }
+    }
+
+    try {
+      return idleProcessors.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+}
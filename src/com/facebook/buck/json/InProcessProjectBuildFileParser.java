@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static com.facebook.buck.util.BuckConstant.BUILD_RULES_FILE_NAME;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ProjectBuildFileParser} that evaluates build files with an
+ * {@link EmbeddedBuildFileProcessorPool} instead of a buck.py subprocess.
+ */
+public class InProcessProjectBuildFileParser extends ProjectBuildFileParser {
+
+  private final Path projectRoot;
+  private final ImmutableSet<Path> ignorePaths;
+  private final EmbeddedBuildFileProcessorPool processorPool;
+
+  public InProcessProjectBuildFileParser(
+      ProjectFilesystem projectFilesystem,
+      EmbeddedBuildFileProcessorPool processorPool) {
+    super(projectFilesystem, processorPool.getCommonIncludes());
+    this.projectRoot = projectFilesystem.getRootPath();
+    ImmutableSet.Builder<Path> ignorePaths = ImmutableSet.builder();
+    for (String ignorePath : projectFilesystem.getIgnorePaths()) {
+      ignorePaths.add(projectRoot.resolve(ignorePath).normalize());
+    }
+    this.ignorePaths = ignorePaths.build();
+    this.processorPool = Preconditions.checkNotNull(processorPool);
+  }
+
+  @Override
+  protected List<Map<String, Object>> getAllRulesInternal(Optional<String> buildFile)
+      throws IOException {
+    // Mirror the contract of the buck.py subprocess: a build file is required in server mode and
+    // forbidden otherwise.
+    Preconditions.checkState(buildFile.isPresent() == isServerMode());
+
+    if (buildFile.isPresent()) {
+      return processorPool.process(buildFile.get());
+    } else {
+      return processorPool.processAll(findAllBuildFiles());
+    }
+  }
+
+  /**
+   * Finds the build files in the project in the same way as buck.py does when it is not given any:
+   * symlinks are not followed and ignored directories are not traversed.
+   */
+  private List<String> findAllBuildFiles() throws IOException {
+    final List<String> buildFiles = Lists.newArrayList();
+    Files.walkFileTree(projectRoot, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        if (ignorePaths.contains(dir.normalize())) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (BUILD_RULES_FILE_NAME.equals(file.getFileName().toString())) {
+          buildFiles.add(file.toAbsolutePath().toString());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    // Sort so that the rules are returned in a consistent order.
+    Collections.sort(buildFiles);
+    return buildFiles;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+
+/**
+ * Creates {@link InProcessProjectBuildFileParser}s. The factory holds on to its pool of embedded
+ * interpreters, so when it lives as long as buckd, the interpreters are only started once.
+ */
+public class InProcessProjectBuildFileParserFactory implements ProjectBuildFileParserFactory {
+  private final ProjectFilesystem projectFilesystem;
+  private final int maxProcessors;
+
+  /** Interpreters evaluate the includes when they start, so the pool is specific to them. */
+  @Nullable
+  private EmbeddedBuildFileProcessorPool processorPool;
+
+  public InProcessProjectBuildFileParserFactory(ProjectFilesystem projectFilesystem,
+      int maxProcessors) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.maxProcessors = maxProcessors;
+  }
+
+  @Override
+  public synchronized ProjectBuildFileParser createParser(Iterable<String> commonIncludes) {
+    ImmutableList<String> includes = ImmutableList.copyOf(commonIncludes);
+    if (processorPool == null || !processorPool.getCommonIncludes().equals(includes)) {
+      processorPool = new EmbeddedBuildFileProcessorPool(
+          projectFilesystem.getProjectRoot(),
+          includes,
+          maxProcessors);
+    }
+    return new InProcessProjectBuildFileParser(projectFilesystem, processorPool);
+  }
+}
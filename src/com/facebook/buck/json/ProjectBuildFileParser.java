@@ -37,13 +37,15 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * Delegates to buck.py for parsing of buck build files.  Constructed on demand for the
  * parsing phase and must be closed afterward to free up resources.
  */
 public class ProjectBuildFileParser implements AutoCloseable {
   /** Path to the buck.py script that is used to evaluate a build file. */
-  private static final String PATH_TO_BUCK_PY = System.getProperty("buck.path_to_buck_py",
+  static final String PATH_TO_BUCK_PY = System.getProperty("buck.path_to_buck_py",
       "src/com/facebook/buck/parser/buck.py");
 
   private Process buckPyProcess;
@@ -54,6 +56,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
   private final File projectRoot;
   private final ImmutableSet<String> ignorePaths;
   private final ImmutableList<String> commonIncludes;
+  @Nullable
   private final String pythonInterpreter;
 
   private boolean isServerMode;
@@ -74,6 +77,29 @@ public class ProjectBuildFileParser implements AutoCloseable {
     setServerMode(true);
   }
 
+  /**
+   * For subclasses that override {@link #getAllRulesInternal(Optional)} to evaluate build files
+   * without starting a python process.
+   */
+  protected ProjectBuildFileParser(
+      ProjectFilesystem projectFilesystem,
+      Iterable<String> commonIncludes) {
+    this.projectRoot = projectFilesystem.getProjectRoot();
+    this.ignorePaths = projectFilesystem.getIgnorePaths();
+    this.commonIncludes = ImmutableList.copyOf(commonIncludes);
+    this.pythonInterpreter = null;
+
+    setServerMode(true);
+  }
+
+  /**
+   * @return true if this parser was asked for the rules of a single build file at a time, rather
+   *     than for every rule in the project.
+   */
+  protected boolean isServerMode() {
+    return isServerMode;
+  }
+
   /**
    * Sets whether buck.py will use --server mode.  Server mode communicates via
    * stdin/stdout to accept new BUCK files to parse in a long running fashion.  It
@@ -133,7 +159,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
     // Invoking buck.py and read JSON-formatted build rules from its stdout.
     ImmutableList.Builder<String> argBuilder = ImmutableList.builder();
 
-    argBuilder.add(pythonInterpreter);
+    argBuilder.add(Preconditions.checkNotNull(pythonInterpreter));
 
     // Ask python to unbuffer stdout so that we can coordinate based on the output as it is
     // produced.
@@ -95,6 +95,18 @@ public class BuckBlockJUnit4ClassRunner extends BlockJUnit4ClassRunner {
     return createdTest.get();
   }
 
+  @Override
+  public void run(RunNotifier notifier) {
+    try {
+      super.run(notifier);
+    } finally {
+      // Let the executor's thread die once the tests of this class have run, rather than leaving
+      // one thread behind per test class. This matters when many test classes are run by a
+      // long-lived JUnitRunnerServer rather than by a JVM that exits afterwards.
+      executor.shutdown();
+    }
+  }
+
   private boolean isNeedingCustomTimeout() {
     return defaultTestTimeoutMillis <= 0 || hasTimeoutRule();
   }
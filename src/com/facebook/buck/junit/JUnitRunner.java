@@ -60,19 +60,36 @@ public final class JUnitRunner {
   private final File outputDirectory;
   private final List<String> testClassNames;
   private final long defaultTestTimeoutMillis;
+  private final ClassLoader testClassLoader;
 
   public JUnitRunner(
       File outputDirectory,
       List<String> testClassNames,
       long defaultTestTimeoutMillis) {
+    this(outputDirectory,
+        testClassNames,
+        defaultTestTimeoutMillis,
+        JUnitRunner.class.getClassLoader());
+  }
+
+  /**
+   * @param testClassLoader the class loader from which to load the test classes. When run by
+   *     {@link JUnitRunnerServer}, this is a child of the class loader that loaded this class.
+   */
+  public JUnitRunner(
+      File outputDirectory,
+      List<String> testClassNames,
+      long defaultTestTimeoutMillis,
+      ClassLoader testClassLoader) {
     this.outputDirectory = outputDirectory;
     this.testClassNames = testClassNames;
     this.defaultTestTimeoutMillis = defaultTestTimeoutMillis;
+    this.testClassLoader = testClassLoader;
   }
 
   public void run() throws Throwable {
     for (String className : testClassNames) {
-      final Class<?> testClass = Class.forName(className);
+      final Class<?> testClass = Class.forName(className, /* initialize */ true, testClassLoader);
       Ignore ignore = testClass.getAnnotation(Ignore.class);
       boolean isTestClassIgnored = (ignore != null || !isTestClass(testClass));
 
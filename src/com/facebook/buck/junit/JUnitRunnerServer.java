@@ -0,0 +1,323 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.junit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Long-lived process that runs one set of tests after another on behalf of buck, so that each
+ * {@code java_test()} does not have to pay for starting a JVM and loading the classes of its
+ * third-party dependencies.
+ * <p>
+ * The server connects back to buck on the port that it is given, and then reads jobs from that
+ * connection until buck closes it. A job is made up of a shared classpath (third-party jars and
+ * the Android bootclasspath), the classpath of the test rule itself, the directory in which to
+ * write the results, the default timeout and the names of the test classes. The classes of the
+ * shared classpath are loaded once and reused by later jobs with the same shared classpath, as long
+ * as none of its entries has changed size or modification time since; those of the rule's own
+ * classpath are loaded by a fresh class loader for every job.
+ * <p>
+ * After each job, the server reports whether it leaked threads or is running out of memory, in
+ * which case buck replaces it with a new process.
+ * <p>
+ * IMPORTANT! Like {@link JUnitRunner}, this class limits itself to types that are available in the
+ * JDK. It must not even refer to {@link JUnitRunner} directly: the server is started with only the
+ * test runner on its classpath, and JUnit is loaded from the shared classpath of each job.
+ */
+public final class JUnitRunnerServer {
+
+  private static final String JUNIT_RUNNER_CLASS_NAME = "com.facebook.buck.junit.JUnitRunner";
+
+  /** Threads started by a job are given this long to finish once the job is over. */
+  private static final long THREAD_EXIT_TIMEOUT_MILLIS = 1000;
+
+  /** The server asks to be replaced once this much of the heap is in use after a job. */
+  private static final double MAX_USED_HEAP_FRACTION = 0.75;
+
+  /** writeUTF() cannot write strings longer than this. */
+  private static final int MAX_ERROR_LENGTH = 16 * 1024;
+
+  /** Test rules tend to depend on a handful of distinct sets of third-party jars. */
+  private static final int MAX_SHARED_CLASS_LOADERS = 4;
+
+  private final URL testRunnerLocation;
+
+  /** Class loaders for shared classpaths, least recently used first. */
+  private final Map<List<String>, SharedClassLoader> sharedClassLoaders;
+
+  private JUnitRunnerServer(URL testRunnerLocation) {
+    this.testRunnerLocation = testRunnerLocation;
+    this.sharedClassLoaders = new LinkedHashMap<List<String>, SharedClassLoader>(
+        MAX_SHARED_CLASS_LOADERS, 0.75f, /* accessOrder */ true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<String>, SharedClassLoader> eldest) {
+        if (size() <= MAX_SHARED_CLASS_LOADERS) {
+          return false;
+        }
+        eldest.getValue().close();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Runs a single job read from {@code in} and writes its outcome to {@code out}: whether it
+   * succeeded, the error if it did not, and whether this server should be replaced.
+   */
+  private void runJob(DataInputStream in, DataOutputStream out) throws IOException {
+    List<String> jobSharedClasspath = readStrings(in);
+    List<String> jobClasspath = readStrings(in);
+    File outputDirectory = new File(in.readUTF());
+    long defaultTestTimeoutMillis = in.readLong();
+    List<String> testClassNames = readStrings(in);
+
+    Set<Thread> threadsBeforeJob = getLiveNonDaemonThreads();
+    Properties systemProperties = (Properties) System.getProperties().clone();
+    PrintStream stdOut = System.out;
+    PrintStream stdErr = System.err;
+    ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+
+    String error = null;
+    URLClassLoader testClassLoader = null;
+    try {
+      testClassLoader = new URLClassLoader(
+          toUrls(jobClasspath),
+          getSharedClassLoader(jobSharedClasspath));
+      Thread.currentThread().setContextClassLoader(testClassLoader);
+
+      Class<?> runnerClass = testClassLoader.loadClass(JUNIT_RUNNER_CLASS_NAME);
+      Object runner = runnerClass
+          .getConstructor(File.class, List.class, long.class, ClassLoader.class)
+          .newInstance(outputDirectory, testClassNames, defaultTestTimeoutMillis, testClassLoader);
+      runnerClass.getMethod("run").invoke(runner);
+    } catch (InvocationTargetException e) {
+      error = getStackTrace(e.getCause());
+    } catch (Throwable t) {
+      error = getStackTrace(t);
+    } finally {
+      // Undo whatever the tests may have changed about this JVM.
+      Thread.currentThread().setContextClassLoader(contextClassLoader);
+      System.setOut(stdOut);
+      System.setErr(stdErr);
+      System.setProperties(systemProperties);
+      if (testClassLoader != null) {
+        testClassLoader.close();
+      }
+    }
+
+    boolean shouldBeReplaced = hasLeakedThreads(threadsBeforeJob) || isRunningOutOfMemory();
+
+    out.writeBoolean(error == null);
+    if (error != null) {
+      out.writeUTF(error.length() > MAX_ERROR_LENGTH
+          ? error.substring(0, MAX_ERROR_LENGTH)
+          : error);
+    }
+    out.writeBoolean(shouldBeReplaced);
+    out.flush();
+  }
+
+  /**
+   * @return a class loader for {@code classpath}, followed by the test runner, which is reused by
+   *     later jobs with the same shared classpath until one of its entries changes.
+   */
+  private ClassLoader getSharedClassLoader(List<String> classpath) throws IOException {
+    List<Long> fileStamps = getFileStamps(classpath);
+    SharedClassLoader sharedClassLoader = sharedClassLoaders.get(classpath);
+    if (sharedClassLoader != null && !sharedClassLoader.fileStamps.equals(fileStamps)) {
+      // A jar was rebuilt since the class loader was created, so its classes may be stale.
+      sharedClassLoaders.remove(classpath);
+      sharedClassLoader.close();
+      sharedClassLoader = null;
+    }
+
+    if (sharedClassLoader == null) {
+      List<URL> urls = new ArrayList<>(Arrays.asList(toUrls(classpath)));
+      urls.add(testRunnerLocation);
+
+      // The parent is the extension class loader, so that the copy of the test runner on this
+      // JVM's own classpath is not visible to the tests.
+      sharedClassLoader = new SharedClassLoader(
+          new URLClassLoader(
+              urls.toArray(new URL[urls.size()]),
+              ClassLoader.getSystemClassLoader().getParent()),
+          fileStamps);
+      sharedClassLoaders.put(classpath, sharedClassLoader);
+    }
+    return sharedClassLoader.classLoader;
+  }
+
+  /**
+   * @return the size and modification time of each entry of {@code classpath}, in order, which
+   *     change whenever the entry is rebuilt. Both are 0 for entries that do not exist.
+   */
+  private static List<Long> getFileStamps(List<String> classpath) {
+    List<Long> fileStamps = new ArrayList<>(2 * classpath.size());
+    for (String entry : classpath) {
+      File file = new File(entry);
+      fileStamps.add(file.length());
+      fileStamps.add(file.lastModified());
+    }
+    return fileStamps;
+  }
+
+  private static Set<Thread> getLiveNonDaemonThreads() {
+    Set<Thread> threads = new HashSet<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.isAlive() && !thread.isDaemon()) {
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+
+  /**
+   * @return true if a thread that was started by the last job is still running. Such a thread
+   *     may interfere with later jobs, and prevents the classes of the job from being unloaded.
+   */
+  private static boolean hasLeakedThreads(Set<Thread> threadsBeforeJob) {
+    long deadline = System.currentTimeMillis() + THREAD_EXIT_TIMEOUT_MILLIS;
+    for (Thread thread : getLiveNonDaemonThreads()) {
+      if (threadsBeforeJob.contains(thread)) {
+        continue;
+      }
+      try {
+        thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return true;
+      }
+      if (thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isRunningOutOfMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    long maxUsedHeap = (long) (runtime.maxMemory() * MAX_USED_HEAP_FRACTION);
+    if (runtime.totalMemory() - runtime.freeMemory() < maxUsedHeap) {
+      return false;
+    }
+
+    // Most of what is in use may be garbage, so collect it before deciding.
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory() >= maxUsedHeap;
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      strings.add(in.readUTF());
+    }
+    return strings;
+  }
+
+  private static URL[] toUrls(List<String> classpath) throws MalformedURLException {
+    URL[] urls = new URL[classpath.size()];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = new File(classpath.get(i)).toURI().toURL();
+    }
+    return urls;
+  }
+
+  private static String getStackTrace(Throwable throwable) {
+    StringWriter stackTrace = new StringWriter();
+    throwable.printStackTrace(new PrintWriter(stackTrace));
+    return stackTrace.toString();
+  }
+
+  /**
+   * Expected arguments are:
+   * <ul>
+   *   <li>(int) port on the loopback interface on which buck is waiting for the server to connect
+   * </ul>
+   */
+  public static void main(String... args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Must specify the port to connect to.");
+      System.exit(1);
+    }
+    int port = Integer.parseInt(args[0]);
+
+    JUnitRunnerServer server = new JUnitRunnerServer(
+        JUnitRunnerServer.class.getProtectionDomain().getCodeSource().getLocation());
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+      while (true) {
+        // Wait for the next job, or for buck to close the connection.
+        in.mark(1);
+        if (in.read() == -1) {
+          break;
+        }
+        in.reset();
+        server.runJob(in, out);
+      }
+    }
+
+    // Buck has closed the connection, either because it is shutting down or because it decided to
+    // replace this server. As in JUnitRunner, exit explicitly in case tests left threads behind.
+    System.exit(0);
+  }
+
+  /** A class loader for a shared classpath, and the state of its entries when it was created. */
+  private static class SharedClassLoader {
+    private final URLClassLoader classLoader;
+    private final List<Long> fileStamps;
+
+    private SharedClassLoader(URLClassLoader classLoader, List<Long> fileStamps) {
+      this.classLoader = classLoader;
+      this.fileStamps = fileStamps;
+    }
+
+    private void close() {
+      try {
+        classLoader.close();
+      } catch (IOException e) {
+        // The class loader will be garbage collected anyway.
+      }
+    }
+  }
+}
@@ -22,6 +22,8 @@ import com.facebook.buck.util.ProjectFilesystem;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 import java.io.File;
 import java.nio.file.Path;
@@ -35,9 +37,16 @@ public final class BuildTarget implements Comparable<BuildTarget> {
 
   public static final String BUILD_TARGET_PREFIX = "//";
 
+  /**
+   * Shared by every caller of {@link #intern()}. Weak so that targets which are no longer
+   * referenced by any parsed build file can be collected by a long-running buckd.
+   */
+  private static final Interner<BuildTarget> INTERNER = Interners.newWeakInterner();
+
   private final String baseName;
   private final String shortName;
   private final String fullyQualifiedName;
+  private final int hashCode;
 
   public BuildTarget(String baseName, String shortName) {
     Preconditions.checkNotNull(baseName);
@@ -52,7 +61,8 @@ public final class BuildTarget implements Comparable<BuildTarget> {
 
     this.baseName = baseName;
     this.shortName = Preconditions.checkNotNull(shortName);
-    this.fullyQualifiedName = String.format("%s:%s", baseName, shortName);
+    this.fullyQualifiedName = baseName + ':' + shortName;
+    this.hashCode = fullyQualifiedName.hashCode();
   }
 
   /**
@@ -65,7 +75,8 @@ public final class BuildTarget implements Comparable<BuildTarget> {
     Preconditions.checkNotNull(relativePath);
     this.baseName = String.format("//%s", relativePath);
     this.shortName = inputFile.getName();
-    this.fullyQualifiedName = String.format("%s:%s", baseName, shortName);
+    this.fullyQualifiedName = baseName + ':' + shortName;
+    this.hashCode = fullyQualifiedName.hashCode();
   }
 
   /**
@@ -75,6 +86,15 @@ public final class BuildTarget implements Comparable<BuildTarget> {
     return new BuildTarget(inputFile, relativePath);
   }
 
+  /**
+   * Returns a canonical instance equal to this build target, analogous to {@link String#intern()}.
+   * The parser interns every target it creates so that a project with many rules referencing the
+   * same deps does not hold a separate copy of each target (and its strings) per reference.
+   */
+  public BuildTarget intern() {
+    return INTERNER.intern(this);
+  }
+
   /**
    * The build file in which this rule was defined.
    * @throws MissingBuildFileException if the build file for the target does not exist.
@@ -174,16 +194,20 @@ public final class BuildTarget implements Comparable<BuildTarget> {
 
   @Override
   public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
     if (!(o instanceof BuildTarget)) {
       return false;
     }
     BuildTarget that = (BuildTarget)o;
-    return this.fullyQualifiedName.equals(that.fullyQualifiedName);
+    return this.hashCode == that.hashCode &&
+        this.fullyQualifiedName.equals(that.fullyQualifiedName);
   }
 
   @Override
   public int hashCode() {
-    return fullyQualifiedName.hashCode();
+    return hashCode;
   }
 
   /** @return {@link #getFullyQualifiedName()} */
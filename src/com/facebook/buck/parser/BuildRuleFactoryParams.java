@@ -352,6 +352,20 @@ public final class BuildRuleFactoryParams {
     }
   }
 
+  public Optional<Long> getOptionalLongAttribute(String attributeName) {
+    Object value = instance.get(attributeName);
+    if (value == null) {
+      return Optional.absent();
+    } else if (value instanceof Long) {
+      return Optional.of((Long) value);
+    } else {
+      throw new RuntimeException(String.format("Expected a long for %s in %s but was %s",
+          attributeName,
+          target.getBuildFilePath(),
+          value));
+    }
+  }
+
   /** If a boolean attribute has not been specified, then it always defaults to false. */
   public boolean getBooleanAttribute(String attributeName) {
     Object value = instance.get(attributeName);
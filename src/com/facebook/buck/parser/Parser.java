@@ -43,6 +43,7 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.ListMultimap;
@@ -80,8 +81,9 @@ public class Parser {
 
   /**
    * The build files that have been parsed and whose build rules are in {@link #knownBuildTargets}.
+   * The rules are stored as {@link RawRule}s because buckd keeps every rule in the project here.
    */
-  private final ListMultimap<Path, Map<String, Object>> parsedBuildFiles;
+  private final ListMultimap<Path, RawRule> parsedBuildFiles;
   private final ImmutableSet<Pattern> tempFilePatterns;
 
   /**
@@ -165,6 +167,24 @@ public class Parser {
       String pythonInterpreter,
       ImmutableSet<Pattern> tempFilePatterns,
       RuleKeyBuilderFactory ruleKeyBuilderFactory) {
+    this(projectFilesystem,
+        buildRuleTypes,
+        console,
+        new DefaultProjectBuildFileParserFactory(projectFilesystem, pythonInterpreter),
+        tempFilePatterns,
+        ruleKeyBuilderFactory);
+  }
+
+  /**
+   * @param buildFileParserFactory creates the parsers used to evaluate build files, for example
+   *     to evaluate them in-process rather than with a python subprocess.
+   */
+  public Parser(final ProjectFilesystem projectFilesystem,
+      KnownBuildRuleTypes buildRuleTypes,
+      Console console,
+      ProjectBuildFileParserFactory buildFileParserFactory,
+      ImmutableSet<Pattern> tempFilePatterns,
+      RuleKeyBuilderFactory ruleKeyBuilderFactory) {
     this(projectFilesystem,
         buildRuleTypes,
         console,
@@ -177,7 +197,7 @@ public class Parser {
         },
         new BuildTargetParser(projectFilesystem),
          /* knownBuildTargets */ Maps.<BuildTarget, BuildRuleBuilder<?>>newHashMap(),
-        new DefaultProjectBuildFileParserFactory(projectFilesystem, pythonInterpreter),
+        buildFileParserFactory,
         tempFilePatterns,
         ruleKeyBuilderFactory);
   }
@@ -454,7 +474,8 @@ public class Parser {
 
       parseRawRulesInternal(buildFileParser.getAllRulesAndMetaRules(buildFile.getPath()));
     }
-    return parsedBuildFiles.get(normalize(buildFile.toPath()));
+    return ImmutableList.<Map<String, Object>>copyOf(
+        parsedBuildFiles.get(normalize(buildFile.toPath())));
   }
 
   /**
@@ -470,8 +491,9 @@ public class Parser {
         continue;
       }
 
-      BuildRuleType buildRuleType = parseBuildRuleTypeFromRawRule(map);
-      BuildTarget target = parseBuildTargetFromRawRule(map);
+      RawRule rawRule = RawRule.copyOf(map);
+      BuildRuleType buildRuleType = parseBuildRuleTypeFromRawRule(rawRule);
+      BuildTarget target = parseBuildTargetFromRawRule(rawRule);
       BuildRuleFactory<?> factory = buildRuleTypes.getFactory(buildRuleType);
       if (factory == null) {
         throw new HumanReadableException("Unrecognized rule %s while parsing %s.",
@@ -483,7 +505,7 @@ public class Parser {
       buildFileTree = buildFileTreeCache.getInput();
 
       BuildRuleBuilder<?> buildRuleBuilder = factory.newInstance(new BuildRuleFactoryParams(
-          map,
+          rawRule,
           projectFilesystem,
           buildFileTree,
           buildTargetParser,
@@ -493,7 +515,7 @@ public class Parser {
       if (existingRule != null) {
         throw new RuntimeException("Duplicate definition for " + target.getFullyQualifiedName());
       }
-      parsedBuildFiles.put(normalize(target.getBuildFile(projectFilesystem).toPath()), map);
+      parsedBuildFiles.put(normalize(target.getBuildFile(projectFilesystem).toPath()), rawRule);
     }
   }
 
@@ -536,7 +558,7 @@ public class Parser {
     }
 
     List<BuildTarget> matchingTargets = Lists.newArrayList();
-    for (Map<String, Object> map : parsedBuildFiles.values()) {
+    for (RawRule map : parsedBuildFiles.values()) {
       BuildRuleType buildRuleType = parseBuildRuleTypeFromRawRule(map);
       BuildTarget target = parseBuildTargetFromRawRule(map);
       if (filter.isMatch(map, buildRuleType, target)) {
@@ -563,7 +585,7 @@ public class Parser {
   private BuildTarget parseBuildTargetFromRawRule(Map<String, Object> map) {
     String basePath = (String)map.get("buck.base_path");
     String name = (String)map.get("name");
-    return new BuildTarget("//" + basePath, name);
+    return new BuildTarget("//" + basePath, name).intern();
   }
 
   /**
@@ -699,7 +721,7 @@ public class Parser {
       }
 
       // Remove all targets defined by path from cache.
-      for (Map<String, Object> rawRule : parsedBuildFiles.get(path)) {
+      for (RawRule rawRule : parsedBuildFiles.get(path)) {
         BuildTarget target = parseBuildTargetFromRawRule(rawRule);
         knownBuildTargets.remove(target);
       }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Maps;
+import com.google.common.collect.UnmodifiableIterator;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Compact, immutable representation of a single rule read from a build file.
+ * <p>
+ * The {@link Parser} keeps every raw rule in the project in memory when running as a daemon, so
+ * the attributes are stored in two parallel arrays rather than in a {@link java.util.HashMap}.
+ * Attribute names and string values (including the elements of list values) are interned, so the
+ * many copies of {@code "deps"}, {@code "//lib:guava"} and the like that appear across a project
+ * all share a single instance.
+ * <p>
+ * Values may be {@code null}, to match what buck.py emits for unspecified optional arguments.
+ */
+@Immutable
+public final class RawRule extends AbstractMap<String, Object> {
+
+  private static final Interner<String> STRING_INTERNER = Interners.newWeakInterner();
+
+  private final String[] keys;
+  private final Object[] values;
+
+  private RawRule(String[] keys, Object[] values) {
+    this.keys = keys;
+    this.values = values;
+  }
+
+  /**
+   * @param rawRule a rule as produced by {@link com.facebook.buck.json.BuildFileToJsonParser}.
+   *     Values must be {@code null}, a {@link String}, a {@link Boolean}, a {@link Long} or a
+   *     {@link List} of strings.
+   */
+  public static RawRule copyOf(Map<String, ?> rawRule) {
+    Preconditions.checkNotNull(rawRule);
+    if (rawRule instanceof RawRule) {
+      return (RawRule) rawRule;
+    }
+
+    String[] keys = new String[rawRule.size()];
+    Object[] values = new Object[rawRule.size()];
+    int index = 0;
+    for (Map.Entry<String, ?> entry : rawRule.entrySet()) {
+      keys[index] = STRING_INTERNER.intern(Preconditions.checkNotNull(entry.getKey()));
+      values[index] = compactValue(entry.getValue());
+      index++;
+    }
+    return new RawRule(keys, values);
+  }
+
+  @Nullable
+  private static Object compactValue(@Nullable Object value) {
+    if (value instanceof String) {
+      return STRING_INTERNER.intern((String) value);
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      if (list.isEmpty()) {
+        return ImmutableList.of();
+      }
+
+      Object[] elements = new Object[list.size()];
+      boolean containsNull = false;
+      for (int i = 0; i < elements.length; i++) {
+        Object element = list.get(i);
+        if (element == null) {
+          containsNull = true;
+        } else if (element instanceof String) {
+          element = STRING_INTERNER.intern((String) element);
+        }
+        elements[i] = element;
+      }
+
+      // ImmutableList does not permit null elements, but buck.py may emit them.
+      return containsNull
+          ? Collections.unmodifiableList(Arrays.asList(elements))
+          : ImmutableList.copyOf(elements);
+    } else {
+      return value;
+    }
+  }
+
+  private int indexOf(@Nullable Object key) {
+    if (!(key instanceof String)) {
+      return -1;
+    }
+
+    // Keys are interned, so the identity check succeeds for the common case where the caller
+    // passes a string literal.
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == key) {
+        return i;
+      }
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  @Nullable
+  public Object get(@Nullable Object key) {
+    int index = indexOf(key);
+    return index < 0 ? null : values[index];
+  }
+
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  public int size() {
+    return keys.length;
+  }
+
+  @Override
+  public Set<Entry<String, Object>> entrySet() {
+    return new AbstractSet<Entry<String, Object>>() {
+      @Override
+      public Iterator<Entry<String, Object>> iterator() {
+        return new UnmodifiableIterator<Entry<String, Object>>() {
+          private int index = 0;
+
+          @Override
+          public boolean hasNext() {
+            return index < keys.length;
+          }
+
+          @Override
+          public Entry<String, Object> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Entry<String, Object> entry = Maps.immutableEntry(keys[index], values[index]);
+            index++;
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return keys.length;
+      }
+    };
+  }
+}
@@ -378,11 +378,16 @@ def android_binary(
       no_dx=[],
       use_split_dex=False,
       use_linear_alloc_split_dex=False,
+      use_incremental_dex_layout=False,
       minimize_primary_dex_size=False,
       dex_compression='jar',
+      xz_compression_level=4,
+      xz_dictionary_size=None,
+      xz_threads=1,
       use_android_proguard_config_with_optimizations=False,
       proguard_config=None,
       compress_resources=False,
+      use_incremental_apk_packaging=False,
       primary_dex_substrings=None,
       primary_dex_classes_file=None,
       # By default, assume we have 5MB of linear alloc,
@@ -405,12 +410,17 @@ def android_binary(
     'no_dx' : no_dx,
     'use_split_dex': use_split_dex,
     'use_linear_alloc_split_dex': use_linear_alloc_split_dex,
+    'use_incremental_dex_layout': use_incremental_dex_layout,
     'minimize_primary_dex_size': minimize_primary_dex_size,
     'dex_compression': dex_compression,
+    'xz_compression_level': xz_compression_level,
+    'xz_dictionary_size': xz_dictionary_size,
+    'xz_threads': xz_threads,
     'use_android_proguard_config_with_optimizations':
         use_android_proguard_config_with_optimizations,
     'proguard_config' : proguard_config,
     'compress_resources' : compress_resources,
+    'use_incremental_apk_packaging' : use_incremental_apk_packaging,
     'primary_dex_substrings' : primary_dex_substrings,
     'primary_dex_classes_file' : primary_dex_classes_file,
     'linear_alloc_hard_limit' : linear_alloc_hard_limit,
@@ -740,8 +750,12 @@ class BuildFileProcessor:
 
     self.root_build_env = build_env
 
-  def process(self, build_file):
-    """Process an individual build file and output JSON of result to stdout."""
+  def process_rules(self, build_file):
+    """Process an individual build file and return the rules that it defines.
+
+    The last element of the returned list is the __includes meta rule. This is
+    called directly by buck when buck.py is evaluated in an embedded interpreter.
+    """
 
     # Reset build_env for each build file so that the variables declared in the
     # build file or the files in includes through include_defs() don't pollute
@@ -765,6 +779,11 @@ class BuildFileProcessor:
 
     values = build_env['RULES'].values()
     values.append({"__includes": [build_file] + build_env['INCLUDES']})
+    return values
+
+  def process(self, build_file):
+    """Process an individual build file and output JSON of result to stdout."""
+    values = self.process_rules(build_file)
     if self.server:
       print json.dumps(values)
     else:
@@ -34,6 +34,12 @@ public interface AbiRule {
    */
   public static final String ABI_KEY_FOR_DEPS_ON_DISK_METADATA = "ABI_KEY_FOR_DEPS";
 
+  /**
+   * Key for {@link OnDiskBuildInfo} to identify the classpath entries that were read when the rule
+   * was last compiled, one per line. This is optional, as not every rule can track what it reads.
+   */
+  public static final String USED_CLASSPATH_ENTRIES_ON_DISK_METADATA = "USED_CLASSPATH_ENTRIES";
+
   /**
    * Returns a {@link Sha1HashCode} that represents the ABI of this rule's deps.
    */
@@ -34,6 +34,7 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
@@ -69,6 +70,13 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
    */
   private final SettableFuture<BuildRuleSuccess> buildRuleResult;
 
+  /**
+   * Resolved once rules that {@link #canBuildAgainstAbiOfDeps() build against the ABI of their
+   * deps} may start to build against this rule. This is no later than {@link #buildRuleResult},
+   * but may be earlier: see {@link #recordAbiAvailable()}.
+   */
+  private final SettableFuture<Void> abiAvailable;
+
   private final Function<String, String> pathRelativizer;
 
   /** @see Buildable#getInputsToCompareToOutput()  */
@@ -79,6 +87,7 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
     this.buildable = Preconditions.checkNotNull(buildable);
     this.hasBuildStarted = new AtomicBoolean(false);
     this.buildRuleResult = SettableFuture.create();
+    this.abiAvailable = SettableFuture.create();
     this.pathRelativizer = params.getPathRelativizer();
   }
 
@@ -86,6 +95,7 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
     super(buildRuleParams);
     this.hasBuildStarted = new AtomicBoolean(false);
     this.buildRuleResult = SettableFuture.create();
+    this.abiAvailable = SettableFuture.create();
     this.pathRelativizer = buildRuleParams.getPathRelativizer();
     this.buildable = Preconditions.checkNotNull(getBuildable());
   }
@@ -99,6 +109,45 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
     return MoreFutures.isSuccess(buildRuleResult);
   }
 
+  /**
+   * @return whether the ABI of this rule's output is available, either because the rule has been
+   *     built or because it called {@link #recordAbiAvailable()} while it was building.
+   */
+  protected final boolean isAbiAvailable() {
+    return MoreFutures.isSuccess(abiAvailable);
+  }
+
+  /**
+   * Lets the rules that {@link #canBuildAgainstAbiOfDeps() build against the ABI of their deps}
+   * start to build before this rule has finished building. This is meant to be invoked by one of
+   * the steps of this rule, once everything that such rules read from it has been written. If it is
+   * never invoked, they start once this rule has been built.
+   */
+  protected final void recordAbiAvailable() {
+    abiAvailable.set(null);
+  }
+
+  /**
+   * Whether this rule only needs the ABI of its deps to start building, rather than their complete
+   * output. Such a rule still does not finish building until all of its deps have finished, so a
+   * dep that fails after its ABI was made available fails this rule as well.
+   */
+  protected boolean canBuildAgainstAbiOfDeps() {
+    return false;
+  }
+
+  /**
+   * @return a future that is resolved when the rules that depend on this one may start to build.
+   *     Only valid once {@link #build(BuildContext)} has been invoked.
+   */
+  private ListenableFuture<?> getFutureForDependents(BuildRule dependent) {
+    if (dependent instanceof AbstractCachingBuildRule
+        && ((AbstractCachingBuildRule) dependent).canBuildAgainstAbiOfDeps()) {
+      return abiAvailable;
+    }
+    return buildRuleResult;
+  }
+
   @Override
   public BuildRuleSuccess.Type getBuildResultType() {
     Preconditions.checkState(isRuleBuilt());
@@ -148,14 +197,22 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
       // successful completion of all deps.
       List<ListenableFuture<BuildRuleSuccess>> builtDeps =
           Lists.newArrayListWithCapacity(getDeps().size());
+      List<ListenableFuture<?>> depsReadyToBuildAgainst =
+          Lists.newArrayListWithCapacity(getDeps().size());
       for (BuildRule dep : getDeps()) {
-        builtDeps.add(dep.build(context));
+        ListenableFuture<BuildRuleSuccess> builtDep = dep.build(context);
+        builtDeps.add(builtDep);
+        depsReadyToBuildAgainst.add(dep instanceof AbstractCachingBuildRule
+            ? ((AbstractCachingBuildRule) dep).getFutureForDependents(this)
+            : builtDep);
       }
-      ListenableFuture<List<BuildRuleSuccess>> allBuiltDeps = Futures.allAsList(builtDeps);
+      final ListenableFuture<List<BuildRuleSuccess>> allBuiltDeps = Futures.allAsList(builtDeps);
+      final ListeningExecutorService executor = context.getExecutor();
 
-      // Schedule this rule to build itself once all of the deps are built.
-      Futures.addCallback(allBuiltDeps,
-          new FutureCallback<List<BuildRuleSuccess>>() {
+      // Schedule this rule to build itself once all of the deps are ready to be built against,
+      // which, unless this rule can build against the ABI of its deps, is once they are built.
+      Futures.addCallback(Futures.allAsList(depsReadyToBuildAgainst),
+          new FutureCallback<List<Object>>() {
 
             private final BuckEventBus eventBus = context.getEventBus();
 
@@ -200,22 +257,38 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
             private boolean startOfBuildWasRecordedOnTheEventBus = false;
 
             @Override
-            public void onSuccess(List<BuildRuleSuccess> deps) {
+            public void onSuccess(List<Object> deps) {
               // Record the start of the build.
               eventBus.post(BuildRuleEvent.started(AbstractCachingBuildRule.this));
               startOfBuildWasRecordedOnTheEventBus = true;
 
+              final BuildResult result;
               try {
-                BuildResult result = buildOnceDepsAreBuilt(
-                    context, onDiskBuildInfo, buildInfoRecorder.get());
-                if (result.isSuccess()) {
-                  recordBuildRuleSuccess(result);
-                } else {
-                  recordBuildRuleFailure(result);
-                }
+                result = buildOnceDepsAreBuilt(context, onDiskBuildInfo, buildInfoRecorder.get());
               } catch (IOException e) {
                 onFailure(e);
+                return;
               }
+              if (!result.isSuccess()) {
+                recordBuildRuleFailure(result);
+                return;
+              }
+
+              // This rule may have been built against the ABI of deps that are still building. It
+              // is only built once they are, so that it fails if they do.
+              Futures.addCallback(allBuiltDeps,
+                  new FutureCallback<List<BuildRuleSuccess>>() {
+                    @Override
+                    public void onSuccess(List<BuildRuleSuccess> builtDeps) {
+                      recordBuildRuleSuccess(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable failure) {
+                      recordBuildRuleFailure(new BuildResult(failure));
+                    }
+                  },
+                  executor);
             }
 
             private void recordBuildRuleSuccess(BuildResult result) {
@@ -239,6 +312,7 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
               BuildRuleSuccess buildRuleSuccess = new BuildRuleSuccess(
                   AbstractCachingBuildRule.this, result.success);
               buildRuleResult.set(buildRuleSuccess);
+              abiAvailable.set(null);
 
               // Do the post to the event bus immediately after the future is set so that the
               // build time measurement is as accurate as possible.
@@ -276,21 +350,25 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
               // recordBuildRuleSuccess() after buildRuleResult has been resolved such that Buck
               // would attempt to resolve the future again, which would fail.
               buildRuleResult.setException(result.failure);
+              abiAvailable.setException(result.failure);
             }
           },
-          context.getExecutor());
+          executor);
     } catch (Throwable failure) {
       // This is a defensive catch block: if buildRuleResult is never satisfied, then Buck will
       // hang because a callback that is waiting for this rule's future to complete will never be
       // executed.
       buildRuleResult.setException(failure);
+      abiAvailable.setException(failure);
     }
 
     return buildRuleResult;
   }
 
   /**
-   * This method is invoked once all of this rule's dependencies are built.
+   * This method is invoked once all of this rule's dependencies are built or, if this rule
+   * {@link #canBuildAgainstAbiOfDeps() can build against the ABI of its deps}, once their ABI is
+   * available.
    * <p>
    * This method should be executed on a fresh Runnable in BuildContext's ListeningExecutorService,
    * so there is no reason to schedule new work in a new Runnable.
@@ -352,6 +430,13 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule
           buildInfoRecorder.addMetadata(
               AbiRule.ABI_KEY_FOR_DEPS_ON_DISK_METADATA,
               cachedAbiKeyForDeps.get().getHash());
+          Optional<String> usedClasspathEntries = onDiskBuildInfo.getValue(
+              AbiRule.USED_CLASSPATH_ENTRIES_ON_DISK_METADATA);
+          if (usedClasspathEntries.isPresent()) {
+            buildInfoRecorder.addMetadata(
+                AbiRule.USED_CLASSPATH_ENTRIES_ON_DISK_METADATA,
+                usedClasspathEntries.get());
+          }
           return new BuildResult(BuildRuleSuccess.Type.MATCHING_DEPS_ABI_AND_RULE_KEY_NO_DEPS,
               CacheResult.LOCAL_KEY_UNCHANGED_HIT);
         }
@@ -48,6 +48,10 @@ public class BuildContext {
   private final BuckEventBus events;
   private final Supplier<String> androidBootclasspathSupplier;
   private final BuildDependencies buildDependencies;
+  private final boolean isJavaIncrementalCompilationEnabled;
+  private final boolean isInProcessDxEnabled;
+  private final Optional<Path> dexCacheDir;
+  private final long dexCacheMaxSizeBytes;
   private final Function<SourcePath, Path> sourcePathResolver;
   @Nullable private final Console console;
 
@@ -60,6 +64,10 @@ public class BuildContext {
       BuckEventBus events,
       Supplier<String> androidBootclasspathSupplier,
       BuildDependencies buildDependencies,
+      boolean isJavaIncrementalCompilationEnabled,
+      boolean isInProcessDxEnabled,
+      Optional<Path> dexCacheDir,
+      long dexCacheMaxSizeBytes,
       @Nullable Console console) {
     this.dependencyGraph = Preconditions.checkNotNull(dependencyGraph);
     this.stepRunner = Preconditions.checkNotNull(stepRunner);
@@ -69,6 +77,10 @@ public class BuildContext {
     this.events = Preconditions.checkNotNull(events);
     this.androidBootclasspathSupplier = Preconditions.checkNotNull(androidBootclasspathSupplier);
     this.buildDependencies = Preconditions.checkNotNull(buildDependencies);
+    this.isJavaIncrementalCompilationEnabled = isJavaIncrementalCompilationEnabled;
+    this.isInProcessDxEnabled = isInProcessDxEnabled;
+    this.dexCacheDir = Preconditions.checkNotNull(dexCacheDir);
+    this.dexCacheMaxSizeBytes = dexCacheMaxSizeBytes;
     this.sourcePathResolver = new Function<SourcePath, Path>() {
       @Override
       public Path apply(SourcePath sourcePath) {
@@ -129,6 +141,33 @@ public class BuildContext {
     return buildDependencies;
   }
 
+  /**
+   * @return true if java libraries may recompile only the sources affected by a change, reusing
+   *     the classes from their previous build.
+   */
+  public boolean isJavaIncrementalCompilationEnabled() {
+    return isJavaIncrementalCompilationEnabled;
+  }
+
+  /**
+   * @return whether {@code android_binary()} rules may run dx inside buck rather than fork it.
+   */
+  public boolean isInProcessDxEnabled() {
+    return isInProcessDxEnabled;
+  }
+
+  /**
+   * @return the directory in which {@code android_binary()} rules share the output of dx between
+   *     builds, or absent if they should not.
+   */
+  public Optional<Path> getDexCacheDir() {
+    return dexCacheDir;
+  }
+
+  public long getDexCacheMaxSizeBytes() {
+    return dexCacheMaxSizeBytes;
+  }
+
   public Function<SourcePath, Path> getSourcePathResolver() {
     return sourcePathResolver;
   }
@@ -182,6 +221,10 @@ public class BuildContext {
     private BuckEventBus events = null;
     private Supplier<String> androidBootclasspathSupplier = null;
     private BuildDependencies buildDependencies = BuildDependencies.getDefault();
+    private boolean isJavaIncrementalCompilationEnabled = false;
+    private boolean isInProcessDxEnabled = false;
+    private Optional<Path> dexCacheDir = Optional.absent();
+    private long dexCacheMaxSizeBytes = 0;
     private Console console = null;
 
     private Builder() {}
@@ -199,6 +242,10 @@ public class BuildContext {
           events,
           androidBootclasspathSupplier,
           buildDependencies,
+          isJavaIncrementalCompilationEnabled,
+          isInProcessDxEnabled,
+          dexCacheDir,
+          dexCacheMaxSizeBytes,
           console);
     }
 
@@ -237,6 +284,23 @@ public class BuildContext {
       return this;
     }
 
+    public Builder setJavaIncrementalCompilationEnabled(
+        boolean isJavaIncrementalCompilationEnabled) {
+      this.isJavaIncrementalCompilationEnabled = isJavaIncrementalCompilationEnabled;
+      return this;
+    }
+
+    public Builder setInProcessDxEnabled(boolean isInProcessDxEnabled) {
+      this.isInProcessDxEnabled = isInProcessDxEnabled;
+      return this;
+    }
+
+    public Builder setDexCache(Optional<Path> dexCacheDir, long dexCacheMaxSizeBytes) {
+      this.dexCacheDir = Preconditions.checkNotNull(dexCacheDir);
+      this.dexCacheMaxSizeBytes = dexCacheMaxSizeBytes;
+      return this;
+    }
+
     public Builder setAndroidBootclasspathForAndroidPlatformTarget(
         Optional<AndroidPlatformTarget> maybeAndroidPlatformTarget) {
       if (maybeAndroidPlatformTarget.isPresent()) {
@@ -20,6 +20,8 @@ import com.facebook.buck.graph.DefaultImmutableDirectedAcyclicGraph;
 import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.model.BuildTarget;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 
 import java.util.Map;
 
@@ -30,6 +32,12 @@ public class DependencyGraph extends DefaultImmutableDirectedAcyclicGraph<BuildR
 
   private Map<BuildTarget, BuildRule> index;
 
+  /** Maps each input of a rule in this graph to the rules that have it as an input. */
+  private ImmutableSetMultimap<InputRule, BuildRule> inputOwners;
+
+  /** Maps a base path, such as {@code java/com/example}, to the rules defined in its build file. */
+  private ImmutableSetMultimap<String, BuildRule> basePathToRules;
+
   public DependencyGraph(MutableDirectedGraph<BuildRule> graph) {
     super(graph);
   }
@@ -45,4 +53,47 @@ public class DependencyGraph extends DefaultImmutableDirectedAcyclicGraph<BuildR
 
     return index.get(buildTarget);
   }
+
+  /**
+   * @return the rules in this graph that list {@code input} among their
+   *     {@link BuildRule#getInputs() inputs}. The index is built on the first call, after which
+   *     each lookup is proportional to the size of its result.
+   */
+  public ImmutableSet<BuildRule> getOwnersOfInput(InputRule input) {
+    if (inputOwners == null) {
+      ImmutableSetMultimap.Builder<InputRule, BuildRule> builder = ImmutableSetMultimap.builder();
+      for (BuildRule rule : getNodes()) {
+        for (InputRule ruleInput : rule.getInputs()) {
+          builder.put(ruleInput, rule);
+        }
+      }
+      inputOwners = builder.build();
+    }
+
+    return inputOwners.get(input);
+  }
+
+  /**
+   * @param basePath a path relative to the project root, such as {@code java/com/example}.
+   * @return the rules in this graph that are defined by the build file in {@code basePath}.
+   */
+  public ImmutableSet<BuildRule> getRulesWithBasePath(String basePath) {
+    if (basePathToRules == null) {
+      ImmutableSetMultimap.Builder<String, BuildRule> builder = ImmutableSetMultimap.builder();
+      for (BuildRule rule : getNodes()) {
+        builder.put(rule.getBuildTarget().getBasePath(), rule);
+      }
+      basePathToRules = builder.build();
+    }
+
+    return basePathToRules.get(basePath);
+  }
+
+  /**
+   * @return {@code rules} and every rule in this graph that transitively depends on any of them,
+   *     which is the set of rules that must be rebuilt (or retested) if {@code rules} change.
+   */
+  public ImmutableSet<BuildRule> getTransitiveDependents(Iterable<? extends BuildRule> rules) {
+    return ImmutableSet.copyOf(findTransitiveIncomingNodes(rules));
+  }
 }
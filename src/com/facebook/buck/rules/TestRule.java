@@ -53,6 +53,14 @@ public interface TestRule extends BuildRule {
 
   public Callable<TestResults> interpretTestResults(ExecutionContext executionContext);
 
+  /**
+   * @return the directory, relative to the project root, that contains the files from which
+   *     {@link #interpretTestResults(ExecutionContext)} reads the test results. Restoring the
+   *     contents of this directory must be enough to interpret the results without running the
+   *     tests again.
+   */
+  public String getPathToTestOutputDirectory();
+
   /**
    * @return The set of labels for this build rule.
    */
@@ -116,7 +116,8 @@ public class ShTestRule extends DoNotUseAbstractBuildable implements TestRule {
     return ImmutableList.of(mkdirClean, runTest);
   }
 
-  private String getPathToTestOutputDirectory() {
+  @Override
+  public String getPathToTestOutputDirectory() {
     return String.format("%s/%s/__sh_test_%s_output__",
         BuckConstant.GEN_DIR,
         getBuildTarget().getBasePath(),
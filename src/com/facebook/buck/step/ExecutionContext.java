@@ -30,6 +30,7 @@ import com.google.common.base.Preconditions;
 
 import java.io.File;
 import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
 
 public class ExecutionContext {
 
@@ -40,8 +41,10 @@ public class ExecutionContext {
   private final Optional<File> ndkRoot;
   private final Optional<TargetDevice> targetDevice;
   private final long defaultTestTimeoutMillis;
+  private final int maxTestJobsPerJvm;
   private final boolean isCodeCoverageEnabled;
   private final boolean isDebugEnabled;
+  private final Optional<ExecutorService> parallelStepExecutor;
   private final ProcessExecutor processExecutor;
   private final BuckEventBus eventBus;
   private final Platform platform;
@@ -53,8 +56,10 @@ public class ExecutionContext {
       Optional<File> ndkRoot,
       Optional<TargetDevice> targetDevice,
       long defaultTestTimeoutMillis,
+      int maxTestJobsPerJvm,
       boolean isCodeCoverageEnabled,
       boolean isDebugEnabled,
+      Optional<ExecutorService> parallelStepExecutor,
       BuckEventBus eventBus,
       Platform platform) {
     this.verbosity = Preconditions.checkNotNull(console).getVerbosity();
@@ -64,8 +69,10 @@ public class ExecutionContext {
     this.ndkRoot = Preconditions.checkNotNull(ndkRoot);
     this.targetDevice = Preconditions.checkNotNull(targetDevice);
     this.defaultTestTimeoutMillis = defaultTestTimeoutMillis;
+    this.maxTestJobsPerJvm = maxTestJobsPerJvm;
     this.isCodeCoverageEnabled = isCodeCoverageEnabled;
     this.isDebugEnabled = isDebugEnabled;
+    this.parallelStepExecutor = Preconditions.checkNotNull(parallelStepExecutor);
     this.processExecutor = new ProcessExecutor(console);
     this.eventBus = Preconditions.checkNotNull(eventBus);
     this.platform = Preconditions.checkNotNull(platform);
@@ -83,8 +90,10 @@ public class ExecutionContext {
         getNdkRoot(),
         getTargetDeviceOptional(),
         getDefaultTestTimeoutMillis(),
+        getMaxTestJobsPerJvm(),
         isCodeCoverageEnabled(),
         isDebugEnabled,
+        parallelStepExecutor,
         eventBus,
         platform);
   }
@@ -164,6 +173,14 @@ public class ExecutionContext {
     return defaultTestTimeoutMillis;
   }
 
+  /**
+   * @return how many test rules may be run, one after the other, by the same JVM. If this is 1,
+   *     every test rule is run in a JVM of its own.
+   */
+  public int getMaxTestJobsPerJvm() {
+    return maxTestJobsPerJvm;
+  }
+
   public boolean isCodeCoverageEnabled() {
     return isCodeCoverageEnabled;
   }
@@ -172,6 +189,15 @@ public class ExecutionContext {
     return isDebugEnabled;
   }
 
+  /**
+   * @return the executor that a {@link ParallelStep} may borrow threads from, if any. It is shared
+   *     by every step that runs as part of the same command, so that the steps of one rule cannot
+   *     add to the threads that the command already runs rules on.
+   */
+  public Optional<ExecutorService> getParallelStepExecutor() {
+    return parallelStepExecutor;
+  }
+
   public String getPathToAdbExecutable() throws NoAndroidSdkException {
     return getAndroidPlatformTarget().getAdbExecutable().getAbsolutePath();
   }
@@ -192,8 +218,10 @@ public class ExecutionContext {
     private Optional<File> ndkRoot = Optional.absent();
     private Optional<TargetDevice> targetDevice = Optional.absent();
     private long defaultTestTimeoutMillis = 0L;
+    private int maxTestJobsPerJvm = 1;
     private boolean isCodeCoverageEnabled = false;
     private boolean isDebugEnabled = false;
+    private Optional<ExecutorService> parallelStepExecutor = Optional.absent();
     private BuckEventBus eventBus = null;
     private Platform platform = null;
 
@@ -207,8 +235,10 @@ public class ExecutionContext {
           ndkRoot,
           targetDevice,
           defaultTestTimeoutMillis,
+          maxTestJobsPerJvm,
           isCodeCoverageEnabled,
           isDebugEnabled,
+          parallelStepExecutor,
           eventBus,
           platform);
     }
@@ -220,8 +250,10 @@ public class ExecutionContext {
       setNdkRoot(executionContext.getNdkRoot());
       setTargetDevice(executionContext.getTargetDeviceOptional());
       setDefaultTestTimeoutMillis(executionContext.getDefaultTestTimeoutMillis());
+      setMaxTestJobsPerJvm(executionContext.getMaxTestJobsPerJvm());
       setCodeCoverageEnabled(executionContext.isCodeCoverageEnabled());
       setDebugEnabled(executionContext.isDebugEnabled());
+      setParallelStepExecutor(executionContext.getParallelStepExecutor());
       setEventBus(executionContext.getBuckEventBus());
       setPlatform(executionContext.getPlatform());
       return this;
@@ -260,6 +292,14 @@ public class ExecutionContext {
       return this;
     }
 
+    /** Specify 1 to run every test rule in a JVM of its own. */
+    public Builder setMaxTestJobsPerJvm(int maxTestJobsPerJvm) {
+      Preconditions.checkArgument(maxTestJobsPerJvm > 0,
+          "Must allow at least one test job per JVM.");
+      this.maxTestJobsPerJvm = maxTestJobsPerJvm;
+      return this;
+    }
+
     public Builder setCodeCoverageEnabled(boolean isCodeCoverageEnabled) {
       this.isCodeCoverageEnabled = isCodeCoverageEnabled;
       return this;
@@ -270,6 +310,11 @@ public class ExecutionContext {
       return this;
     }
 
+    public Builder setParallelStepExecutor(Optional<ExecutorService> parallelStepExecutor) {
+      this.parallelStepExecutor = Preconditions.checkNotNull(parallelStepExecutor);
+      return this;
+    }
+
     public Builder setEventBus(BuckEventBus eventBus) {
       this.eventBus = Preconditions.checkNotNull(eventBus);
       return this;
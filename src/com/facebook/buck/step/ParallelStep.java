@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executes a number of independent steps at the same time and waits for all of them to finish.
+ * Unlike {@link CompositeStep}, a failing step does not stop the others.
+ * <p>
+ * The calling thread runs steps itself, and is helped by threads borrowed from
+ * {@link ExecutionContext#getParallelStepExecutor()}. That executor is shared by the whole
+ * command, so the steps only run concurrently when the command has threads to spare, and no more
+ * steps run at once across all of the command's rules than it has threads. Without an executor,
+ * the steps are run one after the other.
+ */
+public class ParallelStep implements Step {
+
+  private final ImmutableList<Step> steps;
+
+  public ParallelStep(List<? extends Step> steps) {
+    Preconditions.checkNotNull(steps);
+    Preconditions.checkArgument(!steps.isEmpty(), "Must have at least one step");
+    this.steps = ImmutableList.copyOf(steps);
+  }
+
+  public ImmutableList<Step> getSteps() {
+    return steps;
+  }
+
+  /**
+   * @return the exit code of the first step, in the order they were given, that failed, or 0 if
+   *     all of them succeeded.
+   */
+  @Override
+  public int execute(final ExecutionContext context) {
+    if (steps.size() == 1) {
+      return steps.get(0).execute(context);
+    }
+
+    final Queue<Integer> remainingSteps = new ConcurrentLinkedQueue<>();
+    for (int i = 0; i < steps.size(); i++) {
+      remainingSteps.add(i);
+    }
+    final AtomicIntegerArray exitCodes = new AtomicIntegerArray(steps.size());
+    final CountDownLatch allFinished = new CountDownLatch(steps.size());
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Runnable runRemainingSteps = new Runnable() {
+      @Override
+      public void run() {
+        for (Integer index = remainingSteps.poll();
+             index != null;
+             index = remainingSteps.poll()) {
+          try {
+            exitCodes.set(index, steps.get(index).execute(context));
+          } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+            exitCodes.set(index, 1);
+          } finally {
+            allFinished.countDown();
+          }
+        }
+      }
+    };
+
+    // A helper that only gets a thread once the calling thread has taken every step finds nothing
+    // to do, so the calling thread never waits on a step that has not started.
+    List<Future<?>> helpers = Lists.newArrayList();
+    if (context.getParallelStepExecutor().isPresent()) {
+      ExecutorService executor = context.getParallelStepExecutor().get();
+      for (int i = 1; i < steps.size(); i++) {
+        helpers.add(executor.submit(runRemainingSteps));
+      }
+    }
+    runRemainingSteps.run();
+
+    try {
+      allFinished.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    } finally {
+      // Give the threads of helpers that never started back to the command.
+      for (Future<?> helper : helpers) {
+        helper.cancel(/* mayInterruptIfRunning */ false);
+      }
+    }
+
+    // Steps report failure through their exit code, so this is a bug in one of them.
+    if (failure.get() != null) {
+      throw Throwables.propagate(failure.get());
+    }
+
+    for (int i = 0; i < steps.size(); i++) {
+      if (exitCodes.get(i) != 0) {
+        return exitCodes.get(i);
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public String getDescription(final ExecutionContext context) {
+    return Joiner.on(" & ").join(Iterables.transform(steps,
+        new Function<Step, String>() {
+          @Override
+          public String apply(Step step) {
+            return step.getDescription(context);
+          }
+    }));
+  }
+
+  @Override
+  public String getShortName() {
+    return Joiner.on("_&_").join(Iterables.transform(steps,
+        new Function<Step, String>() {
+          @Override
+          public String apply(Step step) {
+            return step.getShortName();
+          }
+    }));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step.fs;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+
+/**
+ * How an {@link XzStep} compresses its input.
+ */
+public class XzOptions {
+
+  /** The settings used when none are given: level 4 on a single thread. */
+  public static final XzOptions DEFAULT = new XzOptions(
+      /* compressionLevel */ 4,
+      /* dictionarySize */ Optional.<Integer>absent(),
+      /* numThreads */ 1);
+
+  /** xz(1) uses blocks of at least this size when compressing with several threads. */
+  private static final int MIN_BLOCK_SIZE = 1 << 20;
+
+  /** Keeps the block that each thread holds in memory well within the limits of an array. */
+  private static final int MAX_BLOCK_SIZE = 1 << 30;
+
+  private final int compressionLevel;
+  private final Optional<Integer> dictionarySize;
+  private final int numThreads;
+
+  /**
+   * @param compressionLevel a value between 0-9, it impacts memory requirements for decompression
+   * @param dictionarySize if present, overrides the dictionary size of {@code compressionLevel}.
+   *     The dictionary size is the amount of memory needed to decompress the output.
+   * @param numThreads if greater than one, the input is split into blocks that are compressed
+   *     independently, on up to this many threads, and written as a single stream. The output is
+   *     the same for any number of threads greater than one.
+   */
+  public XzOptions(int compressionLevel, Optional<Integer> dictionarySize, int numThreads) {
+    Preconditions.checkArgument(compressionLevel >= LZMA2Options.PRESET_MIN &&
+        compressionLevel <= LZMA2Options.PRESET_MAX, "compressionLevel out of bounds.");
+    Preconditions.checkNotNull(dictionarySize);
+    if (dictionarySize.isPresent()) {
+      Preconditions.checkArgument(dictionarySize.get() >= LZMA2Options.DICT_SIZE_MIN &&
+          dictionarySize.get() <= LZMA2Options.DICT_SIZE_MAX, "dictionarySize out of bounds.");
+    }
+    Preconditions.checkArgument(numThreads >= 1, "numThreads must be at least 1.");
+    this.compressionLevel = compressionLevel;
+    this.dictionarySize = dictionarySize;
+    this.numThreads = numThreads;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public Optional<Integer> getDictionarySize() {
+    return dictionarySize;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  LZMA2Options createLzma2Options() {
+    try {
+      LZMA2Options options = new LZMA2Options(compressionLevel);
+      if (dictionarySize.isPresent()) {
+        options.setDictSize(dictionarySize.get());
+      }
+      return options;
+    } catch (UnsupportedOptionsException e) {
+      // The arguments were checked by the constructor.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the amount of input compressed into each block when using several threads. Like
+   *     xz(1), this is three times the dictionary size, so that splitting the input costs little
+   *     in compression ratio.
+   */
+  int getBlockSize() {
+    long blockSize = 3L * createLzma2Options().getDictSize();
+    return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+  }
+
+  /**
+   * @return a string that changes whenever the output for the same input would.
+   */
+  @Override
+  public String toString() {
+    return String.format("level=%d,dict=%s,blocks=%b",
+        compressionLevel,
+        dictionarySize.orNull(),
+        numThreads > 1);
+  }
+}
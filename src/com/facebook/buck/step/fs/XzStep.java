@@ -20,33 +20,57 @@ import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
 
-import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZ;
 import org.tukaani.xz.XZOutputStream;
+import org.tukaani.xz.index.IndexEncoder;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 /**
  * A {@link Step} to compress a file with XZ / LZMA2.
+ * <p>
+ * When allowed several threads, large inputs are split into blocks which are compressed
+ * concurrently, as {@code xz -T} does. The blocks are written as a single stream with an index,
+ * which any XZ decoder, including XZ Embedded, can decompress.
  *
  * @see <a href="http://tukaani.org/xz/">XZ</a>
  * @see <a href="http://tukaani.org/xz/java.html">XZ for Java</a>
  * @see <a href="http://tukaani.org/xz/embedded.html">XZ Embedded</a>
+ * @see <a href="http://tukaani.org/xz/xz-file-format.txt">The .xz File Format</a>
  */
 public class XzStep implements Step {
 
+  /** Size of both the Stream Header and the Stream Footer. */
+  private static final int STREAM_HEADER_SIZE = 12;
+
   private final String sourceFile;
   private final String destinationFile;
-  private final int compressionLevel;
+  private final XzOptions options;
   private final boolean keep;
   private final int check;
 
@@ -68,11 +92,24 @@ public class XzStep implements Step {
       int compressionLevel,
       boolean keep,
       int check) {
+    this(
+        sourceFile,
+        destinationFile,
+        new XzOptions(compressionLevel, Optional.<Integer>absent(), /* numThreads */ 1),
+        keep,
+        check);
+  }
+
+  @VisibleForTesting
+  XzStep(
+      String sourceFile,
+      String destinationFile,
+      XzOptions options,
+      boolean keep,
+      int check) {
     this.sourceFile = Preconditions.checkNotNull(sourceFile);
     this.destinationFile = Preconditions.checkNotNull(destinationFile);
-    Preconditions.checkArgument(compressionLevel >= LZMA2Options.PRESET_MIN &&
-        compressionLevel <= LZMA2Options.PRESET_MAX, "compressionLevel out of bounds.");
-    this.compressionLevel = compressionLevel;
+    this.options = Preconditions.checkNotNull(options);
     this.keep = keep;
     this.check = check;
   }
@@ -86,23 +123,31 @@ public class XzStep implements Step {
    * @param sourceFile file to compress
    */
   public XzStep(String sourceFile) {
+    this(sourceFile, XzOptions.DEFAULT);
+  }
+
+  /**
+   * Creates an XzStep to compress a file into {@code sourceFile} with the added {@code .xz}
+   * extension, deleting {@code sourceFile} and using a CRC32 integrity check.
+   */
+  public XzStep(String sourceFile, XzOptions options) {
     this(
         sourceFile,
         sourceFile + ".xz",
-        /* compressionLevel */ 4,
+        options,
         /* keep */ false,
         XZ.CHECK_CRC32);
   }
 
   @Override
   public int execute(ExecutionContext context) {
-    try (
-        InputStream in = new BufferedInputStream(new FileInputStream(sourceFile));
-        OutputStream out = new BufferedOutputStream(new FileOutputStream(getDestinationFile()));
-        XZOutputStream xzOut = new XZOutputStream(out, new LZMA2Options(compressionLevel), check);
-    ) {
-      ByteStreams.copy(in, xzOut);
-      xzOut.finish();
+    try {
+      int blockSize = options.getBlockSize();
+      if (options.getNumThreads() > 1 && new File(sourceFile).length() > blockSize) {
+        compressBlocksInParallel(blockSize);
+      } else {
+        compress();
+      }
     } catch (IOException e) {
       e.printStackTrace(context.getStdErr());
       return 1;
@@ -113,14 +158,162 @@ public class XzStep implements Step {
     return 0;
   }
 
+  private void compress() throws IOException {
+    try (
+        InputStream in = new BufferedInputStream(new FileInputStream(sourceFile));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(getDestinationFile()));
+        XZOutputStream xzOut = new XZOutputStream(out, options.createLzma2Options(), check);
+    ) {
+      ByteStreams.copy(in, xzOut);
+      xzOut.finish();
+    }
+  }
+
+  /**
+   * Compresses each block of the source file as a stream of its own, on up to
+   * {@link XzOptions#getNumThreads()} threads, then writes the block of each of these streams,
+   * in order, into a single stream. Only as many blocks as there are threads are held in memory.
+   */
+  private void compressBlocksInParallel(int blockSize) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(options.getNumThreads());
+    try (
+        InputStream in = new BufferedInputStream(new FileInputStream(sourceFile));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(getDestinationFile()))
+    ) {
+      IndexEncoder index = new IndexEncoder();
+      byte[] streamFlags = null;
+      boolean endOfInput = false;
+      while (!endOfInput) {
+        List<Future<byte[]>> streams = Lists.newArrayList();
+        while (!endOfInput && streams.size() < options.getNumThreads()) {
+          final byte[] block = new byte[blockSize];
+          final int length = ByteStreams.read(in, block, 0, blockSize);
+          endOfInput = length < blockSize;
+          if (length > 0) {
+            streams.add(executor.submit(new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException {
+                return compressStream(block, length);
+              }
+            }));
+          }
+        }
+
+        for (Future<byte[]> future : streams) {
+          byte[] stream = future.get();
+          if (streamFlags == null) {
+            // Every stream was written with the same check, so has the same header.
+            out.write(stream, 0, STREAM_HEADER_SIZE);
+            streamFlags = Arrays.copyOfRange(stream, 6, 8);
+          }
+          addBlock(stream, out, index);
+        }
+      }
+      Preconditions.checkState(streamFlags != null, "%s is empty.", sourceFile);
+
+      ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+      index.encode(indexBytes);
+      indexBytes.writeTo(out);
+      writeStreamFooter(out, indexBytes.size(), streamFlags);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private byte[] compressStream(byte[] data, int length) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream(length / 2);
+    try (XZOutputStream xzOut = new XZOutputStream(stream, options.createLzma2Options(), check)) {
+      xzOut.write(data, 0, length);
+    }
+    return stream.toByteArray();
+  }
+
+  /**
+   * Copies the single block of {@code stream} to {@code out}, and records it in {@code index}.
+   */
+  private static void addBlock(byte[] stream, OutputStream out, IndexEncoder index)
+      throws IOException {
+    // The Stream Footer records the size of the Index, which follows the block.
+    int indexSize = (Ints.fromBytes(
+        stream[stream.length - 5],
+        stream[stream.length - 6],
+        stream[stream.length - 7],
+        stream[stream.length - 8]) + 1) * 4;
+    int indexStart = stream.length - STREAM_HEADER_SIZE - indexSize;
+
+    // The Index holds an indicator, the number of records, and then the unpadded and
+    // uncompressed size of each block.
+    ByteArrayInputStream records = new ByteArrayInputStream(stream, indexStart, indexSize);
+    if (records.read() != 0x00 || readVariableLengthInteger(records) != 1) {
+      throw new IOException("Expected an XZ stream with a single block.");
+    }
+    long unpaddedSize = readVariableLengthInteger(records);
+    long uncompressedSize = readVariableLengthInteger(records);
+
+    out.write(stream, STREAM_HEADER_SIZE, indexStart - STREAM_HEADER_SIZE);
+    index.add(unpaddedSize, uncompressedSize);
+  }
+
+  private static long readVariableLengthInteger(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 63; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid variable-length integer in XZ index.");
+  }
+
+  private static void writeStreamFooter(OutputStream out, int indexSize, byte[] streamFlags)
+      throws IOException {
+    byte[] footer = new byte[STREAM_HEADER_SIZE];
+    int backwardSize = indexSize / 4 - 1;
+    for (int i = 0; i < 4; i++) {
+      footer[4 + i] = (byte) (backwardSize >>> (8 * i));
+    }
+    footer[8] = streamFlags[0];
+    footer[9] = streamFlags[1];
+    footer[10] = 'Y';
+    footer[11] = 'Z';
+
+    CRC32 crc = new CRC32();
+    crc.update(footer, 4, 6);
+    long value = crc.getValue();
+    for (int i = 0; i < 4; i++) {
+      footer[i] = (byte) (value >>> (8 * i));
+    }
+    out.write(footer);
+  }
+
   public String getDestinationFile() {
     return destinationFile;
   }
 
   @Override
   public String getDescription(ExecutionContext context) {
+    int compressionLevel = options.getCompressionLevel();
+    Optional<Integer> dictionarySize = options.getDictionarySize();
     return Joiner.on(" ").skipNulls().join(
-     "xz", "-z", "-" + compressionLevel, (keep ? "--keep" : null), "--check=crc32", sourceFile);
+        "xz",
+        "-z",
+        dictionarySize.isPresent()
+            ? String.format("--lzma2=preset=%d,dict=%d", compressionLevel, dictionarySize.get())
+            : "-" + compressionLevel,
+        (options.getNumThreads() > 1 ? "--threads=" + options.getNumThreads() : null),
+        (keep ? "--keep" : null),
+        "--check=crc32",
+        sourceFile);
   }
 
   @Override
@@ -69,7 +69,20 @@ class AppendingZipOutputStream extends CustomZipOutputStream {
       throw new ZipException("duplicate entry: " + entry.getName());
     }
 
-    currentEntry = new EntryAccounting(clock, entry, currentOffset);
+    putEntry(new EntryAccounting(clock, entry, currentOffset));
+  }
+
+  @Override
+  protected void actuallyPutRawEntry(ZipEntry entry) throws IOException {
+    if (throwExceptionsOnDuplicate && !seenNames.add(entry.getName())) {
+      throw new ZipException("duplicate entry: " + entry.getName());
+    }
+
+    putEntry(EntryAccounting.forRawEntry(clock, entry, currentOffset));
+  }
+
+  private void putEntry(EntryAccounting entry) throws IOException {
+    currentEntry = entry;
     entries.add(currentEntry);
 
     currentOffset += currentEntry.writeLocalFileHeader(delegate);
@@ -27,6 +27,7 @@ import java.util.zip.ZipEntry;
 public class CustomZipEntry extends ZipEntry {
 
   private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private int alignment = 1;
 
   public CustomZipEntry(ZipEntry other) {
     super(other);
@@ -61,4 +62,18 @@ public class CustomZipEntry extends ZipEntry {
   public int getCompressionLevel() {
     return compressionLevel;
   }
+
+  /**
+   * Sets the alignment, in bytes, of the data of this entry within the zip file, as
+   * {@code zipalign} does for an APK. The local file header is padded to align the data, which only
+   * applies to {@link #STORED} entries: the data of a compressed entry is not aligned.
+   */
+  public void setAlignment(int alignment) {
+    Preconditions.checkArgument(alignment > 0);
+    this.alignment = alignment;
+  }
+
+  public int getAlignment() {
+    return alignment;
+  }
 }
@@ -17,8 +17,10 @@
 package com.facebook.buck.zip;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -57,6 +59,37 @@ public abstract class CustomZipOutputStream extends OutputStream {
    */
   protected abstract void actuallyPutNextEntry(ZipEntry entry) throws IOException;
 
+  /**
+   * Writes an entry whose data is already in the form in which it is stored in a zip file, such as
+   * an entry read from another zip file with {@link ZipArchive#getRawInputStream}. The data is
+   * copied as is, rather than being compressed again.
+   *
+   * @param entry The {@link ZipEntry} to write. Its method, CRC, size and compressed size must be
+   *     set, and must describe {@code data}.
+   * @param data The data of the entry, which is consumed but not closed.
+   */
+  public final void putRawEntry(ZipEntry entry, InputStream data) throws IOException {
+    Preconditions.checkState(state != State.CLOSED, "Stream has been closed.");
+    Preconditions.checkNotNull(entry);
+    Preconditions.checkNotNull(data);
+
+    state = State.OPEN;
+    closeEntry();
+    actuallyPutRawEntry(entry);
+    entryOpen = true;
+    ByteStreams.copy(data, this);
+    closeEntry();
+  }
+
+  /**
+   * Called by {@link #putRawEntry(ZipEntry, InputStream)} to put the next entry into the zip file,
+   * with the same guarantees as {@link #actuallyPutNextEntry(ZipEntry)}. The bytes subsequently
+   * passed to {@link #actuallyWrite(byte[], int, int)} must be written as they are.
+   *
+   * @param entry The {@link ZipEntry} to write.
+   */
+  protected abstract void actuallyPutRawEntry(ZipEntry entry) throws IOException;
+
   public final void closeEntry() throws IOException {
     Preconditions.checkState(state != State.CLOSED, "Stream has been closed");
     if (!entryOpen) {
@@ -30,6 +30,8 @@ import java.util.Calendar;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 
+import javax.annotation.Nullable;
+
 /**
  * A wrapper containing the {@link ZipEntry} and additional book keeping information required to
  * write the entry to a zip file.
@@ -42,6 +44,11 @@ class EntryAccounting {
 
   private final ZipEntry entry;
   private final Method method;
+  /**
+   * Whether the data written for this entry is already in the form in which it is stored, with the
+   * CRC and sizes of the entry known up front. See {@link #forRawEntry(Clock, ZipEntry, long)}.
+   */
+  private final boolean isRaw;
   private Hasher crc = Hashing.crc32().newHasher();
   private long offset;
   /*
@@ -63,24 +70,49 @@ class EntryAccounting {
    *  Defaults to indicate that names are stored as UTF8.
    */
   private int flags = UTF8_NAMES_FLAG;
-  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  @Nullable
+  private final Deflater deflater;
   private final byte[] buffer = new byte[ARBITRARY_SIZE];
 
   public EntryAccounting(Clock clock, ZipEntry entry, long currentOffset) {
+    this(clock, entry, currentOffset, /* isRaw */ false);
+  }
+
+  private EntryAccounting(Clock clock, ZipEntry entry, long currentOffset, boolean isRaw) {
     this.entry = Preconditions.checkNotNull(entry);
     this.method = Method.detect(entry.getMethod());
     Preconditions.checkNotNull(clock);
     this.offset = currentOffset;
+    this.isRaw = isRaw;
 
     if (entry.getTime() == -1) {
       entry.setTime(clock.currentTimeMillis());
     }
 
-    if (entry instanceof CustomZipEntry) {
-      deflater.setLevel(((CustomZipEntry) entry).getCompressionLevel());
+    if (isDeflated() && !isRaw) {
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      if (entry instanceof CustomZipEntry) {
+        deflater.setLevel(((CustomZipEntry) entry).getCompressionLevel());
+      }
+    } else {
+      deflater = null;
     }
   }
 
+  /**
+   * Creates the accounting for an entry whose data will be written exactly as it should be stored,
+   * compressed or not, so the CRC and both sizes of {@code entry} must already be set. As they are
+   * known up front, they are written in the local file header rather than after the data.
+   */
+  public static EntryAccounting forRawEntry(Clock clock, ZipEntry entry, long currentOffset) {
+    Preconditions.checkArgument(entry.getMethod() != -1, "Method of %s must be set.", entry);
+    Preconditions.checkArgument(entry.getCrc() != -1, "CRC of %s must be set.", entry);
+    Preconditions.checkArgument(entry.getSize() != -1, "Size of %s must be set.", entry);
+    Preconditions.checkArgument(entry.getCompressedSize() != -1,
+        "Compressed size of %s must be set.", entry);
+    return new EntryAccounting(clock, entry, currentOffset, /* isRaw */ true);
+  }
+
   public void updateCrc(byte[] b, int off, int len) {
     crc = crc.putBytes(b, off, len);
   }
@@ -156,7 +188,7 @@ class EntryAccounting {
   }
 
   public long writeLocalFileHeader(OutputStream out) throws IOException {
-    if (method == Method.DEFLATE) {
+    if (method == Method.DEFLATE && !isRaw) {
       flags |= DATA_DESCRIPTOR_FLAG;
 
       // See http://www.pkware.com/documents/casestudies/APPNOTE.TXT (section 4.4.4)
@@ -194,7 +226,11 @@ class EntryAccounting {
       ByteIo.writeInt(stream, getTime());
 
       // In deflate mode, we don't know the size or CRC of the data.
-      if (isDeflated()) {
+      if (isRaw) {
+        ByteIo.writeInt(stream, entry.getCrc());
+        ByteIo.writeInt(stream, entry.getCompressedSize());
+        ByteIo.writeInt(stream, entry.getSize());
+      } else if (isDeflated()) {
         ByteIo.writeInt(stream, 0);
         ByteIo.writeInt(stream, 0);
         ByteIo.writeInt(stream, 0);
@@ -205,9 +241,12 @@ class EntryAccounting {
       }
 
       byte[] nameBytes = entry.getName().getBytes(Charsets.UTF_8);
+      int padding = getAlignmentPadding(stream.size() + 4 + nameBytes.length);
       ByteIo.writeShort(stream, nameBytes.length);
-      ByteIo.writeShort(stream, 0);
+      ByteIo.writeShort(stream, padding);
       stream.write(nameBytes);
+      // The padding is an extra field of zeros, which is what zipalign writes too.
+      stream.write(new byte[padding]);
 
       byte[] bytes = stream.toByteArray();
       out.write(bytes);
@@ -215,6 +254,18 @@ class EntryAccounting {
     }
   }
 
+  /**
+   * @return the number of bytes to pad the local file header with so that the data of the entry,
+   *     which follows a header of {@code headerSize} bytes, is aligned as it requested.
+   */
+  private int getAlignmentPadding(int headerSize) {
+    if (method != Method.STORE || !(entry instanceof CustomZipEntry)) {
+      return 0;
+    }
+    int alignment = ((CustomZipEntry) entry).getAlignment();
+    return (int) ((alignment - (offset + headerSize) % alignment) % alignment);
+  }
+
   private byte[] close() throws IOException {
     if (!isDeflated()) {
       return new byte[0];
@@ -239,6 +290,11 @@ class EntryAccounting {
   }
 
   public long write(OutputStream out, byte[] b, int off, int len) throws IOException {
+    if (isRaw) {
+      out.write(b, off, len);
+      return len;
+    }
+
     updateCrc(b, off, len);
 
     if (!isDeflated()) {
@@ -260,7 +316,7 @@ class EntryAccounting {
   }
 
   public long close(OutputStream out) throws IOException {
-    if (!isDeflated()) {
+    if (!isDeflated() || isRaw) {
       // Nothing left to do.
       return 0;
     }
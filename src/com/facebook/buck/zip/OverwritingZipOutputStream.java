@@ -70,7 +70,16 @@ public class OverwritingZipOutputStream extends CustomZipOutputStream {
   @Override
   protected void actuallyPutNextEntry(ZipEntry entry) throws IOException {
     // We calculate the actual offset when closing the stream, so 0 is fine.
-    currentEntry = new EntryAccounting(clock, entry, /* currentOffset */ 0);
+    putEntry(new EntryAccounting(clock, entry, /* currentOffset */ 0));
+  }
+
+  @Override
+  protected void actuallyPutRawEntry(ZipEntry entry) throws IOException {
+    putEntry(EntryAccounting.forRawEntry(clock, entry, /* currentOffset */ 0));
+  }
+
+  private void putEntry(EntryAccounting entry) throws IOException {
+    currentEntry = entry;
 
     long md5 = Hashing.md5().hashUnencodedChars(entry.getName()).asLong();
     String name = String.valueOf(md5);
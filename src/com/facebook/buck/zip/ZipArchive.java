@@ -0,0 +1,261 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.util.Calendar;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a zip file without decompressing them, so that they can be copied into
+ * another zip file with {@link CustomZipOutputStream#putRawEntry(ZipEntry, InputStream)}.
+ * <p>
+ * Only the zip files that {@link java.util.zip.ZipFile} can read and that do not use encryption or
+ * the zip64 extensions are supported: see {@link #open(File)}. Just as with
+ * {@link java.util.zip.ZipFile}, the entries are listed in the order of the central directory.
+ * <p>
+ * <a href="http://www.pkware.com/documents/casestudies/APPNOTE.TXT">
+ *   http://www.pkware.com/documents/casestudies/APPNOTE.TXT
+ * </a>
+ */
+public class ZipArchive implements Closeable {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+  private static final int ENCRYPTED_FLAG = 1;
+  private static final long ZIP64_MARKER = 0xffffffffL;
+
+  private final RandomAccessFile file;
+  private final ImmutableList<Entry> entries;
+
+  private ZipArchive(RandomAccessFile file, ImmutableList<Entry> entries) {
+    this.file = file;
+    this.entries = entries;
+  }
+
+  /**
+   * @return the archive, or {@link Optional#absent()} if {@code zipFile} uses a feature that is not
+   *     supported, in which case it should be read with {@link java.util.zip.ZipFile} instead.
+   * @throws ZipException if {@code zipFile} is not a zip file.
+   */
+  public static Optional<ZipArchive> open(File zipFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+    try {
+      Optional<ImmutableList<Entry>> entries = readCentralDirectory(file);
+      if (!entries.isPresent()) {
+        file.close();
+        return Optional.absent();
+      }
+      return Optional.of(new ZipArchive(file, entries.get()));
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  public ImmutableList<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the data of {@code entry} as it is stored in the archive, which is compressed if the
+   *     method of the entry is {@link ZipEntry#DEFLATED}. Only one stream may be read at a time.
+   */
+  public InputStream getRawInputStream(Entry entry) throws IOException {
+    byte[] header = new byte[LOCAL_FILE_HEADER_SIZE];
+    file.seek(entry.localHeaderOffset);
+    file.readFully(header);
+    if (readInt(header, 0) != ZipEntry.LOCSIG) {
+      throw new ZipException("Invalid local file header for " + entry.getName());
+    }
+    long dataOffset = entry.localHeaderOffset + LOCAL_FILE_HEADER_SIZE +
+        readShort(header, 26) + readShort(header, 28);
+    file.seek(dataOffset);
+    InputStream data = ByteStreams.limit(Channels.newInputStream(file.getChannel()),
+        entry.getCompressedSize());
+    // Closing the stream of a channel closes the channel, and so the file, which must stay open to
+    // read the other entries.
+    return new FilterInputStream(data) {
+      @Override
+      public void close() {}
+    };
+  }
+
+  /**
+   * @return the uncompressed data of {@code entry}. Only one stream may be read at a time.
+   */
+  public InputStream getInputStream(Entry entry) throws IOException {
+    InputStream raw = getRawInputStream(entry);
+    if (entry.getMethod() == ZipEntry.STORED) {
+      return raw;
+    }
+    // As java.util.zip.ZipFile does, provide the extra byte that the inflater may need when it is
+    // not expecting a zlib header.
+    InputStream rawWithPadding =
+        new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1]));
+    return new InflaterInputStream(rawWithPadding, new Inflater(/* nowrap */ true)) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        inf.end();
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private static Optional<ImmutableList<Entry>> readCentralDirectory(RandomAccessFile file)
+      throws IOException {
+    // The end of central directory record is at the end of the file, followed by a comment of up to
+    // 64k, so search backwards for its signature.
+    long length = file.length();
+    int tailSize = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    byte[] tail = new byte[tailSize];
+    file.seek(length - tailSize);
+    file.readFully(tail);
+
+    int end = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (readInt(tail, i) == ZipEntry.ENDSIG) {
+        end = i;
+        break;
+      }
+    }
+    if (end == -1) {
+      throw new ZipException("Not a zip file: no end of central directory record.");
+    }
+
+    int numEntries = readShort(tail, end + 10);
+    long centralDirectorySize = readInt(tail, end + 12);
+    long centralDirectoryOffset = readInt(tail, end + 16);
+    if (numEntries == 0xffff ||
+        centralDirectorySize == ZIP64_MARKER ||
+        centralDirectoryOffset == ZIP64_MARKER) {
+      return Optional.absent();
+    }
+
+    byte[] centralDirectory = new byte[(int) centralDirectorySize];
+    file.seek(centralDirectoryOffset);
+    file.readFully(centralDirectory);
+
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    int offset = 0;
+    for (int i = 0; i < numEntries; i++) {
+      if (offset + CENTRAL_DIRECTORY_HEADER_SIZE > centralDirectory.length) {
+        throw new EOFException("Truncated central directory.");
+      }
+      if (readInt(centralDirectory, offset) != ZipEntry.CENSIG) {
+        throw new ZipException("Invalid central directory file header.");
+      }
+
+      int flags = readShort(centralDirectory, offset + 8);
+      int method = readShort(centralDirectory, offset + 10);
+      long dosTime = readInt(centralDirectory, offset + 12);
+      long crc = readInt(centralDirectory, offset + 16);
+      long compressedSize = readInt(centralDirectory, offset + 20);
+      long size = readInt(centralDirectory, offset + 24);
+      int nameLength = readShort(centralDirectory, offset + 28);
+      int extraLength = readShort(centralDirectory, offset + 30);
+      int commentLength = readShort(centralDirectory, offset + 32);
+      long localHeaderOffset = readInt(centralDirectory, offset + 42);
+
+      if ((flags & ENCRYPTED_FLAG) != 0 ||
+          (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) ||
+          compressedSize == ZIP64_MARKER ||
+          size == ZIP64_MARKER ||
+          localHeaderOffset == ZIP64_MARKER) {
+        return Optional.absent();
+      }
+
+      String name = new String(centralDirectory,
+          offset + CENTRAL_DIRECTORY_HEADER_SIZE,
+          nameLength,
+          Charsets.UTF_8);
+      Entry entry = new Entry(name, localHeaderOffset);
+      entry.setMethod(method);
+      entry.setTime(dosToJavaTime(dosTime));
+      entry.setCrc(crc);
+      entry.setSize(size);
+      entry.setCompressedSize(compressedSize);
+      entries.add(entry);
+
+      offset += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return Optional.of(entries.build());
+  }
+
+  /**
+   * The inverse of {@link EntryAccounting#getTime()}.
+   */
+  private static long dosToJavaTime(long dosTime) {
+    Calendar instance = Calendar.getInstance();
+    instance.clear();
+    instance.set(
+        (int) ((dosTime >> 25) & 0x7f) + 1980,
+        (int) ((dosTime >> 21) & 0x0f) - 1,
+        (int) ((dosTime >> 16) & 0x1f),
+        (int) ((dosTime >> 11) & 0x1f),
+        (int) ((dosTime >> 5) & 0x3f),
+        (int) ((dosTime << 1) & 0x3e));
+    return instance.getTimeInMillis();
+  }
+
+  private static int readShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8);
+  }
+
+  private static long readInt(byte[] bytes, int offset) {
+    return (readShort(bytes, offset) | ((long) readShort(bytes, offset + 2) << 16)) & 0xffffffffL;
+  }
+
+  /**
+   * An entry of a {@link ZipArchive}, with its method, time, CRC and sizes all set.
+   */
+  public static class Entry extends ZipEntry {
+
+    private final long localHeaderOffset;
+
+    private Entry(String name, long localHeaderOffset) {
+      super(name);
+      Preconditions.checkArgument(localHeaderOffset >= 0);
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+}
@@ -37,6 +37,7 @@ import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.DependencyGraph;
 import com.facebook.buck.rules.FakeAbstractBuildRuleBuilderParams;
 import com.facebook.buck.rules.FileSourcePath;
+import com.facebook.buck.rules.NoopArtifactCache;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.shell.BashStep;
 import com.facebook.buck.step.ExecutionContext;
@@ -519,6 +520,7 @@ public class AndroidBinaryRuleTest {
             ZipSplitter.DexSplitStrategy.MAXIMIZE_PRIMARY_DEX_SIZE,
             DexStore.JAR,
             /* useLinearAllocSplitDex */ false)));
+    assertFalse(splitDexRule.isPreDexEnabled());
 
     Set<String> classpath = Sets.newHashSet();
     ImmutableSet.Builder<String> secondaryDexDirectories = ImmutableSet.builder();
@@ -533,7 +535,9 @@ public class AndroidBinaryRuleTest {
           public Path apply(SourcePath input) {
             throw new UnsupportedOperationException("This resolver should not be used.");
           }
-        });
+        },
+        new ForkingDexer(),
+        /* dexCache */ Optional.<DexCache>absent());
 
     assertEquals("Expected 2 new assets paths (one for metadata.txt and the other for the " +
         "secondary zips)", 2, secondaryDexDirectories.build().size());
@@ -543,6 +547,29 @@ public class AndroidBinaryRuleTest {
         ImmutableList.<Class<?>>of(SplitZipStep.class, SmartDexingStep.class));
   }
 
+  @Test
+  public void testPreDexingCommands() {
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+    AndroidBinaryRule rule = ruleResolver.buildAndAddToIndex(
+        AndroidBinaryRule.newAndroidBinaryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(BuildTargetFactory.newInstance("//:fbandroid_with_dash_debug_fbsign"))
+        .setManifest("AndroidManifest.xml")
+        .setKeystore(addKeystoreRule(ruleResolver))
+        .setTarget("Google Inc.:Google APIs:16"));
+    assertTrue(rule.isPreDexEnabled());
+
+    ImmutableList.Builder<Step> commandsBuilder = ImmutableList.builder();
+    rule.addPreDexingCommands(ImmutableSet.of("buck-out/gen/__r__/classes"),
+        new NoopArtifactCache(),
+        new ForkingDexer(),
+        commandsBuilder,
+        BIN_DIR + "/.dex/classes.dex");
+
+    List<Step> steps = commandsBuilder.build();
+    assertCommandsInOrder(steps,
+        ImmutableList.<Class<?>>of(PreDexStep.class, DexMergeStep.class));
+  }
+
   @Test
   public void testCopyNativeLibraryCommandWithoutCpuFilter() {
     createAndroidBinaryRuleAndTestCopyNativeLibraryCommand(
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.step.fs.RmStep;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class CompileRDotJavaStepTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testJavacIsOnlyRunWhenTheRDotJavaFilesChange() throws IOException {
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    File hashFile = new File(tmp.getRoot(), "rdotjava_hash.txt");
+    File staleClassFile = new File(tmp.getRoot(), "rdotjava_bin/com/example/Stale.class");
+
+    // The first build has no hash file, so javac must run.
+    Step javac = createMock(Step.class);
+    expect(javac.execute(context)).andReturn(0);
+    replay(javac);
+    assertEquals(0, newStep("abc", javac).execute(context));
+    verify(javac);
+    assertEquals("abc", Files.toString(hashFile, Charsets.UTF_8));
+    Files.createParentDirs(staleClassFile);
+    Files.touch(staleClassFile);
+
+    // Nothing changed, so the .class files from the first build are kept.
+    javac = createMock(Step.class);
+    replay(javac);
+    assertEquals(0, newStep("abc", javac).execute(context));
+    verify(javac);
+    assertTrue(staleClassFile.exists());
+
+    // A failed compilation must not be mistaken for an up-to-date one by the next build.
+    javac = createMock(Step.class);
+    expect(javac.execute(context)).andReturn(1);
+    replay(javac);
+    assertEquals(1, newStep("def", javac).execute(context));
+    verify(javac);
+    assertFalse(staleClassFile.exists());
+    assertFalse(hashFile.exists());
+
+    javac = createMock(Step.class);
+    expect(javac.execute(context)).andReturn(0);
+    replay(javac);
+    assertEquals(0, newStep("def", javac).execute(context));
+    verify(javac);
+    assertEquals("def", Files.toString(hashFile, Charsets.UTF_8));
+  }
+
+  @Test
+  public void testDummyRDotJavaForgetsTheHashOfTheLastRDotJavaFiles() throws IOException {
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    BuildTarget buildTarget = BuildTargetFactory.newInstance("//java/com/example:test");
+    File hashFile = new File(tmp.getRoot(),
+        UberRDotJavaUtil.getPathToRDotJavaHashFile(buildTarget));
+    Files.createParentDirs(hashFile);
+    Files.write("abc", hashFile, Charsets.UTF_8);
+
+    // Once the resources are gone, the bin folder holds the dummy R.class, so the hash of the
+    // previous R.java files must not be trusted when they are added back.
+    ImmutableList.Builder<Step> commands = ImmutableList.builder();
+    UberRDotJavaUtil.createDummyRDotJavaFiles(ImmutableList.<HasAndroidResourceDeps>of(),
+        buildTarget,
+        commands);
+    for (Step step : Iterables.filter(commands.build(), RmStep.class)) {
+      assertEquals(0, step.execute(context));
+    }
+
+    assertFalse(hashFile.exists());
+  }
+
+  private static CompileRDotJavaStep newStep(String hash, Step javac) {
+    return new CompileRDotJavaStep(
+        Suppliers.ofInstance(hash),
+        "rdotjava_hash.txt",
+        "rdotjava_bin",
+        javac);
+  }
+}
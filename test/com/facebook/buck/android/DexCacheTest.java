@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class DexCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testStoreAndFetch() throws IOException {
+    DexCache cache = new DexCache(tmp.newFolder("cache"), 1024);
+    File dexJar = tmp.newFile("classes.dex.jar");
+    Files.write("dexed", dexJar, Charsets.UTF_8);
+
+    File output = new File(tmp.getRoot(), "out/secondary-1.dex.jar");
+    assertFalse(cache.fetch("key", output));
+    assertFalse(output.exists());
+
+    cache.store("key", dexJar);
+    assertTrue(cache.fetch("key", output));
+    assertEquals("dexed", Files.toString(output, Charsets.UTF_8));
+    assertFalse(cache.fetch("other_key", output));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException {
+    File directory = tmp.newFolder("cache");
+    DexCache cache = new DexCache(directory, 10);
+    File dexJar = tmp.newFile("classes.dex.jar");
+    Files.write("12345", dexJar, Charsets.UTF_8);
+
+    cache.store("a", dexJar);
+    cache.store("b", dexJar);
+    new File(directory, "a").setLastModified(1000);
+    new File(directory, "b").setLastModified(2000);
+
+    // Fetching "a" makes it the most recently used entry, so storing a third entry evicts "b".
+    assertTrue(cache.fetch("a", new File(tmp.getRoot(), "out.dex.jar")));
+    cache.store("c", dexJar);
+
+    assertTrue(new File(directory, "a").exists());
+    assertFalse(new File(directory, "b").exists());
+    assertTrue(new File(directory, "c").exists());
+  }
+
+  @Test
+  public void testKeyDependsOnOutputFormat() {
+    ExecutionContext context = TestExecutionContext.newInstance();
+    String jarKey = DexCache.getKey("hash", "secondary-1.dex.jar", context);
+    assertEquals(jarKey, DexCache.getKey("hash", "secondary-2.dex.jar", context));
+    assertNotEquals(jarKey, DexCache.getKey("hash", "secondary-1.dex.jar.xz", context));
+    assertNotEquals(jarKey, DexCache.getKey("other_hash", "secondary-1.dex.jar", context));
+  }
+}
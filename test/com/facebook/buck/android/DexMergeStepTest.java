@@ -0,0 +1,117 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.testutil.MoreAsserts;
+import com.facebook.buck.util.AndroidPlatformTarget;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class DexMergeStepTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File projectRoot;
+  private ExecutionContext executionContext;
+
+  @Before
+  public void setUp() throws IOException {
+    projectRoot = tmp.newFolder("project");
+    AndroidPlatformTarget androidPlatformTarget =
+        EasyMock.createNiceMock(AndroidPlatformTarget.class);
+    EasyMock.expect(androidPlatformTarget.getDxExecutable())
+        .andStubReturn(new File("/android-sdk/platform-tools/dx"));
+    EasyMock.replay(androidPlatformTarget);
+    executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(projectRoot))
+        .setAndroidPlatformTarget(Optional.of(androidPlatformTarget))
+        .build();
+  }
+
+  @Test
+  public void testMergesTheDexFilesInOrder() throws IOException {
+    writeDexJar("a.dex.jar", new byte[] {1});
+    writeDexJar("c.dex.jar", new byte[] {3});
+
+    DexMergeStep step = new DexMergeStep("classes.dex",
+        ImmutableList.of("a.dex.jar", "c.dex.jar"));
+
+    MoreAsserts.assertListEquals(
+        ImmutableList.of(
+            "java",
+            "-Xmx1024M",
+            "-classpath", "/android-sdk/platform-tools/lib/dx.jar",
+            DexMergeStep.DEX_MERGER_CLASS_NAME,
+            "classes.dex",
+            "a.dex.jar",
+            "c.dex.jar"),
+        step.getShellCommand(executionContext));
+  }
+
+  @Test
+  public void testCopiesASingleDexFileWithoutMerging() throws IOException {
+    writeDexJar("a.dex.jar", new byte[] {1, 2, 3});
+
+    DexMergeStep step = new DexMergeStep("out/classes.dex", ImmutableList.of("a.dex.jar"));
+
+    assertEquals(0, step.execute(executionContext));
+    assertArrayEquals(new byte[] {1, 2, 3},
+        Files.toByteArray(new File(projectRoot, "out/classes.dex")));
+  }
+
+  @Test
+  public void testFailsIfADexFileIsMissing() throws IOException {
+    writeDexJar("a.dex.jar", new byte[] {1, 2, 3});
+
+    DexMergeStep step = new DexMergeStep("out/classes.dex",
+        ImmutableList.of("a.dex.jar", "b.dex.jar"));
+
+    assertEquals("A missing input should not silently leave its classes out of the APK.",
+        1, step.execute(executionContext));
+    assertFalse(new File(projectRoot, "out/classes.dex").exists());
+  }
+
+  private void writeDexJar(String path, byte[] classesDex) throws IOException {
+    try (ZipOutputStream out =
+             new ZipOutputStream(new FileOutputStream(new File(projectRoot, path)))) {
+      out.putNextEntry(new ZipEntry("classes.dex"));
+      out.write(classesDex);
+      out.closeEntry();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Stands in for dx, which is not available without an Android SDK. Every step records the files
+ * that it was asked to dex and writes a jar with an empty {@code classes.dex} entry.
+ */
+public class FakeDexer implements Dexer {
+
+  private final int exitCode;
+  private final List<String> dexedFiles;
+
+  public FakeDexer() {
+    this(0);
+  }
+
+  /** @param exitCode the exit code of every step, which still writes its output. */
+  public FakeDexer(int exitCode) {
+    this.exitCode = exitCode;
+    this.dexedFiles = Collections.synchronizedList(Lists.<String>newArrayList());
+  }
+
+  /** @return the files that the steps of this dexer have dexed, in order. */
+  public ImmutableList<String> getDexedFiles() {
+    synchronized (dexedFiles) {
+      return ImmutableList.copyOf(dexedFiles);
+    }
+  }
+
+  @Override
+  public Step createDxStep(final String outputDexFile, Iterable<String> filesToDex) {
+    final ImmutableList<String> files = ImmutableList.copyOf(filesToDex);
+    return new Step() {
+      @Override
+      public int execute(ExecutionContext context) {
+        dexedFiles.addAll(files);
+        File output = context.getProjectFilesystem().resolve(Paths.get(outputDexFile)).toFile();
+        try {
+          Files.createParentDirs(output);
+          try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(output))) {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.closeEntry();
+          }
+        } catch (IOException e) {
+          e.printStackTrace(context.getStdErr());
+          return 1;
+        }
+        return exitCode;
+      }
+
+      @Override
+      public String getShortName() {
+        return "fake_dx";
+      }
+
+      @Override
+      public String getDescription(ExecutionContext context) {
+        return "fake_dx --output " + outputDexFile + " " + Joiner.on(' ').join(files);
+      }
+    };
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stands in for {@code com.android.dx.command.dexer.Main} in tests of {@link InProcessDexer}.
+ * Like dx, it keeps its state in static fields. It must only depend on the JDK, as it is loaded by
+ * a class loader that cannot see any other classes.
+ */
+public class FakeDxMain {
+
+  /** A file to dex that makes {@link #run} throw an {@link OutOfMemoryError}. */
+  public static final String OOM_JAR = "oom.jar";
+
+  private static int numRuns = 0;
+
+  private FakeDxMain() {}
+
+  public static class Arguments {
+    private String output;
+    private String[] filesToDex;
+
+    public void parse(String[] args) {
+      if (!args[0].startsWith("--output=")) {
+        throw new IllegalArgumentException("Unexpected arguments: " + Arrays.toString(args));
+      }
+      output = args[0].substring("--output=".length());
+      filesToDex = Arrays.copyOfRange(args, 1, args.length);
+    }
+  }
+
+  /**
+   * Writes the number of times that this class has been run, followed by the files to dex.
+   * @return 1 if there are no files to dex.
+   */
+  public static int run(Arguments arguments) throws IOException {
+    if (arguments.filesToDex.length == 0) {
+      return 1;
+    }
+
+    numRuns++;
+    for (String fileToDex : arguments.filesToDex) {
+      if (fileToDex.endsWith(OOM_JAR)) {
+        throw new OutOfMemoryError("Java heap space");
+      }
+    }
+    try (FileOutputStream out = new FileOutputStream(arguments.output)) {
+      String contents = numRuns + " " + Arrays.toString(arguments.filesToDex);
+      out.write(contents.getBytes(StandardCharsets.UTF_8));
+    }
+    return 0;
+  }
+
+  public static int getNumRuns() {
+    return numRuns;
+  }
+}
@@ -17,32 +17,45 @@
 package com.facebook.buck.android;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import com.facebook.buck.android.FilterResourcesStep.ImageScaler;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.util.FilteredDirectoryCopier;
 import com.facebook.buck.util.Filters;
 import com.facebook.buck.util.Paths;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.util.Verbosity;
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 
 public class FilterResourcesStepTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   private final static String first = "/first-path/res";
   private final static String second = "/second-path/res";
   private final static String third = "/third-path/res";
@@ -190,4 +203,124 @@ public class FilterResourcesStepTest {
     // and we're calling finder.findDrawables twice.
     EasyMock.verify(copier, context, finder, filesystem, scaler);
   }
+
+  @Test
+  public void testJavaImageScalerKeepsTransparency() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(filesystem)
+        .build();
+    writeImage(new File(tmp.getRoot(), "big.png"), 100, 60);
+
+    FilterResourcesStep.JavaImageScaler.getInstance().scale(0.5, "big.png", "small.png", context);
+
+    BufferedImage scaled = ImageIO.read(new File(tmp.getRoot(), "small.png"));
+    assertEquals(50, scaled.getWidth());
+    assertEquals(30, scaled.getHeight());
+    assertEquals(0, scaled.getRGB(0, 0) >>> 24);
+    assertEquals(0xffff0000, scaled.getRGB(49, 29));
+  }
+
+  @Test
+  public void testScaledDrawablesAreCached() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(filesystem)
+        .build();
+    final File original = new File(tmp.getRoot(), "original.png");
+    writeImage(original, 64, 64);
+
+    // Copies the only drawable into the first filtered resource directory.
+    FilteredDirectoryCopier copier = new FilteredDirectoryCopier() {
+      @Override
+      public void copyDirs(Map<String, String> sourcesToDestinations, Predicate<File> pred)
+          throws IOException {
+        for (Map.Entry<String, String> entry : sourcesToDestinations.entrySet()) {
+          copyDir(entry.getKey(), entry.getValue(), pred);
+        }
+      }
+
+      @Override
+      public void copyDir(String srcDir, String destDir, Predicate<File> pred)
+          throws IOException {
+        File destination = new File(tmp.getRoot(), destDir + "/drawable-xhdpi/icon.png");
+        Files.createParentDirs(destination);
+        Files.copy(original, destination);
+      }
+    };
+    FilterResourcesStep.DrawableFinder finder = new FilterResourcesStep.DrawableFinder() {
+      @Override
+      public Set<String> findDrawables(Iterable<String> dirs) {
+        ImmutableSet.Builder<String> drawables = ImmutableSet.builder();
+        for (String dir : dirs) {
+          if (new File(tmp.getRoot(), dir + "/drawable-xhdpi/icon.png").exists()) {
+            drawables.add(dir + "/drawable-xhdpi/icon.png");
+          }
+        }
+        return drawables.build();
+      }
+    };
+    final AtomicInteger numScaled = new AtomicInteger();
+    ImageScaler scaler = new ImageScaler() {
+      @Override
+      public boolean isAvailable(ExecutionContext context) {
+        return true;
+      }
+
+      @Override
+      public void scale(
+          double factor,
+          String source,
+          String destination,
+          ExecutionContext context) {
+        numScaled.incrementAndGet();
+        FilterResourcesStep.JavaImageScaler.getInstance()
+            .scale(factor, source, destination, context);
+      }
+    };
+
+    File scaled = new File(tmp.getRoot(), "filtered/0/drawable-mdpi/icon.png");
+    for (int build = 0; build < 2; build++) {
+      FilterResourcesStep step = new FilterResourcesStep(
+          ImmutableSet.of("res"),
+          new File("filtered"),
+          "mdpi",
+          copier,
+          finder,
+          scaler,
+          Optional.of("cache"));
+      assertEquals(0, step.execute(context));
+      assertEquals(32, ImageIO.read(scaled).getWidth());
+      assertFalse(new File(tmp.getRoot(), "filtered/0/drawable-xhdpi").exists());
+    }
+    assertEquals("The second build should use the cached drawable.", 1, numScaled.get());
+
+    // A different drawable is scaled again, and replaces the previous one in the cache.
+    writeImage(original, 128, 128);
+    new FilterResourcesStep(
+        ImmutableSet.of("res"),
+        new File("filtered"),
+        "mdpi",
+        copier,
+        finder,
+        scaler,
+        Optional.of("cache"))
+        .execute(context);
+    assertEquals(64, ImageIO.read(scaled).getWidth());
+    assertEquals(2, numScaled.get());
+    assertEquals(1, new File(tmp.getRoot(), "cache").list().length);
+  }
+
+  /**
+   * Writes a PNG whose top-left quarter is transparent and whose bottom-right quarter is red.
+   */
+  private static void writeImage(File file, int width, int height) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    for (int x = width / 2; x < width; x++) {
+      for (int y = height / 2; y < height; y++) {
+        image.setRGB(x, y, 0xffff0000);
+      }
+    }
+    ImageIO.write(image, "png", file);
+  }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.Verbosity;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+public class InProcessDexerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File projectRoot;
+  private TestConsole console;
+  private ExecutionContext context;
+  private FakeDexer forkingDexer;
+
+  @Before
+  public void setUp() throws IOException {
+    projectRoot = tmp.newFolder("project");
+    console = new TestConsole();
+    context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(projectRoot))
+        .setConsole(console)
+        .build();
+    forkingDexer = new FakeDexer();
+  }
+
+  @Test
+  public void testDxIsLoadedOnceAndRunInsideBuck() throws IOException {
+    InProcessDexer dexer = createDexer(FakeDxMain.class.getName());
+    File classes = new File(projectRoot, "classes.jar");
+
+    assertEquals(0, dexer.createDxStep("one.dex.jar", ImmutableSet.of("classes.jar"))
+        .execute(context));
+    assertEquals(0, dexer.createDxStep("two.dex.jar", ImmutableSet.of("classes.jar"))
+        .execute(context));
+
+    // Relative paths are resolved against the project root.
+    assertEquals("1 [" + classes.getPath() + "]",
+        Files.toString(new File(projectRoot, "one.dex.jar"), Charsets.UTF_8));
+    assertEquals("2 [" + classes.getPath() + "]",
+        Files.toString(new File(projectRoot, "two.dex.jar"), Charsets.UTF_8));
+    assertEquals("dx should be loaded by a class loader of its own.",
+        0, FakeDxMain.getNumRuns());
+    assertEquals(ImmutableList.<String>of(), forkingDexer.getDexedFiles());
+  }
+
+  @Test
+  public void testFailuresOfDxAreReported() {
+    InProcessDexer dexer = createDexer(FakeDxMain.class.getName());
+    assertEquals(1, dexer.createDxStep("out.dex.jar", ImmutableSet.<String>of())
+        .execute(context));
+    assertEquals(ImmutableList.<String>of(), forkingDexer.getDexedFiles());
+  }
+
+  @Test
+  public void testDxIsForkedIfItCannotBeLoaded() {
+    InProcessDexer dexer = createDexer("com.example.NoSuchMain");
+    assertEquals(0, dexer.createDxStep("one.dex.jar", ImmutableSet.of("a.jar"))
+        .execute(context));
+    assertEquals(0, dexer.createDxStep("two.dex.jar", ImmutableSet.of("b.jar"))
+        .execute(context));
+    assertEquals(ImmutableList.of("a.jar", "b.jar"), forkingDexer.getDexedFiles());
+  }
+
+  @Test
+  public void testDxIsForkedIfItThrowsAnError() throws IOException {
+    InProcessDexer dexer = createDexer(FakeDxMain.class.getName());
+    assertEquals(0, dexer.createDxStep("one.dex.jar", ImmutableSet.of(FakeDxMain.OOM_JAR))
+        .execute(context));
+    assertEquals(ImmutableList.of(FakeDxMain.OOM_JAR), forkingDexer.getDexedFiles());
+
+    // The runner that threw is dropped, so the next step loads dx afresh.
+    assertEquals(0, dexer.createDxStep("two.dex.jar", ImmutableSet.of("classes.jar"))
+        .execute(context));
+    assertEquals("1 [" + new File(projectRoot, "classes.jar").getPath() + "]",
+        Files.toString(new File(projectRoot, "two.dex.jar"), Charsets.UTF_8));
+  }
+
+  @Test
+  public void testDxIsForkedIfItsOutputShouldBeShown() {
+    console.setVerbosity(Verbosity.ALL);
+    context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(projectRoot))
+        .setConsole(console)
+        .build();
+    InProcessDexer dexer = createDexer(FakeDxMain.class.getName());
+    assertEquals(0, dexer.createDxStep("out.dex.jar", ImmutableSet.of("a.jar"))
+        .execute(context));
+    assertEquals(ImmutableList.of("a.jar"), forkingDexer.getDexedFiles());
+    assertTrue(new File(projectRoot, "out.dex.jar").isFile());
+  }
+
+  private InProcessDexer createDexer(String mainClassName) {
+    return new InProcessDexer(forkingDexer, mainClassName) {
+      @Override
+      ImmutableList<URL> getDxClasspath(ExecutionContext context) {
+        // The test classes stand in for dx.jar.
+        return ImmutableList.of(
+            FakeDxMain.class.getProtectionDomain().getCodeSource().getLocation());
+      }
+    };
+  }
+}
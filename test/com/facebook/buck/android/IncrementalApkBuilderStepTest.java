@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class IncrementalApkBuilderStepTest {
+
+  private static final byte[] RESOURCES = "resources".getBytes(Charsets.UTF_8);
+  private static final byte[] SECONDARY_DEX = "secondary dex".getBytes(Charsets.UTF_8);
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ExecutionContext context;
+
+  @Before
+  public void setUp() throws IOException, InterruptedException {
+    context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+
+    // Create a key to sign with, just as one would for a debug keystore.
+    File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+    Process process = new ProcessBuilder(
+        keytool.getPath(),
+        "-genkeypair",
+        "-keystore", new File(tmp.getRoot(), "debug.keystore").getPath(),
+        "-storepass", "android",
+        "-keypass", "android",
+        "-alias", "androiddebugkey",
+        "-keyalg", "RSA",
+        "-dname", "CN=Android Debug,O=Android,C=US",
+        "-validity", "10000")
+        .redirectErrorStream(true)
+        .start();
+    ByteStreams.copy(process.getInputStream(), ByteStreams.nullOutputStream());
+    assertEquals(0, process.waitFor());
+    Files.write(
+        "key.store=debug.keystore\n" +
+        "key.alias=androiddebugkey\n" +
+        "key.store.password=android\n" +
+        "key.alias.password=android\n",
+        new File(tmp.getRoot(), "debug.keystore.properties"),
+        Charsets.UTF_8);
+
+    File resourceApk = tmp.newFile("resources.apk");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(resourceApk))) {
+      out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+      out.write("<manifest/>".getBytes(Charsets.UTF_8));
+      out.putNextEntry(newStoredEntry("resources.arsc", RESOURCES));
+      out.write(RESOURCES);
+    }
+
+    File secondaryDexZip = tmp.newFile("secondary.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(secondaryDexZip))) {
+      out.putNextEntry(newStoredEntry("secondary-program-dex-jars/secondary-1.dex.jar",
+          SECONDARY_DEX));
+      out.write(SECONDARY_DEX);
+    }
+
+    Files.write("dex", tmp.newFile("classes.dex"), Charsets.UTF_8);
+    File library = new File(tmp.getRoot(), "libs/armeabi/libfoo.so");
+    Files.createParentDirs(library);
+    Files.write("foo", library, Charsets.UTF_8);
+  }
+
+  @Test
+  public void testApkIsSignedAndOnlyChangedEntriesAreCompressedAgain()
+      throws GeneralSecurityException, IOException {
+    File apk = new File(tmp.getRoot(), "app.apk");
+    File dexFile = new File(tmp.getRoot(), "classes.dex");
+    assertTrue(dexFile.setLastModified(TimeUnit.DAYS.toMillis(10000)));
+    assertEquals(0, newStep().execute(context));
+
+    Set<String> names = assertSignedEntries(apk);
+    assertEquals(
+        ImmutableSet.of(
+            "AndroidManifest.xml",
+            "resources.arsc",
+            "classes.dex",
+            "lib/armeabi/libfoo.so",
+            "secondary-program-dex-jars/secondary-1.dex.jar"),
+        names);
+    long dexTime;
+    try (JarFile jar = new JarFile(apk)) {
+      assertEquals(ZipEntry.DEFLATED, jar.getEntry("resources.arsc").getMethod());
+      assertEquals(ZipEntry.STORED,
+          jar.getEntry("secondary-program-dex-jars/secondary-1.dex.jar").getMethod());
+      assertNotNull(jar.getEntry("META-INF/ANDROIDD.SF"));
+      assertNotNull(jar.getEntry("META-INF/ANDROIDD.RSA"));
+      dexTime = jar.getEntry("classes.dex").getTime();
+    }
+
+    // Touch classes.dex without changing it, and change the native library.
+    assertTrue(dexFile.setLastModified(TimeUnit.DAYS.toMillis(10001)));
+    Files.write("bar", new File(tmp.getRoot(), "libs/armeabi/libfoo.so"), Charsets.UTF_8);
+    assertEquals(0, newStep().execute(context));
+
+    assertSignedEntries(apk);
+    try (JarFile jar = new JarFile(apk)) {
+      // An unchanged entry is copied from the previous APK, rather than compressed again.
+      assertEquals(dexTime, jar.getEntry("classes.dex").getTime());
+      try (InputStream library = jar.getInputStream(jar.getEntry("lib/armeabi/libfoo.so"))) {
+        assertArrayEquals("bar".getBytes(Charsets.UTF_8), ByteStreams.toByteArray(library));
+      }
+    }
+    assertFalse(new File(tmp.getRoot(), "app.apk.tmp").exists());
+  }
+
+  @Test
+  public void testSignatureNameIsDerivedFromTheAlias() {
+    assertEquals("ANDROIDD", ApkSigner.getSignatureName("androiddebugkey"));
+    assertEquals("MY_KEY", ApkSigner.getSignatureName("my.key"));
+  }
+
+  private IncrementalApkBuilderStep newStep() {
+    return new IncrementalApkBuilderStep(
+        "resources.apk",
+        "classes.dex",
+        ImmutableSet.of("libs"),
+        ImmutableSet.of("secondary.zip", "missing.zip"),
+        "debug.keystore",
+        "debug.keystore.properties",
+        /* compressResources */ true,
+        "app.apk");
+  }
+
+  /**
+   * Verifies the digest of every entry of {@code apk} and the signature over them, as the package
+   * manager would. This does not use {@link JarFile}'s own verification, as newer JDKs treat
+   * SHA-1 signatures, which older Android releases require, as unsigned.
+   * @return the names of the entries, other than those of the signature.
+   */
+  private Set<String> assertSignedEntries(File apk) throws GeneralSecurityException, IOException {
+    Set<String> names = Sets.newHashSet();
+    try (JarFile jar = new JarFile(apk)) {
+      byte[] manifestBytes = readEntry(jar, "META-INF/MANIFEST.MF");
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+        JarEntry entry = entries.nextElement();
+        if (entry.getName().startsWith("META-INF/")) {
+          continue;
+        }
+        Attributes attributes = manifest.getAttributes(entry.getName());
+        assertNotNull("Unsigned entry: " + entry.getName(), attributes);
+        assertEquals(entry.getName(),
+            sha1(readEntry(jar, entry.getName())),
+            attributes.getValue("SHA1-Digest"));
+        names.add(entry.getName());
+      }
+
+      byte[] signatureFile = readEntry(jar, "META-INF/ANDROIDD.SF");
+      Manifest signatures = new Manifest(new ByteArrayInputStream(signatureFile));
+      assertEquals(sha1(manifestBytes),
+          signatures.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+
+      // RSA signatures are deterministic, so the signature block must end with the same signature
+      // of the signature file, and must hold the certificate of the key.
+      KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      try (InputStream in = new FileInputStream(new File(tmp.getRoot(), "debug.keystore"))) {
+        keyStore.load(in, "android".toCharArray());
+      }
+      Signature signer = Signature.getInstance("SHA1withRSA");
+      signer.initSign((PrivateKey) keyStore.getKey("androiddebugkey", "android".toCharArray()));
+      signer.update(signatureFile);
+      byte[] signature = signer.sign();
+      byte[] signatureBlock = readEntry(jar, "META-INF/ANDROIDD.RSA");
+      assertArrayEquals(signature, Arrays.copyOfRange(
+          signatureBlock, signatureBlock.length - signature.length, signatureBlock.length));
+      Collection<? extends Certificate> certificates = CertificateFactory.getInstance("X.509")
+          .generateCertificates(new ByteArrayInputStream(signatureBlock));
+      assertEquals(ImmutableList.of(keyStore.getCertificate("androiddebugkey")),
+          ImmutableList.copyOf(certificates));
+    }
+    return names;
+  }
+
+  private static byte[] readEntry(JarFile jar, String name) throws IOException {
+    ZipEntry entry = jar.getEntry(name);
+    assertNotNull("Missing entry: " + name, entry);
+    try (InputStream in = jar.getInputStream(entry)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  private static String sha1(byte[] bytes) {
+    return BaseEncoding.base64().encode(Hashing.sha1().hashBytes(bytes).asBytes());
+  }
+
+  private static ZipEntry newStoredEntry(String name, byte[] data) {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(data.length);
+    entry.setCrc(Hashing.crc32().hashBytes(data).padToLong());
+    return entry;
+  }
+}
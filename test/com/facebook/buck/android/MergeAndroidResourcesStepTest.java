@@ -18,16 +18,25 @@ package com.facebook.buck.android;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.android.MergeAndroidResourcesStep.Resource;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.util.BuckConstant;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.collect.SortedSetMultimap;
+import com.google.common.io.Files;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.Iterator;
@@ -36,6 +45,10 @@ import java.util.Set;
 import java.util.SortedSet;
 
 public class MergeAndroidResourcesStepTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
   public void testGenerateRDotJavaForMultipleSymbolsFiles() throws IOException {
     RDotTxtEntryBuilder entriesBuilder = new RDotTxtEntryBuilder();
@@ -166,6 +179,45 @@ public class MergeAndroidResourcesStepTest {
         rDotJava);
   }
 
+  @Test
+  public void testExecuteOnlyRewritesTheRDotJavaFilesThatChanged() throws IOException {
+    File aSymbols = tmp.newFile("a-R.txt");
+    File bSymbols = tmp.newFile("b-R.txt");
+    Files.write("int string a1 0x7f020001\n", aSymbols, Charsets.UTF_8);
+    Files.write("int string b1 0x7f030001\n", bSymbols, Charsets.UTF_8);
+    String outputDir = tmp.newFolder("rdotjava_src").getPath();
+    File aRDotJava = new File(MergeAndroidResourcesStep.getOutputFilePath(outputDir, "com.a"));
+    File bRDotJava = new File(MergeAndroidResourcesStep.getOutputFilePath(outputDir, "com.b"));
+    ExecutionContext context = TestExecutionContext.newInstance();
+
+    MergeAndroidResourcesStep firstStep = new MergeAndroidResourcesStep(
+        ImmutableMap.of(aSymbols.getPath(), "com.a", bSymbols.getPath(), "com.b"),
+        outputDir);
+    assertEquals(0, firstStep.execute(context));
+    assertTrue(aRDotJava.setLastModified(1000L));
+    assertTrue(bRDotJava.setLastModified(1000L));
+
+    // Adding a symbol to b changes neither the content nor the ids of a's R.java.
+    Files.append("int string b2 0x7f030002\n", bSymbols, Charsets.UTF_8);
+    MergeAndroidResourcesStep secondStep = new MergeAndroidResourcesStep(
+        ImmutableMap.of(aSymbols.getPath(), "com.a", bSymbols.getPath(), "com.b"),
+        outputDir);
+    assertEquals(0, secondStep.execute(context));
+    assertEquals(1000L, aRDotJava.lastModified());
+    assertNotEquals(1000L, bRDotJava.lastModified());
+    assertTrue(Files.toString(bRDotJava, Charsets.UTF_8).contains(" b2="));
+    assertNotEquals(firstStep.getRDotJavaHashSupplier().get(),
+        secondStep.getRDotJavaHashSupplier().get());
+
+    // The R.java file of a package that is no longer merged is deleted.
+    MergeAndroidResourcesStep thirdStep = new MergeAndroidResourcesStep(
+        ImmutableMap.of(aSymbols.getPath(), "com.a"),
+        outputDir);
+    assertEquals(0, thirdStep.execute(context));
+    assertEquals(1000L, aRDotJava.lastModified());
+    assertFalse(bRDotJava.getParentFile().exists());
+  }
+
   /**
    * A special comparison for two {@link Resource} objects because {@link Resource#equals(Object)}
    * does not compare all of the fields.
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.java.JavaLibraryRule;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.DirArtifactCache;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.util.AndroidPlatformTarget;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class PreDexStepTest {
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//java/example:lib");
+  private static final String LIBRARY_JAR = "buck-out/gen/java/example/lib__lib__output/lib.jar";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File projectRoot;
+  private ExecutionContext executionContext;
+  private ArtifactCache artifactCache;
+  private FakeDexer dexer;
+
+  @Before
+  public void setUp() throws IOException {
+    projectRoot = tmp.newFolder("project");
+    executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(projectRoot))
+        .build();
+    artifactCache = new DirArtifactCache(tmp.newFolder("cache"));
+    dexer = new FakeDexer();
+    writeJar(LIBRARY_JAR, "com/example/A.class");
+  }
+
+  @Test
+  public void shouldOnlyDexLibrariesWhoseRuleKeyChanged() throws IOException {
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(executionContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR), dexer.getDexedFiles());
+    assertTrue(getPreDexedOutput().isFile());
+
+    PreDexStep step = createStep(forLibrary("aaaa"));
+    assertEquals(0, step.execute(executionContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR), dexer.getDexedFiles());
+    assertEquals(ImmutableList.of(PreDexStep.getPathToPreDexedOutput(TARGET)),
+        step.getDexFilesToMergeSupplier().get());
+
+    assertEquals(0, createStep(forLibrary("bbbb")).execute(executionContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR, LIBRARY_JAR), dexer.getDexedFiles());
+  }
+
+  @Test
+  public void shouldFetchPreDexedLibrariesFromTheArtifactCache() throws IOException {
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(executionContext));
+
+    // Simulate another machine, which has only just built the library.
+    new ProjectFilesystem(projectRoot).rmdir(getPreDexedOutput().getParent());
+
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(executionContext));
+    assertEquals("The library should only have been dexed on the first machine.",
+        ImmutableList.of(LIBRARY_JAR), dexer.getDexedFiles());
+    assertTrue(getPreDexedOutput().isFile());
+  }
+
+  @Test
+  public void shouldAlwaysDexClasspathEntriesThatDoNotBelongToARule() throws IOException {
+    PreDexStep.DexUnit unit = PreDexStep.DexUnit.forClasspathEntry(
+        LIBRARY_JAR,
+        "buck-out/bin/__app_pre_dex__/0.dex.jar");
+    assertEquals(0, createStep(unit).execute(executionContext));
+    assertEquals(0, createStep(unit).execute(executionContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR, LIBRARY_JAR), dexer.getDexedFiles());
+  }
+
+  @Test
+  public void shouldNotDexLibrariesWithoutClasses() throws IOException {
+    writeJar(LIBRARY_JAR, "com/example/strings.properties");
+    PreDexStep step = createStep(forLibrary("aaaa"));
+    assertEquals(0, step.execute(executionContext));
+    assertEquals(ImmutableList.<String>of(), dexer.getDexedFiles());
+    assertFalse(getPreDexedOutput().exists());
+    assertTrue(new File(getPreDexedOutput().getParentFile(), PreDexStep.NO_CLASSES_FILE).isFile());
+    assertEquals(ImmutableList.<String>of(), step.getDexFilesToMergeSupplier().get());
+
+    PreDexStep nextStep = createStep(forLibrary("aaaa"));
+    assertEquals(0, nextStep.execute(executionContext));
+    assertEquals(ImmutableList.<String>of(), nextStep.getDexFilesToMergeSupplier().get());
+  }
+
+  @Test
+  public void shouldNotTrustTheRuleKeyIfThePreDexedLibraryIsMissing() throws IOException {
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(executionContext));
+    assertTrue(getPreDexedOutput().delete());
+
+    PreDexStep step = createStep(forLibrary("aaaa"));
+    assertEquals(0, step.execute(executionContext));
+    assertTrue("The .dex.jar should have been fetched from the artifact cache again.",
+        getPreDexedOutput().isFile());
+    assertEquals(ImmutableList.of(PreDexStep.getPathToPreDexedOutput(TARGET)),
+        step.getDexFilesToMergeSupplier().get());
+  }
+
+  @Test
+  public void shouldDexAgainWhenTheAndroidPlatformChanges() throws IOException {
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(executionContext));
+
+    // dx comes with the SDK, so its output may differ even though the rule key does not.
+    AndroidPlatformTarget platformTarget = EasyMock.createNiceMock(AndroidPlatformTarget.class);
+    EasyMock.expect(platformTarget.getName()).andStubReturn("Google Inc.:Google APIs:19");
+    EasyMock.replay(platformTarget);
+    ExecutionContext newPlatformContext = TestExecutionContext.newBuilder()
+        .setExecutionContext(executionContext)
+        .setAndroidPlatformTarget(Optional.of(platformTarget))
+        .build();
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(newPlatformContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR, LIBRARY_JAR), dexer.getDexedFiles());
+
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(newPlatformContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR, LIBRARY_JAR), dexer.getDexedFiles());
+  }
+
+  @Test
+  public void shouldDexAgainIfTheLastAttemptFailed() throws IOException {
+    FakeDexer failingDexer = new FakeDexer(/* exitCode */ 1);
+    PreDexStep failingStep = new PreDexStep(ImmutableList.of(forLibrary("aaaa")),
+        artifactCache,
+        failingDexer,
+        Optional.of(1));
+    assertEquals(1, failingStep.execute(executionContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR), failingDexer.getDexedFiles());
+
+    assertEquals(0, createStep(forLibrary("aaaa")).execute(executionContext));
+    assertEquals(ImmutableList.of(LIBRARY_JAR), dexer.getDexedFiles());
+  }
+
+  private PreDexStep.DexUnit forLibrary(String ruleKey) throws IOException {
+    JavaLibraryRule rule = EasyMock.createNiceMock(JavaLibraryRule.class);
+    EasyMock.expect(rule.getBuildTarget()).andStubReturn(TARGET);
+    EasyMock.expect(rule.getRuleKey()).andStubReturn(new RuleKey(ruleKey));
+    EasyMock.replay(rule);
+    return PreDexStep.DexUnit.forRule(rule, LIBRARY_JAR);
+  }
+
+  private PreDexStep createStep(PreDexStep.DexUnit unit) {
+    return new PreDexStep(ImmutableList.of(unit), artifactCache, dexer, Optional.of(1));
+  }
+
+  private File getPreDexedOutput() {
+    return new File(projectRoot, PreDexStep.getPathToPreDexedOutput(TARGET));
+  }
+
+  private void writeJar(String path, String entry) throws IOException {
+    File jar = new File(projectRoot, path);
+    Files.createParentDirs(jar);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      out.putNextEntry(new ZipEntry(entry));
+      out.write(new byte[] {0});
+      out.closeEntry();
+    }
+  }
+}
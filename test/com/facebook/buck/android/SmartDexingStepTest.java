@@ -25,6 +25,7 @@ import static org.junit.Assert.assertTrue;
 import com.facebook.buck.android.SmartDexingStep.DxPseudoRule;
 import com.facebook.buck.android.SmartDexingStep.InputResolver;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.fs.XzOptions;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.util.Paths;
 import com.google.common.base.Charsets;
@@ -109,7 +110,8 @@ public class SmartDexingStepTest {
     Files.write("dummy", outputHashFile, Charsets.UTF_8);
 
     DxPseudoRule rule = new DxPseudoRule(context, ImmutableSet.of(testIn.getPath()),
-        outputFile.getPath(), outputHashFile.getPath());
+        outputFile.getPath(), outputHashFile.getPath(), XzOptions.DEFAULT, new FakeDexer(),
+        Optional.<DexCache>absent());
     assertFalse("'dummy' is not a matching input hash", rule.checkIsCached());
 
     // Write the real hash into the output hash file and ensure that checkIsCached now
@@ -107,7 +107,9 @@ public class SplitZipStepTest {
         DexStore.JAR,
         /* pathToReportDir */ "",
         /* useLinearAllocSplitDex */ true,
-        /* linearAllocHardLimit */ 4 * 1024 * 1024);
+        /* linearAllocHardLimit */ 4 * 1024 * 1024,
+        /* pathToStatsCacheDir */ Optional.<String>absent(),
+        /* pathToSecondaryDexLayout */ Optional.<String>absent());
     List<String> linesInManifestFile = ImmutableList.of(
         "com/google/common/collect/ImmutableSortedSet.class",
         "  com/google/common/collect/ImmutableSet.class",
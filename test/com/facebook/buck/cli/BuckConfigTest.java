@@ -34,8 +34,10 @@ import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.util.environment.Platform;
+import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -49,6 +51,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -380,6 +384,50 @@ public class BuckConfigTest {
     EasyMock.verify(filesystem, parser);
   }
 
+  @Test
+  public void testInProcessDxIsOptIn() throws IOException {
+    BuildTargetParser parser = EasyMock.createMock(BuildTargetParser.class);
+    EasyMock.replay(parser);
+    assertFalse(createWithDefaultFilesystem(new StringReader(""), parser).isInProcessDxEnabled());
+
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[dx]",
+        "in_process = true"));
+    assertTrue(createWithDefaultFilesystem(reader, parser).isInProcessDxEnabled());
+    EasyMock.verify(parser);
+  }
+
+  @Test
+  public void testDexCacheIsOnlyUsedWhenEnabled() throws IOException {
+    ProjectFilesystem filesystem = EasyMock.createMock(ProjectFilesystem.class);
+    EasyMock.expect(filesystem.getPathRelativizer()).andReturn(new Function<String, String>() {
+      @Override
+      public String apply(String path) {
+        return "/project/" + path;
+      }
+    });
+    BuildTargetParser parser = EasyMock.createMock(BuildTargetParser.class);
+    EasyMock.replay(filesystem, parser);
+
+    BuckConfig defaultConfig = BuckConfig.createFromReader(
+        new StringReader(""), filesystem, parser, Platform.detect());
+    assertEquals(Optional.<Path>absent(), defaultConfig.getDexCacheDir());
+    assertEquals(1024L * 1024 * 1024, defaultConfig.getDexCacheMaxSizeBytes());
+
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[dex_cache]",
+        "enabled = true",
+        "dir = dex_cache",
+        "max_size_bytes = 4096"));
+    BuckConfig config = BuckConfig.createFromReader(reader, filesystem, parser, Platform.detect());
+    assertEquals("A relative dex cache directory should be resolved against the project root.",
+        Optional.of(Paths.get("/project/dex_cache")),
+        config.getDexCacheDir());
+    assertEquals(4096, config.getDexCacheMaxSizeBytes());
+
+    EasyMock.verify(filesystem, parser);
+  }
+
   @Test
   public void testIgnorePathsWithAbsoluteCacheDir() throws IOException {
 
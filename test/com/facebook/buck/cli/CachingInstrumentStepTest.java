@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.java.InstrumentStep;
+import com.facebook.buck.java.JavaLibraryRule;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.DirArtifactCache;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class CachingInstrumentStepTest {
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//java/example:lib");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File projectRoot;
+  private ExecutionContext executionContext;
+  private ArtifactCache artifactCache;
+  private File instrumentedClass;
+
+  @Before
+  public void setUp() throws IOException {
+    projectRoot = tmp.newFolder("project");
+    executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(projectRoot))
+        .build();
+    artifactCache = new DirArtifactCache(tmp.newFolder("cache"));
+    instrumentedClass = new File(projectRoot,
+        InstrumentStep.getPathToInstrumentedClasses(
+            InstrumentStep.getPathToInstrumentedOutput(TARGET)) + "/example/A.class");
+  }
+
+  @Test
+  public void shouldNotInstrumentClassesAgainForTheSameRuleKey() throws IOException {
+    FakeCachingInstrumentStep step = createStep("aaaa", new DirArtifactCache(tmp.newFolder()));
+    assertEquals(0, step.execute(executionContext));
+    assertEquals(1, step.numInstrumentations);
+    assertTrue(instrumentedClass.isFile());
+
+    assertEquals(0, step.execute(executionContext));
+    assertEquals(1, step.numInstrumentations);
+
+    FakeCachingInstrumentStep changedStep = createStep("bbbb", artifactCache);
+    assertEquals(0, changedStep.execute(executionContext));
+    assertEquals(1, changedStep.numInstrumentations);
+  }
+
+  @Test
+  public void shouldFetchInstrumentedClassesFromTheArtifactCache() throws IOException {
+    FakeCachingInstrumentStep step = createStep("aaaa", artifactCache);
+    assertEquals(0, step.execute(executionContext));
+    assertEquals(1, step.numInstrumentations);
+
+    // Simulate another machine, which has only just built the library.
+    new ProjectFilesystem(projectRoot).rmdir(InstrumentStep.getPathToInstrumentedOutput(TARGET));
+    assertFalse(instrumentedClass.exists());
+
+    FakeCachingInstrumentStep fetchingStep = createStep("aaaa", artifactCache);
+    assertEquals(0, fetchingStep.execute(executionContext));
+    assertEquals(0, fetchingStep.numInstrumentations);
+    assertEquals("instrumented", Files.toString(instrumentedClass, Charsets.UTF_8));
+  }
+
+  @Test
+  public void shouldInstrumentClassesAgainIfTheLastAttemptFailed() throws IOException {
+    FakeCachingInstrumentStep failingStep = createStep("aaaa", artifactCache);
+    failingStep.exitCode = 1;
+    assertEquals(1, failingStep.execute(executionContext));
+
+    FakeCachingInstrumentStep step = createStep("aaaa", artifactCache);
+    assertEquals(0, step.execute(executionContext));
+    assertEquals(1, step.numInstrumentations);
+  }
+
+  private FakeCachingInstrumentStep createStep(String ruleKey, ArtifactCache artifactCache)
+      throws IOException {
+    JavaLibraryRule rule = EasyMock.createNiceMock(JavaLibraryRule.class);
+    EasyMock.expect(rule.getBuildTarget()).andStubReturn(TARGET);
+    EasyMock.expect(rule.getFullyQualifiedName()).andStubReturn(TARGET.getFullyQualifiedName());
+    EasyMock.expect(rule.getRuleKey()).andStubReturn(new RuleKey(ruleKey));
+    EasyMock.expect(rule.getPathToOutputFile()).andStubReturn("buck-out/gen/java/example/lib.jar");
+    EasyMock.replay(rule);
+    return new FakeCachingInstrumentStep(rule, artifactCache);
+  }
+
+  /** Writes a single instrumented class instead of running EMMA. */
+  private class FakeCachingInstrumentStep extends CachingInstrumentStep {
+    private int numInstrumentations = 0;
+    private int exitCode = 0;
+
+    private FakeCachingInstrumentStep(JavaLibraryRule rule, ArtifactCache artifactCache) {
+      super(rule, artifactCache, BuckEventBusFactory.newInstance());
+    }
+
+    @Override
+    InstrumentStep newInstrumentStep() {
+      return new InstrumentStep("copy", ImmutableSet.<String>of(), "unused") {
+        @Override
+        public int execute(ExecutionContext context) {
+          numInstrumentations++;
+          try {
+            Files.createParentDirs(instrumentedClass);
+            Files.write("instrumented", instrumentedClass, Charsets.UTF_8);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          return exitCode;
+        }
+      };
+    }
+  }
+}
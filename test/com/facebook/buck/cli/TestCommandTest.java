@@ -37,13 +37,16 @@ import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleSuccess;
 import com.facebook.buck.rules.BuildRuleType;
 import com.facebook.buck.rules.DependencyGraph;
+import com.facebook.buck.rules.FakeBuildRule;
 import com.facebook.buck.rules.FakeTestRule;
+import com.facebook.buck.rules.InputRule;
 import com.facebook.buck.rules.TestRule;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.test.TestCaseSummary;
 import com.facebook.buck.test.TestResultSummary;
 import com.facebook.buck.test.TestResults;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
@@ -69,6 +72,7 @@ import java.io.StringWriter;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
@@ -418,6 +422,57 @@ public class TestCommandTest {
     assertThat(result, IsIterableContainingInAnyOrder.containsInAnyOrder(rule1, rule3));
   }
 
+  @Test
+  public void testGetTestRulesAffectedByChanges() {
+    // testB -> b -> a, testC -> c, and testD -> d, where testD owns an input of its own.
+    FakeBuildRule a = createLibrary("//java/com/example/a:a", null, "java/com/example/a/A.java");
+    FakeBuildRule b = createLibrary("//java/com/example/b:b", a, "java/com/example/b/B.java");
+    FakeBuildRule c = createLibrary("//java/com/example/c:c", null, "java/com/example/c/C.java");
+    FakeBuildRule d = createLibrary("//java/com/example/d:d", null);
+
+    FakeTestRule testB = createTestRule("//javatests/b:b", b);
+    FakeTestRule testC = createTestRule("//javatests/c:c", c);
+    FakeTestRule testD = createTestRule("//javatests/d:d", d);
+    testD.setInputs(createInputs("javatests/d/DTest.java"));
+    List<TestRule> testRules = ImmutableList.<TestRule>of(testB, testC, testD);
+    DependencyGraph graph = createDependencyGraphFromBuildRules(
+        ImmutableList.<BuildRule>of(b, testB, testC, testD));
+
+    // A change to a transitive dependency affects the tests that depend on it.
+    assertEquals(ImmutableList.of(testB), TestCommand.getTestRulesAffectedByChanges(
+        graph, testRules, createInputs("java/com/example/a/A.java")));
+    assertEquals(ImmutableList.of(testC, testD), TestCommand.getTestRulesAffectedByChanges(
+        graph, testRules, createInputs("java/com/example/c/C.java", "javatests/d/DTest.java")));
+    // A file that no rule owns affects no tests.
+    assertEquals(ImmutableList.of(), TestCommand.getTestRulesAffectedByChanges(
+        graph, testRules, createInputs("README.md")));
+  }
+
+  private static FakeBuildRule createLibrary(String target,
+      @Nullable BuildRule dep,
+      String... inputs) {
+    FakeBuildRule rule = new FakeBuildRule(BuildRuleType.JAVA_LIBRARY,
+        BuildTargetFactory.newInstance(target),
+        dep == null ? ImmutableSortedSet.<BuildRule>of() : ImmutableSortedSet.of(dep),
+        ImmutableSet.of(BuildTargetPattern.MATCH_ALL));
+    rule.setInputs(createInputs(inputs));
+    return rule;
+  }
+
+  private static FakeTestRule createTestRule(String target, BuildRule dep) {
+    return new FakeTestRule(BuildRuleType.JAVA_TEST,
+        ImmutableSet.<String>of(),
+        BuildTargetFactory.newInstance(target),
+        ImmutableSortedSet.of(dep),
+        ImmutableSet.of(BuildTargetPattern.MATCH_ALL));
+  }
+
+  private static Iterable<InputRule> createInputs(String... paths) {
+    return InputRule.inputPathsAsInputRules(
+        ImmutableList.copyOf(paths),
+        Functions.<String>identity());
+  }
+
   @Test
   public void testFilterBuilds() throws CmdLineException {
     TestCommandOptions options = getOptions("--exclude", "linux", "windows");
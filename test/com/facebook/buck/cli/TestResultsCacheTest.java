@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.DirArtifactCache;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.TestRule;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TargetDevice;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class TestResultsCacheTest {
+
+  private static final String OUTPUT_DIR = "buck-out/gen/example/__java_test_test_output__";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File projectRoot;
+  private ExecutionContext executionContext;
+  private ArtifactCache artifactCache;
+  private TestResultsCache resultsCache;
+
+  @Before
+  public void setUp() throws IOException {
+    projectRoot = tmp.newFolder("project");
+    executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(projectRoot))
+        .build();
+    artifactCache = new DirArtifactCache(tmp.newFolder("cache"));
+    resultsCache = new TestResultsCache(
+        artifactCache,
+        executionContext,
+        BuckEventBusFactory.newInstance());
+  }
+
+  @Test
+  public void shouldRestoreStoredResultsOfTestsWithTheSameRuleKey() throws IOException {
+    File results = new File(projectRoot, OUTPUT_DIR + "/com.example.ExampleTest.xml");
+    Files.createParentDirs(results);
+    Files.write("<testcase />", results, Charsets.UTF_8);
+    resultsCache.store(createTestRule("aaaa"));
+
+    // Results of a later run that was not cached must not survive a fetch.
+    File staleResults = new File(projectRoot, OUTPUT_DIR + "/com.example.StaleTest.xml");
+    Files.write("<testcase />", staleResults, Charsets.UTF_8);
+    results.delete();
+
+    assertTrue(resultsCache.fetch(createTestRule("aaaa")));
+    assertEquals("<testcase />", Files.toString(results, Charsets.UTF_8));
+    assertFalse(staleResults.exists());
+  }
+
+  @Test
+  public void shouldNotRestoreResultsOfTestsWithADifferentRuleKey() throws IOException {
+    File results = new File(projectRoot, OUTPUT_DIR + "/com.example.ExampleTest.xml");
+    Files.createParentDirs(results);
+    Files.write("<testcase />", results, Charsets.UTF_8);
+    resultsCache.store(createTestRule("aaaa"));
+
+    assertFalse(resultsCache.fetch(createTestRule("bbbb")));
+  }
+
+  @Test
+  public void shouldRejectCachedResultsOutsideTheOutputDirectory() throws IOException {
+    File buildFile = new File(projectRoot, "example/BUCK");
+    Files.createParentDirs(buildFile);
+    Files.write("java_test(name = 'test')", buildFile, Charsets.UTF_8);
+
+    // A corrupt or malicious artifact in a shared cache must not be able to change the project.
+    File zip = tmp.newFile("results.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry(OUTPUT_DIR + "/com.example.ExampleTest.xml"));
+      out.write("<testcase />".getBytes(Charsets.UTF_8));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("example/BUCK"));
+      out.write("genrule(name = 'test')".getBytes(Charsets.UTF_8));
+      out.closeEntry();
+    }
+    artifactCache.store(TestResultsCache.getKey(new RuleKey("aaaa"), executionContext), zip);
+
+    assertFalse(resultsCache.fetch(createTestRule("aaaa")));
+    assertEquals("java_test(name = 'test')", Files.toString(buildFile, Charsets.UTF_8));
+  }
+
+  @Test
+  public void keyShouldDependOnTheTestEnvironment() {
+    RuleKey ruleKey = new RuleKey("aaaa");
+    RuleKey key = TestResultsCache.getKey(ruleKey, executionContext);
+
+    assertEquals(key, TestResultsCache.getKey(ruleKey, executionContext));
+    assertNotEquals(key, TestResultsCache.getKey(new RuleKey("bbbb"), executionContext));
+    assertNotEquals(key, TestResultsCache.getKey(ruleKey,
+        ExecutionContext.builder()
+            .setExecutionContext(executionContext)
+            .setDefaultTestTimeoutMillis(1000)
+            .build()));
+    assertNotEquals(key, TestResultsCache.getKey(ruleKey,
+        ExecutionContext.builder()
+            .setExecutionContext(executionContext)
+            .setTargetDevice(Optional.of(new TargetDevice(TargetDevice.Type.EMULATOR, null)))
+            .build()));
+  }
+
+  private TestRule createTestRule(String ruleKey) throws IOException {
+    TestRule testRule = EasyMock.createNiceMock(TestRule.class);
+    EasyMock.expect(testRule.getRuleKey()).andStubReturn(new RuleKey(ruleKey));
+    EasyMock.expect(testRule.getFullyQualifiedName()).andStubReturn("//example:test");
+    EasyMock.expect(testRule.getPathToTestOutputDirectory()).andStubReturn(OUTPUT_DIR);
+    EasyMock.expect(testRule.hasTestResultFiles(executionContext)).andStubReturn(true);
+    EasyMock.replay(testRule);
+    return testRule;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipArchive;
+import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ClasspathIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testEntriesAreListedInTraversalOrder() throws IOException {
+    File jar = tmp.newFile("lib.jar");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      for (String name : ImmutableList.of("b/B.class", "a/A.class", "c/C.class")) {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(name.getBytes(Charsets.UTF_8));
+      }
+    }
+    File dir = tmp.newFolder("classes");
+    Files.write("R", new File(dir, "R.class"), Charsets.UTF_8);
+    Files.write("R$id", new File(dir, "R$id.class"), Charsets.UTF_8);
+    File file = tmp.newFile("Single.class");
+    ImmutableSet<File> inputs = ImmutableSet.of(jar, dir, file);
+
+    final ImmutableList.Builder<String> expected = ImmutableList.builder();
+    new ClasspathTraversal(inputs) {
+      @Override
+      public void visit(FileLike fileLike) {
+        expected.add(fileLike.getContainer() + "!" + fileLike.getRelativePath());
+      }
+    }.traverse();
+
+    try (ClasspathIndex index = ClasspathIndex.create(inputs)) {
+      ImmutableList.Builder<String> actual = ImmutableList.builder();
+      for (FileLike fileLike : index.getEntries()) {
+        actual.add(fileLike.getContainer() + "!" + fileLike.getRelativePath());
+      }
+      assertEquals(expected.build(), actual.build());
+      assertEquals(3, index.getEntries(jar).size());
+      assertEquals(2, index.getEntries(dir).size());
+      assertEquals(1, index.getEntries(file).size());
+    }
+  }
+
+  @Test
+  public void testEntriesOfJarsAreCopiedAsTheyAreStored() throws IOException {
+    byte[] data = createClassData();
+    File jar = tmp.newFile("lib.jar");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      // Compressed with a level other than the one the output stream would use.
+      out.setLevel(Deflater.BEST_SPEED);
+      out.putNextEntry(new ZipEntry("Deflated.class"));
+      out.write(data);
+
+      ZipEntry stored = new ZipEntry("Stored.class");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(data.length);
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      stored.setCrc(crc.getValue());
+      out.putNextEntry(stored);
+      out.write(data);
+    }
+
+    File copy = tmp.newFile("copy.jar");
+    try (ClasspathIndex index = ClasspathIndex.create(ImmutableSet.of(jar));
+         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(copy)) {
+      for (FileLike fileLike : index.getEntries()) {
+        ClasspathIndex.putEntry(out, fileLike);
+      }
+    }
+
+    try (ZipArchive original = ZipArchive.open(jar).get();
+         ZipArchive copied = ZipArchive.open(copy).get()) {
+      assertEquals(original.getEntries().size(), copied.getEntries().size());
+      for (int i = 0; i < original.getEntries().size(); i++) {
+        ZipArchive.Entry originalEntry = original.getEntries().get(i);
+        ZipArchive.Entry copiedEntry = copied.getEntries().get(i);
+        assertEquals(originalEntry.getName(), copiedEntry.getName());
+        assertEquals(originalEntry.getMethod(), copiedEntry.getMethod());
+        assertEquals(originalEntry.getCrc(), copiedEntry.getCrc());
+        assertArrayEquals(
+            readFully(original.getRawInputStream(originalEntry)),
+            readFully(copied.getRawInputStream(copiedEntry)));
+      }
+    }
+
+    try (ZipFile zipFile = new ZipFile(copy)) {
+      for (String name : ImmutableList.of("Deflated.class", "Stored.class")) {
+        assertArrayEquals(data, readFully(zipFile.getInputStream(zipFile.getEntry(name))));
+      }
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try (InputStream stream = in) {
+      return ByteStreams.toByteArray(stream);
+    }
+  }
+
+  private static byte[] createClassData() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      builder.append("entry ").append(i % 17).append('\n');
+    }
+    return builder.toString().getBytes(Charsets.UTF_8);
+  }
+}
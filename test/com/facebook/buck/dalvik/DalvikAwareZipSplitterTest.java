@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+public class DalvikAwareZipSplitterTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final Predicate<String> REQUIRED_IN_PRIMARY_ZIP = new Predicate<String>() {
+    @Override
+    public boolean apply(String name) {
+      return name.startsWith("primary/");
+    }
+  };
+
+  private static final int NUM_CLASSES = 9;
+
+  private File inJar;
+  private File outPrimary;
+  private File outSecondaryDir;
+  private File layoutFile;
+  private long linearAllocLimit;
+
+  @Before
+  public void setUp() throws IOException {
+    inJar = new File(tmp.getRoot(), "in.jar");
+    outPrimary = new File(tmp.getRoot(), "primary.jar");
+    outSecondaryDir = tmp.newFolder("secondary");
+    layoutFile = new File(tmp.getRoot(), "layout.txt");
+
+    // Compile classes that all have the same footprint but different contents, for a JVM that the
+    // version of ASM used by DalvikStatsTool understands.
+    File sourceDir = tmp.newFolder("src");
+    List<String> compilerArgs = Lists.newArrayList(
+        "-source", "1.6",
+        "-target", "1.6",
+        "-d", tmp.newFolder("compiled").getPath());
+    for (int i = 1; i <= NUM_CLASSES; i++) {
+      File source = new File(sourceDir, "V" + i + ".java");
+      Files.write(
+          String.format("package test; public class V%d { int get() { return %d; } }", i, i),
+          source,
+          Charsets.UTF_8);
+      compilerArgs.add(source.getPath());
+    }
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertEquals(0,
+        compiler.run(null, null, null, compilerArgs.toArray(new String[compilerArgs.size()])));
+
+    // Canaries do not take up any linear alloc, so every zip holds two of the classes above.
+    int classSize = DalvikStatsTool.getEstimate(new ByteArrayInputStream(readClass(1)))
+        .estimatedLinearAllocSize;
+    linearAllocLimit = 2 * classSize + classSize / 2;
+  }
+
+  @Test
+  public void testSecondaryZipsWithUnchangedClassesStayTheSame() throws IOException {
+    writeJar(ImmutableMap.<String, Integer>builder()
+        .put("primary/P.class", 1)
+        .put("com/example/A.class", 2)
+        .put("com/example/B.class", 3)
+        .put("com/example/C.class", 4)
+        .put("com/example/D.class", 5)
+        .put("com/example/E.class", 6)
+        .put("com/example/F.class", 7)
+        .build());
+    List<Map<String, Long>> firstBuild = split();
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("primary/P.class", "com/example/A.class"),
+            ImmutableList.of(
+                "secondary/dex01/Canary.class", "com/example/B.class", "com/example/C.class"),
+            ImmutableList.of(
+                "secondary/dex02/Canary.class", "com/example/D.class", "com/example/E.class"),
+            ImmutableList.of("secondary/dex03/Canary.class", "com/example/F.class")),
+        getNames(firstBuild));
+
+    // Changing a class only changes the zip it is in.
+    writeJar(ImmutableMap.<String, Integer>builder()
+        .put("primary/P.class", 1)
+        .put("com/example/A.class", 2)
+        .put("com/example/B.class", 3)
+        .put("com/example/C.class", 4)
+        .put("com/example/D.class", 5)
+        .put("com/example/E.class", 6)
+        .put("com/example/F.class", 8)
+        .build());
+    List<Map<String, Long>> secondBuild = split();
+    assertEquals(firstBuild.subList(0, 3), secondBuild.subList(0, 3));
+    assertNotEquals(firstBuild.get(3), secondBuild.get(3));
+    assertEquals(getNames(firstBuild), getNames(secondBuild));
+
+    // A new class at the start of the classpath would shift every other class without a layout.
+    writeJar(ImmutableMap.<String, Integer>builder()
+        .put("com/example/New.class", 9)
+        .put("primary/P.class", 1)
+        .put("com/example/A.class", 2)
+        .put("com/example/B.class", 3)
+        .put("com/example/C.class", 4)
+        .put("com/example/D.class", 5)
+        .put("com/example/E.class", 6)
+        .put("com/example/F.class", 8)
+        .build());
+    // Instead, it is appended to the last secondary zip.
+    List<Map<String, Long>> thirdBuild = split();
+    assertEquals(4, thirdBuild.size());
+    assertEquals(secondBuild.subList(0, 3), thirdBuild.subList(0, 3));
+    assertEquals(
+        ImmutableList.of(
+            "secondary/dex03/Canary.class", "com/example/F.class", "com/example/New.class"),
+        getNames(thirdBuild).get(3));
+
+    // Splitting again without any changes must not move the appended class ahead of F, even
+    // though it comes first on the classpath, as the secondary dex would then have to be dexed
+    // again.
+    List<byte[]> thirdBuildZips = readSecondaryZips();
+    List<Map<String, Long>> fourthBuild = split();
+    assertEquals(getNames(thirdBuild), getNames(fourthBuild));
+    List<byte[]> fourthBuildZips = readSecondaryZips();
+    assertEquals(thirdBuildZips.size(), fourthBuildZips.size());
+    for (int i = 0; i < thirdBuildZips.size(); i++) {
+      assertArrayEquals(thirdBuildZips.get(i), fourthBuildZips.get(i));
+    }
+  }
+
+  @Test
+  public void testClassesThatMoveArePutInZipsThatChangedAnyway() throws IOException {
+    writeJar(ImmutableMap.<String, Integer>builder()
+        .put("primary/P.class", 1)
+        .put("com/example/A.class", 2)
+        .put("com/example/B.class", 3)
+        .put("com/example/C.class", 4)
+        .put("com/example/D.class", 5)
+        .put("com/example/E.class", 6)
+        .put("com/example/F.class", 7)
+        .build());
+    List<Map<String, Long>> firstBuild = split();
+
+    // Removing D from the second secondary zip leaves room there for a new class, which is used
+    // rather than the room in the last secondary zip.
+    writeJar(ImmutableMap.<String, Integer>builder()
+        .put("primary/P.class", 1)
+        .put("com/example/A.class", 2)
+        .put("com/example/B.class", 3)
+        .put("com/example/C.class", 4)
+        .put("com/example/E.class", 6)
+        .put("com/example/F.class", 7)
+        .put("com/example/New.class", 9)
+        .build());
+    List<Map<String, Long>> secondBuild = split();
+    assertEquals(4, secondBuild.size());
+    assertEquals(firstBuild.subList(0, 2), secondBuild.subList(0, 2));
+    assertEquals(
+        ImmutableList.of(
+            "secondary/dex02/Canary.class", "com/example/E.class", "com/example/New.class"),
+        getNames(secondBuild).get(2));
+    assertEquals(firstBuild.get(3), secondBuild.get(3));
+  }
+
+  @Test
+  public void testLayoutWrittenByAnotherVersionIsIgnored() throws IOException {
+    Files.write("not a layout\n", layoutFile, Charsets.UTF_8);
+    writeJar(ImmutableMap.of(
+        "primary/P.class", 1,
+        "com/example/A.class", 2,
+        "com/example/B.class", 3,
+        "com/example/C.class", 4));
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("primary/P.class", "com/example/A.class"),
+            ImmutableList.of(
+                "secondary/dex01/Canary.class", "com/example/B.class", "com/example/C.class")),
+        getNames(split()));
+  }
+
+  /**
+   * @return the name and CRC of the entries of the primary zip, followed by those of each of the
+   *     secondary zips.
+   */
+  private List<Map<String, Long>> split() throws IOException {
+    ImmutableList.Builder<Map<String, Long>> zips = ImmutableList.builder();
+    File reportDir = tmp.newFolder();
+    Iterable<File> secondaryZips = DalvikAwareZipSplitter.splitZip(
+        ImmutableSet.of(inJar),
+        outPrimary,
+        outSecondaryDir,
+        "secondary-%d.jar",
+        linearAllocLimit,
+        REQUIRED_IN_PRIMARY_ZIP,
+        ZipSplitter.CanaryStrategy.INCLUDE_CANARIES,
+        reportDir,
+        /* statsCacheDir */ Optional.<File>absent(),
+        Optional.of(layoutFile))
+        .execute();
+    zips.add(readEntries(outPrimary));
+    for (File secondaryZip : secondaryZips) {
+      zips.add(readEntries(secondaryZip));
+    }
+    return zips.build();
+  }
+
+  /** @return the contents of each of the secondary zips, in order. */
+  private List<byte[]> readSecondaryZips() throws IOException {
+    ImmutableList.Builder<byte[]> zips = ImmutableList.builder();
+    for (int i = 1; new File(outSecondaryDir, String.format("secondary-%d.jar", i)).exists(); i++) {
+      zips.add(Files.toByteArray(new File(outSecondaryDir, String.format("secondary-%d.jar", i))));
+    }
+    return zips.build();
+  }
+
+  private static List<List<String>> getNames(List<Map<String, Long>> zips) {
+    ImmutableList.Builder<List<String>> names = ImmutableList.builder();
+    for (Map<String, Long> zip : zips) {
+      names.add(ImmutableList.copyOf(zip.keySet()));
+    }
+    return names.build();
+  }
+
+  private static Map<String, Long> readEntries(File zip) throws IOException {
+    Map<String, Long> entries = Maps.newLinkedHashMap();
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+      while (zipEntries.hasMoreElements()) {
+        ZipEntry entry = zipEntries.nextElement();
+        entries.put(entry.getName(), entry.getCrc());
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Writes the input jar, where each class has the contents of the compiled class of the given
+   * index, so that all of the classes have the same footprint but their contents differ.
+   */
+  private void writeJar(Map<String, Integer> classes) throws IOException {
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(inJar))) {
+      for (Map.Entry<String, Integer> entry : classes.entrySet()) {
+        out.putNextEntry(new ZipEntry(entry.getKey()));
+        out.write(readClass(entry.getValue()));
+      }
+    }
+  }
+
+  private byte[] readClass(int index) throws IOException {
+    return Files.toByteArray(new File(tmp.getRoot(), "compiled/test/V" + index + ".class"));
+  }
+}
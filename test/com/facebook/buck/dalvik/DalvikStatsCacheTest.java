@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+public class DalvikStatsCacheTest {
+
+  private static final String CLASS_A = "test/A.class";
+  private static final String CLASS_B = "test/B.class";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File compiledClassesDir;
+  private File cacheDir;
+  private List<String> analyzedClasses;
+
+  @Before
+  public void setUp() throws IOException {
+    // Compile the classes to analyze for a JVM that the version of ASM used by DalvikStatsTool
+    // understands.
+    File sourceDir = tmp.newFolder("src");
+    File sourceA = new File(sourceDir, "A.java");
+    File sourceB = new File(sourceDir, "B.java");
+    Files.write("package test; public class A { public String get() { return toString(); } }",
+        sourceA,
+        Charsets.UTF_8);
+    Files.write("package test; public class B extends A { private int count; }",
+        sourceB,
+        Charsets.UTF_8);
+    compiledClassesDir = tmp.newFolder("compiled");
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertEquals(0, compiler.run(null, null, null,
+        "-source", "1.6",
+        "-target", "1.6",
+        "-d", compiledClassesDir.getPath(),
+        sourceA.getPath(),
+        sourceB.getPath()));
+
+    cacheDir = tmp.newFolder("cache");
+    analyzedClasses = Collections.synchronizedList(Lists.<String>newArrayList());
+  }
+
+  @Test
+  public void testStatsOfUnchangedJarsAreReadFromTheCacheDirectory() throws IOException {
+    File jar = writeJar("lib.jar", ImmutableList.of(CLASS_A, CLASS_B));
+    DalvikStatsCache cache = createCache();
+    load(cache, jar);
+    assertEquals(ImmutableSet.of(CLASS_A, CLASS_B), ImmutableSet.copyOf(analyzedClasses));
+    Map<String, DalvikStatsTool.Stats> stats = getStats(cache, jar);
+
+    analyzedClasses.clear();
+    DalvikStatsCache nextCache = createCache();
+    load(nextCache, jar);
+    assertEquals(ImmutableList.<String>of(), analyzedClasses);
+    assertStatsEqual(stats, getStats(nextCache, jar));
+    assertEquals(ImmutableList.<String>of(), analyzedClasses);
+  }
+
+  @Test
+  public void testChangedJarsAreAnalyzedAgain() throws IOException {
+    File jar = writeJar("lib.jar", ImmutableList.of(CLASS_A, CLASS_B));
+    load(createCache(), jar);
+
+    analyzedClasses.clear();
+    writeJar("lib.jar", ImmutableList.of(CLASS_A));
+    load(createCache(), jar);
+    assertEquals(ImmutableList.of(CLASS_A), analyzedClasses);
+    assertEquals("Only the stats of the current inputs should be kept.",
+        1, cacheDir.listFiles().length);
+  }
+
+  @Test
+  public void testStatsOfDirectoriesAreCached() throws IOException {
+    File dir = tmp.newFolder("classes");
+    File classFile = new File(dir, CLASS_A);
+    Files.createParentDirs(classFile);
+    Files.write(readClass(CLASS_A), classFile);
+    load(createCache(), dir);
+    assertEquals(ImmutableList.of(CLASS_A), analyzedClasses);
+
+    analyzedClasses.clear();
+    DalvikStatsCache cache = createCache();
+    load(cache, dir);
+    assertEquals(1, getStats(cache, dir).size());
+    assertEquals(ImmutableList.<String>of(), analyzedClasses);
+  }
+
+  @Test
+  public void testStatsAreNotWrittenWithoutACacheDirectory() throws IOException {
+    File jar = writeJar("lib.jar", ImmutableList.of(CLASS_A));
+    DalvikStatsCache cache = new DalvikStatsCache();
+    load(cache, jar);
+    DalvikStatsTool.Stats stats = getStats(cache, jar).get(CLASS_A);
+    assertSame("Stats should be computed once.", stats, getStats(cache, jar).get(CLASS_A));
+    assertEquals(0, cacheDir.listFiles().length);
+  }
+
+  private DalvikStatsCache createCache() {
+    return new DalvikStatsCache(Optional.of(cacheDir)) {
+      @Override
+      DalvikStatsTool.Stats analyze(String relativePath, byte[] classBytes) {
+        analyzedClasses.add(relativePath);
+        return super.analyze(relativePath, classBytes);
+      }
+    };
+  }
+
+  private static void load(DalvikStatsCache cache, File classpathEntry) throws IOException {
+    try (ClasspathIndex classpathIndex = ClasspathIndex.create(ImmutableSet.of(classpathEntry))) {
+      cache.load(classpathIndex);
+    }
+  }
+
+  /** @return the stats of the classes in {@code classpathEntry}, as the splitter sees them. */
+  private static Map<String, DalvikStatsTool.Stats> getStats(
+      final DalvikStatsCache cache,
+      File classpathEntry) throws IOException {
+    final Map<String, DalvikStatsTool.Stats> stats = Maps.newTreeMap();
+    new DefaultClasspathTraverser().traverse(
+        new ClasspathTraversal(ImmutableSet.of(classpathEntry)) {
+          @Override
+          public void visit(FileLike fileLike) {
+            stats.put(fileLike.getRelativePath(), cache.getStats(fileLike));
+          }
+        });
+    return stats;
+  }
+
+  private static void assertStatsEqual(
+      Map<String, DalvikStatsTool.Stats> expected,
+      Map<String, DalvikStatsTool.Stats> actual) {
+    assertEquals(expected.keySet(), actual.keySet());
+    for (String name : expected.keySet()) {
+      assertEquals(expected.get(name).estimatedLinearAllocSize,
+          actual.get(name).estimatedLinearAllocSize);
+      assertEquals(expected.get(name).methodReferences, actual.get(name).methodReferences);
+    }
+  }
+
+  private File writeJar(String name, List<String> classes) throws IOException {
+    File jar = new File(tmp.getRoot(), name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+      for (String className : classes) {
+        out.putNextEntry(new ZipEntry(className));
+        out.write(readClass(className));
+        out.closeEntry();
+      }
+    }
+    return jar;
+  }
+
+  private byte[] readClass(String name) throws IOException {
+    return Files.toByteArray(new File(compiledClassesDir, name));
+  }
+}
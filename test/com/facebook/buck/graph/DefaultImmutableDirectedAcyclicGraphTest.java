@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+public class DefaultImmutableDirectedAcyclicGraphTest {
+
+  /**
+   * <pre>
+   *     A
+   *   /   \
+   *  B     C
+   *   \   / \
+   *     D    E
+   * </pre>
+   */
+  private static DefaultImmutableDirectedAcyclicGraph<String> createDiamondGraph() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<String>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("A", "C");
+    mutableGraph.addEdge("B", "D");
+    mutableGraph.addEdge("C", "D");
+    mutableGraph.addEdge("C", "E");
+    mutableGraph.addNode("F");
+    return new DefaultImmutableDirectedAcyclicGraph<String>(mutableGraph);
+  }
+
+  @Test
+  public void testEdgesAreCopied() {
+    DefaultImmutableDirectedAcyclicGraph<String> graph = createDiamondGraph();
+
+    assertEquals(6, graph.getNodeCount());
+    assertEquals(ImmutableSet.of("B", "C"), graph.getOutgoingNodesFor("A"));
+    assertEquals(ImmutableSet.of("D", "E"), graph.getOutgoingNodesFor("C"));
+    assertEquals(ImmutableSet.of("B", "C"), graph.getIncomingNodesFor("D"));
+    assertEquals(ImmutableSet.of(), graph.getIncomingNodesFor("A"));
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesFor("not in graph"));
+    assertEquals(ImmutableSet.of("D", "E", "F"), graph.getNodesWithNoOutgoingEdges());
+    assertEquals(ImmutableSet.of("A", "F"), graph.getNodesWithNoIncomingEdges());
+  }
+
+  @Test
+  public void testNodesInTopologicalOrder() {
+    DefaultImmutableDirectedAcyclicGraph<String> graph = createDiamondGraph();
+    ImmutableList<String> order = graph.getNodesInTopologicalOrder();
+
+    assertEquals(6, order.size());
+    for (String node : order) {
+      for (String dep : graph.getOutgoingNodesFor(node)) {
+        assertTrue(dep + " should come before " + node, order.indexOf(dep) < order.indexOf(node));
+      }
+    }
+  }
+
+  @Test
+  public void testFindTransitiveNodes() {
+    DefaultImmutableDirectedAcyclicGraph<String> graph = createDiamondGraph();
+
+    assertEquals(ImmutableSet.of("C", "D", "E"),
+        ImmutableSet.copyOf(graph.findTransitiveOutgoingNodes(ImmutableList.of("C"))));
+    assertEquals(ImmutableSet.of("B", "D", "F"),
+        ImmutableSet.copyOf(graph.findTransitiveOutgoingNodes(ImmutableList.of("B", "F"))));
+    assertEquals(ImmutableSet.of("A", "B", "C", "D"),
+        ImmutableSet.copyOf(graph.findTransitiveIncomingNodes(ImmutableList.of("D"))));
+    assertEquals(ImmutableList.of(),
+        graph.findTransitiveIncomingNodes(ImmutableList.<String>of()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCyclicGraphIsRejected() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<String>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addEdge("C", "A");
+    new DefaultImmutableDirectedAcyclicGraph<String>(mutableGraph);
+  }
+}
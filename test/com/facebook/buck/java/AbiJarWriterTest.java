@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.rules.Sha1HashCode;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+public class AbiJarWriterTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testAbiKeyIgnoresMethodBodiesAndPrivateMembers() throws IOException {
+    Sha1HashCode abiKey = writeAbiJar("before", ImmutableMap.of(
+        "com/example/Foo.class", createClass("com/example/Foo", 1, "bar", Opcodes.ACC_PRIVATE)));
+    Sha1HashCode newAbiKey = writeAbiJar("after", ImmutableMap.of(
+        "com/example/Foo.class", createClass("com/example/Foo", 2, "baz", Opcodes.ACC_PRIVATE)));
+
+    assertEquals(abiKey, newAbiKey);
+    assertArrayEquals(
+        Files.toByteArray(new File(tmp.getRoot(), "before-abi.jar")),
+        Files.toByteArray(new File(tmp.getRoot(), "after-abi.jar")));
+  }
+
+  @Test
+  public void testAbiKeyChangesWithNonPrivateMembers() throws IOException {
+    Sha1HashCode abiKey = writeAbiJar("before", ImmutableMap.of(
+        "com/example/Foo.class", createClass("com/example/Foo", 1, "bar", Opcodes.ACC_PUBLIC)));
+    Sha1HashCode newAbiKey = writeAbiJar("after", ImmutableMap.of(
+        "com/example/Foo.class", createClass("com/example/Foo", 1, "baz", Opcodes.ACC_PUBLIC)));
+
+    assertFalse(abiKey.equals(newAbiKey));
+  }
+
+  @Test
+  public void testAbiKeyChangesWithConstants() throws IOException {
+    Sha1HashCode abiKey = writeAbiJar("before", ImmutableMap.of(
+        "com/example/Foo.class", createClassWithConstant("com/example/Foo", 1)));
+    Sha1HashCode newAbiKey = writeAbiJar("after", ImmutableMap.of(
+        "com/example/Foo.class", createClassWithConstant("com/example/Foo", 2)));
+
+    assertFalse(abiKey.equals(newAbiKey));
+  }
+
+  @Test
+  public void testStrippedClassHasNoCodeOrPrivateMembers() throws IOException {
+    writeAbiJar("stripped", ImmutableMap.of(
+        "com/example/Foo.class", createClass("com/example/Foo", 1, "bar", Opcodes.ACC_PRIVATE)));
+
+    final List<String> methods = Lists.newArrayList();
+    final List<String> methodsWithCode = Lists.newArrayList();
+    try (JarFile abiJar = new JarFile(new File(tmp.getRoot(), "stripped-abi.jar"));
+         InputStream classFile = abiJar.getInputStream(abiJar.getEntry("com/example/Foo.class"))) {
+      new ClassReader(classFile).accept(new ClassVisitor(Opcodes.ASM4) {
+        @Override
+        public MethodVisitor visitMethod(int access,
+            final String name,
+            String desc,
+            String signature,
+            String[] exceptions) {
+          methods.add(name);
+          return new MethodVisitor(Opcodes.ASM4) {
+            @Override
+            public void visitCode() {
+              methodsWithCode.add(name);
+            }
+          };
+        }
+      }, 0);
+    }
+
+    assertEquals(ImmutableList.of("<init>", "get"), methods);
+    assertEquals(ImmutableList.of(), methodsWithCode);
+  }
+
+  @Test
+  public void testAnonymousClassesAreDroppedAndResourcesAreKept() throws IOException {
+    ClassWriter anonymousClass = new ClassWriter(0);
+    anonymousClass.visit(Opcodes.V1_6, Opcodes.ACC_SUPER, "com/example/Foo$1", null,
+        "java/lang/Object", null);
+    anonymousClass.visitInnerClass("com/example/Foo$1", null, null, 0);
+    anonymousClass.visitEnd();
+
+    writeAbiJar("dropped", ImmutableMap.of(
+        "com/example/Foo.class", createClass("com/example/Foo", 1, "bar", Opcodes.ACC_PUBLIC),
+        "com/example/Foo$1.class", anonymousClass.toByteArray(),
+        "com/example/foo.properties", "foo=bar".getBytes(Charsets.UTF_8)));
+
+    try (JarFile abiJar = new JarFile(new File(tmp.getRoot(), "dropped-abi.jar"))) {
+      List<String> entries = Lists.newArrayList();
+      for (JarEntry entry : Collections.list(abiJar.entries())) {
+        entries.add(entry.getName());
+      }
+      assertEquals(ImmutableList.of("com/example/Foo.class", "com/example/foo.properties"),
+          entries);
+      try (InputStream resource = abiJar.getInputStream(
+          abiJar.getEntry("com/example/foo.properties"))) {
+        assertEquals("foo=bar", new String(ByteStreams.toByteArray(resource), Charsets.UTF_8));
+      }
+    }
+  }
+
+  @Test
+  public void testAbiKeyChangesWithResources() throws IOException {
+    byte[] fooClass = createClass("com/example/Foo", 1, "bar", Opcodes.ACC_PUBLIC);
+    Sha1HashCode abiKey = writeAbiJar("before", ImmutableMap.of(
+        "com/example/Foo.class", fooClass,
+        "com/example/foo.properties", "foo=bar".getBytes(Charsets.UTF_8)));
+    Sha1HashCode newAbiKey = writeAbiJar("after", ImmutableMap.of(
+        "com/example/Foo.class", fooClass,
+        "com/example/foo.properties", "foo=baz".getBytes(Charsets.UTF_8)));
+
+    assertFalse(abiKey.equals(newAbiKey));
+  }
+
+  @Test
+  public void testClassesOfJarsThatRegisterServicesAreNotStripped() throws IOException {
+    byte[] fooClass = createClass("com/example/Foo", 1, "bar", Opcodes.ACC_PRIVATE);
+    writeAbiJar("services", ImmutableMap.of(
+        "com/example/Foo.class", fooClass,
+        "META-INF/services/javax.annotation.processing.Processor",
+        "com.example.Foo\n".getBytes(Charsets.UTF_8)));
+
+    try (JarFile abiJar = new JarFile(new File(tmp.getRoot(), "services-abi.jar"));
+         InputStream classFile = abiJar.getInputStream(abiJar.getEntry("com/example/Foo.class"))) {
+      assertArrayEquals(fooClass, ByteStreams.toByteArray(classFile));
+    }
+  }
+
+  @Test
+  public void testAnnotationProcessorsAreDiscoveredThroughTheAbiJar() throws IOException {
+    File processorSources = tmp.newFolder("processor-src");
+    File processorSource = new File(processorSources, "TouchProcessor.java");
+    Files.write(Joiner.on('\n').join(
+        "package com.example;",
+        "import java.util.Set;",
+        "import javax.annotation.processing.*;",
+        "import javax.lang.model.SourceVersion;",
+        "import javax.lang.model.element.TypeElement;",
+        "import javax.tools.StandardLocation;",
+        "@SupportedAnnotationTypes(\"*\")",
+        "public class TouchProcessor extends AbstractProcessor {",
+        "  private boolean touched;",
+        "  @Override public SourceVersion getSupportedSourceVersion() {",
+        "    return SourceVersion.latestSupported();",
+        "  }",
+        "  @Override public boolean process(Set<? extends TypeElement> annotations,",
+        "      RoundEnvironment roundEnv) {",
+        "    if (touched) {",
+        "      return false;",
+        "    }",
+        "    touched = true;",
+        "    try {",
+        "      processingEnv.getFiler()",
+        "          .createResource(StandardLocation.CLASS_OUTPUT, \"\", \"touched\")",
+        "          .openWriter()",
+        "          .close();",
+        "    } catch (java.io.IOException e) {",
+        "      throw new RuntimeException(e);",
+        "    }",
+        "    return false;",
+        "  }",
+        "}"),
+        processorSource,
+        Charsets.UTF_8);
+    File processorClasses = tmp.newFolder("processor-classes");
+    compile(processorSource, processorClasses, ImmutableList.<String>of());
+
+    writeAbiJar("processor", ImmutableMap.of(
+        "com/example/TouchProcessor.class",
+        Files.toByteArray(new File(processorClasses, "com/example/TouchProcessor.class")),
+        "META-INF/services/javax.annotation.processing.Processor",
+        "com.example.TouchProcessor\n".getBytes(Charsets.UTF_8)));
+
+    // Compile against the ABI jar without a processor path, so that javac looks for processors on
+    // the classpath.
+    File source = tmp.newFile("Foo.java");
+    Files.write("public class Foo {}\n", source, Charsets.UTF_8);
+    File classes = tmp.newFolder("classes");
+    compile(source, classes, ImmutableList.of(
+        "-classpath", new File(tmp.getRoot(), "processor-abi.jar").getAbsolutePath()));
+
+    assertTrue("The processor should have been discovered and run.",
+        new File(classes, "touched").isFile());
+  }
+
+  private static void compile(File source, File classes, List<String> options) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+    Iterable<? extends JavaFileObject> sourceObjects =
+        fileManager.getJavaFileObjectsFromFiles(ImmutableSet.of(source));
+    List<String> args = ImmutableList.<String>builder()
+        .add("-d", classes.getAbsolutePath())
+        .addAll(options)
+        .build();
+    assertTrue(compiler.getTask(null, fileManager, null, args, null, sourceObjects).call());
+  }
+
+  private Sha1HashCode writeAbiJar(String name, Map<String, byte[]> entries) throws IOException {
+    File jar = new File(tmp.getRoot(), name + ".jar");
+    try (JarOutputStream output = new JarOutputStream(new FileOutputStream(jar))) {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        output.putNextEntry(new JarEntry(entry.getKey()));
+        ByteStreams.copy(ByteStreams.newInputStreamSupplier(entry.getValue()), output);
+        output.closeEntry();
+      }
+    }
+    return AbiJarWriter.write(jar, new File(tmp.getRoot(), name + "-abi.jar"));
+  }
+
+  /**
+   * Creates a class with a public {@code int get()} method that returns {@code value}, and an empty
+   * method called {@code otherMethod} with the given access.
+   */
+  private static byte[] createClass(String name,
+      int value,
+      String otherMethod,
+      int otherMethodAccess) {
+    ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null,
+        "java/lang/Object", null);
+    writer.visitSource(name + value + ".java", null);
+
+    MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+    constructor.visitCode();
+    constructor.visitVarInsn(Opcodes.ALOAD, 0);
+    constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+    constructor.visitInsn(Opcodes.RETURN);
+    constructor.visitMaxs(0, 0);
+    constructor.visitEnd();
+
+    MethodVisitor get = writer.visitMethod(Opcodes.ACC_PUBLIC, "get", "()I", null, null);
+    get.visitCode();
+    get.visitLdcInsn(value);
+    get.visitInsn(Opcodes.IRETURN);
+    get.visitMaxs(0, 0);
+    get.visitEnd();
+
+    MethodVisitor other = writer.visitMethod(otherMethodAccess, otherMethod, "()V", null, null);
+    other.visitCode();
+    other.visitInsn(Opcodes.RETURN);
+    other.visitMaxs(0, 0);
+    other.visitEnd();
+
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+
+  private static byte[] createClassWithConstant(String name, int value) {
+    ClassWriter writer = new ClassWriter(0);
+    writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null,
+        "java/lang/Object", null);
+    writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+        "VALUE", "I", null, value).visitEnd();
+    writer.visitEnd();
+    return writer.toByteArray();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaFileObject;
+
+public class ClasspathArchiveCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private void writeJar(File jar, String... entries) throws IOException {
+    try (JarOutputStream output = new JarOutputStream(new FileOutputStream(jar))) {
+      for (String entry : entries) {
+        output.putNextEntry(new JarEntry(entry));
+        output.write(entry.getBytes());
+        output.closeEntry();
+      }
+    }
+  }
+
+  @Test
+  public void testArchiveIsReusedUntilTheJarChanges() throws IOException {
+    File jar = new File(tmp.getRoot(), "lib.jar");
+    writeJar(jar, "com/example/A.class");
+    ClasspathArchiveCache cache = new ClasspathArchiveCache();
+
+    ClasspathArchive first = cache.acquire(jar.toPath());
+    ClasspathArchive second = cache.acquire(jar.toPath());
+    assertSame(first, second);
+    first.release();
+    second.release();
+
+    writeJar(jar, "com/example/A.class", "com/example/B.class");
+    ClasspathArchive third = cache.acquire(jar.toPath());
+    assertNotSame(first, third);
+    List<JavaFileObject> files = Lists.newArrayList();
+    third.list("com.example", ImmutableSet.of(JavaFileObject.Kind.CLASS), false, files);
+    assertEquals(2, files.size());
+    third.release();
+  }
+
+  @Test
+  public void testListIndexesEntriesByPackage() throws IOException {
+    File jar = new File(tmp.getRoot(), "lib.jar");
+    writeJar(jar,
+        "com/example/A.class",
+        "com/example/A.java",
+        "com/example/inner/B.class",
+        "com/other/C.class",
+        "Root.class");
+    ClasspathArchive archive = new ClasspathArchiveCache().acquire(jar.toPath());
+
+    List<JavaFileObject> files = Lists.newArrayList();
+    archive.list("com.example", ImmutableSet.of(JavaFileObject.Kind.CLASS), false, files);
+    assertEquals(ImmutableList.of("com.example.A"), getBinaryNames(files));
+
+    files.clear();
+    archive.list("com.example",
+        ImmutableSet.of(JavaFileObject.Kind.CLASS, JavaFileObject.Kind.SOURCE),
+        true,
+        files);
+    assertEquals(ImmutableSet.of("com.example.A", "com.example.inner.B"),
+        ImmutableSet.copyOf(getBinaryNames(files)));
+    assertEquals(3, files.size());
+
+    files.clear();
+    archive.list("", ImmutableSet.of(JavaFileObject.Kind.CLASS), false, files);
+    assertEquals(ImmutableList.of("Root"), getBinaryNames(files));
+    try (InputStream input = files.get(0).openInputStream()) {
+      assertEquals("Root.class", new String(ByteStreams.toByteArray(input)));
+    }
+    archive.release();
+  }
+
+  private static List<String> getBinaryNames(List<JavaFileObject> files) {
+    List<String> names = Lists.newArrayList();
+    for (JavaFileObject file : files) {
+      names.add(((ClasspathArchive.ArchiveEntryJavaFileObject) file).getBinaryName());
+    }
+    return names;
+  }
+}
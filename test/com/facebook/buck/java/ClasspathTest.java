@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Test;
+
+public class ClasspathTest {
+
+  private static JavaLibraryRule createLibrary(String name) {
+    return new FakeJavaLibraryRule(
+        BuildRuleType.JAVA_LIBRARY,
+        new BuildTarget("//java/com/example", name),
+        ImmutableSortedSet.<BuildRule>of(),
+        ImmutableSet.<BuildTargetPattern>of());
+  }
+
+  @Test
+  public void testEntriesAreFlattenedInOrder() {
+    JavaLibraryRule a = createLibrary("a");
+    JavaLibraryRule b = createLibrary("b");
+    JavaLibraryRule c = createLibrary("c");
+
+    Classpath classpathA = Classpath.of(ImmutableSetMultimap.of(a, "a.jar"));
+    Classpath classpathB = Classpath.of(ImmutableList.of(classpathA),
+        ImmutableSetMultimap.of(b, "b.jar"));
+    Classpath classpathC = Classpath.of(ImmutableList.of(classpathB, classpathA),
+        ImmutableSetMultimap.of(c, "c.jar"));
+
+    ImmutableSetMultimap<JavaLibraryRule, String> entries = classpathC.getEntries();
+    assertEquals(ImmutableSetMultimap.of(a, "a.jar", b, "b.jar", c, "c.jar"), entries);
+    assertEquals(ImmutableList.of("a.jar", "b.jar", "c.jar"),
+        ImmutableList.copyOf(entries.values()));
+  }
+
+  @Test
+  public void testClasspathsAreShared() {
+    JavaLibraryRule a = createLibrary("a");
+    JavaLibraryRule b = createLibrary("b");
+    Classpath classpathA = Classpath.of(ImmutableSetMultimap.of(a, "a.jar"));
+    Classpath classpathB = Classpath.of(ImmutableSetMultimap.of(b, "b.jar"));
+
+    assertSame(Classpath.EMPTY, Classpath.of(ImmutableSetMultimap.<JavaLibraryRule, String>of()));
+    assertSame("A classpath that only forwards to another should not create a new one.",
+        classpathA,
+        Classpath.of(ImmutableList.of(classpathA, Classpath.EMPTY),
+            ImmutableSetMultimap.<JavaLibraryRule, String>of()));
+    assertSame("Equal classpaths should be interned.",
+        Classpath.of(ImmutableList.of(classpathA, classpathB),
+            ImmutableSetMultimap.<JavaLibraryRule, String>of()),
+        Classpath.of(ImmutableList.of(classpathA, classpathB),
+            ImmutableSetMultimap.<JavaLibraryRule, String>of()));
+    assertSame(classpathA.getEntries(), classpathA.getEntries());
+  }
+
+  @Test
+  public void testVisitEntriesMatchesGetEntries() {
+    JavaLibraryRule a = createLibrary("a");
+    JavaLibraryRule b = createLibrary("b");
+    JavaLibraryRule c = createLibrary("c");
+
+    Classpath classpathA = Classpath.of(ImmutableSetMultimap.of(a, "a.jar"));
+    Classpath classpathB = Classpath.of(ImmutableList.of(classpathA),
+        ImmutableSetMultimap.of(b, "b.jar"));
+    Classpath classpathC = Classpath.of(ImmutableList.of(classpathB, classpathA),
+        ImmutableSetMultimap.of(c, "c.jar"));
+
+    final ImmutableList.Builder<String> visited = ImmutableList.builder();
+    classpathC.visitEntries(new Classpath.Visitor() {
+      @Override
+      public void visit(JavaLibraryRule rule, String entry) {
+        visited.add(rule.getBuildTarget().getShortName() + ":" + entry);
+      }
+    });
+
+    assertEquals("Each shared classpath should be visited once, in the order of getEntries().",
+        ImmutableList.of("a:a.jar", "b:b.jar", "c:c.jar"),
+        visited.build());
+  }
+}
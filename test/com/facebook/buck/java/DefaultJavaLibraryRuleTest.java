@@ -22,6 +22,7 @@ import static org.easymock.EasyMock.replay;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -34,6 +35,7 @@ import com.facebook.buck.java.abi.AbiWriterProtocol;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.rules.AbiRule;
 import com.facebook.buck.rules.AbstractBuildRuleBuilderParams;
 import com.facebook.buck.rules.AnnotationProcessingData;
 import com.facebook.buck.rules.BuildContext;
@@ -51,12 +53,14 @@ import com.facebook.buck.rules.FakeRuleKeyBuilderFactory;
 import com.facebook.buck.rules.FileSourcePath;
 import com.facebook.buck.rules.JavaPackageFinder;
 import com.facebook.buck.rules.NoopArtifactCache;
+import com.facebook.buck.rules.OnDiskBuildInfo;
 import com.facebook.buck.rules.Sha1HashCode;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.shell.Genrule;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepRunner;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.step.fs.MkdirAndSymlinkFileStep;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.testutil.RuleMap;
@@ -79,6 +83,7 @@ import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 
 import org.easymock.EasyMock;
@@ -264,6 +269,110 @@ public class DefaultJavaLibraryRuleTest {
         javac.getSrcs());
   }
 
+  @Test
+  public void testCompilesAgainstAbiJarsOfPrebuiltJars() throws IOException {
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+    PrebuiltJarRule guava = ruleResolver.buildAndAddToIndex(
+        PrebuiltJarRule.newPrebuiltJarRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(BuildTargetFactory.newInstance("//lib:guava"))
+        .setBinaryJar("lib/guava.jar")
+        .addVisibilityPattern(BuildTargetPattern.MATCH_ALL));
+    OnDiskBuildInfo onDiskBuildInfo = EasyMock.createMock(OnDiskBuildInfo.class);
+    EasyMock.expect(onDiskBuildInfo.getHash(AbiRule.ABI_KEY_ON_DISK_METADATA))
+        .andReturn(Optional.of(new Sha1HashCode(Strings.repeat("a", 40))));
+    EasyMock.replay(onDiskBuildInfo);
+    guava.initializeFromDisk(onDiskBuildInfo);
+
+    String src = "java/src/com/example/Foo.java";
+    tmp.newFolder("java", "src", "com", "example");
+    tmp.newFile(src);
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmp.getRoot());
+    DefaultJavaLibraryRule javaLibrary = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(
+            new DefaultBuildRuleBuilderParams(projectFilesystem, new FakeRuleKeyBuilderFactory()))
+        .setBuildTarget(BuildTargetFactory.newInstance("//java/src/com/example:example"))
+        .addSrc(src)
+        .addDep(guava.getBuildTarget()));
+
+    BuildContext context = createBuildContext(javaLibrary, /* bootclasspath */ null,
+        projectFilesystem);
+    List<Step> steps = javaLibrary.getBuildSteps(context, new FakeBuildableContext());
+    JavacInMemoryStep javac = (JavacInMemoryStep) Iterables.find(steps, new Predicate<Step>() {
+      @Override
+      public boolean apply(Step command) {
+        return command instanceof JavacInMemoryStep;
+      }
+    });
+
+    assertTrue(javac.getClasspathEntries().contains(
+        "buck-out/gen/lib/lib__guava__abi/guava-abi.jar"));
+    assertFalse(javac.getClasspathEntries().contains("lib/guava.jar"));
+    assertEquals("Rules that run the library should still use the binary jar.",
+        ImmutableSet.of("lib/guava.jar"),
+        ImmutableSet.copyOf(javaLibrary.getTransitiveClasspathEntries().get(guava)));
+  }
+
+  @Test
+  public void testCompilesAgainstClassesDirsOfDepsCompiledInThisBuild() throws IOException {
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+    tmp.newFolder("java", "src", "com", "example");
+    tmp.newFile("java/src/com/example/Dep.java");
+    tmp.newFile("java/src/com/example/Foo.java");
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmp.getRoot());
+    DefaultBuildRuleBuilderParams params =
+        new DefaultBuildRuleBuilderParams(projectFilesystem, new FakeRuleKeyBuilderFactory());
+    DefaultJavaLibraryRule dep = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(params)
+        .setBuildTarget(BuildTargetFactory.newInstance("//java/src/com/example:dep"))
+        .addSrc("java/src/com/example/Dep.java")
+        .addVisibilityPattern(BuildTargetPattern.MATCH_ALL));
+    DefaultJavaLibraryRule javaLibrary = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(params)
+        .setBuildTarget(BuildTargetFactory.newInstance("//java/src/com/example:example"))
+        .addSrc("java/src/com/example/Foo.java")
+        .addDep(dep.getBuildTarget()));
+
+    String depJar = "buck-out/gen/java/src/com/example/lib__dep__output/dep.jar";
+    String depClassesDir = "buck-out/bin/java/src/com/example/lib__dep__classes";
+    assertEquals(
+        "The jar of a dep that has not been compiled in this build should be compiled against.",
+        ImmutableSet.of(depJar),
+        DefaultJavaLibraryRule.getCompileTimeClasspathEntries(
+            javaLibrary.getTransitiveClasspathEntries(), /* useClassesDirs */ true).get(dep));
+
+    // Run the steps of the dep up to the point where its ABI is available.
+    BuildContext context = createBuildContext(dep, /* bootclasspath */ null, projectFilesystem);
+    List<Step> steps = dep.getBuildSteps(context, new FakeBuildableContext());
+    Step publishAbi = Iterables.find(steps, new Predicate<Step>() {
+      @Override
+      public boolean apply(Step step) {
+        return "publishing ABI".equals(step.getShortName());
+      }
+    });
+    assertEquals(0, publishAbi.execute(TestExecutionContext.newInstance()));
+
+    assertEquals(
+        "The classes dir of a dep that has been compiled in this build should be compiled " +
+        "against, as its jar may not have been written yet.",
+        ImmutableSet.of(depClassesDir),
+        DefaultJavaLibraryRule.getCompileTimeClasspathEntries(
+            javaLibrary.getTransitiveClasspathEntries(), /* useClassesDirs */ true).get(dep));
+    assertEquals(
+        ImmutableSet.of(depJar),
+        DefaultJavaLibraryRule.getCompileTimeClasspathEntries(
+            javaLibrary.getTransitiveClasspathEntries(), /* useClassesDirs */ false).get(dep));
+    assertEquals(
+        "Walking the shared classpath should give javac the same entries as the multimap.",
+        ImmutableSet.copyOf(DefaultJavaLibraryRule.getCompileTimeClasspathEntries(
+            javaLibrary.getTransitiveClasspathEntries(), /* useClassesDirs */ true).values()),
+        DefaultJavaLibraryRule.getCompileTimeClasspath(
+            javaLibrary.getTransitiveClasspath(), /* useClassesDirs */ true));
+    assertTrue(DefaultJavaLibraryRule.getCompileTimeClasspath(
+        javaLibrary.getTransitiveClasspath(), /* useClassesDirs */ true).contains(depClassesDir));
+    assertTrue(DefaultJavaLibraryRule.getCompileTimeClasspath(
+        javaLibrary.getTransitiveClasspath(), /* useClassesDirs */ false).contains(depJar));
+  }
+
   @Test
   public void testGetInputsToCompareToOutputWhenAResourceAsSourcePathExists() {
     AbstractBuildRuleBuilderParams params = new FakeAbstractBuildRuleBuilderParams();
@@ -487,6 +596,40 @@ public class DefaultJavaLibraryRuleTest {
     }
   }
 
+  @Test
+  public void testClasspathsDoNotLeakRulesFromAnEarlierGraph() {
+    // buckd builds a new graph with the same targets for every command, while the first one may
+    // not have been garbage collected yet.
+    JavaLibraryRule firstLibraryTwo = createLibraryThatExportsItsDep(new BuildRuleResolver());
+    BuildRuleResolver secondRuleResolver = new BuildRuleResolver();
+    JavaLibraryRule secondLibraryTwo = createLibraryThatExportsItsDep(secondRuleResolver);
+    assertFalse(firstLibraryTwo.getTransitiveClasspathEntries().isEmpty());
+
+    Set<BuildRule> secondGraphRules = Sets.newIdentityHashSet();
+    secondGraphRules.add(secondRuleResolver.get(BuildTargetFactory.newInstance("//:libone")));
+    secondGraphRules.add(secondLibraryTwo);
+    for (JavaLibraryRule rule : Iterables.concat(
+        secondLibraryTwo.getTransitiveClasspathEntries().keySet(),
+        secondLibraryTwo.getOutputClasspathEntries().keySet())) {
+      assertTrue("Should not see " + rule + " from the first graph.",
+          secondGraphRules.contains(rule));
+    }
+  }
+
+  private static JavaLibraryRule createLibraryThatExportsItsDep(BuildRuleResolver ruleResolver) {
+    ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(BuildTargetFactory.newInstance("//:libone"))
+        .addSrc("java/src/com/libone/Bar.java")
+        .addVisibilityPattern(BuildTargetPattern.MATCH_ALL));
+    return ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(BuildTargetFactory.newInstance("//:libtwo"))
+        .addSrc("java/src/com/libtwo/Foo.java")
+        .addDep(BuildTargetFactory.newInstance("//:libone"))
+        .setExportDeps(true));
+  }
+
   @Test
   public void testExportDeps() {
     BuildRuleResolver ruleResolver = new BuildRuleResolver();
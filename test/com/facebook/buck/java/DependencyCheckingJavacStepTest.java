@@ -21,38 +21,119 @@ import static org.junit.Assert.assertEquals;
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.environment.Platform;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
 
 import org.easymock.EasyMockSupport;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 public class DependencyCheckingJavacStepTest extends EasyMockSupport {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
-  public void testFindFailedImports() throws Exception {
-    String lineSeperator = System.getProperty("line.separator");
+  public void testWarnOnTransitiveReportsClassesReadFromUndeclaredDeps() throws IOException {
+    File depJar = createJarContaining("com.example.dep.Dep", "public static int x = 1;");
+    File unusedJar = createJarContaining("com.example.unused.Unused", "");
+    Files.write("package com.example; class User { int x = com.example.dep.Dep.x; }",
+        tmp.newFile("User.java"),
+        Charsets.UTF_8);
+    tmp.newFolder("userout");
 
-    String stderrOutput = Joiner.on(lineSeperator).join(ImmutableList.of(
-        "java/com/foo/bar.java:5: package javax.annotation.concurrent does not exist",
-        "java/com/foo/bar.java:99: error: cannot access com.facebook.Raz",
-        "java/com/foo/bar.java:142: cannot find symbol: class ImmutableSet",
-        "java/com/foo/bar.java:999: you are a clown"));
+    TestConsole console = new TestConsole();
+    console.setVerbosity(Verbosity.COMMANDS);
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .setConsole(console)
+        .build();
+    final ImmutableSet<String> missingClasses = ImmutableSet.of("com.example.dep.Dep");
+    DependencyCheckingJavacStep javac = new DependencyCheckingJavacStep(
+        "userout",
+        /* javaSourceFilePaths */ ImmutableSet.of("User.java"),
+        /* transitiveClasspathEntries */ ImmutableSet.of(depJar.getName(), unusedJar.getName()),
+        /* declaredClasspathEntries */ ImmutableSet.of(unusedJar.getName()),
+        JavacOptions.DEFAULTS,
+        /* pathToOutputAbiFile */ Optional.<String>absent(),
+        /* invokingRule */ Optional.of("//com/example:user"),
+        BuildDependencies.WARN_ON_TRANSITIVE,
+        Optional.<DependencyCheckingJavacStep.SuggestBuildRules>of(
+            new DependencyCheckingJavacStep.SuggestBuildRules() {
+              @Override
+              public ImmutableSet<String> apply(ImmutableSet<String> classes) {
+                assertEquals(missingClasses, classes);
+                return ImmutableSet.of("//com/example:dep");
+              }
+            }));
 
-    ImmutableSet<String> missingImports =
-        DependencyCheckingJavacStep.findFailedImports(stderrOutput);
+    // The rule is only compiled once, with its transitive classpath.
+    assertEquals(0, javac.execute(context));
+    String lineSeparator = System.getProperty("line.separator");
     assertEquals(
-        ImmutableSet.of("javax.annotation.concurrent", "com.facebook.Raz", "ImmutableSet"),
-        missingImports);
+        Joiner.on(lineSeparator).join(
+            "Rule //com/example:user builds with its transitive dependencies but not with " +
+                "its first order dependencies.",
+            "The following classes were missing:",
+            "com.example.dep.Dep",
+            "Try adding the following deps:",
+            "//com/example:dep",
+            "",
+            "",
+            "Rule //com/example:user does not use the following classpath entries from its " +
+                "first order dependencies:",
+            "unused.jar",
+            ""),
+        console.getTextWrittenToStdErr());
+  }
+
+  private File createJarContaining(String className, String body) throws IOException {
+    int lastDot = className.lastIndexOf('.');
+    String simpleName = className.substring(lastDot + 1);
+    String sourceFile = simpleName + ".java";
+    Files.write(String.format("package %s; public class %s { %s }",
+            className.substring(0, lastDot),
+            simpleName,
+            body),
+        tmp.newFile(sourceFile),
+        Charsets.UTF_8);
+    String outputDirectory = simpleName.toLowerCase() + "out";
+    tmp.newFolder(outputDirectory);
+    JavacInMemoryStep javac = new JavacInMemoryStep(
+        outputDirectory,
+        ImmutableSet.of(sourceFile),
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.DEFAULTS,
+        /* pathToOutputAbiFile */ Optional.<String>absent());
+    assertEquals(0, javac.execute(TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build()));
+
+    String classFile = className.replace('.', '/') + ".class";
+    File jarFile = new File(tmp.getRoot(), simpleName.toLowerCase() + ".jar");
+    try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(jarFile))) {
+      jar.putNextEntry(new JarEntry(classFile));
+      Files.copy(new File(tmp.getRoot(), outputDirectory + "/" + classFile), jar);
+      jar.closeEntry();
+    }
+    return jarFile;
   }
 
   @Test
@@ -75,7 +156,8 @@ public class DependencyCheckingJavacStepTest extends EasyMockSupport {
 
     assertEquals("javac -target 6 -source 6 -g -d . -classpath foo.jar foobar.java",
         firstOrder.getDescription(context));
-    assertEquals("javac -target 6 -source 6 -g -d . -classpath foo.jar foobar.java",
+    assertEquals("javac -target 6 -source 6 -g -d . -classpath bar.jar" + File.pathSeparator +
+        "foo.jar foobar.java",
         warn.getDescription(context));
     assertEquals("javac -target 6 -source 6 -g -d . -classpath bar.jar" + File.pathSeparator +
         "foo.jar foobar.java",
@@ -62,6 +62,11 @@ public class FakeJavaLibraryRule extends FakeBuildRule implements JavaLibraryRul
     return ImmutableSetMultimap.of();
   }
 
+  @Override
+  public Classpath getTransitiveClasspath() {
+    return Classpath.EMPTY;
+  }
+
   @Override
   public ImmutableSortedSet<String> getJavaSrcs() {
     return ImmutableSortedSet.of();
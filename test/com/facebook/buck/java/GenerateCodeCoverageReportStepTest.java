@@ -60,15 +60,17 @@ public class GenerateCodeCoverageReportStepTest {
     shellCommandBuilder.add(
         "-input",
         String.format(
-            "%s/coverage.ec,%s/coverage.em",
-            JUnitStep.EMMA_OUTPUT_DIR, JUnitStep.EMMA_OUTPUT_DIR),
+            "%s/coverage.ec,lib1/coverage.em,lib2/coverage.em",
+            JUnitStep.EMMA_OUTPUT_DIR),
         "-sourcepath",
         "parentDirectory1/src,root/parentDirectory/src");
 
     List<String> expectedShellCommand = shellCommandBuilder.build();
 
     GenerateCodeCoverageReportStep step =
-        new GenerateCodeCoverageReportStep(sourceDirectories, outputDirectory);
+        new GenerateCodeCoverageReportStep(sourceDirectories,
+            ImmutableSet.of("lib1/coverage.em", "lib2/coverage.em"),
+            outputDirectory);
 
     MoreAsserts.assertListEquals(expectedShellCommand, step.getShellCommand(context));
 
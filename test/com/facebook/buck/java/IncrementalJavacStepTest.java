@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.rules.BuildDependencies;
+import com.facebook.buck.rules.Sha1HashCode;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class IncrementalJavacStepTest {
+
+  private static final Sha1HashCode ABI_KEY_FOR_DEPS =
+      new Sha1HashCode("a9c3b2e8c2f5d1e7b3a4c5d6e7f8091a2b3c4d5e");
+
+  private static final ImmutableSet<String> SRCS =
+      ImmutableSet.of("A.java", "B.java", "C.java");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ExecutionContext executionContext;
+
+  @Before
+  public void setUp() throws IOException {
+    executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    writeSource("A.java", "package com.example; public class A { public int a() { return 1; } }");
+    writeSource("B.java", "package com.example; class B { int b() { return new A().a(); } }");
+    writeSource("C.java", "package com.example; class C { }");
+  }
+
+  @Test
+  public void testFirstBuildCompilesEverything() throws IOException {
+    IncrementalJavacStep javac = build(SRCS);
+    assertTrue(javac.wasFullBuild());
+    assertEquals(SRCS, javac.getCompiledSources());
+    assertTrue(new File(tmp.getRoot(), "state/state.json").isFile());
+  }
+
+  @Test
+  public void testChangeToMethodBodyRecompilesOnlyThatSource() throws IOException {
+    Sha1HashCode abiKey = build(SRCS).getAbiKey();
+
+    writeSource("A.java", "package com.example; public class A { public int a() { return 2; } }");
+    IncrementalJavacStep javac = build(SRCS);
+
+    assertFalse(javac.wasFullBuild());
+    assertEquals(ImmutableSet.of("A.java"), javac.getCompiledSources());
+    assertEquals(abiKey, javac.getAbiKey());
+    assertMatchesCleanBuild(javac);
+  }
+
+  @Test
+  public void testChangeToAbiRecompilesDependents() throws IOException {
+    Sha1HashCode abiKey = build(SRCS).getAbiKey();
+
+    writeSource("A.java",
+        "package com.example; public class A { public int a() { return 1; } public void x() {} }");
+    IncrementalJavacStep javac = build(SRCS);
+
+    assertFalse(javac.wasFullBuild());
+    assertEquals(ImmutableSet.of("A.java", "B.java"), javac.getCompiledSources());
+    assertFalse(abiKey.equals(javac.getAbiKey()));
+    assertMatchesCleanBuild(javac);
+  }
+
+  @Test
+  public void testDeletedSourceRemovesItsClasses() throws IOException {
+    build(SRCS);
+
+    ImmutableSet<String> srcs = ImmutableSet.of("A.java", "B.java");
+    IncrementalJavacStep javac = build(srcs);
+
+    assertFalse(javac.wasFullBuild());
+    assertEquals(ImmutableSet.of(), javac.getCompiledSources());
+    assertFalse(new File(tmp.getRoot(), "out/com/example/C.class").exists());
+    assertMatchesCleanBuild(javac);
+  }
+
+  @Test
+  public void testChangeToConstantRecompilesEverything() throws IOException {
+    writeSource("A.java", "package com.example; public class A { public static final int X = 1; }");
+    writeSource("B.java", "package com.example; class B { int b() { return A.X; } }");
+    build(SRCS);
+
+    writeSource("A.java", "package com.example; public class A { public static final int X = 2; }");
+    IncrementalJavacStep javac = build(SRCS);
+
+    assertTrue(javac.wasFullBuild());
+    assertMatchesCleanBuild(javac);
+  }
+
+  @Test
+  public void testModifiedOutputDirectoryRecompilesEverything() throws IOException {
+    build(SRCS);
+
+    assertTrue(new File(tmp.getRoot(), "out/com/example/C.class").delete());
+    IncrementalJavacStep javac = build(SRCS);
+
+    assertTrue(javac.wasFullBuild());
+    assertTrue(new File(tmp.getRoot(), "out/com/example/C.class").isFile());
+  }
+
+  @Test
+  public void testFailedBuildForcesNextBuildToRecompileEverything() throws IOException {
+    build(SRCS);
+
+    writeSource("A.java", "package com.example; public class A {");
+    IncrementalJavacStep failed = createStep("out", "state", "abi", SRCS);
+    assertEquals(1, failed.execute(executionContext));
+
+    writeSource("A.java", "package com.example; public class A { public int a() { return 2; } }");
+    IncrementalJavacStep javac = build(SRCS);
+    assertTrue(javac.wasFullBuild());
+  }
+
+  /**
+   * Compiles the sources from scratch into a separate directory and checks that the result is the
+   * same as that of the incremental build.
+   */
+  private void assertMatchesCleanBuild(IncrementalJavacStep incremental) throws IOException {
+    IncrementalJavacStep clean = createStep("clean-out", "clean-state", "clean-abi",
+        ImmutableSet.copyOf(incremental.getSrcs()));
+    assertEquals(0, clean.execute(executionContext));
+    assertEquals(clean.getAbiKey(), incremental.getAbiKey());
+
+    File cleanClasses = new File(tmp.getRoot(), "clean-out/com/example");
+    File incrementalClasses = new File(tmp.getRoot(), "out/com/example");
+    ImmutableSet<String> cleanClassNames = ImmutableSet.copyOf(cleanClasses.list());
+    assertEquals(cleanClassNames, ImmutableSet.copyOf(incrementalClasses.list()));
+    for (String className : cleanClassNames) {
+      assertArrayEquals(className,
+          Files.toByteArray(new File(cleanClasses, className)),
+          Files.toByteArray(new File(incrementalClasses, className)));
+    }
+  }
+
+  private IncrementalJavacStep build(ImmutableSet<String> srcs) {
+    IncrementalJavacStep javac = createStep("out", "state", "abi", srcs);
+    assertEquals(0, javac.execute(executionContext));
+    return javac;
+  }
+
+  private IncrementalJavacStep createStep(String outputDirectory,
+      String stateDirectory,
+      String abiFile,
+      ImmutableSet<String> srcs) {
+    return new IncrementalJavacStep(
+        outputDirectory,
+        srcs,
+        /* transitiveClasspathEntries */ ImmutableSet.<String>of(),
+        /* declaredClasspathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.builder().build(),
+        abiFile,
+        /* invokingRule */ Optional.of("//com/example:lib"),
+        BuildDependencies.FIRST_ORDER_ONLY,
+        /* suggestBuildRules */ Optional.<DependencyCheckingJavacStep.SuggestBuildRules>absent(),
+        stateDirectory,
+        ABI_KEY_FOR_DEPS,
+        /* classpathEntriesToFingerprint */ ImmutableSet.<String>of());
+  }
+
+  private void writeSource(String path, String contents) throws IOException {
+    Files.write(contents, new File(tmp.getRoot(), path), Charsets.UTF_8);
+  }
+}
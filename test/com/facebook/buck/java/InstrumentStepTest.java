@@ -19,7 +19,9 @@ package com.facebook.buck.java;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
 
+import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.google.common.collect.ImmutableList;
@@ -34,7 +36,7 @@ public class InstrumentStepTest {
 
   @Test
   public void testGetShellCommandInternal() {
-    String mode = "overwrite";
+    String mode = "copy";
     Set<String> instrumentDirectories = ImmutableSet.of(
         "root/directory1", "directory2");
 
@@ -46,14 +48,25 @@ public class InstrumentStepTest {
         "-classpath", JUnitStep.PATH_TO_EMMA_JAR,
         "emma", "instr",
         "-outmode", mode,
-        "-outfile", String.format("%s/coverage.em", JUnitStep.EMMA_OUTPUT_DIR),
+        "-outdir", "buck-out/gen/emma/instr/lib/classes",
+        "-outfile", "buck-out/gen/emma/instr/lib/coverage.em",
         "-instrpath", "root/directory1,directory2");
 
-    InstrumentStep command = new InstrumentStep(mode, instrumentDirectories);
+    InstrumentStep command = new InstrumentStep(mode,
+        instrumentDirectories,
+        "buck-out/gen/emma/instr/lib");
 
     MoreAsserts.assertListEquals(expectedShellCommand,
         command.getShellCommand(context));
 
     verify(context);
   }
+
+  @Test
+  public void testInstrumentedOutputOfEachRuleIsKeptApart() {
+    assertEquals(
+        JUnitStep.EMMA_OUTPUT_DIR + "/instr/java/com/example/lib",
+        InstrumentStep.getPathToInstrumentedOutput(
+            BuildTargetFactory.newInstance("//java/com/example:lib")));
+  }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.test.TestCaseSummary;
+import com.facebook.buck.test.XmlTestResultParser;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+public class JUnitRunnerServerPoolTest {
+
+  private static final ImmutableList<String> SHARED_CLASSPATH = ImmutableList.of(
+      new File("lib/junit-4.11.jar").getAbsolutePath(),
+      new File("lib/hamcrest-core-1.3.jar").getAbsolutePath());
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final JUnitRunnerServerPool pool = new JUnitRunnerServerPool();
+
+  @After
+  public void closePool() {
+    pool.close();
+  }
+
+  @Test
+  public void shouldRunTheTestsOfSeveralJobsInTheSameServer() throws IOException {
+    File classes = compileTestClass("PassingTest",
+        "@org.junit.Test public void passes() {",
+        "  System.setProperty(\"set.by.test\", \"true\");",
+        "}",
+        "@org.junit.Test public void seesNoPropertyFromEarlierJobs() {",
+        "  org.junit.Assert.assertNull(System.getProperty(\"set.by.test.before\"));",
+        "  System.setProperty(\"set.by.test.before\", \"true\");",
+        "}");
+
+    for (int i = 0; i < 3; i++) {
+      File output = tmp.newFolder();
+      pool.runJob(getServerCommand(), tmp.getRoot(), newJob(classes, output, "PassingTest"), 10);
+
+      TestCaseSummary summary = XmlTestResultParser.parse(new File(output, "PassingTest.xml"));
+      assertTrue(summary.isSuccess());
+      assertEquals(2, summary.getTestResults().size());
+    }
+    assertEquals(1, pool.getNumServers());
+  }
+
+  @Test
+  public void shouldReportTestFailuresInTheResults() throws IOException {
+    File classes = compileTestClass("FailingTest",
+        "@org.junit.Test public void fails() {",
+        "  org.junit.Assert.fail(\"expected\");",
+        "}");
+    File output = tmp.newFolder();
+
+    pool.runJob(getServerCommand(), tmp.getRoot(), newJob(classes, output, "FailingTest"), 10);
+
+    TestCaseSummary summary = XmlTestResultParser.parse(new File(output, "FailingTest.xml"));
+    assertEquals(1, summary.getFailureCount());
+  }
+
+  @Test
+  public void shouldReplaceServersThatLeakThreads() throws IOException {
+    File classes = compileTestClass("LeakingTest",
+        "@org.junit.Test public void leaks() {",
+        "  new Thread() {",
+        "    public void run() {",
+        "      try { Thread.sleep(60 * 1000); } catch (InterruptedException e) {}",
+        "    }",
+        "  }.start();",
+        "}");
+
+    File output = tmp.newFolder();
+
+    pool.runJob(getServerCommand(), tmp.getRoot(), newJob(classes, output, "LeakingTest"), 10);
+
+    assertTrue(XmlTestResultParser.parse(new File(output, "LeakingTest.xml")).isSuccess());
+    assertEquals(0, pool.getNumServers());
+  }
+
+  @Test
+  public void shouldReplaceServersThatRanTheMaximumNumberOfJobs() throws IOException {
+    File classes = compileTestClass("PassingTest", "@org.junit.Test public void passes() {}");
+
+    pool.runJob(getServerCommand(),
+        tmp.getRoot(),
+        newJob(classes, tmp.newFolder(), "PassingTest"),
+        /* maxJobsPerServer */ 2);
+    assertEquals(1, pool.getNumServers());
+
+    pool.runJob(getServerCommand(),
+        tmp.getRoot(),
+        newJob(classes, tmp.newFolder(), "PassingTest"),
+        /* maxJobsPerServer */ 2);
+    assertEquals(0, pool.getNumServers());
+  }
+
+  @Test
+  public void shouldReloadTheSharedClasspathWhenAJarChanges() throws IOException {
+    File sharedJar = new File(tmp.getRoot(), "shared.jar");
+    ImmutableList<String> sharedClasspath = ImmutableList.<String>builder()
+        .addAll(SHARED_CLASSPATH)
+        .add(sharedJar.getAbsolutePath())
+        .build();
+    File classes = compileTestClass("SharedValueTest",
+        "@org.junit.Test public void seesTheCurrentValue() throws Exception {",
+        "  org.junit.Assert.assertEquals(",
+        "      \"first\",",
+        "      Class.forName(\"Shared\").getMethod(\"value\").invoke(null));",
+        "}");
+
+    writeSharedJar(sharedJar, "first");
+    File output = tmp.newFolder();
+    pool.runJob(getServerCommand(),
+        tmp.getRoot(),
+        newJob(sharedClasspath, classes, output, "SharedValueTest"),
+        10);
+    assertTrue(XmlTestResultParser.parse(new File(output, "SharedValueTest.xml")).isSuccess());
+
+    // Rebuild the jar so that the test sees a different value, which it only does if the server
+    // does not keep serving the classes of the old jar.
+    writeSharedJar(sharedJar, "second");
+    File secondClasses = compileTestClass("SharedValueTest",
+        "@org.junit.Test public void seesTheCurrentValue() throws Exception {",
+        "  org.junit.Assert.assertEquals(",
+        "      \"second\",",
+        "      Class.forName(\"Shared\").getMethod(\"value\").invoke(null));",
+        "}");
+    output = tmp.newFolder();
+    pool.runJob(getServerCommand(),
+        tmp.getRoot(),
+        newJob(sharedClasspath, secondClasses, output, "SharedValueTest"),
+        10);
+    assertTrue(XmlTestResultParser.parse(new File(output, "SharedValueTest.xml")).isSuccess());
+    assertEquals(1, pool.getNumServers());
+  }
+
+  @Test
+  public void shouldThrowIfTheTestsCannotBeLoaded() throws IOException {
+    File output = tmp.newFolder();
+
+    try {
+      pool.runJob(getServerCommand(),
+          tmp.getRoot(),
+          newJob(tmp.newFolder(), output, "com.example.MissingTest"),
+          10);
+      fail("Should have thrown, as there is no such test class.");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("ClassNotFoundException"));
+    }
+  }
+
+  private static List<String> getServerCommand() {
+    return ImmutableList.of(
+        "java",
+        "-classpath",
+        System.getProperty("buck.testrunner_classes",
+            new File("build/testrunner/classes").getAbsolutePath()),
+        JUnitStep.JUNIT_RUNNER_SERVER_CLASS_NAME);
+  }
+
+  private static JUnitRunnerServerPool.Job newJob(File classes, File output, String testClass) {
+    return newJob(SHARED_CLASSPATH, classes, output, testClass);
+  }
+
+  private static JUnitRunnerServerPool.Job newJob(
+      List<String> sharedClasspath,
+      File classes,
+      File output,
+      String testClass) {
+    return new JUnitRunnerServerPool.Job(
+        sharedClasspath,
+        ImmutableList.of(classes.getAbsolutePath()),
+        output.getAbsolutePath(),
+        /* defaultTestTimeoutMillis */ 0,
+        ImmutableList.of(testClass));
+  }
+
+  /** Writes a jar with a class named {@code Shared} whose {@code value()} returns {@code value}. */
+  private void writeSharedJar(File jar, String value) throws IOException {
+    File classes = compileTestClass("Shared",
+        String.format("public static String value() { return \"%s\"; }", value));
+    try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+      out.putNextEntry(new JarEntry("Shared.class"));
+      Files.copy(new File(classes, "Shared.class"), out);
+      out.closeEntry();
+    }
+  }
+
+  private File compileTestClass(String className, String... body) throws IOException {
+    File sources = tmp.newFolder();
+    File source = new File(sources, className + ".java");
+    Files.write(
+        String.format("public class %s {\n%s\n}\n", className, Joiner.on('\n').join(body)),
+        source,
+        Charsets.UTF_8);
+
+    File classes = tmp.newFolder();
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+    Iterable<? extends JavaFileObject> sourceObjects =
+        fileManager.getJavaFileObjectsFromFiles(ImmutableSet.of(source));
+    List<String> args = ImmutableList.of(
+        "-d", classes.getAbsolutePath(),
+        "-classpath", SHARED_CLASSPATH.get(0));
+    assertTrue(compiler.getTask(null, fileManager, null, args, null, sourceObjects).call());
+    return classes;
+  }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.AndroidPlatformTarget;
@@ -32,14 +33,20 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
 import org.easymock.EasyMock;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
 public class JUnitStepTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
   public void testGetShellCommand() {
     Set<String> classpathEntries = ImmutableSet.of("foo", "bar/baz");
@@ -150,4 +157,39 @@ public class JUnitStepTest {
     assertEquals("Debugging. Suspending JVM. Connect a JDWP debugger to port 5005 to proceed.",
         console.getTextWrittenToStdErr().trim());
   }
+
+  @Test
+  public void testServerJobSharesOnlyClassesThatBuckDoesNotBuild() throws IOException {
+    JUnitStep junit = new JUnitStep(
+        ImmutableSet.of("buck-out/gen/lib/lib.jar", "lib/junit.jar", "/opt/android/android.jar"),
+        ImmutableSet.of("com.facebook.buck.shell.JUnitCommandTest"),
+        ImmutableList.of("-Dname1=value1"),
+        "buck-out/gen/theresults",
+        /* isCodeCoverageEnabled */ false,
+        /* isDebugEnabled */ false,
+        "build/classes/junit");
+    File root = tmp.newFolder();
+    ExecutionContext executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(root))
+        .build();
+
+    JUnitRunnerServerPool.Job job = junit.createServerJob(executionContext);
+
+    assertEquals(
+        ImmutableList.of(
+            new File(root, "lib/junit.jar").getAbsolutePath(),
+            "/opt/android/android.jar"),
+        job.getSharedClasspath());
+    assertEquals(
+        ImmutableList.of(new File(root, "buck-out/gen/lib/lib.jar").getAbsolutePath()),
+        job.getClasspath());
+    assertEquals(
+        ImmutableList.of(
+            "java",
+            "-Dname1=value1",
+            "-classpath",
+            "build/classes/junit",
+            JUnitStep.JUNIT_RUNNER_SERVER_CLASS_NAME),
+        junit.getServerCommand(executionContext));
+  }
 }
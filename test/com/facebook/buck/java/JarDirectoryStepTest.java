@@ -18,16 +18,23 @@ package com.facebook.buck.java;
 
 import static java.util.jar.Attributes.Name.IMPLEMENTATION_VERSION;
 import static java.util.jar.Attributes.Name.MANIFEST_VERSION;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.Zip;
+import com.facebook.buck.util.DirectoryTraversal;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.zip.CustomZipOutputStream;
 import com.facebook.buck.zip.ZipOutputStreams;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -37,9 +44,15 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Set;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 public class JarDirectoryStepTest {
 
@@ -145,6 +158,91 @@ public class JarDirectoryStepTest {
     }
   }
 
+  @Test
+  public void shouldCopyEntriesOfJarsWithoutCompressingThemAgain() throws IOException {
+    File zipup = folder.newFolder();
+    byte[] contents = Strings.repeat("compress me ", 100).getBytes(Charsets.UTF_8);
+    File input = new File(zipup, "input.jar");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(input))) {
+      out.setLevel(Deflater.BEST_COMPRESSION);
+      out.putNextEntry(new ZipEntry("com/example/Foo.class"));
+      out.write(contents);
+      out.closeEntry();
+    }
+
+    JarDirectoryStep step = new JarDirectoryStep("output.jar",
+        ImmutableSet.of(input.getName()),
+        /* main class */ null,
+        /* manifest file */ null);
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(zipup))
+        .build();
+    assertEquals(0, step.execute(context));
+
+    try (ZipFile expected = new ZipFile(input);
+         ZipFile actual = new ZipFile(new File(zipup, "output.jar"))) {
+      ZipEntry expectedEntry = expected.getEntry("com/example/Foo.class");
+      ZipEntry actualEntry = actual.getEntry("com/example/Foo.class");
+      assertEquals(expectedEntry.getCompressedSize(), actualEntry.getCompressedSize());
+      assertEquals(expectedEntry.getCrc(), actualEntry.getCrc());
+      assertArrayEquals(contents, ByteStreams.toByteArray(actual.getInputStream(actualEntry)));
+    }
+  }
+
+  @Test
+  public void shouldAddFilesOfLargeDirectoriesInTraversalOrder() throws IOException {
+    File zipup = folder.newFolder();
+    File classes = new File(zipup, "classes");
+    final List<String> expectedNames = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      File classFile = new File(classes, String.format("com/example/Class%d.class", i));
+      Files.createParentDirs(classFile);
+      Files.write(Strings.repeat(classFile.getName(), i), classFile, Charsets.UTF_8);
+    }
+    new DirectoryTraversal(classes) {
+      @Override
+      public void visit(File file, String relativePath) {
+        expectedNames.add(relativePath);
+      }
+    }.traverse();
+
+    // A class in a jar earlier on the classpath takes precedence over the one in the directory.
+    File first = new File(zipup, "first.jar");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(first))) {
+      out.putNextEntry(new ZipEntry("com/example/Class42.class"));
+      out.closeEntry();
+    }
+    expectedNames.remove("com/example/Class42.class");
+    expectedNames.add(0, "com/example/Class42.class");
+    expectedNames.add(JarFile.MANIFEST_NAME);
+
+    JarDirectoryStep step = new JarDirectoryStep("output.jar",
+        ImmutableSet.of(first.getName(), classes.getName()),
+        /* main class */ null,
+        /* manifest file */ null);
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(zipup))
+        .build();
+    assertEquals(0, step.execute(context));
+
+    List<String> names = Lists.newArrayList();
+    try (ZipFile output = new ZipFile(new File(zipup, "output.jar"))) {
+      for (Enumeration<? extends ZipEntry> entries = output.entries();
+           entries.hasMoreElements(); ) {
+        ZipEntry entry = entries.nextElement();
+        names.add(entry.getName());
+        if (!entry.getName().equals(JarFile.MANIFEST_NAME) &&
+            !entry.getName().equals("com/example/Class42.class")) {
+          File file = new File(classes, entry.getName());
+          assertArrayEquals(Files.toByteArray(file),
+              ByteStreams.toByteArray(output.getInputStream(entry)));
+          assertEquals(file.lastModified() / 2000, entry.getTime() / 2000);
+        }
+      }
+    }
+    assertEquals(expectedNames, names);
+  }
+
   private File createZip(File zipFile, String... fileNames) throws IOException {
     try (Zip zip = new Zip(zipFile, true)) {
       for (String fileName : fileNames) {
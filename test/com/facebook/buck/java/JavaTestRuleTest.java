@@ -25,7 +25,9 @@ import com.facebook.buck.step.TargetDevice;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 
 import org.junit.Test;
 
@@ -123,6 +125,59 @@ public class JavaTestRuleTest {
     assertEquals(expected, amended);
   }
 
+  @Test
+  public void shouldBalanceShardsByTheDurationsOfTheirTestClasses() {
+    ImmutableMap<String, Long> durations = ImmutableMap.of(
+        "com.example.ATest", 100L,
+        "com.example.BTest", 60L,
+        "com.example.CTest", 50L,
+        "com.example.DTest", 10L);
+
+    List<ImmutableSortedSet<String>> shards = JavaTestRule.shardTestClasses(
+        durations.keySet(), durations, /* numShards */ 2);
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSortedSet.of("com.example.ATest", "com.example.DTest"),
+            ImmutableSortedSet.of("com.example.BTest", "com.example.CTest")),
+        shards);
+  }
+
+  @Test
+  public void shouldAssumeTestClassesWithoutDurationsTakeTheAverageTime() {
+    Set<String> testClassNames = ImmutableSet.of(
+        "com.example.ATest",
+        "com.example.BTest",
+        "com.example.NewTest",
+        "com.example.OtherNewTest");
+    ImmutableMap<String, Long> durations = ImmutableMap.of(
+        "com.example.ATest", 300L,
+        "com.example.BTest", 100L);
+
+    List<ImmutableSortedSet<String>> shards = JavaTestRule.shardTestClasses(
+        testClassNames, durations, /* numShards */ 2);
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSortedSet.of("com.example.ATest", "com.example.BTest"),
+            ImmutableSortedSet.of("com.example.NewTest", "com.example.OtherNewTest")),
+        shards);
+  }
+
+  @Test
+  public void shouldNotCreateEmptyShards() {
+    Set<String> testClassNames = ImmutableSet.of("com.example.ATest", "com.example.BTest");
+
+    List<ImmutableSortedSet<String>> shards = JavaTestRule.shardTestClasses(
+        testClassNames, ImmutableMap.<String, Long>of(), /* numShards */ 4);
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSortedSet.of("com.example.ATest"),
+            ImmutableSortedSet.of("com.example.BTest")),
+        shards);
+  }
+
   private JavaTestRule newRule(List<String> vmArgs) {
     return JavaTestRule.newJavaTestRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
         .setBuildTarget(BuildTargetFactory.newInstance("//example:test"))
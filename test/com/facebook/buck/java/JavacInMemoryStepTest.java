@@ -17,6 +17,7 @@
 package com.facebook.buck.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.facebook.buck.java.abi.AbiWriterProtocol;
@@ -28,6 +29,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.io.Files;
 
 import org.junit.Rule;
@@ -35,7 +37,10 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 public class JavacInMemoryStepTest {
 
@@ -97,6 +102,56 @@ public class JavacInMemoryStepTest {
     }
   }
 
+  @Test
+  public void testCompileAgainstJarOnClasspath() throws IOException {
+    Files.write("package com.example.dep; public class Dep { public static int x = 1; }",
+        tmp.newFile("Dep.java"),
+        Charsets.UTF_8);
+    tmp.newFolder("depout");
+    JavacInMemoryStep compileDep = new JavacInMemoryStep(
+        "depout",
+        /* javaSourceFilePaths */ ImmutableSet.of("Dep.java"),
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.builder().build(),
+        /* pathToOutputAbiFile */ Optional.<String>absent());
+    ExecutionContext executionContext = createExecutionContext();
+    assertEquals(0, compileDep.execute(executionContext));
+
+    File depJar = new File(tmp.getRoot(), "dep.jar");
+    try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(depJar))) {
+      jar.putNextEntry(new JarEntry("com/example/dep/Dep.class"));
+      Files.copy(new File(tmp.getRoot(), "depout/com/example/dep/Dep.class"), jar);
+      jar.closeEntry();
+    }
+
+    Files.write("package com.example; class User { int x = com.example.dep.Dep.x; }",
+        tmp.newFile("User.java"),
+        Charsets.UTF_8);
+    tmp.newFolder("userout");
+    // Compile twice, so that the second compilation uses the jar that the first one cached.
+    for (int i = 0; i < 2; i++) {
+      JavacInMemoryStep compileUser = new JavacInMemoryStep(
+          "userout",
+          /* javaSourceFilePaths */ ImmutableSet.of("User.java"),
+          /* classpathEntries */ ImmutableSet.of("dep.jar"),
+          JavacOptions.builder().build(),
+          /* pathToOutputAbiFile */ Optional.<String>absent());
+      assertEquals(0, compileUser.execute(executionContext));
+      assertEquals(
+          Optional.of(ImmutableSetMultimap.of("dep.jar", "com.example.dep.Dep")),
+          compileUser.getClassesReadFromClasspath());
+    }
+    assertTrue(new File(tmp.getRoot(), "userout/com/example/User.class").isFile());
+
+    JavacInMemoryStep compileWithoutDep = new JavacInMemoryStep(
+        "userout",
+        /* javaSourceFilePaths */ ImmutableSet.of("User.java"),
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.builder().build(),
+        /* pathToOutputAbiFile */ Optional.<String>absent());
+    assertEquals(1, compileWithoutDep.execute(executionContext));
+  }
+
   private JavacInMemoryStep createJavac(boolean withSyntaxError) throws IOException {
     File exampleJava = tmp.newFile("Example.java");
     Files.write(Joiner.on('\n').join(
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.java;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -29,25 +30,36 @@ import com.facebook.buck.rules.Sha1HashCode;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.hash.HashCode;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.Hashing;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import org.easymock.EasyMock;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 public class PrebuiltJarRuleTest {
 
   private static final String PATH_TO_JUNIT_JAR = "lib/junit-4.11.jar";
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   private PrebuiltJarRule junitJarRule;
 
   @Before
@@ -60,36 +72,83 @@ public class PrebuiltJarRuleTest {
   }
 
   @Test
-  public void testAbiKeyIsHashOfFileContents() throws IOException {
+  public void testAbiKeyIsComputedFromAbiJar() throws IOException {
+    File junitJar = new File(tmp.newFolder("lib"), "junit-4.11.jar");
+    Files.copy(new File(PATH_TO_JUNIT_JAR), junitJar);
+
     BuildContext buildContext = EasyMock.createMock(BuildContext.class);
     FakeBuildableContext buildableContext = new FakeBuildableContext();
     List<Step> buildSteps = junitJarRule.getBuildSteps(buildContext, buildableContext);
+    assertEquals(ImmutableSet.of(Paths.get("lib__junit__abi/junit-abi.jar")),
+        buildableContext.getRecordedArtifacts());
 
-    // Execute the lone build step.
-    assertEquals("CalculateAbiStep should be the only step.", 1, buildSteps.size());
-    Step calculateAbiStep = buildSteps.get(0);
-    ExecutionContext executionContext = TestExecutionContext.newBuilder().build();
-    int exitCode = calculateAbiStep.execute(executionContext);
-    assertEquals("Step should execute successfully.", 0, exitCode);
+    // Execute the build steps.
+    ExecutionContext executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    for (Step step : buildSteps) {
+      assertEquals("Step should execute successfully.", 0, step.execute(executionContext));
+    }
 
     // Make sure the ABI key is set as expected.
     Sha1HashCode abiKey = junitJarRule.getAbiKey();
-    HashCode hashForJar = ByteStreams.hash(
-        Files.newInputStreamSupplier(
-            new File(PATH_TO_JUNIT_JAR)),
-        Hashing.sha1());
-    assertEquals("ABI key should be the sha1 of the file contents.",
-        hashForJar.toString(),
-        abiKey.toString());
+    Sha1HashCode expectedAbiKey = AbiJarWriter.write(junitJar, tmp.newFile("expected-abi.jar"));
+    assertEquals("ABI key should be computed from the ABI of the jar.", expectedAbiKey, abiKey);
+    File abiJar = new File(tmp.getRoot(), junitJarRule.getPathToAbiJar());
+    assertTrue(abiJar.isFile());
+    assertTrue("The ABI jar should be smaller than the binary jar.",
+        abiJar.length() < junitJar.length());
 
     assertEquals(
         "Executing the step should record the ABI key as metadata.",
         ImmutableMap.of(
             AbiRule.ABI_KEY_ON_DISK_METADATA,
-            hashForJar.toString()),
+            abiKey.getHash(),
+            AbiRule.ABI_KEY_FOR_DEPS_ON_DISK_METADATA,
+            junitJarRule.getAbiKeyForDeps().getHash()),
         buildableContext.getRecordedMetadata());
   }
 
+  @Test
+  public void testBinaryJarIsUsedAsAbiJarIfItsClassesCannotBeRead() throws IOException {
+    // The version of ASM that strips classes does not know about class files newer than Java 7.
+    ClassWriter java8Class = new ClassWriter(0);
+    java8Class.visit(/* Java 8 */ 52, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "com/example/Foo",
+        null, "java/lang/Object", null);
+    java8Class.visitEnd();
+    File binaryJar = new File(tmp.newFolder("lib"), "java8.jar");
+    try (JarOutputStream output = new JarOutputStream(new FileOutputStream(binaryJar))) {
+      output.putNextEntry(new JarEntry("com/example/Foo.class"));
+      output.write(java8Class.toByteArray());
+      output.closeEntry();
+    }
+
+    PrebuiltJarRule java8JarRule = new PrebuiltJarRule(
+        new FakeBuildRuleParams(new BuildTarget("//lib", "java8")),
+        "lib/java8.jar",
+        /* sourceJar */ Optional.<String>absent(),
+        /* javadocUrl */ Optional.<String>absent());
+    FakeBuildableContext buildableContext = new FakeBuildableContext();
+    List<Step> buildSteps = java8JarRule.getBuildSteps(
+        EasyMock.createMock(BuildContext.class),
+        buildableContext);
+    ExecutionContext executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    for (Step step : buildSteps) {
+      assertEquals("Step should execute successfully.", 0, step.execute(executionContext));
+    }
+
+    assertEquals("ABI key should be the sha1 of the binary jar.",
+        Files.hash(binaryJar, Hashing.sha1()).toString(),
+        java8JarRule.getAbiKey().getHash());
+    assertArrayEquals(
+        Files.toByteArray(binaryJar),
+        Files.toByteArray(new File(tmp.getRoot(), java8JarRule.getPathToAbiJar())));
+    assertEquals(java8JarRule.getAbiKey().getHash(),
+        buildableContext.getRecordedMetadata().get(AbiRule.ABI_KEY_ON_DISK_METADATA));
+  }
+
   @Test
   public void testGetJavaSrcsIsEmpty() {
     assertTrue(junitJarRule.getJavaSrcs().isEmpty());
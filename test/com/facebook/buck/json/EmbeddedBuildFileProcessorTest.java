@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test for {@link EmbeddedBuildFileProcessor}.
+ */
+public class EmbeddedBuildFileProcessorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testBuildFileIsEvaluatedByBuckPyInAnEmbeddedInterpreter() throws IOException {
+    // Jython is optional: without it, buck parses build files with a python process instead.
+    Assume.assumeTrue(EmbeddedBuildFileProcessor.isSupported());
+
+    File buildFile = new File(tmp.newFolder("lib"), "BUCK");
+    Files.write(
+        "java_library(name = 'lib', srcs = ['Lib.java'], deps = [])\n",
+        buildFile,
+        Charsets.UTF_8);
+
+    EmbeddedBuildFileProcessor processor =
+        new EmbeddedBuildFileProcessor(tmp.getRoot(), ImmutableList.<String>of());
+    List<Map<String, Object>> rules = processor.process(buildFile.getAbsolutePath());
+
+    assertEquals(2, rules.size());
+    Map<String, Object> rule = rules.get(0);
+    assertEquals("java_library", rule.get("type"));
+    assertEquals("lib", rule.get("name"));
+    assertEquals("lib", rule.get("buck.base_path"));
+    assertEquals(ImmutableList.of("Lib.java"), rule.get("srcs"));
+    assertEquals(ImmutableList.of(), rule.get("deps"));
+    assertEquals(
+        ImmutableMap.of("__includes", ImmutableList.of(buildFile.getAbsolutePath())),
+        rules.get(1));
+  }
+
+  @Test
+  public void testRulesFromInterpreterMatchRulesFromJson() throws IOException {
+    // Mimic the objects that an interpreter hands back: non-String character sequences and
+    // Integers rather than Longs.
+    Map<Object, Object> rule = Maps.newLinkedHashMap();
+    rule.put("name", new StringBuilder("guava"));
+    rule.put("srcs", Arrays.asList(new StringBuilder("Foo.java"), "Bar.java"));
+    rule.put("exported", Boolean.TRUE);
+    rule.put("timeout", Integer.valueOf(27));
+
+    String json = "[{" +
+        "\"name\": \"guava\", " +
+        "\"srcs\": [\"Foo.java\", \"Bar.java\"], " +
+        "\"exported\": true, " +
+        "\"timeout\": 27" +
+        "}]";
+
+    assertEquals(
+        new BuildFileToJsonParser(json).nextRules(),
+        EmbeddedBuildFileProcessor.toRawRules(ImmutableList.of(rule)));
+  }
+
+  @Test
+  public void testNullValuesArePreserved() throws IOException {
+    Map<String, Object> rule = Maps.newHashMap();
+    rule.put("resources", null);
+    rule.put("visibility", Arrays.asList("PUBLIC", null));
+
+    List<Map<String, Object>> rawRules = EmbeddedBuildFileProcessor.toRawRules(
+        ImmutableList.of(rule));
+    assertEquals(ImmutableList.of(rule), rawRules);
+  }
+
+  @Test(expected = IOException.class)
+  public void testNestedDictionariesAreRejected() throws IOException {
+    EmbeddedBuildFileProcessor.toRawRules(ImmutableList.of(
+        ImmutableMap.of("deps", ImmutableMap.of("foo", "bar"))));
+  }
+}
@@ -18,6 +18,8 @@ package com.facebook.buck.model;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Rule;
@@ -87,4 +89,13 @@ public class BuildTargetTest {
     BuildTarget ioTarget = new BuildTarget("//src/com/facebook/buck/util", "io");
     assertFalse(utilTarget.equals(ioTarget));
   }
+
+  @Test
+  public void testInternReturnsCanonicalInstance() {
+    BuildTarget utilTarget1 = new BuildTarget("//src/com/facebook/buck/util", "util");
+    BuildTarget utilTarget2 = new BuildTarget("//src/com/facebook/buck/util", "util");
+    assertNotSame(utilTarget1, utilTarget2);
+    assertSame(utilTarget1.intern(), utilTarget2.intern());
+    assertEquals(utilTarget1.hashCode(), utilTarget2.intern().hashCode());
+  }
 }
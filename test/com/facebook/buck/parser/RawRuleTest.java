@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class RawRuleTest {
+
+  @Test
+  public void testCopyOfIsEqualToTheOriginalMap() {
+    Map<String, Object> map = createRawRule("guava", "//lib:jsr305");
+    map.put("exported", true);
+    map.put("resources", null);
+    map.put("visibility", Arrays.asList("PUBLIC", null));
+
+    RawRule rawRule = RawRule.copyOf(map);
+    assertEquals(map, rawRule);
+    assertEquals(map.hashCode(), rawRule.hashCode());
+    assertTrue(rawRule.containsKey("resources"));
+    assertNull(rawRule.get("resources"));
+    assertFalse(rawRule.containsKey("srcs"));
+    assertEquals(Arrays.asList("PUBLIC", null), rawRule.get("visibility"));
+  }
+
+  @Test
+  public void testStringsAreSharedBetweenRules() {
+    RawRule first = RawRule.copyOf(createRawRule("first", "//lib:jsr305"));
+    RawRule second = RawRule.copyOf(createRawRule("second", "//lib:jsr305"));
+
+    assertSame(first.get("type"), second.get("type"));
+    assertSame(((List<?>) first.get("deps")).get(0), ((List<?>) second.get("deps")).get(0));
+    assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testRawRuleIsImmutable() {
+    RawRule rawRule = RawRule.copyOf(createRawRule("guava", "//lib:jsr305"));
+    rawRule.put("name", "other");
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  @SuppressWarnings("unchecked")
+  public void testListAttributesAreImmutable() {
+    RawRule rawRule = RawRule.copyOf(createRawRule("guava", "//lib:jsr305"));
+    ((List<String>) rawRule.get("deps")).add("//lib:junit");
+  }
+
+  @Test
+  public void testCopyOfRawRuleReturnsSameInstance() {
+    RawRule rawRule = RawRule.copyOf(createRawRule("guava", "//lib:jsr305"));
+    assertSame(rawRule, RawRule.copyOf(rawRule));
+  }
+
+  private static Map<String, Object> createRawRule(String name, String dep) {
+    Map<String, Object> map = Maps.newLinkedHashMap();
+    // Use new String instances to mimic what the JSON parser produces for each rule.
+    map.put(new String("type"), new String("java_library"));
+    map.put(new String("name"), name);
+    map.put(new String("buck.base_path"), new String("lib"));
+    map.put(new String("deps"), Lists.newArrayList(new String(dep)));
+    map.put(new String("srcs_empty"), ImmutableList.of());
+    return map;
+  }
+}
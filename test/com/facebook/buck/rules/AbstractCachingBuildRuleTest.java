@@ -21,18 +21,23 @@ import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.event.FakeBuckEventListener;
+import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.step.AbstractExecutionStep;
+import com.facebook.buck.step.DefaultStepRunner;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.step.StepRunner;
+import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.RuleMap;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
@@ -47,6 +52,7 @@ import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import org.easymock.Capture;
@@ -64,7 +70,10 @@ import java.nio.file.Paths;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -262,6 +271,8 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
         Optional.of(new Sha1HashCode(TestAbstractCachingBuildRule.ABI_KEY_FOR_DEPS_HASH)));
     expect(onDiskBuildInfo.getValue(AbiRule.ABI_KEY_ON_DISK_METADATA)).andReturn(
         Optional.of("At some point, this method call should go away."));
+    expect(onDiskBuildInfo.getValue(AbiRule.USED_CLASSPATH_ENTRIES_ON_DISK_METADATA)).andReturn(
+        Optional.of("foo.jar"));
 
     // This metadata must be added to the buildInfoRecorder so that it is written as part of
     // writeMetadataToDisk().
@@ -269,6 +280,7 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
         "At some point, this method call should go away.");
     buildInfoRecorder.addMetadata(AbiRule.ABI_KEY_FOR_DEPS_ON_DISK_METADATA,
         TestAbstractCachingBuildRule.ABI_KEY_FOR_DEPS_HASH);
+    buildInfoRecorder.addMetadata(AbiRule.USED_CLASSPATH_ENTRIES_ON_DISK_METADATA, "foo.jar");
 
     // These methods should be invoked after the rule is built locally.
     buildInfoRecorder.writeMetadataToDisk();
@@ -375,6 +387,113 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
 
   // TODO(mbolin): Test that a failure when executing the build steps is propagated appropriately.
 
+  /**
+   * A rule that can build against the ABI of its deps should start to build as soon as the ABI of a
+   * dep is available, but should not finish building until the dep does.
+   */
+  @Test
+  public void testRuleThatBuildsAgainstAbiOfDepsStartsBeforeDepIsBuilt() throws Exception {
+    final CountDownLatch depMayFinish = new CountDownLatch(1);
+    final CountDownLatch dependentStarted = new CountDownLatch(1);
+    PipelinedRule dep = new PipelinedRule(new BuildTarget("//src/com/facebook/orca", "dep"),
+        ImmutableSortedSet.<BuildRule>of(),
+        /* canBuildAgainstAbiOfDeps */ false,
+        new AwaitLatchStep(depMayFinish, /* exitCode */ 0));
+    PipelinedRule dependent = new PipelinedRule(buildTarget,
+        ImmutableSortedSet.<BuildRule>of(dep),
+        /* canBuildAgainstAbiOfDeps */ true,
+        new CountDownLatchStep(dependentStarted));
+
+    ListeningExecutorService executor = newExecutor();
+    try {
+      ListenableFuture<BuildRuleSuccess> result = dependent.build(createBuildContext(executor));
+      assertTrue("The dependent should start once the ABI of its dep is available.",
+          dependentStarted.await(10, TimeUnit.SECONDS));
+      assertFalse("The dependent should not be built before its dep.", result.isDone());
+
+      depMayFinish.countDown();
+      assertEquals(BuildRuleSuccess.Type.BUILT_LOCALLY,
+          result.get(10, TimeUnit.SECONDS).getType());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRuleThatBuildsAgainstAbiOfDepsFailsIfDepFailsAfterAbiIsAvailable()
+      throws Exception {
+    CountDownLatch dependentStarted = new CountDownLatch(1);
+    PipelinedRule dep = new PipelinedRule(new BuildTarget("//src/com/facebook/orca", "dep"),
+        ImmutableSortedSet.<BuildRule>of(),
+        /* canBuildAgainstAbiOfDeps */ false,
+        new AwaitLatchStep(dependentStarted, /* exitCode */ 1));
+    PipelinedRule dependent = new PipelinedRule(buildTarget,
+        ImmutableSortedSet.<BuildRule>of(dep),
+        /* canBuildAgainstAbiOfDeps */ true,
+        new CountDownLatchStep(dependentStarted));
+
+    ListeningExecutorService executor = newExecutor();
+    try {
+      ListenableFuture<BuildRuleSuccess> result = dependent.build(createBuildContext(executor));
+      try {
+        result.get(10, TimeUnit.SECONDS);
+        fail("The dependent should fail because its dep failed.");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof StepFailedException);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRuleThatDoesNotBuildAgainstAbiOfDepsWaitsForDepToBeBuilt() throws Exception {
+    final CountDownLatch depMayFinish = new CountDownLatch(1);
+    final CountDownLatch dependentStarted = new CountDownLatch(1);
+    PipelinedRule dep = new PipelinedRule(new BuildTarget("//src/com/facebook/orca", "dep"),
+        ImmutableSortedSet.<BuildRule>of(),
+        /* canBuildAgainstAbiOfDeps */ false,
+        new AwaitLatchStep(depMayFinish, /* exitCode */ 0));
+    PipelinedRule dependent = new PipelinedRule(buildTarget,
+        ImmutableSortedSet.<BuildRule>of(dep),
+        /* canBuildAgainstAbiOfDeps */ false,
+        new CountDownLatchStep(dependentStarted));
+
+    ListeningExecutorService executor = newExecutor();
+    try {
+      ListenableFuture<BuildRuleSuccess> result = dependent.build(createBuildContext(executor));
+      assertFalse("The dependent should wait for its dep to be built.",
+          dependentStarted.await(100, TimeUnit.MILLISECONDS));
+
+      depMayFinish.countDown();
+      assertEquals(BuildRuleSuccess.Type.BUILT_LOCALLY,
+          result.get(10, TimeUnit.SECONDS).getType());
+      assertEquals(0, dependentStarted.getCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static ListeningExecutorService newExecutor() {
+    return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+  }
+
+  private BuildContext createBuildContext(ListeningExecutorService executor) {
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmp.getRoot());
+    ExecutionContext executionContext = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(projectFilesystem)
+        .build();
+    return BuildContext.builder()
+        .setDependencyGraph(new DependencyGraph(new MutableDirectedGraph<BuildRule>()))
+        .setStepRunner(new DefaultStepRunner(executionContext, executor))
+        .setProjectFilesystem(projectFilesystem)
+        .setArtifactCache(new NoopArtifactCache())
+        .setJavaPackageFinder(createMock(JavaPackageFinder.class))
+        .setEventBus(BuckEventBusFactory.newInstance())
+        .setConsole(new TestConsole())
+        .build();
+  }
+
   // TODO(mbolin): Test what happens when the cache's methods throw an exception.
 
   private static BuildableAbstractCachingBuildRule createRule(
@@ -505,6 +624,88 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
     }
   }
 
+  /**
+   * Rule whose first step makes its ABI available, after which it runs {@code step}.
+   */
+  private static class PipelinedRule extends DoNotUseAbstractBuildable {
+
+    private final boolean canBuildAgainstAbiOfDeps;
+    private final Step step;
+
+    PipelinedRule(BuildTarget buildTarget,
+        ImmutableSortedSet<BuildRule> deps,
+        boolean canBuildAgainstAbiOfDeps,
+        Step step) {
+      super(new FakeBuildRuleParams(buildTarget, deps));
+      this.canBuildAgainstAbiOfDeps = canBuildAgainstAbiOfDeps;
+      this.step = step;
+    }
+
+    @Override
+    public BuildRuleType getType() {
+      return BuildRuleType.JAVA_LIBRARY;
+    }
+
+    @Override
+    protected boolean canBuildAgainstAbiOfDeps() {
+      return canBuildAgainstAbiOfDeps;
+    }
+
+    @Override
+    public Iterable<String> getInputsToCompareToOutput() {
+      return ImmutableList.of();
+    }
+
+    @Override
+    public List<Step> getBuildSteps(BuildContext context, BuildableContext buildableContext) {
+      Step recordAbiAvailable = new AbstractExecutionStep("publishing ABI") {
+        @Override
+        public int execute(ExecutionContext context) {
+          recordAbiAvailable();
+          return 0;
+        }
+      };
+      return ImmutableList.of(recordAbiAvailable, step);
+    }
+  }
+
+  private static class AwaitLatchStep extends AbstractExecutionStep {
+
+    private final CountDownLatch latch;
+    private final int exitCode;
+
+    AwaitLatchStep(CountDownLatch latch, int exitCode) {
+      super("await latch");
+      this.latch = latch;
+      this.exitCode = exitCode;
+    }
+
+    @Override
+    public int execute(ExecutionContext context) {
+      try {
+        return latch.await(10, TimeUnit.SECONDS) ? exitCode : 1;
+      } catch (InterruptedException e) {
+        return 1;
+      }
+    }
+  }
+
+  private static class CountDownLatchStep extends AbstractExecutionStep {
+
+    private final CountDownLatch latch;
+
+    CountDownLatchStep(CountDownLatch latch) {
+      super("count down latch");
+      this.latch = latch;
+    }
+
+    @Override
+    public int execute(ExecutionContext context) {
+      latch.countDown();
+      return 0;
+    }
+  }
+
   /**
    * Subclass of {@link Capture} that, when its {@link File} value is set, takes the location of
    * that {@link File} and writes a zip file there with the entries specified to the constructor of
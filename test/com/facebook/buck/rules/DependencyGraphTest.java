@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Test;
+
+public class DependencyGraphTest {
+
+  @Test
+  public void testGetTransitiveDependents() {
+    // a -> b -> c and d -> c, with e on its own.
+    BuildRule c = createRule("//java/com/example:c");
+    BuildRule b = createRule("//java/com/example:b", c);
+    BuildRule a = createRule("//java/com/example/a:a", b);
+    BuildRule d = createRule("//java/com/example/d:d", c);
+    BuildRule e = createRule("//java/com/example/e:e");
+
+    MutableDirectedGraph<BuildRule> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge(a, b);
+    mutableGraph.addEdge(b, c);
+    mutableGraph.addEdge(d, c);
+    mutableGraph.addNode(e);
+    DependencyGraph graph = new DependencyGraph(mutableGraph);
+
+    assertEquals(ImmutableSet.of(a, b, c, d), graph.getTransitiveDependents(ImmutableList.of(c)));
+    assertEquals(ImmutableSet.of(a, b), graph.getTransitiveDependents(ImmutableList.of(b)));
+    assertEquals(ImmutableSet.of(a, d, e), graph.getTransitiveDependents(ImmutableList.of(a, d, e)));
+    assertEquals(ImmutableSet.of(), graph.getTransitiveDependents(ImmutableList.<BuildRule>of()));
+
+    assertEquals(ImmutableSet.of(b, c), graph.getRulesWithBasePath("java/com/example"));
+    assertEquals(ImmutableSet.of(), graph.getRulesWithBasePath("java/com"));
+  }
+
+  @Test
+  public void testGetOwnersOfInput() {
+    InputRule shared = createInput("java/com/example/Shared.java");
+    InputRule onlyInC = createInput("java/com/example/C.java");
+
+    FakeBuildRule c = createRule("//java/com/example:c");
+    c.setInputs(ImmutableList.of(shared, onlyInC));
+    FakeBuildRule d = createRule("//java/com/example/d:d", c);
+    d.setInputs(ImmutableList.of(shared));
+
+    MutableDirectedGraph<BuildRule> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge(d, c);
+    DependencyGraph graph = new DependencyGraph(mutableGraph);
+
+    assertEquals(ImmutableSet.of(c, d), graph.getOwnersOfInput(shared));
+    assertEquals(ImmutableSet.of(c), graph.getOwnersOfInput(onlyInC));
+    // Inputs are compared by path, not by identity.
+    assertEquals(ImmutableSet.of(c, d),
+        graph.getOwnersOfInput(createInput("java/com/example/Shared.java")));
+    assertEquals(ImmutableSet.of(),
+        graph.getOwnersOfInput(createInput("java/com/example/Unknown.java")));
+  }
+
+  private static InputRule createInput(String path) {
+    return InputRule.inputPathAsInputRule(path, Functions.<String>identity());
+  }
+
+  private static FakeBuildRule createRule(String target, BuildRule... deps) {
+    String[] parts = target.split(":");
+    return new FakeBuildRule(BuildRuleType.JAVA_LIBRARY,
+        new BuildTarget(parts[0], parts[1]),
+        ImmutableSortedSet.copyOf(deps),
+        ImmutableSet.of(BuildTargetPattern.MATCH_ALL));
+  }
+}
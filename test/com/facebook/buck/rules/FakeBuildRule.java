@@ -20,7 +20,6 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetPattern;
 import com.facebook.buck.step.Step;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -37,6 +36,8 @@ public class FakeBuildRule extends AbstractBuildRule implements BuildRule, Build
   @Nullable
   private String outputFile;
 
+  private ImmutableSet<InputRule> inputs = ImmutableSet.of();
+
   public FakeBuildRule(BuildRuleType type,
       BuildTarget target,
       ImmutableSortedSet<BuildRule> deps,
@@ -72,7 +73,11 @@ public class FakeBuildRule extends AbstractBuildRule implements BuildRule, Build
 
   @Override
   public final Iterable<InputRule> getInputs() {
-    return ImmutableList.of();
+    return inputs;
+  }
+
+  public void setInputs(Iterable<InputRule> inputs) {
+    this.inputs = ImmutableSet.copyOf(inputs);
   }
 
   @Override
@@ -17,6 +17,7 @@
 package com.facebook.buck.rules;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -53,4 +54,8 @@ public class FakeBuildableContext implements BuildableContext {
   public ImmutableMap<String, String> getRecordedMetadata() {
     return ImmutableMap.copyOf(metadata);
   }
+
+  public ImmutableSet<Path> getRecordedArtifacts() {
+    return ImmutableSet.copyOf(artifacts);
+  }
 }
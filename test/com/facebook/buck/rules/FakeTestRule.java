@@ -20,7 +20,6 @@ import com.facebook.buck.model.BuildTargetPattern;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.test.TestResults;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -32,6 +31,7 @@ public class FakeTestRule extends AbstractBuildRule implements TestRule {
 
   private final BuildRuleType type;
   private final ImmutableSet<String> labels;
+  private ImmutableSet<InputRule> inputs = ImmutableSet.of();
 
   public FakeTestRule(BuildRuleType type,
                        ImmutableSet<String> labels,
@@ -63,7 +63,11 @@ public class FakeTestRule extends AbstractBuildRule implements TestRule {
 
   @Override
   public Iterable<InputRule> getInputs() {
-    return ImmutableList.of();
+    return inputs;
+  }
+
+  public void setInputs(Iterable<InputRule> inputs) {
+    this.inputs = ImmutableSet.copyOf(inputs);
   }
 
   @Override
@@ -91,6 +95,12 @@ public class FakeTestRule extends AbstractBuildRule implements TestRule {
     throw new UnsupportedOperationException("interpretTestResults() not supported in fake");
   }
 
+  @Override
+  public String getPathToTestOutputDirectory() {
+    throw new UnsupportedOperationException(
+        "getPathToTestOutputDirectory() not supported in fake");
+  }
+
   @Override
   public ImmutableSet<String> getLabels() {
     return labels;
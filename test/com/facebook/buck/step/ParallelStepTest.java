@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelStepTest {
+
+  private ExecutorService executor;
+
+  @After
+  public void shutDownExecutor() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldRunStepsAtTheSameTimeOnTheSharedExecutor() {
+    final CountDownLatch allStarted = new CountDownLatch(3);
+    Step step = new FakeStep("wait", "wait for the others", 0) {
+      @Override
+      public int execute(ExecutionContext context) {
+        allStarted.countDown();
+        try {
+          // Would time out if the steps were run one after the other.
+          return allStarted.await(10, TimeUnit.SECONDS) ? 0 : 1;
+        } catch (InterruptedException e) {
+          return 1;
+        }
+      }
+    };
+
+    ParallelStep parallelStep = new ParallelStep(ImmutableList.of(step, step, step));
+
+    // The calling thread runs one of the steps, so two more threads are enough.
+    executor = Executors.newFixedThreadPool(2);
+    assertEquals(0, parallelStep.execute(newContext(Optional.of(executor))));
+  }
+
+  @Test
+  public void shouldRunStepsOneAfterTheOtherWithoutAnExecutor() {
+    final Thread callingThread = Thread.currentThread();
+    Step step = new FakeStep("check", "check the thread", 0) {
+      @Override
+      public int execute(ExecutionContext context) {
+        return Thread.currentThread() == callingThread ? 0 : 1;
+      }
+    };
+
+    ParallelStep parallelStep = new ParallelStep(ImmutableList.of(step, step, step));
+
+    assertEquals(0, parallelStep.execute(TestExecutionContext.newInstance()));
+  }
+
+  @Test
+  public void shouldNotRunMoreStepsThanTheSharedExecutorHasThreadsFor()
+      throws InterruptedException {
+    // Another rule of the same command is using the only thread of the executor.
+    executor = Executors.newFixedThreadPool(1);
+    final CountDownLatch otherRuleFinished = new CountDownLatch(1);
+    executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws InterruptedException {
+        return otherRuleFinished.await(10, TimeUnit.SECONDS);
+      }
+    });
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    Step step = new FakeStep("count", "count the running steps", 0) {
+      @Override
+      public int execute(ExecutionContext context) {
+        int nowRunning = running.incrementAndGet();
+        while (maxRunning.get() < nowRunning) {
+          maxRunning.compareAndSet(maxRunning.get(), nowRunning);
+        }
+        running.decrementAndGet();
+        return 0;
+      }
+    };
+
+    ParallelStep parallelStep = new ParallelStep(ImmutableList.of(step, step, step));
+
+    assertEquals("The calling thread should run every step rather than wait for the executor.",
+        0,
+        parallelStep.execute(newContext(Optional.<ExecutorService>of(executor))));
+    assertEquals(1, maxRunning.get());
+    otherRuleFinished.countDown();
+  }
+
+  @Test
+  public void shouldReturnTheExitCodeOfTheFirstFailingStep() {
+    ParallelStep parallelStep = new ParallelStep(ImmutableList.of(
+        new FakeStep("one", "one", 0),
+        new FakeStep("two", "two", 2),
+        new FakeStep("three", "three", 3)));
+
+    assertEquals(2, parallelStep.execute(TestExecutionContext.newInstance()));
+    assertEquals("one_&_two_&_three", parallelStep.getShortName());
+  }
+
+  private static ExecutionContext newContext(Optional<ExecutorService> executor) {
+    return TestExecutionContext.newBuilder()
+        .setParallelStepExecutor(executor)
+        .build();
+  }
+}
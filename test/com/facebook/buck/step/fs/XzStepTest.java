@@ -16,6 +16,7 @@
 
 package com.facebook.buck.step.fs;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -23,12 +24,19 @@ import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.TestExecutionContext;
 import com.facebook.buck.testutil.integration.TestDataHelper;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.common.io.InputSupplier;
 
 import org.easymock.EasyMock;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.SingleXZInputStream;
 import org.tukaani.xz.XZ;
 import org.tukaani.xz.XZInputStream;
 
@@ -36,12 +44,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Random;
 
 /**
  * Unit test for {@link XzStep}.
  */
 public class XzStepTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
   public void testXzStepDefaultDestinationFile() {
     final String sourceFile = "/path/to/source.file";
@@ -89,4 +101,63 @@ public class XzStepTest {
 
     EasyMock.verify(fs);
   }
+
+  @Test
+  public void testXzStepWithSeveralThreadsWritesOneStreamOfIndependentBlocks() throws IOException {
+    // Repetitive, so that LZMA2 compresses it, but not so repetitive that it fits in one block.
+    byte[] data = new byte[(7 << 20) / 2];
+    Random random = new Random(0);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(4));
+    }
+    File sourceFile = tmp.newFile("xzstep.data");
+    Files.write(data, sourceFile);
+
+    ExecutionContext context = TestExecutionContext.newBuilder()
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    XzOptions options = new XzOptions(
+        /* compressionLevel -- for faster testing */ 1,
+        Optional.of(LZMA2Options.DICT_SIZE_MIN),
+        /* numThreads */ 2);
+    File twoThreads = tmp.newFile("two.xz");
+    assertEquals(0, new XzStep(
+        sourceFile.getPath(), twoThreads.getPath(), options, /* keep */ true, XZ.CHECK_CRC32)
+        .execute(context));
+
+    // A 1MiB block is the smallest that is compressed on a thread of its own.
+    SeekableXZInputStream seekable =
+        new SeekableXZInputStream(new SeekableFileInputStream(twoThreads));
+    try {
+      assertEquals(1, seekable.getStreamCount());
+      assertEquals(4, seekable.getBlockCount());
+      assertArrayEquals(data, ByteStreams.toByteArray(seekable));
+    } finally {
+      seekable.close();
+    }
+    try (InputStream in = new SingleXZInputStream(new FileInputStream(twoThreads))) {
+      assertArrayEquals(data, ByteStreams.toByteArray(in));
+    }
+
+    // The output does not depend on the number of threads.
+    File fourThreads = tmp.newFile("four.xz");
+    assertEquals(0, new XzStep(
+        sourceFile.getPath(),
+        fourThreads.getPath(),
+        new XzOptions(1, Optional.of(LZMA2Options.DICT_SIZE_MIN), /* numThreads */ 4),
+        /* keep */ true,
+        XZ.CHECK_CRC32)
+        .execute(context));
+    assertArrayEquals(Files.toByteArray(twoThreads), Files.toByteArray(fourThreads));
+  }
+
+  @Test
+  public void testDescriptionIncludesOptions() {
+    XzStep step = new XzStep(
+        "source.file",
+        new XzOptions(6, Optional.of(1 << 20), /* numThreads */ 4));
+    assertEquals(
+        "xz -z --lzma2=preset=6,dict=1048576 --threads=4 --check=crc32 source.file",
+        step.getDescription(TestExecutionContext.newInstance()));
+  }
 }
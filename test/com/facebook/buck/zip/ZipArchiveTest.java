@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.OVERWRITE_EXISTING;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class ZipArchiveTest {
+
+  private static final byte[] DEFLATED_DATA =
+      Strings.repeat("compress me ", 100).getBytes(Charsets.UTF_8);
+  private static final byte[] STORED_DATA = "store me".getBytes(Charsets.UTF_8);
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void shouldReadEntriesAsZipFileDoes() throws IOException {
+    File input = createZip();
+
+    try (ZipArchive archive = ZipArchive.open(input).get();
+         ZipFile zipFile = new ZipFile(input)) {
+      List<String> names = Lists.newArrayList();
+      Enumeration<? extends ZipEntry> expectedEntries = zipFile.entries();
+      for (ZipArchive.Entry entry : archive.getEntries()) {
+        ZipEntry expected = expectedEntries.nextElement();
+        names.add(entry.getName());
+        assertEquals(expected.getName(), entry.getName());
+        assertEquals(expected.getMethod(), entry.getMethod());
+        assertEquals(expected.getTime(), entry.getTime());
+        assertEquals(expected.getCrc(), entry.getCrc());
+        assertEquals(expected.getSize(), entry.getSize());
+        assertEquals(expected.getCompressedSize(), entry.getCompressedSize());
+
+        try (InputStream actualData = archive.getInputStream(entry);
+             InputStream expectedData = zipFile.getInputStream(expected)) {
+          assertArrayEquals(ByteStreams.toByteArray(expectedData),
+              ByteStreams.toByteArray(actualData));
+        }
+      }
+      assertFalse(expectedEntries.hasMoreElements());
+      assertEquals(ImmutableList.of("dir/", "deflated.txt", "stored.txt"), names);
+    }
+  }
+
+  @Test
+  public void shouldCopyRawEntriesWithoutChangingTheirData() throws IOException {
+    File input = createZip();
+    File output = tmp.newFile("output.zip");
+
+    try (ZipArchive archive = ZipArchive.open(input).get();
+         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output)) {
+      for (ZipArchive.Entry entry : archive.getEntries()) {
+        try (InputStream rawData = archive.getRawInputStream(entry)) {
+          out.putRawEntry(entry, rawData);
+        }
+      }
+    }
+
+    assertCopiedExactly(input, output);
+  }
+
+  @Test
+  public void shouldCopyRawEntriesWhenOverwriting() throws IOException {
+    File input = createZip();
+    File output = tmp.newFile("output.zip");
+
+    try (ZipArchive archive = ZipArchive.open(input).get();
+         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output, OVERWRITE_EXISTING)) {
+      for (ZipArchive.Entry entry : archive.getEntries()) {
+        try (InputStream rawData = archive.getRawInputStream(entry)) {
+          out.putRawEntry(entry, rawData);
+        }
+      }
+    }
+
+    assertCopiedExactly(input, output);
+  }
+
+  @Test(expected = ZipException.class)
+  public void shouldRejectFilesThatAreNotZips() throws IOException {
+    File notAZip = tmp.newFile("not.zip");
+    try (FileOutputStream out = new FileOutputStream(notAZip)) {
+      out.write(STORED_DATA);
+    }
+
+    Optional<ZipArchive> archive = ZipArchive.open(notAZip);
+    if (archive.isPresent()) {
+      archive.get().close();
+    }
+  }
+
+  private File createZip() throws IOException {
+    File zip = tmp.newFile("input.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.setLevel(Deflater.BEST_COMPRESSION);
+      out.putNextEntry(new ZipEntry("dir/"));
+      out.closeEntry();
+
+      ZipEntry deflated = new ZipEntry("deflated.txt");
+      deflated.setTime(1380000000000L);
+      out.putNextEntry(deflated);
+      out.write(DEFLATED_DATA);
+      out.closeEntry();
+
+      ZipEntry stored = new ZipEntry("stored.txt");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(STORED_DATA.length);
+      stored.setCrc(Hashing.crc32().hashBytes(STORED_DATA).padToLong());
+      out.putNextEntry(stored);
+      out.write(STORED_DATA);
+      out.closeEntry();
+    }
+    return zip;
+  }
+
+  private void assertCopiedExactly(File input, File output) throws IOException {
+    try (ZipFile expectedZip = new ZipFile(input);
+         ZipFile actualZip = new ZipFile(output)) {
+      Enumeration<? extends ZipEntry> actualEntries = actualZip.entries();
+      for (Enumeration<? extends ZipEntry> entries = expectedZip.entries();
+           entries.hasMoreElements(); ) {
+        ZipEntry expected = entries.nextElement();
+        ZipEntry actual = actualEntries.nextElement();
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getMethod(), actual.getMethod());
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getCrc(), actual.getCrc());
+        assertEquals("The compressed data should have been copied as it is.",
+            expected.getCompressedSize(),
+            actual.getCompressedSize());
+
+        try (InputStream actualData = actualZip.getInputStream(actual);
+             InputStream expectedData = expectedZip.getInputStream(expected)) {
+          assertArrayEquals(ByteStreams.toByteArray(expectedData),
+              ByteStreams.toByteArray(actualData));
+        }
+      }
+      assertFalse(actualEntries.hasMoreElements());
+    }
+    assertTrue(output.length() > 0);
+  }
+}
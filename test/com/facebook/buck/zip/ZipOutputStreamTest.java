@@ -389,4 +389,40 @@ public class ZipOutputStreamTest {
     entry.setCompressionLevel(BEST_COMPRESSION);
     assertEquals(ZipEntry.DEFLATED, entry.getMethod());
   }
+
+  @Test
+  public void shouldAlignTheDataOfStoredEntries() throws IOException {
+    byte[] data = "cheese".getBytes();
+    try (CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output)) {
+      for (String name : ImmutableList.of("a", "bc", "def")) {
+        CustomZipEntry entry = new CustomZipEntry(name);
+        entry.setCompressionLevel(NO_COMPRESSION);
+        entry.setCrc(Hashing.crc32().hashBytes(data).padToLong());
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setAlignment(4);
+        out.putNextEntry(entry);
+        out.write(data);
+      }
+    }
+
+    // Walk the local file headers, which are followed by the name, the extra field and the data.
+    byte[] zip = Files.readAllBytes(output.toPath());
+    int offset = 0;
+    for (int i = 0; i < 3; i++) {
+      int nameLength = (zip[offset + 26] & 0xff) | (zip[offset + 27] & 0xff) << 8;
+      int extraLength = (zip[offset + 28] & 0xff) | (zip[offset + 29] & 0xff) << 8;
+      int dataOffset = offset + 30 + nameLength + extraLength;
+      assertEquals(0, dataOffset % 4);
+      offset = dataOffset + data.length;
+    }
+
+    // The padding must not stop the archive from being read.
+    try (ZipInputStream in = new ZipInputStream(new FileInputStream(output))) {
+      for (String name : ImmutableList.of("a", "bc", "def")) {
+        assertEquals(name, in.getNextEntry().getName());
+        assertArrayEquals(data, ByteStreams.toByteArray(in));
+      }
+    }
+  }
 }